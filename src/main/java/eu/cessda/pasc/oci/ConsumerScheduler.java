@@ -45,30 +45,48 @@ public class ConsumerScheduler {
 
     private final DebuggingJMXBean debuggingJMXBean;
     private final IndexerRunner indexerRunner;
+    private final IndexerMetrics indexerMetrics;
+    private final RunReporter runReporter;
 
     @Autowired
-    public ConsumerScheduler(DebuggingJMXBean debuggingJMXBean, IndexerRunner indexerRunner) {
+    public ConsumerScheduler(DebuggingJMXBean debuggingJMXBean, IndexerRunner indexerRunner, IndexerMetrics indexerMetrics, RunReporter runReporter) {
         this.debuggingJMXBean = debuggingJMXBean;
         this.indexerRunner = indexerRunner;
+        this.indexerMetrics = indexerMetrics;
+        this.runReporter = runReporter;
     }
 
     /**
      * Auto Starts after delay of given time at startup.
      */
     public void runIndexer() {
+        runIndexer(HarvestSelection.all());
+    }
+
+    /**
+     * Run the indexer, restricted to the selected repositories, languages or files.
+     *
+     * @param selection the repositories, languages and files to harvest.
+     */
+    public void runIndexer(HarvestSelection selection) {
         // Record the start time to generate the job ID and for logging purposes
         final var startTime = OffsetDateTime.now(ZoneId.systemDefault());
-        try (var jobKeyClosable = MDC.putCloseable(
-            INDEXER_JOB_ID,
-            DateTimeFormatter.ISO_OFFSET_DATE_TIME.format(startTime)
-        )) {
+        final var jobId = DateTimeFormatter.ISO_OFFSET_DATE_TIME.format(startTime);
+        try (var jobKeyClosable = MDC.putCloseable(INDEXER_JOB_ID, jobId)) {
             log.info("[{}] Consume and Ingest All SPs Repos: \nStarted at [{}]\nCurrent state before run:\n{}",
                 FULL_RUN,
                 startTime,
                 debuggingJMXBean.printElasticSearchInfo()
             );
 
-            indexerRunner.executeHarvestAndIngest();
+            // Discard metrics from previous runs
+            indexerMetrics.reset();
+            runReporter.start();
+
+            indexerRunner.executeHarvestAndIngest(selection);
+
+            indexerMetrics.logSummary();
+            runReporter.writeReport(jobId);
 
             final var endTime = OffsetDateTime.now(ZoneId.systemDefault());
             log.info("[{}] Consume and Ingest All SPs Repos:\nEnded at: [{}]\nDuration: [{}] seconds",
@@ -0,0 +1,234 @@
+/*
+ * Copyright © 2017-2023 CESSDA ERIC (support@cessda.eu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.cessda.pasc.oci;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import eu.cessda.pasc.oci.configurations.AppConfigurationProperties;
+import eu.cessda.pasc.oci.elasticsearch.IngestService;
+import eu.cessda.pasc.oci.models.cmmstudy.CMMStudyOfLanguage;
+import eu.cessda.pasc.oci.models.configurations.Repo;
+import eu.cessda.pasc.oci.models.report.DiffReport;
+import eu.cessda.pasc.oci.models.report.LanguageDiffReport;
+import eu.cessda.pasc.oci.models.report.RepositoryDiffReport;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static net.logstash.logback.argument.StructuredArguments.value;
+
+/**
+ * Compares harvested studies with the studies in Elasticsearch without changing the index, and reports the
+ * studies that would be created, updated or deleted.
+ * <p>
+ * Stored studies are retrieved with batched multi-get requests, and the IDs of stored studies are retrieved without
+ * their source, so a dry run reads far less from Elasticsearch than it would write during a normal run. The report
+ * is written to {@code reportDirectory}, if configured.
+ */
+@Component
+@Slf4j
+public class DryRunReporter {
+
+    private static final DateTimeFormatter FILE_NAME_FORMATTER = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'").withZone(ZoneOffset.UTC);
+
+    /**
+     * The maximum amount of IDs of created, updated or deleted studies included in the report for each language.
+     */
+    static final int ID_SAMPLE_SIZE = 100;
+
+    private final AppConfigurationProperties configurationProperties;
+    private final IngestService ingestService;
+    private final ObjectMapper objectMapper;
+    private final ObjectWriter reportWriter;
+
+    private final Map<String, Map<String, LanguageDiffReport>> diffs = new ConcurrentHashMap<>();
+    private volatile Instant startTime = Instant.now();
+
+    @Autowired
+    public DryRunReporter(AppConfigurationProperties configurationProperties, IngestService ingestService, ObjectMapper objectMapper) {
+        this.configurationProperties = configurationProperties;
+        this.ingestService = ingestService;
+        this.objectMapper = objectMapper;
+        this.reportWriter = objectMapper.writerWithDefaultPrettyPrinter();
+    }
+
+    /**
+     * Mark the start of a dry run, discarding the changes of previous runs.
+     */
+    public void start() {
+        startTime = Instant.now();
+        diffs.clear();
+    }
+
+    /**
+     * Compare the harvested studies of a language of a repository with the studies stored in Elasticsearch.
+     *
+     * @param repo      the source repository.
+     * @param language  the language code.
+     * @param studies   the harvested studies.
+     * @param storedIds the IDs of the studies of the repository present in the index.
+     * @return the changes that would be made to the index.
+     * @throws IOException if an IO error occurs when accessing Elasticsearch.
+     */
+    public LanguageDiffReport diff(Repo repo, String language, Collection<CMMStudyOfLanguage> studies, Set<String> storedIds) throws IOException {
+        var harvestedIds = new HashSet<String>(studies.size());
+        for (var study : studies) {
+            harvestedIds.add(study.getId());
+        }
+
+        // Only studies that are already indexed need to be retrieved
+        var idsToRetrieve = new ArrayList<String>();
+        for (var id : harvestedIds) {
+            if (storedIds.contains(id)) {
+                idsToRetrieve.add(id);
+            }
+        }
+        var storedStudies = ingestService.getStudies(idsToRetrieve, language);
+
+        long created = 0;
+        long updated = 0;
+        long unchanged = 0;
+        var changedFields = new TreeMap<String, Long>();
+        var createdIds = new ArrayList<String>();
+        var updatedIds = new ArrayList<String>();
+
+        for (var study : studies) {
+            var storedStudy = storedStudies.get(study.getId());
+            if (storedStudy == null) {
+                created++;
+                addSample(createdIds, study.getId());
+            } else if (study.equals(storedStudy)) {
+                unchanged++;
+            } else {
+                updated++;
+                addSample(updatedIds, study.getId());
+                for (var field : changedFields(study, storedStudy)) {
+                    changedFields.merge(field, 1L, Long::sum);
+                }
+            }
+        }
+
+        long deleted = 0;
+        var deletedIds = new ArrayList<String>();
+        for (var id : new TreeSet<>(storedIds)) {
+            if (!harvestedIds.contains(id)) {
+                deleted++;
+                addSample(deletedIds, id);
+            }
+        }
+
+        createdIds.sort(null);
+        updatedIds.sort(null);
+
+        var languageDiff = new LanguageDiffReport(language, created, updated, deleted, unchanged, changedFields, createdIds, updatedIds, deletedIds);
+        diffs.computeIfAbsent(repo.getCode(), k -> new ConcurrentHashMap<>()).put(language, languageDiff);
+
+        log.info("[{}({})] Dry run: [{}] studies would be created, [{}] studies would be deleted, [{}] studies would be updated. Changed fields: {}",
+            value(LoggingConstants.REPO_NAME, repo.getCode()),
+            value(LoggingConstants.LANG_CODE, language),
+            value("created_cmm_studies", created),
+            value("deleted_cmm_studies", deleted),
+            value("updated_cmm_studies", updated),
+            value("changed_fields", changedFields)
+        );
+        return languageDiff;
+    }
+
+    private static void addSample(List<String> sample, String id) {
+        if (sample.size() < ID_SAMPLE_SIZE) {
+            sample.add(id);
+        }
+    }
+
+    /**
+     * Get the names of the fields that differ between two versions of a study, as serialized to Elasticsearch.
+     */
+    Set<String> changedFields(CMMStudyOfLanguage study, CMMStudyOfLanguage storedStudy) {
+        JsonNode harvested = objectMapper.valueToTree(study);
+        JsonNode stored = objectMapper.valueToTree(storedStudy);
+
+        var fieldNames = new TreeSet<String>();
+        harvested.fieldNames().forEachRemaining(fieldNames::add);
+        stored.fieldNames().forEachRemaining(fieldNames::add);
+        fieldNames.removeIf(field -> Objects.equals(harvested.get(field), stored.get(field)));
+        return fieldNames;
+    }
+
+    /**
+     * Write the report of the current dry run to the configured report directory.
+     *
+     * @return the path of the written report, or an empty optional if no report directory is configured
+     * or the report could not be written.
+     */
+    public Optional<Path> writeReport() {
+        var report = buildReport();
+        log.info("Dry run finished: [{}] studies would be created, [{}] studies would be deleted, [{}] studies would be updated.",
+            value("created_cmm_studies", report.created()),
+            value("deleted_cmm_studies", report.deleted()),
+            value("updated_cmm_studies", report.updated())
+        );
+
+        var reportDirectory = configurationProperties.getReportDirectory();
+        if (reportDirectory == null) {
+            return Optional.empty();
+        }
+
+        var reportFile = reportDirectory.resolve("dry-run-report-" + FILE_NAME_FORMATTER.format(startTime) + ".json");
+        try {
+            Files.createDirectories(reportDirectory);
+            reportWriter.writeValue(reportFile.toFile(), report);
+            log.info("Dry run report written to {}", value("report_file", reportFile));
+            return Optional.of(reportFile);
+        } catch (IOException e) {
+            log.warn("Couldn't write dry run report to {}: {}", reportFile, e.toString());
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Build the report of the current dry run.
+     */
+    DiffReport buildReport() {
+        long created = 0;
+        long updated = 0;
+        long deleted = 0;
+        long unchanged = 0;
+
+        var repositories = new ArrayList<RepositoryDiffReport>();
+        for (var repository : new TreeMap<>(diffs).entrySet()) {
+            var languages = new ArrayList<>(new TreeMap<>(repository.getValue()).values());
+            for (var language : languages) {
+                created += language.created();
+                updated += language.updated();
+                deleted += language.deleted();
+                unchanged += language.unchanged();
+            }
+            repositories.add(new RepositoryDiffReport(repository.getKey(), languages));
+        }
+
+        return new DiffReport(startTime.toString(), Instant.now().toString(), created, updated, deleted, unchanged, repositories);
+    }
+}
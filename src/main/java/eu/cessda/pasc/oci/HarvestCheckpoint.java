@@ -0,0 +1,258 @@
+/*
+ * Copyright © 2017-2023 CESSDA ERIC (support@cessda.eu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.cessda.pasc.oci;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import eu.cessda.pasc.oci.configurations.AppConfigurationProperties;
+import eu.cessda.pasc.oci.models.configurations.Repo;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+
+import static java.nio.file.StandardOpenOption.*;
+import static net.logstash.logback.argument.StructuredArguments.value;
+
+/**
+ * Records the progress of a harvest, so that a harvest interrupted by a crash can resume where it stopped.
+ * <p>
+ * The checkpoint records the completed repositories and languages, and the amount of bulk batches acknowledged
+ * by Elasticsearch for languages in progress. It is written to {@code harvest-checkpoint.json} in the configured
+ * {@code stateDirectory} after every change, and removed once the harvest completes.
+ * <p>
+ * Each repository's progress is tied to a fingerprint of its source files. If the files change between runs,
+ * the repository's progress is discarded and the repository is harvested from the start.
+ */
+@Component
+@Slf4j
+public class HarvestCheckpoint {
+
+    static final String CHECKPOINT_FILE = "harvest-checkpoint.json";
+    private static final TypeReference<Map<String, RepositoryEntry>> ENTRY_MAP = new TypeReference<>() {
+    };
+
+    private final AppConfigurationProperties configurationProperties;
+    private final ObjectMapper objectMapper;
+
+    // Guarded by this
+    private final Map<String, RepositoryEntry> repositories = new HashMap<>();
+    private Path checkpointFile;
+
+    @Autowired
+    public HarvestCheckpoint(AppConfigurationProperties configurationProperties, ObjectMapper objectMapper) {
+        this.configurationProperties = configurationProperties;
+        this.objectMapper = objectMapper;
+    }
+
+    /**
+     * Start recording the progress of a harvest. If a checkpoint was left by an interrupted harvest, it is loaded
+     * so that the harvest resumes from it.
+     *
+     * @param enabled whether to record progress. Progress is only recorded if a state directory is configured.
+     */
+    public synchronized void begin(boolean enabled) {
+        repositories.clear();
+        var stateDirectory = configurationProperties.getStateDirectory();
+        checkpointFile = enabled && stateDirectory != null ? stateDirectory.resolve(CHECKPOINT_FILE) : null;
+        if (checkpointFile == null) {
+            return;
+        }
+
+        try (var inputStream = Files.newInputStream(checkpointFile)) {
+            Map<String, RepositoryEntry> loaded = objectMapper.readValue(inputStream, ENTRY_MAP);
+            repositories.putAll(loaded);
+            log.info("Resuming interrupted harvest from {}", value("harvest_checkpoint", checkpointFile));
+        } catch (NoSuchFileException e) {
+            log.debug("No harvest checkpoint found at {}", checkpointFile);
+        } catch (IOException e) {
+            log.warn("Couldn't load harvest checkpoint from {}, harvesting from the start: {}", checkpointFile, e.toString());
+        }
+    }
+
+    /**
+     * Returns {@code true} if progress is being recorded.
+     */
+    public synchronized boolean isEnabled() {
+        return checkpointFile != null;
+    }
+
+    /**
+     * Start harvesting a repository. Progress recorded for a previous version of the repository's files is discarded.
+     *
+     * @param repo the repository.
+     * @return {@code true} if the repository was completed by the interrupted harvest, and can be skipped.
+     */
+    public boolean startRepository(Repo repo) {
+        if (!isEnabled()) {
+            return false;
+        }
+
+        var fingerprint = fingerprint(repo);
+        synchronized (this) {
+            var entry = repositories.get(repo.getCode());
+            if (entry != null && entry.getFingerprint().equals(fingerprint)) {
+                return entry.isComplete();
+            }
+
+            if (entry != null) {
+                log.info("[{}] Source files changed since the interrupted harvest, harvesting from the start", repo.getCode());
+            }
+            var newEntry = new RepositoryEntry();
+            newEntry.setFingerprint(fingerprint);
+            repositories.put(repo.getCode(), newEntry);
+            return false;
+        }
+    }
+
+    /**
+     * Returns {@code true} if a language of a repository was completed by the interrupted harvest.
+     */
+    public synchronized boolean isLanguageComplete(String repository, String language) {
+        var entry = repositories.get(repository);
+        return entry != null && entry.getCompletedLanguages().contains(language);
+    }
+
+    /**
+     * Get the amount of bulk batches of a language acknowledged by Elasticsearch. These batches do not need
+     * to be indexed again.
+     */
+    public synchronized int getAcknowledgedBatches(String repository, String language) {
+        var entry = repositories.get(repository);
+        return entry != null ? entry.getAcknowledgedBatches().getOrDefault(language, 0) : 0;
+    }
+
+    /**
+     * Record that the next bulk batch of a language has been acknowledged by Elasticsearch.
+     */
+    public synchronized void acknowledgeBatch(String repository, String language) {
+        var entry = repositories.get(repository);
+        if (entry != null) {
+            entry.getAcknowledgedBatches().merge(language, 1, Integer::sum);
+            save();
+        }
+    }
+
+    /**
+     * Record that a language of a repository has been fully indexed, including deletions.
+     */
+    public synchronized void completeLanguage(String repository, String language) {
+        var entry = repositories.get(repository);
+        if (entry != null) {
+            entry.getCompletedLanguages().add(language);
+            entry.getAcknowledgedBatches().remove(language);
+            save();
+        }
+    }
+
+    /**
+     * Record that a repository has been fully harvested, if all of its languages have completed.
+     *
+     * @param repository the code of the repository.
+     * @param languages  the languages harvested from the repository.
+     */
+    public synchronized void completeRepository(String repository, Collection<String> languages) {
+        var entry = repositories.get(repository);
+        if (entry != null && entry.getCompletedLanguages().containsAll(languages)) {
+            entry.setComplete(true);
+            save();
+        }
+    }
+
+    /**
+     * Remove the checkpoint once the harvest has completed, so that the next harvest starts from the beginning.
+     */
+    public synchronized void finish() {
+        if (checkpointFile != null) {
+            try {
+                Files.deleteIfExists(checkpointFile);
+            } catch (IOException e) {
+                log.warn("Couldn't remove harvest checkpoint {}: {}", checkpointFile, e.toString());
+            }
+        }
+        repositories.clear();
+        checkpointFile = null;
+    }
+
+    /**
+     * Write the checkpoint. The checkpoint is written to a temporary file and synced to disk before replacing
+     * the previous checkpoint, so that a crash never leaves a partially written checkpoint.
+     */
+    private void save() {
+        if (checkpointFile == null) {
+            return;
+        }
+
+        try {
+            Files.createDirectories(checkpointFile.getParent());
+            var temporaryFile = checkpointFile.resolveSibling(CHECKPOINT_FILE + ".tmp");
+            var bytes = objectMapper.writeValueAsBytes(new TreeMap<>(repositories));
+            try (var channel = FileChannel.open(temporaryFile, CREATE, WRITE, TRUNCATE_EXISTING)) {
+                var buffer = ByteBuffer.wrap(bytes);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(true);
+            }
+            Files.move(temporaryFile, checkpointFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.warn("Couldn't save harvest checkpoint to {}: {}", checkpointFile, e.toString());
+        }
+    }
+
+    /**
+     * Fingerprint the source files of a repository from the amount, total size and latest modification time
+     * of the files in its directory.
+     */
+    static String fingerprint(Repo repo) {
+        if (repo.getPath() == null) {
+            return "";
+        }
+
+        long files = 0;
+        long bytes = 0;
+        long lastModified = 0;
+        try (var stream = Files.newDirectoryStream(repo.getPath(), Files::isRegularFile)) {
+            for (var path : stream) {
+                var attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                files++;
+                bytes += attributes.size();
+                lastModified = Math.max(lastModified, attributes.lastModifiedTime().toMillis());
+            }
+        } catch (IOException e) {
+            log.debug("[{}] Couldn't fingerprint the repository: {}", value(LoggingConstants.REPO_NAME, repo.getCode()), e.toString());
+        }
+        return files + ":" + bytes + ":" + lastModified;
+    }
+
+    /**
+     * The progress of a repository.
+     */
+    @Data
+    static class RepositoryEntry {
+        private String fingerprint = "";
+        private boolean complete;
+        private Set<String> completedLanguages = new TreeSet<>();
+        private Map<String, Integer> acknowledgedBatches = new TreeMap<>();
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright © 2017-2023 CESSDA ERIC (support@cessda.eu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.cessda.pasc.oci;
+
+import eu.cessda.pasc.oci.models.configurations.Repo;
+import org.springframework.boot.ApplicationArguments;
+
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * Restricts a harvest to selected repositories, languages or files.
+ * <p>
+ * An empty set means that everything is selected. When files are selected, only the repositories containing
+ * those files are harvested, and only the selected files are parsed.
+ *
+ * @param repositories the codes of the repositories to harvest, matched ignoring case.
+ * @param languages    the languages to index.
+ * @param files        the XML files to index.
+ */
+public record HarvestSelection(Set<String> repositories, Set<String> languages, Set<Path> files) {
+
+    public static final String REPOSITORY_OPTION = "repository";
+    public static final String LANGUAGE_OPTION = "language";
+    public static final String FILE_OPTION = "file";
+
+    private static final HarvestSelection ALL = new HarvestSelection(Set.of(), Set.of(), Set.of());
+
+    public HarvestSelection {
+        repositories = Set.copyOf(repositories);
+        languages = Set.copyOf(languages);
+        // Normalise the paths so that they can be compared to the paths of discovered repositories
+        files = files.stream().map(file -> file.toAbsolutePath().normalize()).collect(Collectors.toUnmodifiableSet());
+    }
+
+    /**
+     * A selection of every repository, language and file.
+     */
+    public static HarvestSelection all() {
+        return ALL;
+    }
+
+    /**
+     * Parse a selection from the command line. Options can be repeated, or given comma separated values.
+     * <pre>
+     * --repository=UKDS,FSD --language=en --file=/data/UKDS/study.xml
+     * </pre>
+     *
+     * @param args the command line arguments.
+     * @return the selection, or a selection of everything if no selection options are present.
+     */
+    public static HarvestSelection fromArguments(ApplicationArguments args) {
+        var repositories = getOptionValues(args, REPOSITORY_OPTION);
+        var languages = getOptionValues(args, LANGUAGE_OPTION);
+        var files = getOptionValues(args, FILE_OPTION).stream().map(Path::of).collect(Collectors.toSet());
+        return new HarvestSelection(repositories, languages, files);
+    }
+
+    private static Set<String> getOptionValues(ApplicationArguments args, String option) {
+        var values = args.getOptionValues(option);
+        if (values == null) {
+            return Collections.emptySet();
+        }
+        return values.stream()
+            .flatMap(value -> Arrays.stream(value.split(",")))
+            .map(String::trim)
+            .filter(value -> !value.isEmpty())
+            .collect(Collectors.collectingAndThen(Collectors.toCollection(LinkedHashSet::new), Collections::unmodifiableSet));
+    }
+
+    /**
+     * Returns {@code true} if nothing has been excluded from the harvest.
+     */
+    public boolean isEverything() {
+        return repositories.isEmpty() && languages.isEmpty() && files.isEmpty();
+    }
+
+    /**
+     * Returns {@code true} if the selection includes a repository. If files are selected, the repository
+     * must contain at least one of the selected files.
+     */
+    public boolean includesRepository(Repo repo) {
+        if (!repositories.isEmpty() && repositories.stream().noneMatch(code -> code.equalsIgnoreCase(repo.getCode()))) {
+            return false;
+        }
+        return files.isEmpty() || !getFiles(repo).isEmpty();
+    }
+
+    /**
+     * Returns {@code true} if the selection includes a language.
+     */
+    public boolean includesLanguage(String language) {
+        return languages.isEmpty() || languages.contains(language);
+    }
+
+    /**
+     * Get the selected files that belong to a repository.
+     *
+     * @param repo the repository.
+     * @return the selected files in the repository's directory, or an empty list if no files are selected.
+     */
+    public List<Path> getFiles(Repo repo) {
+        if (repo.getPath() == null) {
+            return Collections.emptyList();
+        }
+        var repoPath = repo.getPath().toAbsolutePath().normalize();
+        return files.stream().filter(file -> repoPath.equals(file.getParent())).sorted().toList();
+    }
+
+    @Override
+    public String toString() {
+        if (isEverything()) {
+            return "everything";
+        }
+        var description = new StringJoiner(", ");
+        if (!repositories.isEmpty()) {
+            description.add("repositories " + new TreeSet<>(repositories));
+        }
+        if (!languages.isEmpty()) {
+            description.add("languages " + new TreeSet<>(languages));
+        }
+        if (!files.isEmpty()) {
+            description.add("files " + new TreeSet<>(files));
+        }
+        return description.toString();
+    }
+}
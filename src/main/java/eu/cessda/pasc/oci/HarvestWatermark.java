@@ -0,0 +1,127 @@
+/*
+ * Copyright © 2017-2023 CESSDA ERIC (support@cessda.eu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.cessda.pasc.oci;
+
+import co.elastic.clients.elasticsearch._types.ElasticsearchException;
+import eu.cessda.pasc.oci.configurations.AppConfigurationProperties;
+import eu.cessda.pasc.oci.elasticsearch.IngestService;
+import eu.cessda.pasc.oci.models.cmmstudy.CMMStudyOfLanguage;
+import eu.cessda.pasc.oci.models.configurations.Repo;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+
+import static net.logstash.logback.argument.StructuredArguments.value;
+
+/**
+ * Tracks the most recent OAI-PMH datestamp indexed from each repository, so that records that have not been
+ * modified since the previous harvest can be skipped before they are mapped.
+ * <p>
+ * The watermark is stored in Elasticsearch alongside the indexed studies. Records are only skipped if their
+ * datestamp is older than the watermark by more than the configured overlap, so that records added to a
+ * repository with an earlier datestamp after the previous harvest are still indexed.
+ */
+@Component
+@Slf4j
+public class HarvestWatermark {
+
+    private final AppConfigurationProperties configurationProperties;
+    private final IngestService ingestService;
+
+    @Autowired
+    public HarvestWatermark(AppConfigurationProperties configurationProperties, IngestService ingestService) {
+        this.configurationProperties = configurationProperties;
+        this.ingestService = ingestService;
+    }
+
+    /**
+     * Returns {@code true} if incremental harvesting is enabled.
+     */
+    public boolean isEnabled() {
+        return configurationProperties.getIncremental().isEnabled();
+    }
+
+    /**
+     * Get the time that records of a repository must be modified since to be parsed.
+     *
+     * @param repo the repository.
+     * @return the watermark of the repository minus the overlap, or an empty {@link Optional} if incremental
+     * harvesting is disabled or the repository has no watermark.
+     */
+    public Optional<Instant> getModifiedSince(Repo repo) {
+        if (!isEnabled()) {
+            return Optional.empty();
+        }
+
+        try {
+            var overlap = configurationProperties.getIncremental().getOverlap();
+            var modifiedSince = ingestService.getHarvestWatermark(repo.getCode()).map(watermark -> watermark.minus(overlap));
+            modifiedSince.ifPresentOrElse(
+                instant -> log.info("[{}] Skipping records not modified since {}", repo.getCode(), value("harvest_watermark", instant)),
+                () -> log.info("[{}] No harvest watermark found, parsing every record", repo.getCode())
+            );
+            return modifiedSince;
+        } catch (IOException | ElasticsearchException e) {
+            log.warn("[{}] Couldn't retrieve the harvest watermark, parsing every record: {}", repo.getCode(), e.toString());
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Advance the watermark of a repository to the most recent datestamp of the indexed studies. The watermark
+     * never moves backwards, and never moves past the start of the harvest.
+     *
+     * @param repo      the repository.
+     * @param studies   the studies indexed from the repository.
+     * @param startTime the time the harvest of the repository started.
+     */
+    public void advance(Repo repo, Collection<List<CMMStudyOfLanguage>> studies, Instant startTime) {
+        if (!isEnabled()) {
+            return;
+        }
+
+        var latest = studies.stream()
+            .flatMap(List::stream)
+            .map(CMMStudyOfLanguage::getLastModified)
+            .filter(Objects::nonNull)
+            .distinct()
+            .map(TimeUtility::parseDatestamp)
+            .flatMap(Optional::stream)
+            .filter(datestamp -> !datestamp.isAfter(startTime))
+            .max(Instant::compareTo);
+        if (latest.isEmpty()) {
+            return;
+        }
+
+        try {
+            var current = ingestService.getHarvestWatermark(repo.getCode());
+            if (current.isPresent() && !latest.get().isAfter(current.get())) {
+                return;
+            }
+            ingestService.setHarvestWatermark(repo.getCode(), latest.get());
+            log.info("[{}] Harvest watermark advanced to {}", repo.getCode(), value("harvest_watermark", latest.get()));
+        } catch (IOException | ElasticsearchException e) {
+            log.warn("[{}] Couldn't store the harvest watermark: {}", repo.getCode(), e.toString());
+        }
+    }
+}
@@ -16,10 +16,18 @@
 package eu.cessda.pasc.oci;
 
 import eu.cessda.pasc.oci.exception.XMLParseException;
+import eu.cessda.pasc.oci.models.ParsedRecords;
+import eu.cessda.pasc.oci.models.Tombstone;
 import eu.cessda.pasc.oci.models.cmmstudy.CMMStudy;
 import eu.cessda.pasc.oci.models.cmmstudy.CMMStudyOfLanguage;
 import eu.cessda.pasc.oci.models.configurations.Repo;
+import eu.cessda.pasc.oci.parser.FilePrefetcher;
 import eu.cessda.pasc.oci.parser.RecordXMLParser;
+import eu.cessda.pasc.oci.parser.XMLArchives;
+import eu.cessda.pasc.oci.parser.XMLCompression;
+import eu.cessda.pasc.oci.parser.XMLSource;
+import eu.cessda.pasc.oci.service.HarvestProgress;
+import eu.cessda.pasc.oci.service.RepositoryProgress;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
@@ -27,14 +35,14 @@ import org.springframework.stereotype.Service;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.Collections;
-import java.util.List;
-import java.util.Map;
-import java.util.Optional;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
-import static com.google.common.io.Files.getFileExtension;
 import static net.logstash.logback.argument.StructuredArguments.value;
 
 @Service
@@ -47,11 +55,38 @@ public class IndexerConsumerService {
     protected static final String FAILED_TO_GET_STUDY_ID_WITH_MESSAGE = FAILED_TO_GET_STUDY_ID + ": {}";
     private final RecordXMLParser recordXMLParser;
     private final LanguageExtractor languageExtractor;
+    private final IndexerMetrics indexerMetrics;
+    private final HarvestProgress harvestProgress;
+    private final FilePrefetcher filePrefetcher;
+
+    /**
+     * The IDs of the studies extracted from each file, grouped by language. Only populated if tracking is enabled.
+     */
+    private final Map<Path, Map<String, Set<String>>> studyIdsByFile = new ConcurrentHashMap<>();
+    private volatile boolean trackStudyFiles = false;
+
+    /**
+     * The IDs of the studies marked as deleted in each repository, since they were last taken.
+     */
+    private final Map<String, Set<String>> deletedStudyIds = new ConcurrentHashMap<>();
+
+    /**
+     * The IDs of the studies skipped in each repository because they were not modified, since they were last taken.
+     */
+    private final Map<String, Set<String>> skippedStudyIds = new ConcurrentHashMap<>();
+
+    /**
+     * The codes of the repositories with archives that couldn't be fully read, since they were last taken.
+     */
+    private final Set<String> unreadableRepositories = ConcurrentHashMap.newKeySet();
 
     @Autowired
-    public IndexerConsumerService(LanguageExtractor languageExtractor, RecordXMLParser recordXMLParser) {
+    public IndexerConsumerService(LanguageExtractor languageExtractor, RecordXMLParser recordXMLParser, IndexerMetrics indexerMetrics, HarvestProgress harvestProgress, FilePrefetcher filePrefetcher) {
         this.languageExtractor = languageExtractor;
         this.recordXMLParser = recordXMLParser;
+        this.indexerMetrics = indexerMetrics;
+        this.harvestProgress = harvestProgress;
+        this.filePrefetcher = filePrefetcher;
     }
 
     /**
@@ -60,8 +95,20 @@ public class IndexerConsumerService {
      * @param repo             the repository to query.
      * @return a map of records retrieved from the remote repository.
      */
-    @SuppressWarnings("UnstableApiUsage")
     public Map<String, List<CMMStudyOfLanguage>> getRecords(Repo repo) {
+        return getRecords(repo, (Instant) null);
+    }
+
+    /**
+     * Queries the remote repository for records modified since the given time. The IDs of the skipped
+     * records can be retrieved using {@link #takeSkippedStudyIds(Repo)}.
+     *
+     * @param repo          the repository to query.
+     * @param modifiedSince records with a datestamp before this time are skipped, or {@code null} to parse every record.
+     * @return a map of records retrieved from the remote repository.
+     */
+    @SuppressWarnings("UnstableApiUsage")
+    public Map<String, List<CMMStudyOfLanguage>> getRecords(Repo repo, Instant modifiedSince) {
         log.debug("[{}] Parsing records.", repo.getCode());
 
         /*
@@ -72,56 +119,314 @@ public class IndexerConsumerService {
             throw new IllegalArgumentException("Repo " + repo.getCode() + " has no path defined");
         }
 
-        try (var stream = Files.find(repo.getPath(), 1, (path, attributes) ->
-            // Find XML files in the source directory.
-            attributes.isRegularFile() && getFileExtension(path.toString()).equals("xml")
-        )) {
-            var studies = new AtomicInteger();
-
-            var studiesByLanguage = stream.flatMap(path -> getRecord(repo, path).stream())
-                .flatMap(cmmStudy -> {
-                    // Extract language specific variants of the record
-                    var extractedStudies = languageExtractor.extractFromStudy(cmmStudy, repo);
-                    if (!extractedStudies.isEmpty()) {
-                        studies.getAndIncrement();
-                    }
-                    return extractedStudies.entrySet().stream();
-                })
-                .collect(Collectors.groupingBy(Map.Entry::getKey, Collectors.mapping(Map.Entry::getValue, Collectors.toList())));
+        // Use a detached progress tracker if the repository isn't being tracked
+        var progress = harvestProgress.getRepository(repo.getCode()).orElseGet(() -> new RepositoryProgress(repo.getCode()));
+        progress.setStage(RepositoryProgress.Stage.DISCOVERING);
 
-            log.info("[{}] Retrieved [{}] studies.",
+        var discoverySample = indexerMetrics.startTimer();
+        final List<Path> xmlFiles;
+        try (var stream = Files.find(repo.getPath(), 1, (path, attributes) -> attributes.isRegularFile() && isSourceFile(path))) {
+            xmlFiles = stream.toList();
+        } catch (IOException e) {
+            log.error(LIST_RECORD_HEADERS_FAILED_WITH_MESSAGE,
                 value(LoggingConstants.REPO_NAME, repo.getCode()),
-                value("present_cmm_record", studies.get())
+                value(LoggingConstants.EXCEPTION_NAME, e.getClass().getName()),
+                value(LoggingConstants.REASON, e.getMessage())
             );
+            return Collections.emptyMap();
+        } finally {
+            indexerMetrics.stopTimer(discoverySample, IndexerMetrics.Stage.FILE_DISCOVERY);
+        }
+
+        return parseFiles(repo, xmlFiles, progress, modifiedSince);
+    }
+
+    /**
+     * Returns {@code true} if the file is named as a source file of a repository. These are XML files,
+     * including compressed XML files, and archives of XML files.
+     */
+    public static boolean isSourceFile(Path path) {
+        return XMLCompression.isXMLFile(path) || XMLArchives.isArchive(path);
+    }
+
+    /**
+     * Parse selected files of a repository.
+     *
+     * @param repo     the repository that the files belong to.
+     * @param xmlFiles the files to parse.
+     * @return the studies extracted from the files, grouped by language.
+     */
+    public Map<String, List<CMMStudyOfLanguage>> getRecords(Repo repo, List<Path> xmlFiles) {
+        log.debug("[{}] Parsing [{}] selected files.", repo.getCode(), xmlFiles.size());
+        var progress = harvestProgress.getRepository(repo.getCode()).orElseGet(() -> new RepositoryProgress(repo.getCode()));
+        return parseFiles(repo, xmlFiles, progress, null);
+    }
+
+    private Map<String, List<CMMStudyOfLanguage>> parseFiles(Repo repo, List<Path> xmlFiles, RepositoryProgress progress, Instant modifiedSince) {
+        progress.setStage(RepositoryProgress.Stage.PARSING);
+
+        var studies = new AtomicInteger();
+
+        Map<String, List<CMMStudyOfLanguage>> studiesByLanguage;
+        try (var sources = readFiles(repo, xmlFiles, progress)) {
+            studiesByLanguage = sources
+                // Stop parsing if the repository has been cancelled
+                .takeWhile(source -> !progress.isCancelled())
+                .flatMap(source -> {
+                    try (source) {
+                        var fileStudies = extractStudies(repo, source, studies, modifiedSince);
+                        progress.incrementFilesParsed();
+                        return fileStudies.entrySet().stream();
+                    }
+                })
+                .collect(Collectors.groupingBy(Map.Entry::getKey, Collectors.flatMapping(entry -> entry.getValue().stream(), Collectors.toList())));
+        }
+
+        indexerMetrics.recordStudies(IndexerMetrics.StudyOutcome.PARSED, studies.get());
+        studiesByLanguage.forEach((lang, studiesOfLanguage) -> progress.addStudies(lang, studiesOfLanguage.size()));
+
+        log.info("[{}] Retrieved [{}] studies.",
+            value(LoggingConstants.REPO_NAME, repo.getCode()),
+            value("present_cmm_record", studies.get())
+        );
+
+        return studiesByLanguage;
+    }
 
-            return studiesByLanguage;
+    /**
+     * Get the sources of the files to parse. Archives are expanded into the XML files they contain, which
+     * are parsed after the other files. The stream must be closed so that open archives, and files read
+     * ahead but not parsed, are released.
+     */
+    private Stream<XMLSource> readFiles(Repo repo, List<Path> xmlFiles, RepositoryProgress progress) {
+        var files = new ArrayList<Path>(xmlFiles.size());
+        var archives = new ArrayList<Path>();
+        for (var path : xmlFiles) {
+            (XMLArchives.isArchive(path) ? archives : files).add(path);
+        }
+
+        progress.addFilesSeen(files.size());
+        var sources = readFiles(files);
+        if (archives.isEmpty()) {
+            return sources;
+        }
+
+        var archivedSources = archives.stream().flatMap(archive -> readArchive(repo, archive))
+            // The amount of files in an archive is only known once it has been read
+            .peek(source -> progress.addFilesSeen(1));
+        return Stream.concat(sources, archivedSources);
+    }
+
+    /**
+     * Get the sources of the files to parse. If prefetching is enabled, the files are read ahead of the parser.
+     */
+    private Stream<XMLSource> readFiles(List<Path> xmlFiles) {
+        if (!filePrefetcher.isEnabled() || xmlFiles.size() < 2) {
+            return xmlFiles.stream().map(XMLSource::of);
+        }
+        var prefetchedFiles = filePrefetcher.prefetch(xmlFiles);
+        var spliterator = Spliterators.<XMLSource>spliterator(prefetchedFiles, xmlFiles.size(), Spliterator.ORDERED);
+        return StreamSupport.stream(spliterator, false).onClose(prefetchedFiles::close);
+    }
+
+    /**
+     * Open an archive of XML files. An archive that can't be opened is logged and skipped. If an archive
+     * can't be opened or fully read, the repository is recorded as unreadable, see {@link #takeUnreadable(Repo)}.
+     */
+    private Stream<XMLSource> readArchive(Repo repo, Path archive) {
+        try {
+            return XMLArchives.open(archive,
+                elapsed -> indexerMetrics.recordTime(IndexerMetrics.Stage.DECOMPRESSION, elapsed),
+                e -> unreadableRepositories.add(repo.getCode())
+            );
         } catch (IOException e) {
-            log.error(LIST_RECORD_HEADERS_FAILED_WITH_MESSAGE,
+            unreadableRepositories.add(repo.getCode());
+            log.warn(FAILED_TO_GET_STUDY_ID_WITH_MESSAGE,
                 value(LoggingConstants.REPO_NAME, repo.getCode()),
+                value(LoggingConstants.STUDY_ID, archive),
                 value(LoggingConstants.EXCEPTION_NAME, e.getClass().getName()),
                 value(LoggingConstants.REASON, e.getMessage())
             );
+            return Stream.empty();
+        }
+    }
+
+    /**
+     * Parse a single file of a repository. If the file is an archive, every XML file it contains is parsed.
+     *
+     * @param repo the repository that the file belongs to.
+     * @param path the path to the file.
+     * @return the studies extracted from the file, grouped by language.
+     */
+    public Map<String, List<CMMStudyOfLanguage>> getRecords(Repo repo, Path path) {
+        var studies = new AtomicInteger();
+        var studiesByLanguage = new HashMap<String, List<CMMStudyOfLanguage>>();
+        if (XMLArchives.isArchive(path)) {
+            // Forget the files previously in the archive, as they may have been removed from it
+            forgetStudyIds(path);
+            try (var sources = readArchive(repo, path)) {
+                sources.forEach(source -> {
+                    try (source) {
+                        extractStudies(repo, source, studies, null).forEach((lang, studiesOfLanguage) ->
+                            studiesByLanguage.computeIfAbsent(lang, k -> new ArrayList<>()).addAll(studiesOfLanguage)
+                        );
+                    }
+                });
+            }
+        } else {
+            studiesByLanguage.putAll(extractStudies(repo, XMLSource.of(path), studies, null));
+        }
+        indexerMetrics.recordStudies(IndexerMetrics.StudyOutcome.PARSED, studies.get());
+        return studiesByLanguage;
+    }
+
+    /**
+     * Parse a file and extract the language specific variants of each record.
+     *
+     * @param studies       incremented for each record with at least one language variant.
+     * @param modifiedSince records with a datestamp before this time are skipped, or {@code null} to parse every record.
+     */
+    private Map<String, List<CMMStudyOfLanguage>> extractStudies(Repo repo, XMLSource source, AtomicInteger studies, Instant modifiedSince) {
+        var studiesByLanguage = new HashMap<String, List<CMMStudyOfLanguage>>();
+        var parsedRecords = getRecord(repo, source, modifiedSince);
+
+        if (!parsedRecords.skippedStudyIds().isEmpty()) {
+            skippedStudyIds.computeIfAbsent(repo.getCode(), k -> ConcurrentHashMap.newKeySet()).addAll(parsedRecords.skippedStudyIds());
+        }
+
+        if (!parsedRecords.tombstones().isEmpty()) {
+            var deletedIds = deletedStudyIds.computeIfAbsent(repo.getCode(), k -> ConcurrentHashMap.newKeySet());
+            parsedRecords.tombstones().stream().map(Tombstone::studyId).forEach(deletedIds::add);
+        }
+
+        for (var cmmStudy : parsedRecords.studies()) {
+            // Extract language specific variants of the record
+            var sample = indexerMetrics.startTimer();
+            var extractedStudies = languageExtractor.extractFromStudy(cmmStudy, repo);
+            indexerMetrics.stopTimer(sample, IndexerMetrics.Stage.LANGUAGE_EXTRACTION);
+            if (!extractedStudies.isEmpty()) {
+                studies.getAndIncrement();
+            }
+            extractedStudies.forEach((lang, study) -> studiesByLanguage.computeIfAbsent(lang, k -> new ArrayList<>()).add(study));
+        }
+
+        if (trackStudyFiles) {
+            var idsByLanguage = new HashMap<String, Set<String>>();
+            studiesByLanguage.forEach((lang, studiesOfLanguage) -> idsByLanguage.put(lang,
+                studiesOfLanguage.stream().map(CMMStudyOfLanguage::getId).collect(Collectors.toSet())
+            ));
+            studyIdsByFile.put(source.path(), idsByLanguage);
         }
-        return Collections.emptyMap();
+
+        return studiesByLanguage;
+    }
+
+    /**
+     * Discard the mapped records cached by the parser, so that the next harvest maps every document again.
+     */
+    public void clearParseCache() {
+        recordXMLParser.clearParseCache();
+    }
+
+    /**
+     * Enable tracking of the studies extracted from each file, so that the studies of a changed or deleted
+     * file can be found with {@link #getStudyIds(Path)}.
+     */
+    public void setTrackStudyFiles(boolean trackStudyFiles) {
+        this.trackStudyFiles = trackStudyFiles;
+        if (!trackStudyFiles) {
+            studyIdsByFile.clear();
+        }
+    }
+
+    /**
+     * Get the IDs of the studies last extracted from a file, grouped by language. The IDs of an archive are
+     * the IDs of every file it contained.
+     *
+     * @param path the path to the file.
+     * @return the IDs of the studies, or an empty map if the file has not been parsed or tracking is disabled.
+     */
+    public Map<String, Set<String>> getStudyIds(Path path) {
+        if (!XMLArchives.isArchive(path)) {
+            return studyIdsByFile.getOrDefault(path, Collections.emptyMap());
+        }
+
+        var idsByLanguage = new HashMap<String, Set<String>>();
+        studyIdsByFile.forEach((file, ids) -> {
+            if (file.startsWith(path)) {
+                ids.forEach((lang, idsOfLanguage) -> idsByLanguage.computeIfAbsent(lang, k -> new HashSet<>()).addAll(idsOfLanguage));
+            }
+        });
+        return idsByLanguage;
+    }
+
+    /**
+     * Stop tracking the studies of a file, such as when the file has been deleted. The files of an archive
+     * are tracked under the path of the archive, so they are forgotten with it.
+     */
+    public void forgetStudyIds(Path path) {
+        studyIdsByFile.keySet().removeIf(file -> file.startsWith(path));
+    }
+
+    /**
+     * Get the IDs of the studies marked as deleted in the files of a repository parsed since the IDs were last taken.
+     * The IDs are the same in every language index.
+     *
+     * @param repo the repository.
+     * @return the IDs of the deleted studies.
+     */
+    public Set<String> takeDeletedStudyIds(Repo repo) {
+        var deletedIds = deletedStudyIds.remove(repo.getCode());
+        return deletedIds != null ? deletedIds : Collections.emptySet();
+    }
+
+    /**
+     * Get the IDs of the studies skipped in a repository because they were not modified, since the IDs were last taken.
+     * The IDs are the same in every language index.
+     *
+     * @param repo the repository.
+     * @return the IDs of the skipped studies.
+     */
+    public Set<String> takeSkippedStudyIds(Repo repo) {
+        var skippedIds = skippedStudyIds.remove(repo.getCode());
+        return skippedIds != null ? skippedIds : Collections.emptySet();
+    }
+
+    /**
+     * Returns {@code true} if an archive of a repository couldn't be opened or fully read since this was last
+     * called. The records of the repository are then incomplete, so studies that were not harvested may still
+     * be present in the repository.
+     *
+     * @param repo the repository.
+     */
+    public boolean takeUnreadable(Repo repo) {
+        return unreadableRepositories.remove(repo.getCode());
     }
 
     /**
      * Retrieve a record from a path.
      * @param repo the repository that the record originated from
      * @param path the path to the record.
-     * @return an {@link Optional} containing a {@link CMMStudy} or an empty optional if an error occurred.
+     * @return the {@link CMMStudy} instances and tombstones parsed from the record, or empty lists if an error occurred.
+     */
+    ParsedRecords getRecord(Repo repo, Path path) {
+        return getRecord(repo, XMLSource.of(path), null);
+    }
+
+    /**
+     * Retrieve a record from a source, skipping records not modified since the given time.
      */
-    List<CMMStudy> getRecord(Repo repo, Path path) {
+    private ParsedRecords getRecord(Repo repo, XMLSource source, Instant modifiedSince) {
         try {
-            return recordXMLParser.getRecord(repo, path);
+            return recordXMLParser.parseRecords(repo, source, modifiedSince);
         } catch (XMLParseException e) {
             log.warn(FAILED_TO_GET_STUDY_ID_WITH_MESSAGE,
                 value(LoggingConstants.REPO_NAME, repo.getCode()),
-                value(LoggingConstants.STUDY_ID, path),
+                value(LoggingConstants.STUDY_ID, source.path()),
                 value(LoggingConstants.EXCEPTION_NAME, e.getClass().getName()),
                 value(LoggingConstants.REASON, e.getMessage())
             );
         }
-        return Collections.emptyList();
+        return new ParsedRecords(Collections.emptyList(), Collections.emptyList());
     }
 }
@@ -0,0 +1,363 @@
+/*
+ * Copyright © 2017-2023 CESSDA ERIC (support@cessda.eu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.cessda.pasc.oci;
+
+import co.elastic.clients.elasticsearch._types.ElasticsearchException;
+import eu.cessda.pasc.oci.configurations.AppConfigurationProperties;
+import eu.cessda.pasc.oci.elasticsearch.IndexingException;
+import eu.cessda.pasc.oci.elasticsearch.IngestService;
+import eu.cessda.pasc.oci.models.cmmstudy.CMMStudyOfLanguage;
+import eu.cessda.pasc.oci.models.configurations.Repo;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.slf4j.MDC;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+import static net.logstash.logback.argument.StructuredArguments.value;
+
+/**
+ * Keeps the index up to date with the repositories in the base directory after the initial harvest.
+ * <p>
+ * Repository directories are watched for created, modified and deleted source files. Changes are batched until
+ * no further changes have been seen for the debounce period, then only the studies of the changed files
+ * are indexed or deleted. A full harvest runs periodically in the background to reconcile any changes
+ * that were missed, such as when the operating system drops watch events.
+ */
+@Component
+@Slf4j
+public class IndexerDaemon implements AutoCloseable {
+
+    private final AppConfigurationProperties configurationProperties;
+    private final PipelineUtilities pipelineUtilities;
+    private final IndexerConsumerService indexer;
+    private final IngestService ingestService;
+    private final ConsumerScheduler consumerScheduler;
+
+    private final Map<WatchKey, Repo> watchedRepos = new HashMap<>();
+    private final Map<Path, Repo> reposByPath = new HashMap<>();
+
+    // Changes waiting to be indexed
+    private final Map<Repo, Set<Path>> pendingChanges = new LinkedHashMap<>();
+    private Instant firstPendingChange;
+    private Instant lastPendingChange;
+
+    private final AtomicBoolean reconciliationQueued = new AtomicBoolean();
+    /**
+     * Indexes changes and runs full harvests one at a time, so that they don't interleave and the watch loop
+     * keeps draining events while they run.
+     */
+    private ScheduledExecutorService indexExecutor;
+    private ScheduledFuture<?> reconciliationTask;
+    private WatchService watchService;
+    private volatile boolean running;
+
+    @Autowired
+    public IndexerDaemon(
+        AppConfigurationProperties configurationProperties,
+        PipelineUtilities pipelineUtilities,
+        IndexerConsumerService indexer,
+        IngestService ingestService,
+        ConsumerScheduler consumerScheduler
+    ) {
+        this.configurationProperties = configurationProperties;
+        this.pipelineUtilities = pipelineUtilities;
+        this.indexer = indexer;
+        this.ingestService = ingestService;
+        this.consumerScheduler = consumerScheduler;
+
+        // Record the studies of each file during harvests, so that deleted files can be removed from the index
+        if (configurationProperties.getDaemon().isEnabled()) {
+            indexer.setTrackStudyFiles(true);
+        }
+    }
+
+    /**
+     * Watch the repositories for changes until the daemon is closed.
+     *
+     * @throws IOException if the repositories cannot be watched.
+     */
+    public void run() throws IOException {
+        var daemonConfig = configurationProperties.getDaemon();
+        watchService = FileSystems.getDefault().newWatchService();
+        running = true;
+
+        registerRepositories();
+        log.info("Watching {} repositories for changes", value("watched_repositories", reposByPath.size()));
+
+        // Periodically reconcile the index with a full harvest
+        indexExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            var thread = new Thread(runnable, "indexer-daemon");
+            thread.setDaemon(true);
+            return thread;
+        });
+        var interval = daemonConfig.getReconciliationInterval().toMillis();
+        reconciliationTask = indexExecutor.scheduleWithFixedDelay(() -> {
+            // An exception would stop further reconciliations from being scheduled
+            try {
+                queueReconciliation();
+            } catch (RuntimeException e) {
+                log.error("Queueing a reconciliation failed", e);
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+
+        try {
+            while (running) {
+                var key = watchService.poll(daemonConfig.getDebounce().toMillis(), TimeUnit.MILLISECONDS);
+                if (key != null) {
+                    handleEvents(key);
+                }
+
+                if (isBatchReady(Instant.now())) {
+                    indexPendingChanges();
+                }
+            }
+        } catch (ClosedWatchServiceException e) {
+            // The daemon has been closed
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            reconciliationTask.cancel(false);
+            indexExecutor.shutdownNow();
+            log.info("Stopped watching repositories for changes");
+        }
+    }
+
+    /**
+     * Watch the directories of all repositories in the base directory that are not already watched.
+     */
+    private synchronized void registerRepositories() {
+        try (var repos = pipelineUtilities.discoverRepositories(configurationProperties.getBaseDirectory())) {
+            repos.forEach(repo -> {
+                if (reposByPath.containsKey(repo.getPath())) {
+                    return;
+                }
+                try {
+                    var key = repo.getPath().register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+                    watchedRepos.put(key, repo);
+                    reposByPath.put(repo.getPath(), repo);
+                    log.debug("[{}] Watching {}", value(LoggingConstants.REPO_NAME, repo.getCode()), repo.getPath());
+                } catch (IOException e) {
+                    log.warn("[{}] Couldn't watch {}: {}", value(LoggingConstants.REPO_NAME, repo.getCode()), repo.getPath(), e.toString());
+                }
+            });
+        }
+    }
+
+    private void handleEvents(WatchKey key) {
+        Repo repo;
+        synchronized (this) {
+            repo = watchedRepos.get(key);
+        }
+
+        for (var event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW) {
+                // Events were lost, only a full harvest can find the changes
+                log.warn("Too many changes to track, reconciling with a full harvest");
+                queueReconciliation();
+                continue;
+            }
+
+            if (repo != null && event.context() instanceof Path fileName && IndexerConsumerService.isSourceFile(fileName)) {
+                var now = Instant.now();
+                if (pendingChanges.isEmpty()) {
+                    firstPendingChange = now;
+                }
+                lastPendingChange = now;
+                pendingChanges.computeIfAbsent(repo, r -> new LinkedHashSet<>()).add(repo.getPath().resolve(fileName));
+            }
+        }
+
+        if (!key.reset()) {
+            // The directory is no longer accessible
+            synchronized (this) {
+                var removed = watchedRepos.remove(key);
+                if (removed != null) {
+                    reposByPath.remove(removed.getPath());
+                    log.info("[{}] Stopped watching {}", value(LoggingConstants.REPO_NAME, removed.getCode()), removed.getPath());
+                }
+            }
+        }
+    }
+
+    /**
+     * Changes are indexed once no changes have been seen for the debounce period, or once the oldest change
+     * has waited for the maximum delay.
+     */
+    boolean isBatchReady(Instant now) {
+        if (pendingChanges.isEmpty()) {
+            return false;
+        }
+        var daemonConfig = configurationProperties.getDaemon();
+        return !now.isBefore(lastPendingChange.plus(daemonConfig.getDebounce()))
+            || !now.isBefore(firstPendingChange.plus(daemonConfig.getMaxDelay()));
+    }
+
+    /**
+     * Hand the pending changes to the index executor. They are indexed once any running reconciliation has finished.
+     */
+    private void indexPendingChanges() {
+        var changes = new LinkedHashMap<>(pendingChanges);
+        pendingChanges.clear();
+        indexExecutor.execute(() -> {
+            try {
+                changes.forEach(this::indexChanges);
+            } catch (RuntimeException e) {
+                log.error("Indexing changes failed, they will be indexed by the next reconciliation", e);
+            }
+        });
+    }
+
+    /**
+     * Index the studies of changed files, and delete the studies that are no longer present in them.
+     *
+     * @param repo  the repository the files belong to.
+     * @param files the changed files.
+     */
+    @SuppressWarnings("try")
+    void indexChanges(Repo repo, Collection<Path> files) {
+        try (var repoNameClosable = MDC.putCloseable(LoggingConstants.REPO_NAME, repo.getCode())) {
+            var studiesToIndex = new HashMap<String, List<CMMStudyOfLanguage>>();
+            var idsToDelete = new HashMap<String, Set<String>>();
+
+            for (var file : files) {
+                var previousIds = indexer.getStudyIds(file);
+
+                Map<String, List<CMMStudyOfLanguage>> currentStudies;
+                if (Files.isRegularFile(file)) {
+                    currentStudies = indexer.getRecords(repo, file);
+                } else {
+                    currentStudies = Collections.emptyMap();
+                    indexer.forgetStudyIds(file);
+                }
+
+                currentStudies.forEach((lang, studies) -> studiesToIndex.computeIfAbsent(lang, k -> new ArrayList<>()).addAll(studies));
+                previousIds.forEach((lang, ids) -> idsToDelete.computeIfAbsent(lang, k -> new HashSet<>()).addAll(ids));
+            }
+
+            // Studies missing from a file that couldn't be fully read may still be present
+            if (indexer.takeUnreadable(repo)) {
+                log.warn("[{}] Some changed files couldn't be read, studies will only be deleted by the next reconciliation",
+                    value(LoggingConstants.REPO_NAME, repo.getCode())
+                );
+                idsToDelete.clear();
+            }
+
+            // Don't delete studies that are still present, such as studies that moved to a different file
+            studiesToIndex.forEach((lang, studies) -> {
+                var ids = idsToDelete.get(lang);
+                if (ids != null) {
+                    studies.forEach(study -> ids.remove(study.getId()));
+                }
+            });
+
+            // Studies marked as deleted are deleted from every language, unless they are still present
+            var tombstonedIds = new HashSet<>(indexer.takeDeletedStudyIds(repo));
+            studiesToIndex.values().forEach(studies -> studies.forEach(study -> tombstonedIds.remove(study.getId())));
+            if (!tombstonedIds.isEmpty()) {
+                try {
+                    var deleted = ingestService.deleteFromAllIndices(tombstonedIds);
+                    log.info("[{}] Deleted [{}] studies marked as deleted by the repository",
+                        value(LoggingConstants.REPO_NAME, repo.getCode()),
+                        value("tombstoned_cmm_studies", deleted)
+                    );
+                } catch (IndexingException | ElasticsearchException e) {
+                    log.error("[{}] Deleting studies marked as deleted failed, they will be deleted by the next reconciliation: {}",
+                        value(LoggingConstants.REPO_NAME, repo.getCode()),
+                        e.toString()
+                    );
+                }
+            }
+
+            var languages = new TreeSet<>(studiesToIndex.keySet());
+            languages.addAll(idsToDelete.keySet());
+            for (var lang : languages) {
+                try (var langClosable = MDC.putCloseable(LoggingConstants.LANG_CODE, lang)) {
+                    var studies = studiesToIndex.getOrDefault(lang, Collections.emptyList());
+                    var ids = idsToDelete.getOrDefault(lang, Collections.emptySet());
+                    if (!studies.isEmpty()) {
+                        ingestService.bulkIndex(studies, lang);
+                    }
+                    if (!ids.isEmpty()) {
+                        ingestService.bulkDeleteById(ids, lang);
+                    }
+                    log.info("[{}({})] Indexed changes: [{}] studies indexed, [{}] studies deleted.",
+                        value(LoggingConstants.REPO_NAME, repo.getCode()),
+                        value(LoggingConstants.LANG_CODE, lang),
+                        value("indexed_cmm_studies", studies.size()),
+                        value("deleted_cmm_studies", ids.size())
+                    );
+                } catch (IndexingException | ElasticsearchException e) {
+                    log.error("[{}({})] Indexing changes failed, they will be indexed by the next reconciliation: {}",
+                        value(LoggingConstants.REPO_NAME, repo.getCode()),
+                        value(LoggingConstants.LANG_CODE, lang),
+                        e.toString()
+                    );
+                }
+            }
+        }
+    }
+
+    /**
+     * Run a reconciliation in the background, unless one is already waiting to run.
+     */
+    private void queueReconciliation() {
+        if (reconciliationQueued.compareAndSet(false, true)) {
+            indexExecutor.execute(this::reconcile);
+        }
+    }
+
+    /**
+     * Run a full harvest, then watch any repositories added since the last harvest.
+     */
+    private void reconcile() {
+        reconciliationQueued.set(false);
+        try {
+            log.info("Reconciling the index with a full harvest");
+            consumerScheduler.runIndexer();
+            registerRepositories();
+        } catch (RuntimeException e) {
+            log.error("Reconciliation failed", e);
+        }
+    }
+
+    /**
+     * Stop watching for changes.
+     */
+    @Override
+    @PreDestroy
+    public void close() {
+        running = false;
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                log.debug("Error occurred when closing the watch service", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,318 @@
+/*
+ * Copyright © 2017-2023 CESSDA ERIC (support@cessda.eu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.cessda.pasc.oci;
+
+import io.micrometer.core.instrument.*;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.slf4j.MDC;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+import static net.logstash.logback.argument.StructuredArguments.value;
+
+/**
+ * Records timings and counts for each stage of the indexing pipeline.
+ * <p>
+ * Meters are tagged with the repository and language taken from the logging MDC, so callers
+ * only need to be running inside a repository or language context for the tags to be set.
+ */
+@Component
+@Slf4j
+public class IndexerMetrics {
+
+    /**
+     * The prefix shared by all meters owned by the indexer.
+     */
+    static final String METER_PREFIX = "indexer.";
+
+    static final String STAGE_TIMER = METER_PREFIX + "stage";
+    static final String RUN_STAGE_TIMER = METER_PREFIX + "run.stage";
+    static final String FILE_SIZE = METER_PREFIX + "file.size";
+    static final String STUDIES = METER_PREFIX + "studies";
+    static final String PARSE_CACHE = METER_PREFIX + "parse.cache";
+    static final String BULK_SIZE = METER_PREFIX + "bulk.size";
+    static final String BULK_RETRIES = METER_PREFIX + "bulk.retries";
+    static final String TRANSPORT_BYTES = METER_PREFIX + "transport.bytes";
+
+    // Tag keys
+    static final String STAGE_TAG = "stage";
+    static final String REPOSITORY_TAG = "repository";
+    static final String LANGUAGE_TAG = "language";
+    static final String OUTCOME_TAG = "outcome";
+    static final String DIRECTION_TAG = "direction";
+    static final String SENT = "sent";
+    static final String RECEIVED = "received";
+    private static final String NONE = "none";
+
+    private static final double[] PERCENTILES = {0.5, 0.95, 0.99};
+
+    @Getter
+    private final MeterRegistry registry;
+
+    @Autowired
+    public IndexerMetrics(MeterRegistry registry) {
+        this.registry = registry;
+    }
+
+    /**
+     * Start timing a stage. The returned sample should be passed to {@link #stopTimer(Timer.Sample, Stage)}.
+     */
+    public Timer.Sample startTimer() {
+        return Timer.start(registry);
+    }
+
+    /**
+     * Stop timing a stage, and record the elapsed time against the current repository and language.
+     *
+     * @param sample the sample returned from {@link #startTimer()}.
+     * @param stage  the stage that was timed.
+     * @return the elapsed time in nanoseconds.
+     */
+    public long stopTimer(Timer.Sample sample, Stage stage) {
+        var elapsed = sample.stop(stageTimer(stage));
+        runStageTimer(stage).record(elapsed, TimeUnit.NANOSECONDS);
+        return elapsed;
+    }
+
+    /**
+     * Record time spent in a stage that was measured separately, such as time interleaved with another stage.
+     *
+     * @param stage        the stage that was timed.
+     * @param elapsedNanos the elapsed time in nanoseconds.
+     */
+    public void recordTime(Stage stage, long elapsedNanos) {
+        stageTimer(stage).record(elapsedNanos, TimeUnit.NANOSECONDS);
+        runStageTimer(stage).record(elapsedNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private Timer stageTimer(Stage stage) {
+        return Timer.builder(STAGE_TIMER)
+            .description("Time spent in each stage of the indexing pipeline")
+            .tags(contextTags().and(STAGE_TAG, stage.getTag()))
+            .register(registry);
+    }
+
+    private Timer runStageTimer(Stage stage) {
+        return Timer.builder(RUN_STAGE_TIMER)
+            .description("Time spent in each stage of the indexing pipeline across all repositories")
+            .tag(STAGE_TAG, stage.getTag())
+            .publishPercentiles(PERCENTILES)
+            .register(registry);
+    }
+
+    /**
+     * Record that a source file has been read.
+     *
+     * @param bytes the size of the file in bytes.
+     */
+    public void recordFile(long bytes) {
+        DistributionSummary.builder(FILE_SIZE)
+            .description("The size of the XML files read")
+            .baseUnit("bytes")
+            .tags(contextTags())
+            .register(registry)
+            .record((double) bytes);
+    }
+
+    /**
+     * Record the outcome of processing studies for the current repository and language.
+     *
+     * @param outcome the outcome of processing.
+     * @param amount  the amount of studies.
+     */
+    public void recordStudies(StudyOutcome outcome, long amount) {
+        Counter.builder(STUDIES)
+            .description("The amount of studies processed")
+            .tags(contextTags().and(OUTCOME_TAG, outcome.getTag()))
+            .register(registry)
+            .increment((double) amount);
+    }
+
+    /**
+     * Record whether the mapped records of a document were found in the parse cache.
+     *
+     * @param hit {@code true} if the document was found, {@code false} if it had to be parsed.
+     */
+    public void recordParseCache(boolean hit) {
+        Counter.builder(PARSE_CACHE)
+            .description("The amount of documents looked up in the parse cache")
+            .tags(contextTags().and(OUTCOME_TAG, hit ? "hit" : "miss"))
+            .register(registry)
+            .increment();
+    }
+
+    /**
+     * Record the size of a bulk request sent to Elasticsearch.
+     *
+     * @param bytes the size of the serialized documents in bytes.
+     */
+    public void recordBulkRequest(long bytes) {
+        DistributionSummary.builder(BULK_SIZE)
+            .description("The size of bulk requests sent to Elasticsearch")
+            .baseUnit("bytes")
+            .tags(contextTags())
+            .register(registry)
+            .record((double) bytes);
+    }
+
+    /**
+     * Record that a bulk request was retried.
+     */
+    public void recordBulkRetry() {
+        Counter.builder(BULK_RETRIES)
+            .description("The amount of bulk requests that were retried")
+            .tags(contextTags())
+            .register(registry)
+            .increment();
+    }
+
+    /**
+     * Record the bytes transferred to and from Elasticsearch.
+     * <p>
+     * Transfers are made on the HTTP client's I/O threads, so these meters are not tagged with the repository or language.
+     *
+     * @param sent     the bytes sent, after compression.
+     * @param received the bytes received, before decompression.
+     */
+    public void recordTransfer(long sent, long received) {
+        transportCounter(SENT).increment((double) sent);
+        transportCounter(RECEIVED).increment((double) received);
+    }
+
+    private Counter transportCounter(String direction) {
+        return Counter.builder(TRANSPORT_BYTES)
+            .description("The bytes transferred to and from Elasticsearch")
+            .baseUnit("bytes")
+            .tag(DIRECTION_TAG, direction)
+            .register(registry);
+    }
+
+    /**
+     * Remove all meters recorded by previous runs.
+     */
+    public void reset() {
+        for (var meter : registry.getMeters()) {
+            if (meter.getId().getName().startsWith(METER_PREFIX)) {
+                registry.remove(meter);
+            }
+        }
+    }
+
+    /**
+     * Log a summary of the time spent in each stage.
+     */
+    public void logSummary() {
+        for (var stage : Stage.values()) {
+            var timer = registry.find(RUN_STAGE_TIMER).tag(STAGE_TAG, stage.getTag()).timer();
+            if (timer == null || timer.count() == 0) {
+                continue;
+            }
+
+            var snapshot = timer.takeSnapshot();
+            double p50 = 0;
+            double p95 = 0;
+            double p99 = 0;
+            for (var percentile : snapshot.percentileValues()) {
+                var millis = percentile.value(TimeUnit.MILLISECONDS);
+                if (percentile.percentile() == 0.5) {
+                    p50 = millis;
+                } else if (percentile.percentile() == 0.95) {
+                    p95 = millis;
+                } else if (percentile.percentile() == 0.99) {
+                    p99 = millis;
+                }
+            }
+
+            log.info("[{}] {} operations, total {} ms, p50 {} ms, p95 {} ms, p99 {} ms, max {} ms",
+                value(STAGE_TAG, stage.getTag()),
+                value("stage_count", timer.count()),
+                value("stage_total_ms", Math.round(timer.totalTime(TimeUnit.MILLISECONDS))),
+                value("stage_p50_ms", Math.round(p50)),
+                value("stage_p95_ms", Math.round(p95)),
+                value("stage_p99_ms", Math.round(p99)),
+                value("stage_max_ms", Math.round(timer.max(TimeUnit.MILLISECONDS)))
+            );
+        }
+
+        var sent = registry.find(TRANSPORT_BYTES).tag(DIRECTION_TAG, SENT).counter();
+        var received = registry.find(TRANSPORT_BYTES).tag(DIRECTION_TAG, RECEIVED).counter();
+        if (sent != null && received != null) {
+            log.info("Transferred {} bytes to and {} bytes from Elasticsearch",
+                value("transport_bytes_sent", Math.round(sent.count())),
+                value("transport_bytes_received", Math.round(received.count()))
+            );
+        }
+    }
+
+    /**
+     * Derive the repository and language tags from the MDC.
+     */
+    private static Tags contextTags() {
+        return Tags.of(
+            REPOSITORY_TAG, Objects.requireNonNullElse(MDC.get(LoggingConstants.REPO_NAME), NONE),
+            LANGUAGE_TAG, Objects.requireNonNullElse(MDC.get(LoggingConstants.LANG_CODE), NONE)
+        );
+    }
+
+    /**
+     * The stages of the indexing pipeline.
+     */
+    @Getter
+    public enum Stage {
+        FILE_DISCOVERY("file_discovery"),
+        FILE_READ("file_read"),
+        PREFETCH_WAIT("prefetch_wait"),
+        DECOMPRESSION("decompression"),
+        CONTENT_DIGEST("content_digest"),
+        XML_PRESCAN("xml_prescan"),
+        XML_PARSE("xml_parse"),
+        FIELD_EXTRACTION("field_extraction"),
+        LANGUAGE_EXTRACTION("language_extraction"),
+        BULK_SERIALIZATION("bulk_serialization"),
+        BULK_REQUEST("bulk_request"),
+        DELETION_DIFF("deletion_diff"),
+        DELETE_BY_QUERY("delete_by_query"),
+        INDEX_CREATION("index_creation");
+
+        private final String tag;
+
+        Stage(String tag) {
+            this.tag = tag;
+        }
+    }
+
+    /**
+     * The outcomes of processing a study.
+     */
+    @Getter
+    public enum StudyOutcome {
+        PARSED("parsed"),
+        CREATED("created"),
+        UPDATED("updated"),
+        DELETED("deleted"),
+        UNCHANGED("unchanged");
+
+        private final String tag;
+
+        StudyOutcome(String tag) {
+            this.tag = tag;
+        }
+    }
+}
@@ -21,6 +21,8 @@ import eu.cessda.pasc.oci.elasticsearch.IndexingException;
 import eu.cessda.pasc.oci.elasticsearch.IngestService;
 import eu.cessda.pasc.oci.models.cmmstudy.CMMStudyOfLanguage;
 import eu.cessda.pasc.oci.models.configurations.Repo;
+import eu.cessda.pasc.oci.service.HarvestProgress;
+import eu.cessda.pasc.oci.service.RepositoryProgress;
 import jakarta.annotation.PreDestroy;
 import lombok.Value;
 import lombok.extern.slf4j.Slf4j;
@@ -33,33 +35,98 @@ import java.time.Duration;
 import java.time.Instant;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import static java.util.concurrent.CompletableFuture.runAsync;
+import static java.util.concurrent.CompletableFuture.supplyAsync;
 import static net.logstash.logback.argument.StructuredArguments.value;
 
 @Component
 @Slf4j
 public class IndexerRunner {
 
+    /**
+     * The amount of deletions above which studies are deleted server-side using a delete by query.
+     */
+    private static final int SERVER_SIDE_DELETION_THRESHOLD = 10000;
+
+    /**
+     * The amount of studies indexed between checkpoints.
+     */
+    private static final int CHECKPOINT_BATCH_SIZE = 5000;
+
     private final AppConfigurationProperties configurationProperties;
     private final IndexerConsumerService indexer;
     private final PipelineUtilities pipelineUtilities;
     private final IngestService ingestService;
+    private final IndexerMetrics indexerMetrics;
+    private final HarvestProgress harvestProgress;
+    private final RepositoryStatistics repositoryStatistics;
+    private final HarvestCheckpoint harvestCheckpoint;
+    private final DryRunReporter dryRunReporter;
+    private final HarvestWatermark harvestWatermark;
+
+    /**
+     * Runs the harvest of each repository. Repositories are submitted longest first, so that the
+     * longest repositories are not left until the end of the run.
+     */
+    private final ExecutorService harvestExecutor;
+
+    /**
+     * Runs the indexing of each language. This is shared between all repositories, bounding the amount
+     * of concurrent Elasticsearch work regardless of how many repositories are harvested in parallel.
+     */
+    private final ExecutorService languageExecutor;
 
     private final AtomicBoolean indexerRunning = new AtomicBoolean(false);
 
+    /**
+     * Whether the current run is a dry run, which compares studies with the index instead of indexing them.
+     */
+    private volatile boolean dryRun;
+
     public IndexerRunner(AppConfigurationProperties configurationProperties,
                          IndexerConsumerService localHarvesterConsumerService,
                          PipelineUtilities pipelineUtilities,
-                         IngestService ingestService) {
+                         IngestService ingestService,
+                         IndexerMetrics indexerMetrics,
+                         HarvestProgress harvestProgress,
+                         RepositoryStatistics repositoryStatistics,
+                         HarvestCheckpoint harvestCheckpoint,
+                         DryRunReporter dryRunReporter,
+                         HarvestWatermark harvestWatermark) {
         this.configurationProperties = configurationProperties;
         this.indexer = localHarvesterConsumerService;
         this.pipelineUtilities = pipelineUtilities;
         this.ingestService = ingestService;
+        this.indexerMetrics = indexerMetrics;
+        this.harvestProgress = harvestProgress;
+        this.repositoryStatistics = repositoryStatistics;
+        this.harvestCheckpoint = harvestCheckpoint;
+        this.dryRunReporter = dryRunReporter;
+        this.harvestWatermark = harvestWatermark;
+        this.harvestExecutor = newExecutor(configurationProperties.getHarvestConcurrency(), "indexer-harvest-");
+        this.languageExecutor = newExecutor(configurationProperties.getIndexingConcurrency(), "indexer-language-");
+    }
+
+    /**
+     * Create a fixed size executor of daemon threads.
+     *
+     * @param threads    the amount of threads, if not positive the amount of available processors is used.
+     * @param namePrefix the prefix of the thread names.
+     */
+    private static ExecutorService newExecutor(int threads, String namePrefix) {
+        var threadCounter = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads > 0 ? threads : Runtime.getRuntime().availableProcessors(), runnable -> {
+            var thread = new Thread(runnable, namePrefix + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
     }
 
 
@@ -69,25 +136,82 @@ public class IndexerRunner {
      * @throws IllegalStateException if a harvest is already running.
      */
     public void executeHarvestAndIngest() {
+        executeHarvestAndIngest(HarvestSelection.all());
+    }
+
+    /**
+     * Starts a harvest of the selected repositories, languages or files.
+     * <p>
+     * Deletions are scoped to the selection. Studies of unselected repositories and languages are left untouched.
+     * If files are selected, studies are only indexed, as studies that were removed from the selected files
+     * cannot be distinguished from the studies of the rest of the repository.
+     *
+     * @param selection the repositories, languages and files to harvest.
+     * @throws IllegalStateException if a harvest is already running.
+     */
+    public void executeHarvestAndIngest(HarvestSelection selection) {
         if (!indexerRunning.getAndSet(true)) {
 
             // Load explicitly configured repositories
-            var repos = configurationProperties.getEndpoints().getRepos();
+            var repos = configurationProperties.getEndpoints().getRepos().stream().filter(selection::includesRepository).toList();
 
             // Store the MDC so that it can be used in the running thread
             var contextMap = MDC.getCopyOfContextMap();
 
+            // Discard the progress and the cached documents of the previous harvest
+            harvestProgress.clear();
+            indexer.clearParseCache();
+
+            dryRun = configurationProperties.isDryRun();
+            if (dryRun) {
+                log.info("Dry run, the index will not be changed");
+                dryRunReporter.start();
+            }
+
+            // Resume from the checkpoint of an interrupted harvest. Restricted harvests and dry runs are not checkpointed.
+            harvestCheckpoint.begin(selection.isEverything() && !dryRun);
+
+            if (!selection.isEverything()) {
+                log.info("Harvesting {}", value("harvest_selection", selection.toString()));
+            }
+
             // Discover repositories by attempting to find pipeline.json instances if a base directory is configured
-            try (var repoParsedFromJson = pipelineUtilities.discoverRepositories(configurationProperties.getBaseDirectory())) {
-                var futures = Stream.concat(repoParsedFromJson, repos.stream())
-                    .map(repo -> runAsync(() -> indexRepository(repo, contextMap))
-                        .exceptionally(e -> {
-                            log.error("[{}]: Unexpected error occurred when harvesting!", repo.getCode(), e);
-                            return null;
-                        })
-                    ).toArray(CompletableFuture[]::new);
+            try {
+                var discovered = discoverRepositories(selection);
+                var scheduledRepos = schedule(Stream.concat(discovered.repositories().stream(), repos.stream()).toList());
+
+                var futures = scheduledRepos.stream()
+                    .map(scheduled -> {
+                        var repo = scheduled.repo();
+                        var progress = harvestProgress.register(repo.getCode());
+                        return runAsync(() -> indexRepository(scheduled, selection, progress, contextMap), harvestExecutor)
+                            .exceptionally(e -> {
+                                log.error("[{}]: Unexpected error occurred when harvesting!", repo.getCode(), e);
+                                progress.setStage(RepositoryProgress.Stage.FAILED);
+                                return null;
+                            });
+                    }).toArray(CompletableFuture[]::new);
 
                 CompletableFuture.allOf(futures).join();
+                repositoryStatistics.save();
+
+                // Only a full harvest knows every repository, so withdrawn repositories can't be detected otherwise
+                if (selection.isEverything() && indexerRunning.get() && configurationProperties.isDeleteWithdrawnRepositories()) {
+                    if (discovered.complete()) {
+                        deleteWithdrawnRepositories(scheduledRepos);
+                    } else {
+                        log.warn("Not deleting withdrawn repositories, as errors occurred when discovering repositories");
+                    }
+                }
+
+                if (dryRun) {
+                    dryRunReporter.writeReport();
+                }
+
+                // The harvest wasn't interrupted, so the next harvest should start from the beginning
+                if (indexerRunning.get()) {
+                    harvestCheckpoint.finish();
+                }
 
                 log.info("Harvest finished. Summary of the current state:");
                 log.info("Total number of records: {}", value("total_cmm_studies", ingestService.getTotalHitCount("*")));
@@ -103,31 +227,165 @@ public class IndexerRunner {
         }
     }
 
+    /**
+     * Discover the repositories in the base directory, only searching for the selected repositories if
+     * the harvest is restricted. The discovery of a selection is never complete.
+     */
+    private PipelineUtilities.DiscoveredRepositories discoverRepositories(HarvestSelection selection) {
+        if (selection.isEverything()) {
+            return pipelineUtilities.discover(configurationProperties.getBaseDirectory());
+        } else {
+            try (var repositories = pipelineUtilities.discoverRepositories(configurationProperties.getBaseDirectory(), selection)) {
+                return new PipelineUtilities.DiscoveredRepositories(repositories.toList(), false);
+            }
+        }
+    }
+
+    /**
+     * Order repositories longest first, using the statistics of previous runs or the size of each repository.
+     * Starting the longest repositories first minimises the time the run spends waiting on a single repository.
+     *
+     * @param repos the repositories to harvest.
+     * @return the repositories in the order they should be harvested.
+     */
+    private List<ScheduledRepo> schedule(List<Repo> repos) {
+        repositoryStatistics.load();
+
+        var scheduledRepos = repos.stream().map(repo -> {
+            var bytes = RepositoryStatistics.estimateSize(repo);
+            var predicted = repositoryStatistics.predict(repo.getCode(), bytes).orElse(null);
+            return new ScheduledRepo(repo, bytes, predicted);
+        }).sorted(
+            // Repositories without a prediction are ordered by size after those with a prediction
+            Comparator.comparing(ScheduledRepo::predicted, Comparator.nullsLast(Comparator.reverseOrder()))
+                .thenComparing(ScheduledRepo::bytes, Comparator.reverseOrder())
+        ).toList();
+
+        if (!scheduledRepos.isEmpty()) {
+            log.info("Harvest order: {}", value("harvest_order", scheduledRepos.stream()
+                .map(scheduled -> scheduled.repo().getCode() + " (" + scheduled.bytes() + " bytes, predicted "
+                    + (scheduled.predicted() != null ? scheduled.predicted().toSeconds() + " seconds" : "unknown") + ")")
+                .collect(Collectors.joining(", "))
+            ));
+        }
+        return scheduledRepos;
+    }
+
     /**
      * Harvest an individual repository.
      *
-     * @param repo                 the repository to harvest.
+     * @param scheduled            the repository to harvest.
+     * @param selection            the languages and files of the repository to harvest.
+     * @param progress             the progress tracker for the repository.
      * @param contextMap           the logging context map.
      */
     @SuppressWarnings("try")
-    private void indexRepository(Repo repo, Map<String, String> contextMap) {
+    private void indexRepository(ScheduledRepo scheduled, HarvestSelection selection, RepositoryProgress progress, Map<String, String> contextMap) {
+        var repo = scheduled.repo();
         MDC.setContextMap(contextMap);
 
         // Set the MDC so that the record name is attached to all downstream logs
         try (var repoNameClosable = MDC.putCloseable(LoggingConstants.REPO_NAME, repo.getCode())) {
             var startTime = Instant.now();
+            if (harvestCheckpoint.startRepository(repo)) {
+                progress.setStage(RepositoryProgress.Stage.FINISHED);
+                log.info("[{}] Repo already harvested by the interrupted harvest, skipping", repo.getCode());
+                return;
+            }
+
             log.info("Processing Repo [{}]", repo);
-            var langStudies = indexer.getRecords(repo);
-            for (var entry : langStudies.entrySet()) {
-                try (var langClosable = MDC.putCloseable(LoggingConstants.LANG_CODE, entry.getKey())) {
-                    indexRecords(repo, entry.getKey(), entry.getValue());
-                } catch (ElasticsearchException e) {
-                    log.error("[{}({})] Error communicating with Elasticsearch!", repo.getCode(), entry.getKey(), e);
-                }
+
+            // Skip records that haven't been modified since the previous harvest, unless specific files were selected
+            var modifiedSince = selection.files().isEmpty() ? harvestWatermark.getModifiedSince(repo).orElse(null) : null;
+            var langStudies = getSelectedRecords(repo, selection, modifiedSince);
+            var skippedStudyIds = indexer.takeSkippedStudyIds(repo);
+            var unreadable = indexer.takeUnreadable(repo);
+            if (unreadable) {
+                log.error("[{}] Some source files couldn't be read, studies will not be deleted", repo.getCode());
             }
-            log.info("[{}] Repo finished, took {} seconds",
+            if (!skippedStudyIds.isEmpty()) {
+                log.info("[{}] Skipped [{}] unmodified studies",
+                    value(LoggingConstants.REPO_NAME, repo.getCode()),
+                    value("skipped_cmm_studies", skippedStudyIds.size())
+                );
+            }
+            progress.setStage(RepositoryProgress.Stage.INDEXING);
+
+            // Delete the studies marked as deleted by the repository from every language
+            var deletedStudyIds = deleteTombstonedStudies(repo, langStudies, skippedStudyIds);
+
+            // Retrieve the studies already indexed for every language in one pass
+            final Map<String, Set<String>> storedStudyIds;
+            if (unreadable) {
+                // The studies of the unreadable files were not harvested, so they would be deleted
+                storedStudyIds = Collections.emptyMap();
+            } else if (selection.files().isEmpty()) {
+                // Studies that have already been deleted don't need to be deleted again by the diff,
+                // and skipped studies are still present in the repository
+                var excludedStudyIds = new HashSet<>(deletedStudyIds);
+                excludedStudyIds.addAll(skippedStudyIds);
+                storedStudyIds = withoutStudies(getStoredStudyIds(repo, selection, langStudies, skippedStudyIds), excludedStudyIds);
+            } else {
+                // Only part of the repository was parsed, so the absence of a study doesn't mean it was deleted
+                log.info("[{}] Only selected files were parsed, studies will not be deleted", repo.getCode());
+                storedStudyIds = Collections.emptyMap();
+            }
+
+            // Languages that are indexed but have no harvested studies are diffed so that their removed studies are deleted
+            var languages = new TreeSet<>(langStudies.keySet());
+            languages.addAll(storedStudyIds.keySet());
+
+            // Index each language concurrently, each language has an independent index
+            var repoContextMap = MDC.getCopyOfContextMap();
+            var languageFutures = languages.stream()
+                .filter(language -> {
+                    if (harvestCheckpoint.isLanguageComplete(repo.getCode(), language)) {
+                        log.info("[{}({})] Language already indexed by the interrupted harvest, skipping", repo.getCode(), language);
+                        return false;
+                    }
+                    return true;
+                })
+                .map(language -> supplyAsync(() -> indexLanguage(repo, progress, language,
+                    langStudies.getOrDefault(language, Collections.emptyList()),
+                    storedStudyIds.getOrDefault(language, Collections.emptySet()),
+                    skippedStudyIds,
+                    repoContextMap
+                ), languageExecutor))
+                .toList();
+            CompletableFuture.allOf(languageFutures.toArray(CompletableFuture[]::new)).join();
+
+            if (progress.isCancelled()) {
+                progress.setStage(RepositoryProgress.Stage.CANCELLED);
+                log.info("[{}] Repo cancelled", repo.getCode());
+                return;
+            }
+            if (unreadable) {
+                // The repository is not marked as complete, and the watermark is kept so that unread records are not skipped
+                progress.setStage(RepositoryProgress.Stage.FAILED);
+                log.info("[{}] Repo failed, took {} seconds", repo.getCode(),
+                    value("repository_duration", Duration.between(startTime, Instant.now()).getSeconds())
+                );
+                return;
+            }
+            var succeeded = languageFutures.stream().allMatch(CompletableFuture::join);
+            if (succeeded) {
+                // A repository where a language failed is not marked as complete, so that a resumed harvest retries it
+                harvestCheckpoint.completeRepository(repo.getCode(), languages);
+            }
+            if (succeeded && !dryRun && selection.languages().isEmpty() && selection.files().isEmpty()) {
+                // Only advance the watermark once every language has been indexed, otherwise failed studies would be skipped
+                harvestWatermark.advance(repo, langStudies.values(), startTime);
+            }
+            progress.setStage(RepositoryProgress.Stage.FINISHED);
+            var duration = Duration.between(startTime, Instant.now());
+            if (selection.languages().isEmpty() && selection.files().isEmpty() && !dryRun) {
+                // Partial harvests and dry runs would skew the predicted duration of the next full harvest
+                repositoryStatistics.record(repo.getCode(), scheduled.bytes(), duration);
+            }
+            log.info("[{}] Repo finished, took {} seconds, predicted {} seconds",
                 repo.getCode(),
-                value("repository_duration", Duration.between(startTime, Instant.now()).getSeconds())
+                value("repository_duration", duration.getSeconds()),
+                value("repository_predicted_duration", scheduled.predicted() != null ? scheduled.predicted().getSeconds() : null)
             );
         } finally {
             // Reset the MDC
@@ -136,29 +394,235 @@ public class IndexerRunner {
     }
 
 
+    /**
+     * Remove studies from the stored study IDs of each language.
+     */
+    private static Map<String, Set<String>> withoutStudies(Map<String, Set<String>> storedStudyIds, Set<String> studyIds) {
+        if (studyIds.isEmpty()) {
+            return storedStudyIds;
+        }
+        var remainingStudyIds = new HashMap<String, Set<String>>();
+        storedStudyIds.forEach((language, ids) -> {
+            var remainingIds = new HashSet<>(ids);
+            remainingIds.removeAll(studyIds);
+            remainingStudyIds.put(language, remainingIds);
+        });
+        return remainingStudyIds;
+    }
+
+    /**
+     * Delete the studies marked as deleted in the repository's files from all language indices. The IDs of
+     * deleted studies are derived from their study number and repository URL, so no scan of the index is needed.
+     * Studies that are still present in the harvested records, such as a study that was deleted and
+     * republished, are not deleted.
+     *
+     * @param repo            the repository.
+     * @param langStudies     the harvested studies of the repository.
+     * @param skippedStudyIds the IDs of the studies skipped because they were not modified.
+     * @return the IDs of the deleted studies.
+     */
+    private Set<String> deleteTombstonedStudies(Repo repo, Map<String, List<CMMStudyOfLanguage>> langStudies, Set<String> skippedStudyIds) {
+        var deletedStudyIds = new HashSet<>(indexer.takeDeletedStudyIds(repo));
+        langStudies.values().forEach(studies -> studies.forEach(study -> deletedStudyIds.remove(study.getId())));
+        deletedStudyIds.removeAll(skippedStudyIds);
+        if (deletedStudyIds.isEmpty() || !indexerRunning.get()) {
+            return Collections.emptySet();
+        }
+
+        if (dryRun) {
+            log.info("[{}] Dry run: [{}] studies marked as deleted would be deleted",
+                value(LoggingConstants.REPO_NAME, repo.getCode()),
+                value("tombstoned_cmm_studies", deletedStudyIds.size())
+            );
+            return Collections.emptySet();
+        }
+
+        try {
+            var deleted = ingestService.deleteFromAllIndices(deletedStudyIds);
+            indexerMetrics.recordStudies(IndexerMetrics.StudyOutcome.DELETED, deleted);
+            log.info("[{}] Deleted [{}] studies marked as deleted by the repository",
+                value(LoggingConstants.REPO_NAME, repo.getCode()),
+                value("tombstoned_cmm_studies", deleted)
+            );
+            return deletedStudyIds;
+        } catch (IndexingException | ElasticsearchException e) {
+            log.error("[{}] Deleting studies marked as deleted failed: {}",
+                value(LoggingConstants.REPO_NAME, repo.getCode()),
+                e.toString()
+            );
+            return Collections.emptySet();
+        }
+    }
+
+    /**
+     * Delete the studies of repositories that are present in the index but were not harvested, such as
+     * repositories removed from the configuration or the base directory. This must only be called when the
+     * discovery of repositories was complete. If no repositories were harvested, the source files are most
+     * likely missing, so nothing is deleted.
+     *
+     * @param harvestedRepos the repositories of the harvest.
+     */
+    private void deleteWithdrawnRepositories(List<ScheduledRepo> harvestedRepos) {
+        if (harvestedRepos.isEmpty()) {
+            return;
+        }
+
+        var harvestedCodes = harvestedRepos.stream().map(scheduled -> scheduled.repo().getCode()).collect(Collectors.toSet());
+        try {
+            var withdrawnCodes = new TreeSet<>(ingestService.getRepositoryCodes());
+            withdrawnCodes.removeAll(harvestedCodes);
+
+            for (var code : withdrawnCodes) {
+                if (dryRun) {
+                    log.info("[{}] Dry run: the studies of the withdrawn repository would be deleted", value(LoggingConstants.REPO_NAME, code));
+                    continue;
+                }
+
+                log.info("[{}] Deleting the studies of the withdrawn repository", value(LoggingConstants.REPO_NAME, code));
+                var deleted = ingestService.deleteByRepository(code);
+                indexerMetrics.recordStudies(IndexerMetrics.StudyOutcome.DELETED, deleted);
+                log.info("[{}] Deleted [{}] studies of the withdrawn repository",
+                    value(LoggingConstants.REPO_NAME, code),
+                    value("withdrawn_cmm_studies", deleted)
+                );
+            }
+        } catch (IndexingException | ElasticsearchException | IOException e) {
+            log.error("Deleting the studies of withdrawn repositories failed: {}", e.toString());
+        }
+    }
+
+    /**
+     * Parse the selected files of a repository, or every file if no files are selected, and discard
+     * the studies of unselected languages.
+     *
+     * @param modifiedSince records with a datestamp before this time are skipped, or {@code null} to parse every record.
+     */
+    private Map<String, List<CMMStudyOfLanguage>> getSelectedRecords(Repo repo, HarvestSelection selection, Instant modifiedSince) {
+        var selectedFiles = selection.getFiles(repo);
+        final Map<String, List<CMMStudyOfLanguage>> langStudies;
+        if (!selectedFiles.isEmpty()) {
+            langStudies = indexer.getRecords(repo, selectedFiles);
+        } else if (modifiedSince != null) {
+            langStudies = indexer.getRecords(repo, modifiedSince);
+        } else {
+            langStudies = indexer.getRecords(repo);
+        }
+        if (selection.languages().isEmpty()) {
+            return langStudies;
+        }
+
+        var selectedLangStudies = new HashMap<String, List<CMMStudyOfLanguage>>();
+        langStudies.forEach((language, studies) -> {
+            if (selection.includesLanguage(language)) {
+                selectedLangStudies.put(language, studies);
+            }
+        });
+        return selectedLangStudies;
+    }
+
+    /**
+     * Index the studies of a language of a repository. This runs on the shared language executor.
+     *
+     * @param repo       the source repository.
+     * @param progress   the progress tracker for the repository.
+     * @param language   the language code.
+     * @param cmmStudies the studies to index.
+     * @param storedIds  the IDs of the studies of the repository already present in the index.
+     * @param skippedIds the IDs of the studies skipped because they were not modified.
+     * @param contextMap the logging context map of the repository.
+     * @return {@code true} if the language was fully indexed.
+     */
+    @SuppressWarnings("try")
+    private boolean indexLanguage(
+        Repo repo,
+        RepositoryProgress progress,
+        String language,
+        List<CMMStudyOfLanguage> cmmStudies,
+        Set<String> storedIds,
+        Set<String> skippedIds,
+        Map<String, String> contextMap
+    ) {
+        if (progress.isCancelled()) {
+            return false;
+        }
+
+        MDC.setContextMap(contextMap);
+        try (var langClosable = MDC.putCloseable(LoggingConstants.LANG_CODE, language)) {
+            if (dryRun) {
+                dryRunReporter.diff(repo, language, cmmStudies, storedIds);
+                return true;
+            } else if (indexRecords(repo, language, cmmStudies, storedIds, skippedIds)) {
+                harvestCheckpoint.completeLanguage(repo.getCode(), language);
+                return true;
+            }
+            return false;
+        } catch (ElasticsearchException | IOException e) {
+            log.error("[{}({})] Error communicating with Elasticsearch!", repo.getCode(), language, e);
+            return false;
+        } finally {
+            // Don't leak the context to the next task run by this thread
+            MDC.clear();
+        }
+    }
+
+    /**
+     * Get the IDs of the studies of a repository that are already indexed, grouped by language.
+     * <p>
+     * All language indices are read in a single pass. If the IDs cannot be retrieved, an empty map
+     * is returned and no deletions will be performed. Unselected languages are not returned.
+     *
+     * @param repo            the repository.
+     * @param selection       the languages of the repository to harvest.
+     * @param langStudies     the harvested studies.
+     * @param skippedStudyIds the IDs of the studies skipped because they were not modified.
+     */
+    private Map<String, Set<String>> getStoredStudyIds(
+        Repo repo,
+        HarvestSelection selection,
+        Map<String, List<CMMStudyOfLanguage>> langStudies,
+        Set<String> skippedStudyIds
+    ) {
+        // If the repository is empty the source files are most likely missing, so the lookup is skipped to avoid deleting every study
+        if (!indexerRunning.get() || (skippedStudyIds.isEmpty() && langStudies.values().stream().allMatch(List::isEmpty))) {
+            return Collections.emptyMap();
+        }
+
+        var deletionDiffSample = indexerMetrics.startTimer();
+        try {
+            var storedStudyIds = new HashMap<>(ingestService.getStudyIdsByRepository(repo.getCode()));
+            storedStudyIds.keySet().removeIf(language -> !selection.includesLanguage(language));
+            return Map.copyOf(storedStudyIds);
+        } catch (ElasticsearchException | IOException | UncheckedIOException e) {
+            log.warn("[{}] Couldn't retrieve existing studies for deletions: {}", repo.getCode(), e.toString());
+            return Collections.emptyMap();
+        } finally {
+            indexerMetrics.stopTimer(deletionDiffSample, IndexerMetrics.Stage.DELETION_DIFF);
+        }
+    }
+
     /**
      * Index the given CMMStudies into the Elasticsearch index.
      *
      * @param repo        the source repository.
      * @param langIsoCode the language code.
      * @param cmmStudies  the studies to index.
+     * @param storedIds   the IDs of the studies of the repository already present in the index, excluding skipped studies.
+     * @param skippedIds  the IDs of the studies skipped because they were not modified. These are not deleted.
+     * @return {@code true} if the language was fully indexed, including deletions.
      */
-    private void indexRecords(Repo repo, String langIsoCode, List<CMMStudyOfLanguage> cmmStudies) {
-        if (indexerRunning.get() && !cmmStudies.isEmpty()) {
+    private boolean indexRecords(Repo repo, String langIsoCode, List<CMMStudyOfLanguage> cmmStudies, Set<String> storedIds, Set<String> skippedIds) {
+        if (cmmStudies.isEmpty() && storedIds.isEmpty()) {
+            return true;
+        }
+        if (indexerRunning.get()) {
             log.info("[{}({})] Indexing...", repo.getCode(), langIsoCode);
 
-            // Discover studies to delete, we do this by creating a HashSet of ids and then comparing what's in the database
+            // Discover studies to delete by comparing the harvested IDs with the IDs present in the index
             var studyIds = cmmStudies.stream().map(CMMStudyOfLanguage::getId).collect(Collectors.toCollection(HashSet::new));
-            var studiesToDelete = new ArrayList<CMMStudyOfLanguage>();
-            try {
-                for (var presentStudy : ingestService.getStudiesByRepository(repo.getCode(), langIsoCode)) {
-                    if (!studyIds.contains(presentStudy.getId())) {
-                        studiesToDelete.add(presentStudy);
-                    }
-                }
-            } catch (ElasticsearchException | UncheckedIOException e) {
-                if (!(e instanceof ElasticsearchException) || !e.getMessage().contains("index_not_found_exception")) {
-                    log.warn("[{}({})] Couldn't retrieve existing studies for deletions: {}", repo.getCode(), langIsoCode, e.toString());
+            var studiesToDelete = new ArrayList<String>();
+            for (var presentId : storedIds) {
+                if (!studyIds.contains(presentId)) {
+                    studiesToDelete.add(presentId);
                 }
             }
 
@@ -167,8 +631,22 @@ public class IndexerRunner {
 
             // Perform indexing and deletions
             try {
-                ingestService.bulkIndex(cmmStudies, langIsoCode);
-                ingestService.bulkDelete(studiesToDelete, langIsoCode);
+                indexBatches(repo, langIsoCode, cmmStudies);
+                if (studiesToDelete.size() > SERVER_SIDE_DELETION_THRESHOLD) {
+                    // Replace the repository's contents server-side rather than sending every ID to delete.
+                    // Skipped studies were not harvested, but are still present in the repository.
+                    var idsToKeep = new HashSet<>(studyIds);
+                    idsToKeep.addAll(skippedIds);
+                    ingestService.deleteByRepositoryExcept(repo.getCode(), idsToKeep, langIsoCode);
+                } else {
+                    ingestService.bulkDeleteById(studiesToDelete, langIsoCode);
+                }
+                indexerMetrics.recordStudies(IndexerMetrics.StudyOutcome.CREATED, studiesUpdated.studiesCreated);
+                indexerMetrics.recordStudies(IndexerMetrics.StudyOutcome.UPDATED, studiesUpdated.studiesUpdated);
+                indexerMetrics.recordStudies(IndexerMetrics.StudyOutcome.DELETED, studiesUpdated.studiesDeleted);
+                indexerMetrics.recordStudies(IndexerMetrics.StudyOutcome.UNCHANGED,
+                    (long) cmmStudies.size() - studiesUpdated.studiesCreated - studiesUpdated.studiesUpdated
+                );
                 log.info("[{}({})] Indexing succeeded: [{}] studies created, [{}] studies deleted, [{}] studies updated.",
                     value(LoggingConstants.REPO_NAME, repo.getCode()),
                     value(LoggingConstants.LANG_CODE, langIsoCode),
@@ -176,6 +654,7 @@ public class IndexerRunner {
                     value("deleted_cmm_studies", studiesUpdated.studiesDeleted),
                     value("updated_cmm_studies", studiesUpdated.studiesUpdated)
                 );
+                return true;
             } catch (IndexingException e) {
                 log.error("[{}({})] Indexing failed: {}: {}",
                     value(LoggingConstants.REPO_NAME, repo.getCode()),
@@ -185,6 +664,33 @@ public class IndexerRunner {
                 );
             }
         }
+        return false;
+    }
+
+    /**
+     * Index studies in batches, checkpointing each batch once it has been acknowledged by Elasticsearch.
+     * Studies are ordered by ID so that the batches are the same when a harvest resumes, allowing batches
+     * acknowledged by an interrupted harvest to be skipped.
+     */
+    private void indexBatches(Repo repo, String langIsoCode, List<CMMStudyOfLanguage> cmmStudies) throws IndexingException {
+        var sortedStudies = cmmStudies;
+        var acknowledgedBatches = 0;
+        if (harvestCheckpoint.isEnabled()) {
+            sortedStudies = cmmStudies.stream()
+                .sorted(Comparator.comparing(CMMStudyOfLanguage::getId, Comparator.nullsFirst(Comparator.naturalOrder())))
+                .toList();
+            acknowledgedBatches = harvestCheckpoint.getAcknowledgedBatches(repo.getCode(), langIsoCode);
+            if (acknowledgedBatches > 0) {
+                log.info("[{}({})] Resuming after [{}] acknowledged studies", repo.getCode(), langIsoCode,
+                    Math.min((long) acknowledgedBatches * CHECKPOINT_BATCH_SIZE, sortedStudies.size())
+                );
+            }
+        }
+
+        for (int from = acknowledgedBatches * CHECKPOINT_BATCH_SIZE; from < sortedStudies.size(); from += CHECKPOINT_BATCH_SIZE) {
+            ingestService.bulkIndex(sortedStudies.subList(from, Math.min(from + CHECKPOINT_BATCH_SIZE, sortedStudies.size())), langIsoCode);
+            harvestCheckpoint.acknowledgeBatch(repo.getCode(), langIsoCode);
+        }
     }
 
     /**
@@ -215,6 +721,14 @@ public class IndexerRunner {
     }
 
 
+    /**
+     * A repository with its size and predicted harvest duration.
+     *
+     * @param predicted the predicted duration, or {@code null} if no prediction could be made.
+     */
+    private record ScheduledRepo(Repo repo, long bytes, Duration predicted) {
+    }
+
     @Value
     private static class UpdatedStudies {
         int studiesCreated;
@@ -227,5 +741,7 @@ public class IndexerRunner {
         if (indexerRunning.getAndSet(false)) {
             log.info("Indexing cancelled");
         }
+        harvestExecutor.shutdown();
+        languageExecutor.shutdown();
     }
 }
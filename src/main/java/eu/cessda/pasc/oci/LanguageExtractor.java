@@ -22,11 +22,9 @@ import eu.cessda.pasc.oci.models.cmmstudy.CMMStudyOfLanguage;
 import eu.cessda.pasc.oci.models.cmmstudy.Publisher;
 import eu.cessda.pasc.oci.models.configurations.Repo;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.commons.codec.digest.DigestUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
-import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.stream.Collectors;
 
@@ -95,8 +93,7 @@ public class LanguageExtractor {
         CMMStudyOfLanguage.CMMStudyOfLanguageBuilder builder = CMMStudyOfLanguage.builder();
 
         // Identifier generation -
-        var id = cmmStudy.getRepositoryUrl() + "-" + cmmStudy.getStudyNumber();
-        var hashedId = DigestUtils.sha256Hex(id.getBytes(StandardCharsets.UTF_8));
+        var hashedId = StudyIdentifiers.generate(cmmStudy.getRepositoryUrl(), cmmStudy.getStudyNumber());
 
         // Language neutral specific field extraction
         // UK Data Service = UK-Data-Service__
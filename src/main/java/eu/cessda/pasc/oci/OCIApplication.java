@@ -15,8 +15,10 @@
  */
 package eu.cessda.pasc.oci;
 
+import eu.cessda.pasc.oci.configurations.AppConfigurationProperties;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.boot.CommandLineRunner;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.annotation.Profile;
@@ -31,9 +33,13 @@ public class OCIApplication {
     private static int exitCode = 0;
 
     private final ConsumerScheduler consumerScheduler;
+    private final IndexerDaemon indexerDaemon;
+    private final AppConfigurationProperties configurationProperties;
 
-    public OCIApplication(ConsumerScheduler consumerScheduler) {
+    public OCIApplication(ConsumerScheduler consumerScheduler, IndexerDaemon indexerDaemon, AppConfigurationProperties configurationProperties) {
         this.consumerScheduler = consumerScheduler;
+        this.indexerDaemon = indexerDaemon;
+        this.configurationProperties = configurationProperties;
     }
 
 	public static void main(String[] args) {
@@ -47,16 +53,25 @@ public class OCIApplication {
     @Component
     @Profile("!test")
     @SuppressWarnings("java:S3985")
-    private class Runner implements CommandLineRunner {
+    private class Runner implements ApplicationRunner {
         /**
-         * Run the indexer. If an exception is thrown, the exit code of the indexer is set to -1.
-         * @param args unused.
+         * Run the indexer. If daemon mode is enabled, keep indexing changes until the application is stopped.
+         * If an exception is thrown, the exit code of the indexer is set to -1.
+         * <p>
+         * The harvest can be restricted using the {@code --repository}, {@code --language} and {@code --file}
+         * options. Daemon mode is not started for restricted harvests or dry runs.
+         *
+         * @param args the command line arguments.
          */
         @Override
         @SuppressWarnings({"java:S1181", "java:S2696"}) // This is a top level error handler
-        public void run(String... args) {
+        public void run(ApplicationArguments args) {
             try {
-                consumerScheduler.runIndexer();
+                var selection = HarvestSelection.fromArguments(args);
+                consumerScheduler.runIndexer(selection);
+                if (configurationProperties.getDaemon().isEnabled() && selection.isEverything() && !configurationProperties.isDryRun()) {
+                    indexerDaemon.run();
+                }
             } catch (Throwable e) {
                 // Log all application errors, then exit with a non-zero exit code
                 log.error("Fatal exception thrown!", e);
@@ -15,65 +15,344 @@
  */
 package eu.cessda.pasc.oci;
 
+import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.ObjectReader;
+import eu.cessda.pasc.oci.configurations.AppConfigurationProperties;
 import eu.cessda.pasc.oci.models.PipelineMetadata;
 import eu.cessda.pasc.oci.models.configurations.Repo;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Stream;
 
+/**
+ * Discovers the repositories to harvest from their {@code pipeline.json} definitions.
+ * <p>
+ * The base directory is walked in parallel. A directory containing {@code pipeline.json} is a repository, and its
+ * subdirectories are not searched. The contents of each directory are cached against its modification time, so a
+ * directory is only listed again once entries have been added to it or removed from it. The cache is persisted to
+ * {@code discovery-cache.json} in the configured {@code stateDirectory}.
+ */
 @Service
 @Slf4j
 public class PipelineUtilities {
 
+    static final String DISCOVERY_CACHE_FILE = "discovery-cache.json";
+    private static final Path PIPELINE_JSON = Path.of("pipeline.json");
+    private static final TypeReference<Map<String, CachedDirectory>> CACHE_MAP = new TypeReference<>() {
+    };
+
+    private final ObjectMapper objectMapper;
     private final ObjectReader repositoryModelObjectReader;
+    private final AppConfigurationProperties configurationProperties;
+
+    // Guarded by this
+    private Map<Path, CachedDirectory> discoveryCache = null;
 
-    public PipelineUtilities(ObjectMapper objectMapper) {
-        repositoryModelObjectReader = objectMapper.readerFor(PipelineMetadata.class);
+    @Autowired
+    public PipelineUtilities(ObjectMapper objectMapper, AppConfigurationProperties configurationProperties) {
+        this.objectMapper = objectMapper;
+        this.repositoryModelObjectReader = objectMapper.readerFor(PipelineMetadata.class);
+        this.configurationProperties = configurationProperties;
     }
 
     /**
      * Discover repositories by looking for instances of {@code pipeline.json}.
      *
      * @param baseDirectory the base directory to search from.
-     * @return a list of all discovered repositories.
+     * @return a list of all discovered repositories, ordered by their path.
      */
-    @SuppressWarnings("resource") // closed by calling method
     public Stream<Repo> discoverRepositories(Path baseDirectory) {
-        if (baseDirectory != null) {
-            try {
-                var directoryStream = Files.find(baseDirectory, Integer.MAX_VALUE,
-                    (path, attributes) -> attributes.isRegularFile() && path.getFileName().equals(Path.of("pipeline.json"))
-                );
-                return directoryStream.flatMap(json -> {
-                    try (var inputStream = Files.newInputStream(json)) {
-                        PipelineMetadata sharedModel = repositoryModelObjectReader.readValue(inputStream);
-
-                        // Convert the shared model to a Repo object
-                        var repo = new Repo();
-                        repo.setUrl(sharedModel.url());
-                        repo.setCode(sharedModel.code());
-                        repo.setName(sharedModel.name());
-                        repo.setPath(json.getParent());
-                        repo.setDefaultLanguage(sharedModel.defaultLanguage());
-                        repo.setPreferredMetadataParam(sharedModel.metadataPrefix());
-
-                        // Add the repo object to the stream
-                        return Stream.of(repo);
-                    } catch (IOException e) {
-                        log.error("Failed to load pipeline definition from \"{}\": {}", json, e.toString());
+        return discover(baseDirectory).repositories().stream();
+    }
+
+    /**
+     * Discover repositories by looking for instances of {@code pipeline.json}, recording whether every directory
+     * and pipeline definition could be read.
+     *
+     * @param baseDirectory the base directory to search from.
+     * @return the discovered repositories, ordered by their path.
+     */
+    public DiscoveredRepositories discover(Path baseDirectory) {
+        if (baseDirectory == null) {
+            return new DiscoveredRepositories(List.of(), true);
+        }
+
+        try {
+            // The base directory must exist, unlike the directories below it which may change during the walk
+            Files.readAttributes(baseDirectory, BasicFileAttributes.class);
+        } catch (IOException e) {
+            log.error("Error occurred when loading repositories: {}", e.toString());
+            return new DiscoveredRepositories(List.of(), false);
+        }
+
+        var pool = new ForkJoinPool(Math.max(configurationProperties.getDiscovery().getConcurrency(), 1));
+        try {
+            var walk = new RepositoryWalk(getDiscoveryCache());
+            pool.invoke(walk.new DirectoryTask(baseDirectory));
+            log.debug("Found [{}] repositories in \"{}\", listed [{}] of [{}] directories",
+                walk.definitions.size(), baseDirectory, walk.listedDirectories.get(), walk.directories.size()
+            );
+            updateDiscoveryCache(walk.directories);
+
+            // Load the definitions in parallel, preserving the order of their paths
+            var definitions = walk.definitions.stream().sorted().toList();
+            var repositories = pool.submit(() -> definitions.parallelStream().map(this::loadRepository).toList()).join();
+            var complete = walk.errors.get() == 0 && repositories.stream().allMatch(Optional::isPresent);
+            return new DiscoveredRepositories(repositories.stream().flatMap(Optional::stream).toList(), complete);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Get the cached contents of directories, loading them from the state directory on first use.
+     */
+    private synchronized Map<Path, CachedDirectory> getDiscoveryCache() {
+        if (!configurationProperties.getDiscovery().isCache()) {
+            return Collections.emptyMap();
+        }
+
+        if (discoveryCache == null) {
+            discoveryCache = new HashMap<>();
+            var cacheFile = getDiscoveryCacheFile();
+            if (cacheFile != null) {
+                try (var inputStream = Files.newInputStream(cacheFile)) {
+                    Map<String, CachedDirectory> loaded = objectMapper.readValue(inputStream, CACHE_MAP);
+                    loaded.forEach((directory, contents) -> discoveryCache.put(Path.of(directory), contents));
+                } catch (NoSuchFileException e) {
+                    log.debug("No discovery cache found at {}", cacheFile);
+                } catch (IOException e) {
+                    log.warn("Couldn't load discovery cache from {}: {}", cacheFile, e.toString());
+                }
+            }
+        }
+        return discoveryCache;
+    }
+
+    /**
+     * Replace the cached contents of directories with the contents found by the last walk, and save them to the
+     * state directory if configured. Directories that were not reached by the walk are forgotten.
+     */
+    private synchronized void updateDiscoveryCache(Map<Path, CachedDirectory> directories) {
+        if (!configurationProperties.getDiscovery().isCache()) {
+            return;
+        }
+
+        discoveryCache = new HashMap<>(directories);
+        var cacheFile = getDiscoveryCacheFile();
+        if (cacheFile == null) {
+            return;
+        }
+
+        try {
+            Files.createDirectories(cacheFile.getParent());
+
+            // Write to a temporary file first so that an interrupted write doesn't leave a partial cache
+            var temporaryFile = cacheFile.resolveSibling(DISCOVERY_CACHE_FILE + ".tmp");
+            var serialisedCache = new TreeMap<String, CachedDirectory>();
+            directories.forEach((directory, contents) -> serialisedCache.put(directory.toString(), contents));
+            objectMapper.writeValue(temporaryFile.toFile(), serialisedCache);
+            Files.move(temporaryFile, cacheFile, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            log.warn("Couldn't save discovery cache to {}: {}", cacheFile, e.toString());
+        }
+    }
+
+    private Path getDiscoveryCacheFile() {
+        var stateDirectory = configurationProperties.getStateDirectory();
+        return stateDirectory != null ? stateDirectory.resolve(DISCOVERY_CACHE_FILE) : null;
+    }
+
+    /**
+     * Discover the repositories included in a selection.
+     * <p>
+     * If files are selected, only the directories containing the files are checked for {@code pipeline.json}.
+     * If repositories are selected, the directories in the base directory named after the repositories are
+     * checked first, and the base directory is only searched if a repository could not be found this way.
+     *
+     * @param baseDirectory the base directory to search from.
+     * @param selection     the repositories to discover.
+     * @return the discovered repositories included in the selection.
+     */
+    @SuppressWarnings("resource") // closed by calling method
+    public Stream<Repo> discoverRepositories(Path baseDirectory, HarvestSelection selection) {
+        if (!selection.files().isEmpty()) {
+            return selection.files().stream()
+                .map(Path::getParent)
+                .distinct()
+                .flatMap(directory -> {
+                    var json = directory.resolve(PIPELINE_JSON);
+                    if (!Files.isRegularFile(json)) {
+                        log.warn("No pipeline definition found in \"{}\", ignoring selected files in this directory", directory);
                         return Stream.empty();
                     }
-                });
-            } catch (IOException e) {
-                log.error("Error occurred when loading repositories: {}", e.toString());
+                    return loadRepository(json).stream();
+                })
+                .filter(selection::includesRepository);
+        }
+
+        if (!selection.repositories().isEmpty() && baseDirectory != null) {
+            var repos = findRepositoriesByDirectoryName(baseDirectory, selection.repositories());
+            if (repos.size() == selection.repositories().size()) {
+                return repos.stream();
+            }
+            log.debug("Not all selected repositories are in directories named after them, searching \"{}\"", baseDirectory);
+        }
+
+        return discoverRepositories(baseDirectory).filter(selection::includesRepository);
+    }
+
+    /**
+     * Find repositories defined in directories of the base directory named after their code.
+     *
+     * @return the repositories found, at most one for each code.
+     */
+    private List<Repo> findRepositoriesByDirectoryName(Path baseDirectory, Set<String> codes) {
+        var repos = new ArrayList<Repo>();
+        try (var directories = Files.list(baseDirectory)) {
+            var candidates = directories.filter(directory -> Files.isRegularFile(directory.resolve(PIPELINE_JSON))).toList();
+            for (var code : codes) {
+                candidates.stream()
+                    .filter(directory -> directory.getFileName().toString().equalsIgnoreCase(code))
+                    .flatMap(directory -> loadRepository(directory.resolve(PIPELINE_JSON)).stream())
+                    .filter(repo -> code.equalsIgnoreCase(repo.getCode()))
+                    .findFirst()
+                    .ifPresent(repos::add);
+            }
+        } catch (IOException e) {
+            log.debug("Couldn't list \"{}\": {}", baseDirectory, e.toString());
+        }
+        return repos;
+    }
+
+    /**
+     * Load a repository from a pipeline definition.
+     *
+     * @param json the path to {@code pipeline.json}.
+     * @return the repository, or an empty optional if the definition couldn't be loaded.
+     */
+    private Optional<Repo> loadRepository(Path json) {
+        try (var inputStream = Files.newInputStream(json)) {
+            PipelineMetadata sharedModel = repositoryModelObjectReader.readValue(inputStream);
+
+            // Convert the shared model to a Repo object
+            var repo = new Repo();
+            repo.setUrl(sharedModel.url());
+            repo.setCode(sharedModel.code());
+            repo.setName(sharedModel.name());
+            repo.setPath(json.getParent());
+            repo.setDefaultLanguage(sharedModel.defaultLanguage());
+            repo.setPreferredMetadataParam(sharedModel.metadataPrefix());
+
+            return Optional.of(repo);
+        } catch (IOException e) {
+            log.error("Failed to load pipeline definition from \"{}\": {}", json, e.toString());
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * The result of a discovery.
+     *
+     * @param repositories the discovered repositories.
+     * @param complete     whether the discovery finished without errors, so that no repository could have been missed.
+     */
+    public record DiscoveredRepositories(List<Repo> repositories, boolean complete) {
+    }
+
+    /**
+     * The contents of a directory when it was last listed.
+     *
+     * @param lastModified   the modification time of the directory in milliseconds.
+     * @param repository     whether the directory contains {@code pipeline.json}.
+     * @param subdirectories the names of the subdirectories, empty if the directory is a repository.
+     */
+    record CachedDirectory(long lastModified, boolean repository, List<String> subdirectories) {
+    }
+
+    /**
+     * The state of a walk of the base directory.
+     */
+    private static final class RepositoryWalk {
+        private final Map<Path, CachedDirectory> cache;
+        private final Map<Path, CachedDirectory> directories = new ConcurrentHashMap<>();
+        private final Queue<Path> definitions = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger listedDirectories = new AtomicInteger();
+        private final AtomicInteger errors = new AtomicInteger();
+
+        private RepositoryWalk(Map<Path, CachedDirectory> cache) {
+            this.cache = cache;
+        }
+
+        /**
+         * Find the contents of a directory, from the cache if the directory has not been modified.
+         */
+        private CachedDirectory getContents(Path directory) throws IOException {
+            var lastModified = Files.getLastModifiedTime(directory).toMillis();
+            var cached = cache.get(directory);
+            if (cached != null && cached.lastModified() == lastModified) {
+                return cached;
+            }
+
+            listedDirectories.incrementAndGet();
+            if (Files.isRegularFile(directory.resolve(PIPELINE_JSON))) {
+                // Repositories are not searched, so their source files are never listed
+                return new CachedDirectory(lastModified, true, List.of());
+            }
+
+            var subdirectories = new ArrayList<String>();
+            try (var entries = Files.newDirectoryStream(directory)) {
+                for (var entry : entries) {
+                    if (Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS).isDirectory()) {
+                        subdirectories.add(entry.getFileName().toString());
+                    }
+                }
+            }
+            return new CachedDirectory(lastModified, false, subdirectories);
+        }
+
+        /**
+         * Searches a directory for repositories, searching subdirectories in parallel.
+         */
+        private final class DirectoryTask extends RecursiveAction {
+            private static final long serialVersionUID = 1L;
+            private final Path directory;
+
+            private DirectoryTask(Path directory) {
+                this.directory = directory;
+            }
+
+            @Override
+            protected void compute() {
+                CachedDirectory contents;
+                try {
+                    contents = getContents(directory);
+                } catch (IOException e) {
+                    log.warn("Couldn't search \"{}\" for repositories: {}", directory, e.toString());
+                    errors.incrementAndGet();
+                    return;
+                }
+
+                directories.put(directory, contents);
+                if (contents.repository()) {
+                    definitions.add(directory.resolve(PIPELINE_JSON));
+                    return;
+                }
+
+                invokeAll(contents.subdirectories().stream().map(name -> new DirectoryTask(directory.resolve(name))).toList());
             }
         }
-        return Stream.empty();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright © 2017-2023 CESSDA ERIC (support@cessda.eu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.cessda.pasc.oci;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import eu.cessda.pasc.oci.configurations.AppConfigurationProperties;
+import eu.cessda.pasc.oci.models.configurations.Repo;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static net.logstash.logback.argument.StructuredArguments.value;
+
+/**
+ * Records how long each repository took to harvest, so that the duration of the next harvest can be predicted.
+ * <p>
+ * Statistics are persisted to {@code repository-statistics.json} in the configured {@code stateDirectory}.
+ * If no state directory is configured, statistics are only kept for the lifetime of the application.
+ */
+@Component
+@Slf4j
+public class RepositoryStatistics {
+
+    static final String STATISTICS_FILE = "repository-statistics.json";
+    private static final TypeReference<Map<String, Entry>> ENTRY_MAP = new TypeReference<>() {
+    };
+
+    private final AppConfigurationProperties configurationProperties;
+    private final ObjectMapper objectMapper;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    @Autowired
+    public RepositoryStatistics(AppConfigurationProperties configurationProperties, ObjectMapper objectMapper) {
+        this.configurationProperties = configurationProperties;
+        this.objectMapper = objectMapper;
+    }
+
+    /**
+     * Load the statistics of previous runs from the state directory, replacing any statistics held in memory.
+     * Statistics held in memory are kept if no state directory is configured.
+     */
+    public void load() {
+        var statisticsFile = getStatisticsFile();
+        if (statisticsFile == null) {
+            return;
+        }
+
+        try (var inputStream = Files.newInputStream(statisticsFile)) {
+            Map<String, Entry> loaded = objectMapper.readValue(inputStream, ENTRY_MAP);
+            entries.clear();
+            entries.putAll(loaded);
+        } catch (NoSuchFileException e) {
+            log.debug("No repository statistics found at {}", statisticsFile);
+        } catch (IOException e) {
+            log.warn("Couldn't load repository statistics from {}: {}", statisticsFile, e.toString());
+        }
+    }
+
+    /**
+     * Save the statistics to the state directory, if configured.
+     */
+    public void save() {
+        var statisticsFile = getStatisticsFile();
+        if (statisticsFile == null) {
+            return;
+        }
+
+        try {
+            Files.createDirectories(statisticsFile.getParent());
+
+            // Write to a temporary file first so that an interrupted write doesn't lose the previous statistics
+            var temporaryFile = statisticsFile.resolveSibling(STATISTICS_FILE + ".tmp");
+            objectMapper.writerWithDefaultPrettyPrinter().writeValue(temporaryFile.toFile(), new TreeMap<>(entries));
+            Files.move(temporaryFile, statisticsFile, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            log.warn("Couldn't save repository statistics to {}: {}", statisticsFile, e.toString());
+        }
+    }
+
+    private Path getStatisticsFile() {
+        var stateDirectory = configurationProperties.getStateDirectory();
+        return stateDirectory != null ? stateDirectory.resolve(STATISTICS_FILE) : null;
+    }
+
+    /**
+     * Record the time taken to harvest a repository.
+     *
+     * @param code     the code of the repository.
+     * @param bytes    the size of the repository's source files.
+     * @param duration the time taken to harvest the repository.
+     */
+    public void record(String code, long bytes, Duration duration) {
+        entries.put(code, new Entry(bytes, duration.toMillis(), Instant.now().toString()));
+    }
+
+    /**
+     * Get the statistics of the last harvest of a repository.
+     */
+    public Optional<Entry> get(String code) {
+        return Optional.ofNullable(entries.get(code));
+    }
+
+    /**
+     * Predict how long a repository will take to harvest.
+     * <p>
+     * If the repository was harvested before, its previous duration is scaled by the change in its size. Otherwise,
+     * the duration is estimated from the throughput of all previously harvested repositories.
+     *
+     * @param code  the code of the repository.
+     * @param bytes the current size of the repository's source files.
+     * @return the predicted duration, or an empty optional if there are no statistics to predict from.
+     */
+    public Optional<Duration> predict(String code, long bytes) {
+        var entry = entries.get(code);
+        if (entry != null) {
+            if (entry.bytes() > 0 && bytes > 0) {
+                return Optional.of(Duration.ofMillis((long) ((double) entry.durationMillis() * bytes / entry.bytes())));
+            }
+            return Optional.of(Duration.ofMillis(entry.durationMillis()));
+        }
+
+        long totalBytes = 0;
+        long totalMillis = 0;
+        for (var e : entries.values()) {
+            if (e.bytes() > 0) {
+                totalBytes += e.bytes();
+                totalMillis += e.durationMillis();
+            }
+        }
+        if (totalBytes == 0) {
+            return Optional.empty();
+        }
+        return Optional.of(Duration.ofMillis((long) ((double) totalMillis * bytes / totalBytes)));
+    }
+
+    /**
+     * Estimate the size of a repository from the total size of the files in its directory.
+     *
+     * @param repo the repository.
+     * @return the size of the repository in bytes, or 0 if the repository has no path or the size cannot be read.
+     */
+    public static long estimateSize(Repo repo) {
+        if (repo.getPath() == null) {
+            return 0;
+        }
+
+        try (var files = Files.find(repo.getPath(), 1, (path, attributes) -> attributes.isRegularFile())) {
+            return files.mapToLong(path -> path.toFile().length()).sum();
+        } catch (IOException e) {
+            log.debug("[{}] Couldn't estimate the size of the repository: {}", value(LoggingConstants.REPO_NAME, repo.getCode()), e.toString());
+            return 0;
+        }
+    }
+
+    /**
+     * The statistics of the last harvest of a repository.
+     *
+     * @param bytes          the size of the repository's source files.
+     * @param durationMillis the time taken to harvest the repository.
+     * @param lastRun        the time the statistics were recorded, in ISO 8601 format.
+     */
+    public record Entry(long bytes, long durationMillis, String lastRun) {
+    }
+}
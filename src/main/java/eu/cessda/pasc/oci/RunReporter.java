@@ -0,0 +1,317 @@
+/*
+ * Copyright © 2017-2023 CESSDA ERIC (support@cessda.eu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.cessda.pasc.oci;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import eu.cessda.pasc.oci.configurations.AppConfigurationProperties;
+import eu.cessda.pasc.oci.models.report.*;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static net.logstash.logback.argument.StructuredArguments.value;
+
+/**
+ * Writes a machine-readable performance report at the end of each indexer run.
+ * <p>
+ * The report is derived from the meters recorded by {@link IndexerMetrics}, and is only written if
+ * {@code reportDirectory} is configured.
+ */
+@Component
+@Slf4j
+public class RunReporter {
+
+    private static final DateTimeFormatter FILE_NAME_FORMATTER = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'").withZone(ZoneOffset.UTC);
+    private static final String NONE = "none";
+
+    private final AppConfigurationProperties configurationProperties;
+    private final IndexerMetrics indexerMetrics;
+    private final ObjectWriter reportWriter;
+
+    // State captured at the start of the run
+    private volatile Instant startTime = Instant.now();
+    private volatile Map<String, long[]> gcBaseline = Collections.emptyMap();
+
+    @Autowired
+    public RunReporter(AppConfigurationProperties configurationProperties, IndexerMetrics indexerMetrics, ObjectMapper objectMapper) {
+        this.configurationProperties = configurationProperties;
+        this.indexerMetrics = indexerMetrics;
+        this.reportWriter = objectMapper.writerWithDefaultPrettyPrinter();
+    }
+
+    /**
+     * Mark the start of a run. JVM statistics in the report are relative to this point.
+     */
+    public void start() {
+        startTime = Instant.now();
+
+        var baseline = new HashMap<String, long[]>();
+        for (var gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            baseline.put(gc.getName(), new long[]{gc.getCollectionCount(), gc.getCollectionTime()});
+        }
+        gcBaseline = baseline;
+
+        for (var pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    /**
+     * Write the report of the current run to the configured report directory.
+     *
+     * @param jobId the identifier of the run.
+     * @return the path of the written report, or an empty optional if no report directory is configured
+     * or the report could not be written.
+     */
+    public Optional<Path> writeReport(String jobId) {
+        var reportDirectory = configurationProperties.getReportDirectory();
+        if (reportDirectory == null) {
+            return Optional.empty();
+        }
+
+        var report = buildReport(jobId);
+        var reportFile = reportDirectory.resolve("indexer-report-" + FILE_NAME_FORMATTER.format(startTime) + ".json");
+        try {
+            Files.createDirectories(reportDirectory);
+            reportWriter.writeValue(reportFile.toFile(), report);
+            log.info("Run report written to {}", value("report_file", reportFile));
+            return Optional.of(reportFile);
+        } catch (IOException e) {
+            log.warn("Couldn't write run report to {}: {}", reportFile, e.toString());
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Build the report of the current run from the recorded metrics.
+     *
+     * @param jobId the identifier of the run.
+     */
+    RunReport buildReport(String jobId) {
+        var endTime = Instant.now();
+        var duration = Duration.between(startTime, endTime);
+
+        // Group the meters by repository and language
+        var repositories = new TreeMap<String, Map<String, Accumulator>>();
+        var totals = new Accumulator();
+        for (var meter : indexerMetrics.getRegistry().getMeters()) {
+            var id = meter.getId();
+            // The run stage timer and its percentile gauges are reported separately
+            if (!id.getName().startsWith(IndexerMetrics.METER_PREFIX) || id.getName().startsWith(IndexerMetrics.RUN_STAGE_TIMER)) {
+                continue;
+            }
+
+            // Transport meters are not attributable to a repository
+            if (id.getName().equals(IndexerMetrics.TRANSPORT_BYTES)) {
+                totals.add(meter);
+                continue;
+            }
+
+            var repository = Objects.requireNonNullElse(id.getTag(IndexerMetrics.REPOSITORY_TAG), NONE);
+            var language = Objects.requireNonNullElse(id.getTag(IndexerMetrics.LANGUAGE_TAG), NONE);
+            var accumulator = repositories.computeIfAbsent(repository, k -> new TreeMap<>())
+                .computeIfAbsent(language, k -> new Accumulator());
+            accumulator.add(meter);
+            totals.add(meter);
+        }
+
+        var repositoryReports = new ArrayList<RepositoryReport>();
+        repositories.forEach((code, languages) -> {
+            // Repository level stages are recorded outside a language context
+            var repositoryLevel = Objects.requireNonNullElseGet(languages.remove(NONE), Accumulator::new);
+
+            var languageReports = new ArrayList<LanguageReport>();
+            languages.forEach((language, accumulator) -> languageReports.add(new LanguageReport(
+                language,
+                accumulator.stageMillis,
+                accumulator.studies,
+                accumulator.bulkRequests,
+                accumulator.bulkBytes,
+                accumulator.bulkRetries,
+                perSecond(accumulator.indexedStudies(), accumulator.totalStageMillis())
+            )));
+
+            var studiesParsed = repositoryLevel.studies.getOrDefault(IndexerMetrics.StudyOutcome.PARSED.getTag(), 0L);
+            repositoryReports.add(new RepositoryReport(
+                code,
+                repositoryLevel.stageMillis,
+                repositoryLevel.files,
+                repositoryLevel.bytes,
+                studiesParsed,
+                perSecond(studiesParsed, repositoryLevel.totalStageMillis()),
+                languageReports
+            ));
+        });
+
+        return new RunReport(
+            jobId,
+            startTime.toString(),
+            endTime.toString(),
+            duration.toMillis(),
+            totals.files,
+            totals.bytes,
+            totals.studies,
+            totals.bulkRequests,
+            totals.bulkBytes,
+            totals.bulkRetries,
+            totals.transportBytesSent,
+            totals.transportBytesReceived,
+            perSecond(totals.studies.getOrDefault(IndexerMetrics.StudyOutcome.PARSED.getTag(), 0L), (double) duration.toMillis()),
+            stageReports(),
+            repositoryReports,
+            jvmReport()
+        );
+    }
+
+    private List<StageReport> stageReports() {
+        var stages = new ArrayList<StageReport>();
+        for (var stage : IndexerMetrics.Stage.values()) {
+            var timer = indexerMetrics.getRegistry().find(IndexerMetrics.RUN_STAGE_TIMER)
+                .tag(IndexerMetrics.STAGE_TAG, stage.getTag()).timer();
+            if (timer == null || timer.count() == 0) {
+                continue;
+            }
+
+            var percentiles = new HashMap<Double, Double>();
+            for (var percentile : timer.takeSnapshot().percentileValues()) {
+                percentiles.put(percentile.percentile(), percentile.value(TimeUnit.MILLISECONDS));
+            }
+
+            stages.add(new StageReport(
+                stage.getTag(),
+                timer.count(),
+                timer.totalTime(TimeUnit.MILLISECONDS),
+                timer.max(TimeUnit.MILLISECONDS),
+                percentiles.getOrDefault(0.5, 0.0),
+                percentiles.getOrDefault(0.95, 0.0),
+                percentiles.getOrDefault(0.99, 0.0)
+            ));
+        }
+        return stages;
+    }
+
+    private JvmReport jvmReport() {
+        var heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+
+        long heapPeak = 0;
+        for (var pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) {
+                heapPeak += pool.getPeakUsage().getUsed();
+            }
+        }
+
+        var garbageCollectors = new ArrayList<JvmReport.GarbageCollectorReport>();
+        for (var gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            var baseline = gcBaseline.getOrDefault(gc.getName(), new long[]{0, 0});
+            garbageCollectors.add(new JvmReport.GarbageCollectorReport(
+                gc.getName(),
+                Math.max(gc.getCollectionCount() - baseline[0], 0),
+                Math.max(gc.getCollectionTime() - baseline[1], 0)
+            ));
+        }
+
+        return new JvmReport(heap.getUsed(), heap.getCommitted(), heap.getMax(), heapPeak, garbageCollectors);
+    }
+
+    private static double perSecond(long amount, double millis) {
+        if (millis <= 0) {
+            return 0;
+        }
+        return amount * 1000 / millis;
+    }
+
+    /**
+     * Accumulates the meters of a repository and language.
+     */
+    private static class Accumulator {
+        private final Map<String, Double> stageMillis = new TreeMap<>();
+        private final Map<String, Long> studies = new TreeMap<>();
+        private long files;
+        private long bytes;
+        private long bulkRequests;
+        private long bulkBytes;
+        private long bulkRetries;
+        private long transportBytesSent;
+        private long transportBytesReceived;
+
+        void add(Meter meter) {
+            var id = meter.getId();
+            switch (id.getName()) {
+                case IndexerMetrics.STAGE_TIMER -> stageMillis.merge(
+                    id.getTag(IndexerMetrics.STAGE_TAG),
+                    ((Timer) meter).totalTime(TimeUnit.MILLISECONDS),
+                    Double::sum
+                );
+                case IndexerMetrics.STUDIES -> studies.merge(
+                    id.getTag(IndexerMetrics.OUTCOME_TAG),
+                    (long) ((Counter) meter).count(),
+                    Long::sum
+                );
+                case IndexerMetrics.FILE_SIZE -> {
+                    files += ((DistributionSummary) meter).count();
+                    bytes += (long) ((DistributionSummary) meter).totalAmount();
+                }
+                case IndexerMetrics.BULK_SIZE -> {
+                    bulkRequests += ((DistributionSummary) meter).count();
+                    bulkBytes += (long) ((DistributionSummary) meter).totalAmount();
+                }
+                case IndexerMetrics.BULK_RETRIES -> bulkRetries += (long) ((Counter) meter).count();
+                case IndexerMetrics.TRANSPORT_BYTES -> {
+                    if (IndexerMetrics.SENT.equals(id.getTag(IndexerMetrics.DIRECTION_TAG))) {
+                        transportBytesSent += (long) ((Counter) meter).count();
+                    } else {
+                        transportBytesReceived += (long) ((Counter) meter).count();
+                    }
+                }
+                default -> {
+                    // Not included in the report
+                }
+            }
+        }
+
+        double totalStageMillis() {
+            return stageMillis.values().stream().mapToDouble(Double::doubleValue).sum();
+        }
+
+        /**
+         * The amount of studies sent to Elasticsearch, regardless of whether they changed.
+         */
+        long indexedStudies() {
+            return studies.getOrDefault(IndexerMetrics.StudyOutcome.CREATED.getTag(), 0L)
+                + studies.getOrDefault(IndexerMetrics.StudyOutcome.UPDATED.getTag(), 0L)
+                + studies.getOrDefault(IndexerMetrics.StudyOutcome.UNCHANGED.getTag(), 0L);
+        }
+    }
+}
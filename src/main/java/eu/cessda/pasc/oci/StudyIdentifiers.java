@@ -0,0 +1,42 @@
+/*
+ * Copyright © 2017-2023 CESSDA ERIC (support@cessda.eu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.cessda.pasc.oci;
+
+import lombok.experimental.UtilityClass;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Generates the identifiers of studies in the Elasticsearch indices.
+ */
+@UtilityClass
+public class StudyIdentifiers {
+
+    /**
+     * Generate the identifier of a study. The identifier is the same in every language index, so that
+     * a study can be deleted from all indices using only its repository URL and study number.
+     *
+     * @param repositoryUrl the URL of the repository the study was harvested from.
+     * @param studyNumber   the study number.
+     * @return the SHA-256 hash of the repository URL and the study number.
+     */
+    public static String generate(URI repositoryUrl, String studyNumber) {
+        var id = repositoryUrl + "-" + studyNumber;
+        return DigestUtils.sha256Hex(id.getBytes(StandardCharsets.UTF_8));
+    }
+}
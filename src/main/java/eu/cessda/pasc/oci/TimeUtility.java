@@ -20,8 +20,11 @@ import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang.time.DateUtils;
 
 import java.text.ParseException;
+import java.time.Instant;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
 import java.util.Optional;
 
 @Slf4j
@@ -52,4 +55,27 @@ public class TimeUtility {
             throw new DateNotParsedException(dateString, EXPECTED_DATE_FORMATS, e);
         }
     }
+
+    /**
+     * Parses an OAI-PMH datestamp. Datestamps are always in UTC, and are either a date or a date and time.
+     *
+     * @param datestamp the datestamp to parse, can be {@code null}.
+     * @return the {@link Optional} of {@link Instant}, or an {@link Optional#empty()} if the datestamp failed to parse.
+     */
+    public static Optional<Instant> parseDatestamp(String datestamp) {
+        if (datestamp == null || datestamp.isBlank()) {
+            return Optional.empty();
+        }
+        var trimmed = datestamp.trim();
+        try {
+            if (trimmed.length() == 10) {
+                // Day granularity
+                return Optional.of(LocalDate.parse(trimmed).atStartOfDay(ZoneOffset.UTC).toInstant());
+            }
+            return Optional.of(Instant.parse(trimmed));
+        } catch (DateTimeParseException e) {
+            log.trace("{} is not a valid OAI-PMH datestamp: {}", datestamp, e.toString());
+            return Optional.empty();
+        }
+    }
 }
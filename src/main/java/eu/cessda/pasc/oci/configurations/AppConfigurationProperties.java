@@ -17,6 +17,7 @@ package eu.cessda.pasc.oci.configurations;
 
 import eu.cessda.pasc.oci.models.configurations.Harvester;
 import eu.cessda.pasc.oci.models.configurations.Repo;
+import eu.cessda.pasc.oci.parser.XMLParserBackend;
 import lombok.Data;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.boot.context.properties.ConfigurationPropertiesBinding;
@@ -25,8 +26,10 @@ import org.springframework.context.annotation.Configuration;
 import org.springframework.core.convert.converter.Converter;
 import org.springframework.lang.NonNull;
 import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
 
 import java.nio.file.Path;
+import java.time.Duration;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
@@ -46,6 +49,43 @@ public class AppConfigurationProperties {
     private List<String> languages = List.of("cs", "da", "de", "el", "en", "et", "fi", "fr", "hu", "it", "nl", "no", "pt", "sk", "sl", "sr", "sv");
     private OaiPmh oaiPmh = new OaiPmh();
     private Path baseDirectory = null;
+    /**
+     * The directory to write run reports to. Reports are not written if this is not set.
+     */
+    private Path reportDirectory = null;
+    /**
+     * The maximum amount of languages indexed concurrently across all repositories. If not positive,
+     * this is the amount of available processors.
+     */
+    private int indexingConcurrency = 0;
+    /**
+     * The maximum amount of repositories harvested concurrently. If not positive, this is the amount of
+     * available processors.
+     */
+    private int harvestConcurrency = 0;
+    /**
+     * The directory to persist state between runs to, such as the statistics used to schedule repositories.
+     * State is not persisted if this is not set.
+     */
+    private Path stateDirectory = null;
+    /**
+     * Compare harvested studies with the index and report the differences, without changing the index.
+     */
+    private boolean dryRun = false;
+    /**
+     * Delete the studies of repositories that are in the index but no longer configured or discovered.
+     * This is only done after a harvest of every repository where every repository could be discovered.
+     */
+    private boolean deleteWithdrawnRepositories = false;
+    /**
+     * The XML parser used to build documents from the source files.
+     */
+    private XMLParserBackend xmlParser = XMLParserBackend.SAX;
+    private Prefetch prefetch = new Prefetch();
+    private Discovery discovery = new Discovery();
+    private ParseCache parseCache = new ParseCache();
+    private Daemon daemon = new Daemon();
+    private Incremental incremental = new Incremental();
 
     @Component
     @ConfigurationPropertiesBinding
@@ -67,6 +107,97 @@ public class AppConfigurationProperties {
         private List<Repo> repos = Collections.emptyList();
     }
 
+    /**
+     * Parse cache configuration model
+     */
+    @Data
+    public static class ParseCache {
+        /**
+         * Whether to reuse the mapped records of files with identical content, such as files mirrored by
+         * several repositories.
+         */
+        private boolean enabled = false;
+        /**
+         * The maximum amount of files whose mapped records are cached.
+         */
+        private int maxEntries = 10_000;
+    }
+
+    /**
+     * Repository discovery configuration model
+     */
+    @Data
+    public static class Discovery {
+        /**
+         * The amount of directories listed concurrently when searching for repositories.
+         */
+        private int concurrency = 8;
+        /**
+         * Whether to skip listing directories that have not been modified since they were last listed.
+         */
+        private boolean cache = true;
+    }
+
+    /**
+     * Daemon mode configuration model
+     */
+    @Data
+    public static class Daemon {
+        /**
+         * Whether to keep running after the initial harvest, indexing changed files as they are detected.
+         */
+        private boolean enabled = false;
+        /**
+         * How long to wait for changes to stop before indexing them.
+         */
+        private Duration debounce = Duration.ofSeconds(2);
+        /**
+         * How long changes can be delayed by further changes before they are indexed.
+         */
+        private Duration maxDelay = Duration.ofSeconds(30);
+        /**
+         * How often to run a full harvest to reconcile the index with the repositories.
+         */
+        private Duration reconciliationInterval = Duration.ofHours(6);
+    }
+
+    /**
+     * File prefetching configuration model
+     */
+    @Data
+    public static class Prefetch {
+        /**
+         * The maximum amount of files of each repository read ahead of the parser. Prefetching is disabled if not positive.
+         */
+        private int files = 16;
+        /**
+         * The maximum amount of bytes of each repository read ahead of the parser. A file larger than this is
+         * still read once no other files are held.
+         */
+        private DataSize bytes = DataSize.ofMegabytes(128);
+        /**
+         * Files of at least this size are memory-mapped, smaller files are read into pooled direct buffers of this size.
+         */
+        private DataSize mapThreshold = DataSize.ofMegabytes(1);
+    }
+
+    /**
+     * Incremental harvesting configuration model
+     */
+    @Data
+    public static class Incremental {
+        /**
+         * Whether to skip records whose OAI-PMH datestamp is older than the most recent datestamp indexed
+         * from the repository.
+         */
+        private boolean enabled = false;
+        /**
+         * How long before the most recent datestamp records are still parsed. This allows for records that
+         * were added to the repository with an earlier datestamp after the previous harvest.
+         */
+        private Duration overlap = Duration.ofDays(1);
+    }
+
     /**
      * OaiPmh configuration model
      *
@@ -20,6 +20,11 @@ import lombok.Setter;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * Loads Configurations from application*.yml specifically for elasticsearch
@@ -34,6 +39,72 @@ import org.springframework.context.annotation.Configuration;
 public class ESConfigurationProperties {
     private String host;
     private String port;
+
+    /**
+     * The URLs of the Elasticsearch nodes to connect to, i.e. {@code http://es1:9200}. If set, this overrides the
+     * host and port. Requests are load balanced across all nodes.
+     */
+    private List<String> hosts = Collections.emptyList();
+    /**
+     * Whether to discover the nodes of the cluster from the configured hosts.
+     */
+    private boolean sniff = false;
+    /**
+     * How often to discover the nodes of the cluster.
+     */
+    private Duration sniffInterval = Duration.ofMinutes(5);
+    /**
+     * How long to wait before discovering the nodes of the cluster again after a node fails.
+     */
+    private Duration sniffAfterFailureDelay = Duration.ofMinutes(1);
+    /**
+     * Whether to gzip request bodies and accept gzip compressed responses.
+     */
+    private boolean compression = true;
+    /**
+     * The maximum amount of connections to each node. If not positive, this is sized so that every
+     * repository harvested in parallel can have a bulk request in flight without waiting for a connection.
+     */
+    private int maxConnectionsPerRoute = 0;
+    /**
+     * The maximum amount of connections across all nodes, including nodes discovered by sniffing. This is raised
+     * to the connections per node if it is lower.
+     */
+    private int maxConnectionsTotal = 100;
+    /**
+     * How long idle connections are kept alive, unless Elasticsearch requests a shorter period.
+     */
+    private Duration keepAlive = Duration.ofMinutes(1);
+    /**
+     * How long to wait for a connection to a node to be established.
+     */
+    private Duration connectTimeout = Duration.ofSeconds(1);
+    /**
+     * How long to wait for data from a node. Large bulk requests may take longer than the client default of 30 seconds.
+     */
+    private Duration socketTimeout = Duration.ofSeconds(60);
+    /**
+     * The maximum amount of bulk requests in flight across all repositories. If not positive, this is the amount
+     * of available processors. The limit is lowered automatically while Elasticsearch rejects requests.
+     */
+    private int bulkMaxInFlightRequests = 0;
+    /**
+     * The maximum size of the bulk requests in flight across all repositories.
+     */
+    private DataSize bulkMaxInFlightBytes = DataSize.ofMegabytes(64);
     private int numberOfShards = 1;
     private int numberOfReplicas = 1;
+
+    /**
+     * The amount of documents retrieved in each request when reading studies from an index.
+     */
+    private int scanPageSize = 1000;
+    /**
+     * How long Elasticsearch keeps the point in time used to read an index alive between requests.
+     */
+    private Duration scanKeepAlive = Duration.ofMinutes(5);
+    /**
+     * The amount of slices read in parallel when reading studies from an index.
+     */
+    private int scanSlices = 1;
 }
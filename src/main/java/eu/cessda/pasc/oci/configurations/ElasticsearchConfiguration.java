@@ -19,19 +19,33 @@ import co.elastic.clients.elasticsearch.ElasticsearchClient;
 import co.elastic.clients.json.jackson.JacksonJsonpMapper;
 import co.elastic.clients.transport.rest_client.RestClientTransport;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import eu.cessda.pasc.oci.IndexerMetrics;
 import jakarta.annotation.PreDestroy;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.http.HttpConnection;
 import org.apache.http.HttpHost;
+import org.apache.http.HttpResponseInterceptor;
 import org.apache.http.auth.AuthScope;
 import org.apache.http.auth.UsernamePasswordCredentials;
 import org.apache.http.impl.client.BasicCredentialsProvider;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpCoreContext;
+import org.elasticsearch.client.Node;
+import org.elasticsearch.client.NodeSelector;
 import org.elasticsearch.client.RestClient;
+import org.elasticsearch.client.sniff.ElasticsearchNodesSniffer;
+import org.elasticsearch.client.sniff.SniffOnFailureListener;
+import org.elasticsearch.client.sniff.Sniffer;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
 import java.io.IOException;
 
+import static net.logstash.logback.argument.StructuredArguments.value;
+
 /**
  * Extra Util configuration
  *
@@ -41,45 +55,130 @@ import java.io.IOException;
 @Slf4j
 public class ElasticsearchConfiguration implements AutoCloseable   {
 
+    /**
+     * The default maximum amount of connections per node used by the low level REST client.
+     */
+    private static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 10;
+
     private final String esHost;
     private final int esHttpPort;
     private final String esUsername;
     private final String esPassword;
     private final ObjectMapper objectMapper;
+    private final ESConfigurationProperties esConfig;
+    private final IndexerMetrics indexerMetrics;
 
     private ElasticsearchClient elasticsearchClient;
+    private Sniffer sniffer;
 
+    @Autowired
     public ElasticsearchConfiguration(
         @Value("${elasticsearch.host:localhost}") String esHost,
         @Value("${elasticsearch.httpPort:9200}") int esHttpPort,
         @Value("${elasticsearch.username:#{null}}") String esUsername,
         @Value("${elasticsearch.password:#{null}}") String esPassword,
-        ObjectMapper objectMapper
+        ObjectMapper objectMapper,
+        ESConfigurationProperties esConfig,
+        IndexerMetrics indexerMetrics
     ) {
         this.esHost = esHost;
         this.esHttpPort = esHttpPort;
         this.esUsername = esUsername;
         this.esPassword = esPassword;
         this.objectMapper = objectMapper;
+        this.esConfig = esConfig;
+        this.indexerMetrics = indexerMetrics;
     }
 
     @Bean
     public ElasticsearchClient elasticsearchClient() {
         if (elasticsearchClient == null) {
 
-            var esHosts = new HttpHost(esHost, esHttpPort, "http");
-            final var restClientBuilder = RestClient.builder(esHosts);
+            var esHosts = getHttpHosts();
+            final var restClientBuilder = RestClient.builder(esHosts)
+                // Coordinate requests on data nodes, not dedicated master nodes
+                .setNodeSelector(NodeSelector.SKIP_DEDICATED_MASTERS);
+
+            // Failed nodes are excluded by the client and retried once their back-off period elapses
+            final SniffOnFailureListener sniffOnFailureListener;
+            if (esConfig.isSniff()) {
+                sniffOnFailureListener = new SniffOnFailureListener() {
+                    @Override
+                    public void onFailure(Node node) {
+                        logNodeFailure(node);
+                        super.onFailure(node);
+                    }
+                };
+                restClientBuilder.setFailureListener(sniffOnFailureListener);
+            } else {
+                sniffOnFailureListener = null;
+                restClientBuilder.setFailureListener(new RestClient.FailureListener() {
+                    @Override
+                    public void onFailure(Node node) {
+                        logNodeFailure(node);
+                    }
+                });
+            }
 
+            // Size the connection pool so that concurrent bulk requests are not queued waiting for a connection
+            var maxConnectionsPerRoute = getMaxConnectionsPerRoute();
+            var maxConnectionsTotal = getMaxConnectionsTotal();
+            log.info("Elasticsearch transport: {} connections per node, {} in total, compression {}",
+                value("es_max_connections_per_route", maxConnectionsPerRoute),
+                value("es_max_connections_total", maxConnectionsTotal),
+                value("es_compression", esConfig.isCompression())
+            );
+
+            final BasicCredentialsProvider credentialsProvider;
             if (esUsername != null && esPassword != null) {
                 // Set HTTP credentials
-                var credentialsProvider = new BasicCredentialsProvider();
+                credentialsProvider = new BasicCredentialsProvider();
                 credentialsProvider.setCredentials(AuthScope.ANY, new UsernamePasswordCredentials(esUsername, esPassword));
-                restClientBuilder.setHttpClientConfigCallback(httpClientBuilder ->
-                    httpClientBuilder.setDefaultCredentialsProvider(credentialsProvider)
-                );
+            } else {
+                credentialsProvider = null;
             }
 
+            restClientBuilder.setHttpClientConfigCallback(httpClientBuilder -> {
+                httpClientBuilder
+                    .setMaxConnPerRoute(maxConnectionsPerRoute)
+                    .setMaxConnTotal(maxConnectionsTotal)
+                    .setKeepAliveStrategy((response, context) -> {
+                        // Honour a shorter keep alive requested by Elasticsearch
+                        var keepAlive = esConfig.getKeepAlive().toMillis();
+                        var serverKeepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+                        return serverKeepAlive > 0 ? Math.min(serverKeepAlive, keepAlive) : keepAlive;
+                    })
+                    // Count the bytes transferred over each connection, as seen on the wire after compression
+                    .addInterceptorLast((HttpResponseInterceptor) (response, context) -> recordTransfer(context));
+                if (credentialsProvider != null) {
+                    httpClientBuilder.setDefaultCredentialsProvider(credentialsProvider);
+                }
+                return httpClientBuilder;
+            });
+
+            restClientBuilder.setRequestConfigCallback(requestConfigBuilder -> requestConfigBuilder
+                .setConnectTimeout((int) esConfig.getConnectTimeout().toMillis())
+                .setSocketTimeout((int) esConfig.getSocketTimeout().toMillis())
+            );
+
+            // Bulk bodies are highly compressible JSON
+            restClientBuilder.setCompressionEnabled(esConfig.isCompression());
+
             var restClient = restClientBuilder.build();
+
+            if (sniffOnFailureListener != null) {
+                // Discover the other nodes of the cluster using the scheme of the configured hosts
+                var scheme = "https".equals(esHosts[0].getSchemeName())
+                    ? ElasticsearchNodesSniffer.Scheme.HTTPS
+                    : ElasticsearchNodesSniffer.Scheme.HTTP;
+                sniffer = Sniffer.builder(restClient)
+                    .setNodesSniffer(new ElasticsearchNodesSniffer(restClient, ElasticsearchNodesSniffer.DEFAULT_SNIFF_REQUEST_TIMEOUT, scheme))
+                    .setSniffIntervalMillis((int) esConfig.getSniffInterval().toMillis())
+                    .setSniffAfterFailureDelayMillis((int) esConfig.getSniffAfterFailureDelay().toMillis())
+                    .build();
+                sniffOnFailureListener.setSniffer(sniffer);
+            }
+
             var transport = new RestClientTransport(restClient , new JacksonJsonpMapper(objectMapper));
 
             elasticsearchClient = new ElasticsearchClient(transport);
@@ -87,9 +186,63 @@ public class ElasticsearchConfiguration implements AutoCloseable   {
         return elasticsearchClient;
     }
 
+    /**
+     * Get the hosts to connect to. If no hosts are configured, the host and port are used.
+     */
+    HttpHost[] getHttpHosts() {
+        if (esConfig.getHosts().isEmpty()) {
+            return new HttpHost[]{new HttpHost(esHost, esHttpPort, "http")};
+        }
+        return esConfig.getHosts().stream().map(HttpHost::create).toArray(HttpHost[]::new);
+    }
+
+    /**
+     * Get the maximum amount of connections to each node. If not configured, allow every thread that can harvest
+     * a repository in parallel to have a request in flight, with headroom for searches made at the same time.
+     */
+    int getMaxConnectionsPerRoute() {
+        if (esConfig.getMaxConnectionsPerRoute() > 0) {
+            return esConfig.getMaxConnectionsPerRoute();
+        }
+        return Math.max(DEFAULT_MAX_CONNECTIONS_PER_ROUTE, Runtime.getRuntime().availableProcessors() * 2);
+    }
+
+    /**
+     * Get the maximum amount of connections across all nodes. This is not derived from the configured hosts, as
+     * sniffing can add nodes that also need connections.
+     */
+    int getMaxConnectionsTotal() {
+        return Math.max(esConfig.getMaxConnectionsTotal(), getMaxConnectionsPerRoute());
+    }
+
+    /**
+     * Record the bytes transferred over the connection of the given context since the last time it was recorded.
+     * <p>
+     * This is called when the head of a response is received, as the connection is only bound to the context once the
+     * request is sent. The connection metrics are reset after being read, so each byte is only counted once. The
+     * response body is read after this point, so it is counted when the connection is next used.
+     */
+    private void recordTransfer(HttpContext context) {
+        if (context.getAttribute(HttpCoreContext.HTTP_CONNECTION) instanceof HttpConnection connection) {
+            var metrics = connection.getMetrics();
+            if (metrics != null) {
+                indexerMetrics.recordTransfer(metrics.getSentBytesCount(), metrics.getReceivedBytesCount());
+                metrics.reset();
+            }
+        }
+    }
+
+    private static void logNodeFailure(Node node) {
+        log.warn("Elasticsearch node [{}] failed, it will be retried later", node.getHost());
+    }
+
     @Override
     @PreDestroy
     public void close() {
+        if (sniffer != null) {
+            sniffer.close();
+            sniffer = null;
+        }
         if (elasticsearchClient != null) {
             try {
                 elasticsearchClient._transport().close();
@@ -0,0 +1,211 @@
+/*
+ * Copyright © 2017-2023 CESSDA ERIC (support@cessda.eu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.cessda.pasc.oci.elasticsearch;
+
+import eu.cessda.pasc.oci.configurations.ESConfigurationProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static net.logstash.logback.argument.StructuredArguments.value;
+
+/**
+ * Limits the bulk requests sent to Elasticsearch by all repositories at the same time.
+ * <p>
+ * Requests are admitted while both the amount of requests and the amount of bytes in flight are below their limits.
+ * The request limit adapts to the cluster: it is halved whenever Elasticsearch rejects a request and grows by
+ * one request per round of successful requests, up to the configured maximum. When more than one repository is
+ * waiting, each repository is limited to an equal share of the requests in flight so that one repository cannot
+ * starve the others.
+ */
+@Component
+@Slf4j
+public class BulkAdmissionController {
+
+    private final int maxRequests;
+    private final long maxBytes;
+
+    // Guarded by this
+    private double requestLimit;
+    private int requestsInFlight;
+    private long bytesInFlight;
+    private final Map<String, RepositoryShare> repositories = new HashMap<>();
+
+    @Autowired
+    public BulkAdmissionController(ESConfigurationProperties esConfig) {
+        this(
+            esConfig.getBulkMaxInFlightRequests() > 0
+                ? esConfig.getBulkMaxInFlightRequests()
+                : Runtime.getRuntime().availableProcessors(),
+            esConfig.getBulkMaxInFlightBytes().toBytes()
+        );
+    }
+
+    /**
+     * Constructs a {@link BulkAdmissionController} with the given limits.
+     *
+     * @param maxRequests the maximum amount of bulk requests in flight.
+     * @param maxBytes    the maximum amount of bytes in flight.
+     * @throws IllegalArgumentException if either limit is not positive.
+     */
+    BulkAdmissionController(int maxRequests, long maxBytes) {
+        if (maxRequests <= 0 || maxBytes <= 0) {
+            throw new IllegalArgumentException("Limits must be positive");
+        }
+        this.maxRequests = maxRequests;
+        this.maxBytes = maxBytes;
+        this.requestLimit = maxRequests;
+    }
+
+    /**
+     * Wait until a bulk request can be sent. The returned permit must be closed once the request completes.
+     * <p>
+     * A request larger than the byte limit is admitted once no other requests are in flight.
+     *
+     * @param repository the repository the request is sent on behalf of.
+     * @param bytes      the size of the request.
+     * @return the permit to send the request.
+     * @throws InterruptedException if the thread is interrupted while waiting.
+     */
+    public synchronized Permit acquire(String repository, long bytes) throws InterruptedException {
+        var share = repositories.computeIfAbsent(repository, k -> new RepositoryShare());
+        share.waiting++;
+        try {
+            while (!canAdmit(share, bytes)) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            share.waiting--;
+            removeIfIdle(repository, share);
+            throw e;
+        }
+
+        share.waiting--;
+        share.inFlight++;
+        requestsInFlight++;
+        bytesInFlight += bytes;
+        return new Permit(repository, bytes);
+    }
+
+    private boolean canAdmit(RepositoryShare share, long bytes) {
+        var limit = getRequestLimit();
+        if (requestsInFlight >= limit) {
+            return false;
+        }
+        if (requestsInFlight > 0 && bytesInFlight + bytes > maxBytes) {
+            return false;
+        }
+        // Every repository with requests waiting or in flight gets an equal share
+        var fairShare = Math.max(1, limit / repositories.size());
+        return share.inFlight < fairShare;
+    }
+
+    private synchronized void release(String repository, long bytes) {
+        requestsInFlight--;
+        bytesInFlight -= bytes;
+        var share = repositories.get(repository);
+        if (share != null) {
+            share.inFlight--;
+            removeIfIdle(repository, share);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Stop tracking a repository with no requests waiting or in flight, increasing the share of the other repositories.
+     */
+    private void removeIfIdle(String repository, RepositoryShare share) {
+        if (share.waiting == 0 && share.inFlight == 0) {
+            repositories.remove(repository);
+            notifyAll();
+        }
+    }
+
+    /**
+     * Record that Elasticsearch rejected a request because its queues were full. The request limit is halved.
+     */
+    public synchronized void onRejected() {
+        var previousLimit = getRequestLimit();
+        requestLimit = Math.max(1, requestLimit / 2);
+        log.info("Elasticsearch rejected a bulk request, limiting concurrent bulk requests from {} to {}",
+            previousLimit,
+            value("bulk_request_limit", getRequestLimit())
+        );
+    }
+
+    /**
+     * Record that a request completed without rejections. The request limit grows by one request for each
+     * limit's worth of successful requests.
+     */
+    public synchronized void onSuccess() {
+        if (requestLimit < maxRequests) {
+            var previousLimit = getRequestLimit();
+            requestLimit = Math.min(maxRequests, requestLimit + 1 / requestLimit);
+            if (getRequestLimit() > previousLimit) {
+                log.debug("Increasing concurrent bulk requests to {}", value("bulk_request_limit", getRequestLimit()));
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Get the current maximum amount of bulk requests in flight.
+     */
+    public synchronized int getRequestLimit() {
+        return (int) requestLimit;
+    }
+
+    public synchronized int getRequestsInFlight() {
+        return requestsInFlight;
+    }
+
+    public synchronized long getBytesInFlight() {
+        return bytesInFlight;
+    }
+
+    /**
+     * The requests of a repository waiting for admission and in flight.
+     */
+    private static class RepositoryShare {
+        private int waiting;
+        private int inFlight;
+    }
+
+    /**
+     * Permission to send a bulk request. Closing the permit allows the next request to be sent.
+     */
+    public final class Permit implements AutoCloseable {
+        private final String repository;
+        private final long bytes;
+        private boolean closed;
+
+        private Permit(String repository, long bytes) {
+            this.repository = repository;
+            this.bytes = bytes;
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                release(repository, bytes);
+            }
+        }
+    }
+}
@@ -16,16 +16,29 @@
 package eu.cessda.pasc.oci.elasticsearch;
 
 import co.elastic.clients.elasticsearch.ElasticsearchClient;
+import co.elastic.clients.elasticsearch._types.Conflicts;
 import co.elastic.clients.elasticsearch._types.ElasticsearchException;
 import co.elastic.clients.elasticsearch._types.ErrorCause;
 import co.elastic.clients.elasticsearch._types.FieldSort;
+import co.elastic.clients.elasticsearch._types.FieldValue;
+import co.elastic.clients.elasticsearch._types.SlicesCalculation;
 import co.elastic.clients.elasticsearch._types.SortOptions;
+import co.elastic.clients.elasticsearch._types.aggregations.CompositeAggregation;
+import co.elastic.clients.elasticsearch._types.aggregations.CompositeAggregationSource;
 import co.elastic.clients.elasticsearch._types.mapping.TypeMapping;
+import co.elastic.clients.elasticsearch._types.query_dsl.BoolQuery;
+import co.elastic.clients.elasticsearch._types.query_dsl.IdsQuery;
 import co.elastic.clients.elasticsearch._types.query_dsl.MatchAllQuery;
 import co.elastic.clients.elasticsearch._types.query_dsl.Query;
 import co.elastic.clients.elasticsearch._types.query_dsl.TermQuery;
 import co.elastic.clients.elasticsearch.core.BulkRequest;
+import co.elastic.clients.elasticsearch.core.BulkResponse;
 import co.elastic.clients.elasticsearch.core.CountRequest;
+import co.elastic.clients.elasticsearch.core.DeleteByQueryRequest;
+import co.elastic.clients.elasticsearch.core.DeleteRequest;
+import co.elastic.clients.elasticsearch.core.GetRequest;
+import co.elastic.clients.elasticsearch.core.IndexRequest;
+import co.elastic.clients.elasticsearch.core.MgetRequest;
 import co.elastic.clients.elasticsearch.core.SearchRequest;
 import co.elastic.clients.elasticsearch.core.SearchResponse;
 import co.elastic.clients.elasticsearch.core.bulk.BulkOperation;
@@ -33,23 +46,38 @@ import co.elastic.clients.elasticsearch.core.bulk.BulkResponseItem;
 import co.elastic.clients.elasticsearch.core.bulk.DeleteOperation;
 import co.elastic.clients.elasticsearch.core.bulk.IndexOperation;
 import co.elastic.clients.elasticsearch.indices.*;
+import co.elastic.clients.elasticsearch.tasks.GetTasksRequest;
+import co.elastic.clients.json.jackson.JacksonJsonpMapper;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.util.RawValue;
 import eu.cessda.pasc.oci.DateNotParsedException;
+import eu.cessda.pasc.oci.IndexerMetrics;
+import eu.cessda.pasc.oci.LoggingConstants;
 import eu.cessda.pasc.oci.ResourceHandler;
 import eu.cessda.pasc.oci.TimeUtility;
 import eu.cessda.pasc.oci.configurations.ESConfigurationProperties;
+import eu.cessda.pasc.oci.models.RepositoryState;
 import eu.cessda.pasc.oci.models.cmmstudy.CMMStudyOfLanguage;
+import eu.cessda.pasc.oci.service.HarvestProgress;
+import eu.cessda.pasc.oci.service.RepositoryProgress;
 import lombok.extern.slf4j.Slf4j;
+import org.slf4j.MDC;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
 import java.time.LocalDateTime;
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Objects;
-import java.util.Optional;
+import java.time.format.DateTimeParseException;
+import java.util.*;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 /**
  * Service responsible for triggering harvesting and Metadata ingestion to the search engine
@@ -63,20 +91,87 @@ public class ESIngestService implements IngestService {
     private static final String LAST_MODIFIED_FIELD = "lastModified";
     private static final String INDEX_TYPE = "cmmstudy";
     private static final String MAPPINGS_JSON = "elasticsearch/mappings/mappings_" + INDEX_TYPE + ".json";
-    private static final String INDEX_NAME_TEMPLATE = INDEX_TYPE + "_%s";
+    private static final String INDEX_NAME_PREFIX = INDEX_TYPE + "_";
+    private static final String INDEX_NAME_TEMPLATE = INDEX_NAME_PREFIX + "%s";
+    /**
+     * The index holding the harvest state of each repository. This must not match the study index pattern.
+     */
+    private static final String HARVEST_STATE_INDEX = "harvest_state";
+
+    /**
+     * The amount of IDs to retrieve in each page
+     */
+    private static final int ID_PAGE_SIZE = 10000;
+    /**
+     * The amount of studies to retrieve in each multi-get request.
+     */
+    private static final int MGET_BATCH_SIZE = 1000;
+    /**
+     * The maximum amount of IDs in each clause of a query. This is kept well below the default
+     * {@code index.max_terms_count} of 65536, so that no clause grows with the size of a repository.
+     */
+    private static final int MAX_IDS_PER_CLAUSE = 10000;
+    /**
+     * The amount of repository codes to retrieve in each page of the composite aggregation.
+     */
+    private static final int REPOSITORY_PAGE_SIZE = 1000;
+    private static final String CODE_FIELD = "code";
+
+    /**
+     * How often to check the progress of asynchronous tasks
+     */
+    private static final Duration TASK_POLL_INTERVAL = Duration.ofSeconds(1);
 
     /**
      * The amount of studies to BulkIndex at once
      */
     private static final int INDEX_COMMIT_SIZE = 500;
 
+    /**
+     * The status Elasticsearch responds with when its queues are full
+     */
+    private static final int TOO_MANY_REQUESTS = 429;
+
+    /**
+     * How many times operations rejected by Elasticsearch are retried, and the initial delay between attempts
+     */
+    private static final int MAX_REJECTION_RETRIES = 5;
+    private static final Duration REJECTION_BACKOFF = Duration.ofMillis(500);
+
+    /**
+     * The estimated size of the metadata of a delete operation in a bulk request, excluding the index and ID
+     */
+    private static final int DELETE_OPERATION_OVERHEAD = 32;
+
     private final ElasticsearchClient esClient;
     private final ESConfigurationProperties esConfig;
+    private final IndexerMetrics indexerMetrics;
+    private final HarvestProgress harvestProgress;
+    private final BulkAdmissionController admissionController;
+    private final ObjectWriter studyWriter;
 
     @Autowired
-    public ESIngestService(ElasticsearchClient esClient, ESConfigurationProperties esConfig) {
+    public ESIngestService(
+        ElasticsearchClient esClient,
+        ESConfigurationProperties esConfig,
+        IndexerMetrics indexerMetrics,
+        HarvestProgress harvestProgress,
+        BulkAdmissionController admissionController
+    ) {
         this.esClient = esClient;
         this.esConfig = esConfig;
+        this.indexerMetrics = indexerMetrics;
+        this.harvestProgress = harvestProgress;
+        this.admissionController = admissionController;
+
+        // Use the same ObjectMapper as the Elasticsearch client so that documents are serialized consistently
+        ObjectMapper objectMapper;
+        if (esClient._transport().jsonpMapper() instanceof JacksonJsonpMapper jacksonJsonpMapper) {
+            objectMapper = jacksonJsonpMapper.objectMapper();
+        } else {
+            objectMapper = new ObjectMapper();
+        }
+        this.studyWriter = objectMapper.writerFor(CMMStudyOfLanguage.class);
     }
 
     @Override
@@ -87,40 +182,83 @@ public class ESIngestService implements IngestService {
     
         log.debug("[{}] Indexing {} studies", indexName, languageCMMStudiesMap.size());
 
-        var operationList = new ArrayList<BulkOperation>();
+        var batch = new ArrayList<CMMStudyOfLanguage>(INDEX_COMMIT_SIZE);
 
         for (var study : languageCMMStudiesMap) {
-            var indexRequest = new IndexOperation.Builder<CMMStudyOfLanguage>()
-                .index(indexName)
-                .id(study.getId())
-                .document(study)
-                .build();
-
-            operationList.add(new BulkOperation(indexRequest));
+            batch.add(study);
 
-            if (operationList.size() == INDEX_COMMIT_SIZE) {
+            if (batch.size() == INDEX_COMMIT_SIZE) {
                 log.trace("[{}] Bulk Indexing {} studies", indexName, INDEX_COMMIT_SIZE);
-                var bulkRequest = new BulkRequest.Builder().operations(operationList).build();
-                indexBulkRequest(indexName, bulkRequest);
+                indexBulkRequest(indexName, buildIndexRequest(indexName, batch));
 
                 // Clear the bulk request
-                operationList.clear();
+                batch.clear();
             }
         }
 
         // Commit all remaining studies
-        if (!operationList.isEmpty()) {
-            log.trace("[{}] Bulk Indexing {} studies", indexName, operationList.size());
-            var bulkRequest = new BulkRequest.Builder().operations(operationList).build();
-            indexBulkRequest(indexName, bulkRequest);
+        if (!batch.isEmpty()) {
+            log.trace("[{}] Bulk Indexing {} studies", indexName, batch.size());
+            indexBulkRequest(indexName, buildIndexRequest(indexName, batch));
         }
 
         log.debug("[{}] Indexing completed.", indexName);
     }
 
-    private void indexBulkRequest(String indexName, BulkRequest request) throws IndexingException {
+    /**
+     * Serialize the given studies and build a bulk request that indexes them into the given index.
+     * <p>
+     * Studies are serialized up front so that the time spent serializing and the size of the request can be measured.
+     *
+     * @param indexName the index to index the studies into.
+     * @param studies the studies to index.
+     * @throws IndexingException if a study could not be serialized.
+     */
+    private SizedBulkRequest buildIndexRequest(String indexName, Collection<CMMStudyOfLanguage> studies) throws IndexingException {
+        var operationList = new ArrayList<BulkOperation>(studies.size());
+        long requestSize = 0;
+
+        var sample = indexerMetrics.startTimer();
+        try {
+            for (var study : studies) {
+                var document = studyWriter.writeValueAsBytes(study);
+                requestSize += document.length;
+
+                var indexRequest = new IndexOperation.Builder<RawValue>()
+                    .index(indexName)
+                    .id(study.getId())
+                    .document(new RawValue(new String(document, StandardCharsets.UTF_8)))
+                    .build();
+
+                operationList.add(new BulkOperation(indexRequest));
+            }
+        } catch (JsonProcessingException e) {
+            throw new IndexingException(e);
+        } finally {
+            indexerMetrics.stopTimer(sample, IndexerMetrics.Stage.BULK_SERIALIZATION);
+        }
+
+        indexerMetrics.recordBulkRequest(requestSize);
+        return new SizedBulkRequest(new BulkRequest.Builder().operations(operationList).build(), requestSize);
+    }
+
+    /**
+     * Build a bulk request that deletes the given IDs from the given index.
+     */
+    private SizedBulkRequest buildDeleteRequest(String indexName, Collection<String> ids) {
+        var operationList = new ArrayList<BulkOperation>(ids.size());
+        long requestSize = 0;
+        for (var id : ids) {
+            operationList.add(new BulkOperation(new DeleteOperation.Builder().index(indexName).id(id).build()));
+            requestSize += DELETE_OPERATION_OVERHEAD + indexName.length() + id.length();
+        }
+        return new SizedBulkRequest(new BulkRequest.Builder().operations(operationList).build(), requestSize);
+    }
+
+    private void indexBulkRequest(String indexName, SizedBulkRequest sizedRequest) throws IndexingException {
+        var request = sizedRequest.request();
         try {
-            var response = esClient.bulk(request);
+            var response = executeBulkRequest(request, sizedRequest.bytes());
             if (response.errors()) {
                 for (var item : response.items()) {
                     if (item.error() != null && "strict_dynamic_mapping_exception".equals(item.error().type())) {
@@ -133,7 +271,8 @@ public class ESIngestService implements IngestService {
                         esClient.indices().putMapping(updateMappingRequest);
 
                         // Retry indexing with updated mappings.
-                        response = esClient.bulk(request);
+                        indexerMetrics.recordBulkRetry();
+                        response = executeBulkRequest(request, sizedRequest.bytes());
                         break;
                     }
                 }
@@ -151,22 +290,271 @@ public class ESIngestService implements IngestService {
         }
     }
 
+    /**
+     * Send a bulk request once admitted by the {@link BulkAdmissionController}.
+     * <p>
+     * If Elasticsearch rejects the request or any of its operations because its queues are full, the rejected
+     * operations are retried with an exponential back-off. The returned response contains the final result of
+     * each operation, in the order of the operations in the request.
+     *
+     * @param request     the bulk request.
+     * @param requestSize the size of the request in bytes.
+     * @throws InterruptedIOException if the thread is interrupted while waiting to send the request.
+     */
+    private BulkResponse executeBulkRequest(BulkRequest request, long requestSize) throws IOException {
+        var repository = Objects.requireNonNullElse(MDC.get(LoggingConstants.REPO_NAME), "none");
+        var operations = request.operations();
+        var items = new BulkResponseItem[operations.size()];
+        var pending = IntStream.range(0, operations.size()).boxed().toList();
+        long took = 0;
+
+        for (int attempt = 0; ; attempt++) {
+            var attemptRequest = pending.size() == operations.size()
+                ? request
+                : new BulkRequest.Builder().operations(pending.stream().map(operations::get).toList()).build();
+            var attemptSize = requestSize * pending.size() / Math.max(operations.size(), 1);
+
+            BulkResponse response;
+            try {
+                response = sendBulkRequest(repository, attemptRequest, attemptSize);
+            } catch (ElasticsearchException e) {
+                if (e.status() != TOO_MANY_REQUESTS || attempt == MAX_REJECTION_RETRIES) {
+                    throw e;
+                }
+                // The entire request was rejected
+                admissionController.onRejected();
+                indexerMetrics.recordBulkRetry();
+                backOff(attempt);
+                continue;
+            }
+
+            took += response.took();
+            var rejected = new ArrayList<Integer>();
+            for (int i = 0; i < response.items().size(); i++) {
+                var item = response.items().get(i);
+                var position = pending.get(i);
+                items[position] = item;
+                if (item.status() == TOO_MANY_REQUESTS) {
+                    rejected.add(position);
+                }
+            }
+
+            if (rejected.isEmpty()) {
+                admissionController.onSuccess();
+                if (attempt == 0) {
+                    return response;
+                }
+                break;
+            }
+
+            admissionController.onRejected();
+            if (attempt == MAX_REJECTION_RETRIES) {
+                break;
+            }
+
+            log.debug("[{}] {} operations rejected by Elasticsearch, retrying", repository, rejected.size());
+            indexerMetrics.recordBulkRetry();
+            backOff(attempt);
+            pending = rejected;
+        }
+
+        var itemList = Arrays.asList(items);
+        var totalTook = took;
+        return BulkResponse.of(b -> b
+            .items(itemList)
+            .errors(itemList.stream().anyMatch(item -> item.error() != null))
+            .took(totalTook)
+        );
+    }
+
+    @SuppressWarnings("try")
+    private BulkResponse sendBulkRequest(String repository, BulkRequest request, long requestSize) throws IOException {
+        try (var permit = admissionController.acquire(repository, requestSize)) {
+            var progress = harvestProgress.getCurrentRepository();
+            progress.ifPresent(RepositoryProgress::bulkRequestStarted);
+
+            long acknowledged = 0;
+            var sample = indexerMetrics.startTimer();
+            try {
+                var response = esClient.bulk(request);
+                acknowledged = response.items().stream().filter(item -> item.error() == null).count();
+                return response;
+            } finally {
+                indexerMetrics.stopTimer(sample, IndexerMetrics.Stage.BULK_REQUEST);
+                final var finalAcknowledged = acknowledged;
+                progress.ifPresent(p -> p.bulkRequestFinished(finalAcknowledged));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting to send a bulk request");
+        }
+    }
+
+    /**
+     * Wait before retrying rejected operations, doubling the delay with each attempt.
+     */
+    private static void backOff(int attempt) throws InterruptedIOException {
+        try {
+            Thread.sleep(REJECTION_BACKOFF.toMillis() << attempt);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting to retry a bulk request");
+        }
+    }
+
     @Override
     public void bulkDelete(Collection<CMMStudyOfLanguage> cmmStudiesToDelete, String languageIsoCode) throws IndexingException {
+        bulkDeleteById(cmmStudiesToDelete.stream().map(CMMStudyOfLanguage::getId).toList(), languageIsoCode);
+    }
+
+    @Override
+    public void bulkDeleteById(Collection<String> idsToDelete, String languageIsoCode) throws IndexingException {
         // Set the index
         var indexName = String.format(INDEX_NAME_TEMPLATE, languageIsoCode);
 
-        // Extract the ids from the studies, and add them to the delete query
-        var deleteRequests = cmmStudiesToDelete.stream()
-            .map(CMMStudyOfLanguage::getId)
-            .map(id -> new DeleteOperation.Builder().index(indexName).id(id).build())
-            .map(BulkOperation::new)
-            .toList();
-
-        // Perform the deletion
-        if (!deleteRequests.isEmpty()) {
-            var deleteBulkRequest = new BulkRequest.Builder().operations(deleteRequests).build();
-            indexBulkRequest(indexName, deleteBulkRequest);
+        // Add the ids to delete requests, committing every INDEX_COMMIT_SIZE deletions
+        var batch = new ArrayList<String>(Math.min(idsToDelete.size(), INDEX_COMMIT_SIZE));
+        for (var id : idsToDelete) {
+            batch.add(id);
+
+            if (batch.size() == INDEX_COMMIT_SIZE) {
+                indexBulkRequest(indexName, buildDeleteRequest(indexName, batch));
+                batch.clear();
+            }
+        }
+
+        // Perform the remaining deletions
+        if (!batch.isEmpty()) {
+            indexBulkRequest(indexName, buildDeleteRequest(indexName, batch));
+        }
+    }
+
+    @Override
+    public long deleteFromAllIndices(Collection<String> idsToDelete) throws IndexingException {
+        if (idsToDelete.isEmpty()) {
+            return 0;
+        }
+        var indexName = String.format(INDEX_NAME_TEMPLATE, "*");
+        var query = new BoolQuery.Builder().minimumShouldMatch("1");
+
+        // Split the IDs to delete into bounded clauses, a study is deleted if it matches any of them
+        var ids = List.copyOf(idsToDelete);
+        for (int i = 0; i < ids.size(); i += MAX_IDS_PER_CLAUSE) {
+            var clause = ids.subList(i, Math.min(i + MAX_IDS_PER_CLAUSE, ids.size()));
+            query.should(new IdsQuery.Builder().values(clause).build()._toQuery());
+        }
+        return deleteByQuery(indexName, query.build()._toQuery());
+    }
+
+    @Override
+    public long deleteByRepository(String repository) throws IndexingException {
+        var indexName = String.format(INDEX_NAME_TEMPLATE, "*");
+        var query = new TermQuery.Builder().field(CODE_FIELD).value(repository).build()._toQuery();
+        var deleted = deleteByQuery(indexName, query);
+
+        // Forget the watermark, so that the repository is fully harvested if it is added again
+        try {
+            esClient.delete(new DeleteRequest.Builder().index(HARVEST_STATE_INDEX).id(repository).build());
+        } catch (ElasticsearchException e) {
+            // This is expected when no watermark has been stored
+            if (e.status() != 404) {
+                throw new IndexingException(e);
+            }
+        } catch (IOException e) {
+            throw new IndexingException(e);
+        }
+        return deleted;
+    }
+
+    @Override
+    public long deleteByRepositoryExcept(String repository, Collection<String> idsToKeep, String languageIsoCode) throws IndexingException {
+        var indexName = String.format(INDEX_NAME_TEMPLATE, languageIsoCode);
+        var query = new BoolQuery.Builder()
+            .filter(new TermQuery.Builder().field(CODE_FIELD).value(repository).build()._toQuery());
+
+        // Split the IDs to keep into bounded clauses, a study is only deleted if it matches none of them
+        var ids = List.copyOf(idsToKeep);
+        for (int i = 0; i < ids.size(); i += MAX_IDS_PER_CLAUSE) {
+            var clause = ids.subList(i, Math.min(i + MAX_IDS_PER_CLAUSE, ids.size()));
+            query.mustNot(new IdsQuery.Builder().values(clause).build()._toQuery());
+        }
+        return deleteByQuery(indexName, query.build()._toQuery());
+    }
+
+    /**
+     * Delete all documents matching the query as an asynchronous Elasticsearch task, and wait for it to complete.
+     * <p>
+     * The task is sliced automatically based on the amount of shards, and version conflicts are ignored
+     * so that concurrent updates do not abort the deletion.
+     *
+     * @param indexName the index to delete documents from.
+     * @param query     the documents to delete.
+     * @return the amount of documents deleted.
+     * @throws IndexingException if the deletion fails.
+     */
+    private long deleteByQuery(String indexName, Query query) throws IndexingException {
+        var request = new DeleteByQueryRequest.Builder()
+            .index(indexName)
+            .query(query)
+            .conflicts(Conflicts.Proceed)
+            .slices(s -> s.computed(SlicesCalculation.Auto))
+            .refresh(true)
+            .waitForCompletion(false)
+            .build();
+
+        var sample = indexerMetrics.startTimer();
+        try {
+            var taskId = esClient.deleteByQuery(request).task();
+            log.debug("[{}] Started delete by query task [{}]", indexName, taskId);
+            return awaitDeleteByQueryTask(indexName, taskId);
+        } catch (ElasticsearchException | IOException e) {
+            throw new IndexingException(e);
+        } finally {
+            indexerMetrics.stopTimer(sample, IndexerMetrics.Stage.DELETE_BY_QUERY);
+        }
+    }
+
+    /**
+     * Poll a delete by query task until it completes.
+     *
+     * @param indexName the index the documents are being deleted from.
+     * @param taskId    the ID of the task.
+     * @return the amount of documents deleted.
+     * @throws IndexingException if the task failed, or if the thread was interrupted while waiting.
+     */
+    private long awaitDeleteByQueryTask(String indexName, String taskId) throws IOException, IndexingException {
+        var taskRequest = new GetTasksRequest.Builder().taskId(taskId).build();
+        while (true) {
+            var taskResponse = esClient.tasks().get(taskRequest);
+
+            if (taskResponse.completed()) {
+                if (taskResponse.error() != null) {
+                    throw new IndexingException("Delete by query task [" + taskId + "] failed: " + taskResponse.error().reason());
+                }
+
+                var status = taskResponse.response();
+                if (status == null) {
+                    return 0;
+                }
+                if (!status.failures().isEmpty()) {
+                    throw new IndexingException("Delete by query task [" + taskId + "] failed: " + status.failures());
+                }
+
+                log.debug("[{}] Delete by query task [{}] completed, {} documents deleted", indexName, taskId, status.deleted());
+                return status.deleted();
+            }
+
+            var status = taskResponse.task().status();
+            if (status != null) {
+                log.debug("[{}] Delete by query task [{}]: {}/{} documents deleted", indexName, taskId, status.deleted(), status.total());
+            }
+
+            try {
+                Thread.sleep(TASK_POLL_INTERVAL.toMillis());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IndexingException("Interrupted while waiting for delete by query task [" + taskId + "]", e);
+            }
         }
     }
 
@@ -180,20 +568,90 @@ public class ESIngestService implements IngestService {
     @Override
     public ElasticsearchSet<CMMStudyOfLanguage> getAllStudies(String language) {
         log.debug("Getting all studies for language [{}]", language);
+        return getStudies("*", new MatchAllQuery.Builder().build()._toQuery());
+    }
+
+    @Override
+    public ElasticsearchSet<CMMStudyOfLanguage> getStudiesByRepository(String repository, String language) {
+        log.debug("Getting all studies for repository [{}] with language [{}]", repository, language);
+        return getStudies(language, new TermQuery.Builder().field(CODE_FIELD).value(repository).build()._toQuery());
+    }
+
+    /**
+     * Gets an {@link ElasticsearchSet} containing the studies of the given language that match the query.
+     *
+     * @param language the language to get results for.
+     * @param query    the query to execute.
+     */
+    private ElasticsearchSet<CMMStudyOfLanguage> getStudies(String language, Query query) {
         return new ElasticsearchSet<>(
-            getSearchRequest("*", new MatchAllQuery.Builder().build()._toQuery()),
+            String.format(INDEX_NAME_TEMPLATE, language),
+            query,
             esClient,
-            CMMStudyOfLanguage.class
+            CMMStudyOfLanguage.class,
+            esConfig.getScanPageSize(),
+            esConfig.getScanKeepAlive(),
+            esConfig.getScanSlices(),
+            CMMStudyOfLanguage::getId
         );
     }
 
     @Override
-    public ElasticsearchSet<CMMStudyOfLanguage> getStudiesByRepository(String repository, String language) {
-        log.debug("Getting all studies for repository [{}] with language [{}]", repository, language);
-        var repositorySearchRequest = getSearchRequest(language,
-            new TermQuery.Builder().field("code").value(repository).build()._toQuery()
+    public Set<String> getRepositoryCodes() throws IOException {
+        var codes = new HashSet<String>();
+        Map<String, FieldValue> afterKey = null;
+        do {
+            // Page through the codes with a composite aggregation, so that the amount of repositories is not limited
+            var aggregation = new CompositeAggregation.Builder()
+                .sources(List.of(Map.of(CODE_FIELD, CompositeAggregationSource.of(s -> s.terms(t -> t.field(CODE_FIELD))))))
+                .size(REPOSITORY_PAGE_SIZE);
+            if (afterKey != null) {
+                aggregation.after(afterKey);
+            }
+
+            var request = new SearchRequest.Builder()
+                .index(String.format(INDEX_NAME_TEMPLATE, "*"))
+                .size(0)
+                .aggregations(CODE_FIELD, a -> a.composite(aggregation.build()))
+                .build();
+            var aggregate = esClient.search(request, Void.class).aggregations().get(CODE_FIELD);
+            if (aggregate == null) {
+                // No study indices exist
+                break;
+            }
+
+            var composite = aggregate.composite();
+            for (var bucket : composite.buckets().array()) {
+                codes.add(bucket.key().get(CODE_FIELD).stringValue());
+            }
+            afterKey = composite.buckets().array().isEmpty() ? null : composite.afterKey();
+        } while (afterKey != null && !afterKey.isEmpty());
+        return codes;
+    }
+
+    @Override
+    public Map<String, Set<String>> getStudyIdsByRepository(String repository) throws IOException {
+        log.debug("Getting all study IDs for repository [{}]", repository);
+
+        // Only the index and the ID of each hit are needed, so the source is not retrieved
+        var studies = new ElasticsearchSet<>(
+            String.format(INDEX_NAME_TEMPLATE, "*"),
+            new TermQuery.Builder().field(CODE_FIELD).value(repository).build()._toQuery(),
+            esClient,
+            Void.class,
+            ID_PAGE_SIZE,
+            esConfig.getScanKeepAlive(),
+            1,
+            null
         );
-        return new ElasticsearchSet<>(repositorySearchRequest, esClient, CMMStudyOfLanguage.class);
+
+        var idsByLanguage = new HashMap<String, Set<String>>();
+        studies.forEachId((index, id) -> {
+            var language = index.substring(INDEX_NAME_PREFIX.length());
+            idsByLanguage.computeIfAbsent(language, k -> new HashSet<>()).add(id);
+        });
+
+        return idsByLanguage;
     }
 
     @Override
@@ -201,7 +659,7 @@ public class ESIngestService implements IngestService {
         log.trace("Retrieving study [{}], language [{}]", id, language);
 
         try {
-            var request = new co.elastic.clients.elasticsearch.core.GetRequest.Builder()
+            var request = new GetRequest.Builder()
                 .index(String.format(INDEX_NAME_TEMPLATE, language)).id(id).build();
             var response = esClient.get(request, CMMStudyOfLanguage.class);
 
@@ -224,15 +682,68 @@ public class ESIngestService implements IngestService {
         return Optional.empty();
     }
 
-    /**
-     * Gets a {@link SearchRequest.Builder} for the language specified.
-     *
-     * @param language the language to get results for.
-     */
-    private SearchRequest.Builder getSearchRequest(String language, Query query) {
-        return new SearchRequest.Builder()
-            .index(String.format(INDEX_NAME_TEMPLATE, language))
-            .query(query);
+    @Override
+    public Map<String, CMMStudyOfLanguage> getStudies(Collection<String> ids, String language) throws IOException {
+        var indexName = String.format(INDEX_NAME_TEMPLATE, language);
+        var idList = List.copyOf(ids);
+        var studies = new HashMap<String, CMMStudyOfLanguage>(idList.size());
+
+        for (int from = 0; from < idList.size(); from += MGET_BATCH_SIZE) {
+            var request = new MgetRequest.Builder()
+                .index(indexName)
+                .ids(idList.subList(from, Math.min(from + MGET_BATCH_SIZE, idList.size())))
+                .build();
+
+            try {
+                var response = esClient.mget(request, CMMStudyOfLanguage.class);
+                for (var item : response.docs()) {
+                    if (item.isResult() && item.result().found() && item.result().source() != null) {
+                        studies.put(item.result().id(), item.result().source());
+                    } else if (item.isFailure()) {
+                        log.trace("[{}] Failed to retrieve study [{}]: {}", indexName, item.failure().id(), item.failure().error().reason());
+                    }
+                }
+            } catch (ElasticsearchException e) {
+                // This is expected when the index is not available
+                if (e.status() == 404) {
+                    log.trace("Index for language [{}] not found: {}", language, e.toString());
+                    return studies;
+                }
+                throw e;
+            }
+        }
+
+        return studies;
+    }
+
+    @Override
+    public Optional<Instant> getHarvestWatermark(String repository) throws IOException {
+        var request = new GetRequest.Builder().index(HARVEST_STATE_INDEX).id(repository).build();
+        try {
+            var state = esClient.get(request, RepositoryState.class).source();
+            if (state != null && state.watermark() != null) {
+                return Optional.of(Instant.parse(state.watermark()));
+            }
+        } catch (ElasticsearchException e) {
+            // This is expected when no watermarks have been stored
+            if (e.status() != 404) {
+                throw e;
+            }
+            log.trace("Harvest state index not found: {}", e.toString());
+        } catch (DateTimeParseException e) {
+            log.warn("[{}] Stored harvest watermark is not a valid instant: {}", repository, e.toString());
+        }
+        return Optional.empty();
+    }
+
+    @Override
+    public void setHarvestWatermark(String repository, Instant watermark) throws IOException {
+        var request = new IndexRequest.Builder<RepositoryState>()
+            .index(HARVEST_STATE_INDEX)
+            .id(repository)
+            .document(new RepositoryState(repository, watermark.toString()))
+            .build();
+        esClient.index(request);
     }
 
     @Override
@@ -278,6 +789,15 @@ public class ESIngestService implements IngestService {
      * @throws IndexingException if an error occurred during index creation.
      */
     private void createIndex(String indexName) throws IndexingException {
+        var sample = indexerMetrics.startTimer();
+        try {
+            createIndexIfNotExists(indexName);
+        } finally {
+            indexerMetrics.stopTimer(sample, IndexerMetrics.Stage.INDEX_CREATION);
+        }
+    }
+
+    private void createIndexIfNotExists(String indexName) throws IndexingException {
 
         try {
             if (esClient.indices().exists(ExistsRequest.of(r -> r.index(indexName))).value()) {
@@ -338,4 +858,10 @@ public class ESIngestService implements IngestService {
             throw new IndexCreationFailedException("Index creation failed", indexName, e);
         }
     }
+
+    /**
+     * A bulk request and its estimated size in bytes.
+     */
+    private record SizedBulkRequest(BulkRequest request, long bytes) {
+    }
 }
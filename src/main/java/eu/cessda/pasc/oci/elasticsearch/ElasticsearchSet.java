@@ -16,46 +16,127 @@
 package eu.cessda.pasc.oci.elasticsearch;
 
 import co.elastic.clients.elasticsearch.ElasticsearchClient;
+import co.elastic.clients.elasticsearch._types.FieldValue;
+import co.elastic.clients.elasticsearch._types.SortOptions;
 import co.elastic.clients.elasticsearch._types.Time;
-import co.elastic.clients.elasticsearch.core.ClearScrollRequest;
+import co.elastic.clients.elasticsearch._types.query_dsl.BoolQuery;
+import co.elastic.clients.elasticsearch._types.query_dsl.Query;
+import co.elastic.clients.elasticsearch.core.ClosePointInTimeRequest;
 import co.elastic.clients.elasticsearch.core.CountRequest;
-import co.elastic.clients.elasticsearch.core.ScrollRequest;
+import co.elastic.clients.elasticsearch.core.OpenPointInTimeRequest;
 import co.elastic.clients.elasticsearch.core.SearchRequest;
-import co.elastic.clients.elasticsearch.core.search.ResponseBody;
+import co.elastic.clients.elasticsearch.core.search.Hit;
+import lombok.extern.slf4j.Slf4j;
 
 import java.io.IOException;
 import java.io.UncheckedIOException;
-import java.util.AbstractSet;
-import java.util.Iterator;
-import java.util.NoSuchElementException;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 
 /**
- * An implementation of the set interface that supports iterating over an Elasticsearch scroll.
+ * An implementation of the set interface that supports iterating over the results of an Elasticsearch query.
  * This is an unmodifiable collection.
+ * <p>
+ * Results are read using a point in time and {@code search_after}, so that the view of the index is consistent
+ * for the lifetime of the iterator. If more than one slice is configured, slices are read in parallel into a
+ * bounded queue.
+ * <p>
+ * If an ID extractor is provided, {@link #contains(Object)} and {@link #containsAll(Collection)} look up elements
+ * by their document ID rather than iterating over all results. The result of {@link #size()} is cached after
+ * the first call.
  *
  * @param <T> the type to decode the JSON into.
  */
+@Slf4j
 @SuppressWarnings("java:S2160") // The super class will handle equality comparisons
 public class ElasticsearchSet<T> extends AbstractSet<T> {
 
+    static final int DEFAULT_PAGE_SIZE = 1000;
+    static final Duration DEFAULT_KEEP_ALIVE = Duration.ofMinutes(5);
+
     /**
-     * Scroll timeout
+     * The amount of IDs to look up in each request. This allows for each ID to be present in up to 20 indices
+     * without exceeding the default maximum result window of Elasticsearch.
      */
-    private static final Time SCROLL_TIMEOUT = new Time.Builder().time("1m").build();
-    private final SearchRequest searchRequest;
-    private final Class<T> clazz;
+    private static final int CONTAINS_BATCH_SIZE = 500;
+    private static final int MAX_RESULT_WINDOW = 10000;
+
+    /**
+     * Sort by the shard and document, this is the most efficient sort order for iterating over a point in time.
+     */
+    private static final SortOptions SHARD_DOC_SORT = SortOptions.of(s -> s.field(f -> f.field("_shard_doc")));
+
+    private final String index;
+    private final Query query;
     private final ElasticsearchClient client;
+    private final Class<T> clazz;
+    private final int pageSize;
+    private final Duration keepAlive;
+    private final int slices;
+    private final Function<T, String> idExtractor;
 
     /**
-     * Constructs a new Elasticsearch Set that will contain the results of the given search query.
-     * @param searchRequestBuilder the search request to execute, the builder will become unusable afterwards.
+     * The cached result of {@link #size()}
+     */
+    private volatile Integer size = null;
+
+    /**
+     * Constructs a new Elasticsearch Set that will contain the results of the given query,
+     * read sequentially using the default page size and keep alive.
+     *
+     * @param index  the index to search.
+     * @param query  the query to execute.
      * @param client the Elasticsearch Client to use.
-     * @param clazz the class to deserialize to.
+     * @param clazz  the class to deserialize to.
      */
-    ElasticsearchSet(SearchRequest.Builder searchRequestBuilder, ElasticsearchClient client, Class<T> clazz) {
-        this.searchRequest = searchRequestBuilder.scroll(SCROLL_TIMEOUT).build();
+    ElasticsearchSet(String index, Query query, ElasticsearchClient client, Class<T> clazz) {
+        this(index, query, client, clazz, DEFAULT_PAGE_SIZE, DEFAULT_KEEP_ALIVE, 1, null);
+    }
+
+    /**
+     * Constructs a new Elasticsearch Set that will contain the results of the given query.
+     *
+     * @param index       the index to search.
+     * @param query       the query to execute.
+     * @param client      the Elasticsearch Client to use.
+     * @param clazz       the class to deserialize to.
+     * @param pageSize    the amount of documents to retrieve in each request.
+     * @param keepAlive   how long the point in time is kept alive between requests.
+     * @param slices      the amount of slices to read in parallel, 1 reads sequentially.
+     * @param idExtractor a function that returns the document ID of an element, or {@code null} if elements
+     *                    cannot be looked up by ID.
+     */
+    ElasticsearchSet(
+        String index,
+        Query query,
+        ElasticsearchClient client,
+        Class<T> clazz,
+        int pageSize,
+        Duration keepAlive,
+        int slices,
+        Function<T, String> idExtractor
+    ) {
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("pageSize must be positive");
+        }
+        if (slices < 1) {
+            throw new IllegalArgumentException("slices must be positive");
+        }
+        this.index = index;
+        this.query = query;
         this.client = client;
         this.clazz = clazz;
+        this.pageSize = pageSize;
+        this.keepAlive = keepAlive;
+        this.slices = slices;
+        this.idExtractor = idExtractor;
     }
 
     /**
@@ -66,7 +147,12 @@ public class ElasticsearchSet<T> extends AbstractSet<T> {
     @Override
     public Iterator<T> iterator() {
         try {
-            return new ElasticsearchIterator();
+            var pointInTime = openPointInTime();
+            if (slices > 1) {
+                return new SlicedIterator(pointInTime);
+            } else {
+                return new PageIterator(new PageReader(pointInTime, null, true));
+            }
         } catch (IOException e) {
             throw new UncheckedIOException(e);
         }
@@ -74,31 +160,263 @@ public class ElasticsearchSet<T> extends AbstractSet<T> {
 
     /**
      * {@inheritDoc}
+     * <p>
+     * The count is retrieved from Elasticsearch on the first call and cached for the lifetime of this set.
      *
      * @throws java.io.UncheckedIOException if an IO error occurs when accessing Elasticsearch.
      */
     @Override
     public int size() {
+        var cachedSize = size;
+        if (cachedSize != null) {
+            return cachedSize;
+        }
+
         try {
-            var countRequest = new CountRequest.Builder().index(searchRequest.index()).query(searchRequest.query()).build();
+            var countRequest = new CountRequest.Builder().index(index).query(query).ignoreUnavailable(true).build();
             long totalHits = client.count(countRequest).count();
-            return totalHits < Integer.MAX_VALUE ? (int) totalHits : Integer.MAX_VALUE;
+            cachedSize = totalHits < Integer.MAX_VALUE ? (int) totalHits : Integer.MAX_VALUE;
+            size = cachedSize;
+            return cachedSize;
         } catch (IOException e) {
             throw new UncheckedIOException(e);
         }
     }
 
     /**
-     * An iterator that iterates over an Elasticsearch scroll and decodes the resulting JSON.
+     * {@inheritDoc}
+     * <p>
+     * Elasticsearch stops searching as soon as a single matching document is found.
+     *
+     * @throws java.io.UncheckedIOException if an IO error occurs when accessing Elasticsearch.
+     */
+    @Override
+    public boolean isEmpty() {
+        var cachedSize = size;
+        if (cachedSize != null) {
+            return cachedSize == 0;
+        }
+
+        try {
+            var request = new SearchRequest.Builder()
+                .index(index)
+                .query(query)
+                .ignoreUnavailable(true)
+                .size(0)
+                .terminateAfter(1L)
+                .trackTotalHits(t -> t.enabled(true))
+                .build();
+            var total = client.search(request, clazz).hits().total();
+            return total == null || total.value() == 0;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * If an ID extractor is set, the element is retrieved by its ID and compared with the given object.
+     *
+     * @throws java.io.UncheckedIOException if an IO error occurs when accessing Elasticsearch.
+     */
+    @Override
+    public boolean contains(Object o) {
+        if (idExtractor == null) {
+            return super.contains(o);
+        }
+        return containsAll(Collections.singleton(o));
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * If an ID extractor is set, elements are retrieved by their IDs in batches and compared with the given objects.
+     *
+     * @throws java.io.UncheckedIOException if an IO error occurs when accessing Elasticsearch.
+     */
+    @Override
+    public boolean containsAll(Collection<?> c) {
+        if (idExtractor == null) {
+            return super.containsAll(c);
+        }
+
+        var batch = new HashMap<String, T>(Math.min(c.size(), CONTAINS_BATCH_SIZE));
+        for (var o : c) {
+            if (!clazz.isInstance(o)) {
+                return false;
+            }
+
+            var element = clazz.cast(o);
+            batch.put(idExtractor.apply(element), element);
+
+            if (batch.size() == CONTAINS_BATCH_SIZE) {
+                if (!containsBatch(batch)) {
+                    return false;
+                }
+                batch.clear();
+            }
+        }
+
+        return batch.isEmpty() || containsBatch(batch);
+    }
+
+    /**
+     * Check that each of the given elements is present and equal to the stored document with the same ID.
+     *
+     * @param elements the elements to check, keyed by their ID.
+     */
+    private boolean containsBatch(Map<String, T> elements) {
+        // Restrict the original query to the given IDs
+        var idsQuery = new BoolQuery.Builder()
+            .filter(query)
+            .filter(f -> f.ids(i -> i.values(List.copyOf(elements.keySet()))))
+            .build()._toQuery();
+
+        var request = new SearchRequest.Builder()
+            .index(index)
+            .query(idsQuery)
+            .ignoreUnavailable(true)
+            .size(MAX_RESULT_WINDOW)
+            .build();
+
+        try {
+            // The same ID may be present in multiple indices, so an element is present if any of the hits are equal
+            var found = new HashSet<String>();
+            for (var hit : client.search(request, clazz).hits().hits()) {
+                if (Objects.equals(elements.get(hit.id()), hit.source())) {
+                    found.add(hit.id());
+                }
+            }
+            return found.size() == elements.size();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Read the index and ID of every result sequentially, without retrieving the source of the documents.
+     *
+     * @param action the action to perform with the index and ID of each result.
+     * @throws IOException if an IO error occurs when accessing Elasticsearch.
+     */
+    void forEachId(BiConsumer<String, String> action) throws IOException {
+        var reader = new PageReader(openPointInTime(), null, false);
+        try {
+            List<Hit<T>> page;
+            while (!(page = reader.nextPage()).isEmpty()) {
+                for (var hit : page) {
+                    action.accept(hit.index(), hit.id());
+                }
+            }
+        } finally {
+            reader.pointInTime.close();
+        }
+    }
+
+    private Time keepAliveTime() {
+        return Time.of(t -> t.time(keepAlive.toSeconds() + "s"));
+    }
+
+    private PointInTime openPointInTime() throws IOException {
+        var request = new OpenPointInTimeRequest.Builder()
+            .index(index)
+            .keepAlive(keepAliveTime())
+            .ignoreUnavailable(true)
+            .build();
+        return new PointInTime(client.openPointInTime(request).id());
+    }
+
+    /**
+     * A point in time shared between readers. Elasticsearch may return an updated ID with each page,
+     * so the latest ID is tracked and used when the point in time is closed.
      */
-    private class ElasticsearchIterator implements Iterator<T> {
+    private class PointInTime {
+        private final AtomicReference<String> id;
 
-        private ResponseBody<T> response;
-        private int currentIndex;
+        private PointInTime(String id) {
+            this.id = new AtomicReference<>(id);
+        }
 
-        private ElasticsearchIterator() throws IOException {
-            response = client.search(searchRequest, clazz);
-            currentIndex = 0;
+        private void close() {
+            try {
+                client.closePointInTime(ClosePointInTimeRequest.of(c -> c.id(id.get())));
+            } catch (IOException e) {
+                // ignored - the point in time will expire when the keep alive elapses
+                log.debug("Failed to close point in time: {}", e.toString());
+            }
+        }
+    }
+
+    /**
+     * Reads pages of a point in time using {@code search_after}, optionally restricted to a slice.
+     */
+    private class PageReader {
+        private final PointInTime pointInTime;
+        private final Integer slice;
+        private final boolean fetchSource;
+        private List<FieldValue> searchAfter = null;
+        private boolean exhausted = false;
+
+        private PageReader(PointInTime pointInTime, Integer slice, boolean fetchSource) {
+            this.pointInTime = pointInTime;
+            this.slice = slice;
+            this.fetchSource = fetchSource;
+        }
+
+        /**
+         * Get the next page of results, or an empty list if all results have been read.
+         */
+        private List<Hit<T>> nextPage() throws IOException {
+            if (exhausted) {
+                return Collections.emptyList();
+            }
+
+            var request = new SearchRequest.Builder()
+                .pit(p -> p.id(pointInTime.id.get()).keepAlive(keepAliveTime()))
+                .query(query)
+                .size(pageSize)
+                .sort(SHARD_DOC_SORT)
+                .trackTotalHits(t -> t.enabled(false));
+            if (slice != null) {
+                request.slice(s -> s.id(slice.toString()).max(slices));
+            }
+            if (!fetchSource) {
+                request.source(s -> s.fetch(false));
+            }
+            if (searchAfter != null) {
+                request.searchAfter(searchAfter);
+            }
+
+            var response = client.search(request.build(), clazz);
+            if (response.pitId() != null) {
+                pointInTime.id.set(response.pitId());
+            }
+
+            var hits = response.hits().hits();
+            if (hits.size() < pageSize) {
+                // A partial page is the last page
+                exhausted = true;
+            }
+            if (!hits.isEmpty()) {
+                searchAfter = hits.get(hits.size() - 1).sort();
+            }
+            return hits;
+        }
+    }
+
+    /**
+     * An iterator that reads a point in time sequentially and decodes the resulting JSON.
+     */
+    private class PageIterator implements Iterator<T> {
+
+        private final PageReader reader;
+        private List<Hit<T>> page = Collections.emptyList();
+        private int currentIndex = 0;
+        private boolean closed = false;
+
+        private PageIterator(PageReader reader) {
+            this.reader = reader;
         }
 
         /**
@@ -108,38 +426,160 @@ public class ElasticsearchSet<T> extends AbstractSet<T> {
          */
         @Override
         public boolean hasNext() {
-            if (currentIndex >= response.hits().hits().size()) {
-                // Reached the end of the current scroll, collect the next scroll if available.
-                try {
-                    var scrollRequest = new ScrollRequest.Builder().scrollId(response.scrollId()).scroll(SCROLL_TIMEOUT).build();
-                    response = client.scroll(scrollRequest, clazz);
-                    currentIndex = 0; // Only reset the index once an update has been retrieved.
-                } catch (IOException e) {
-                    throw new UncheckedIOException(e);
+            if (currentIndex < page.size()) {
+                return true;
+            }
+            if (closed) {
+                return false;
+            }
+
+            // Reached the end of the current page, collect the next page if available.
+            try {
+                page = reader.nextPage();
+                currentIndex = 0;
+            } catch (IOException e) {
+                closed = true;
+                reader.pointInTime.close();
+                throw new UncheckedIOException(e);
+            }
+
+            if (page.isEmpty()) {
+                // If no more results are available, close the point in time
+                closed = true;
+                reader.pointInTime.close();
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException("End of results reached");
+            }
+            return page.get(currentIndex++).source();
+        }
+    }
+
+    /**
+     * An iterator that reads each slice of a point in time in parallel into a bounded queue.
+     * <p>
+     * If the consumer stops reading for longer than the keep alive, the readers give up and close the point in time.
+     */
+    private class SlicedIterator implements Iterator<T> {
+
+        private final BlockingQueue<Element<T>> queue = new ArrayBlockingQueue<>(pageSize * slices);
+        private final AtomicInteger runningReaders = new AtomicInteger(slices);
+        private final AtomicReference<Exception> failure = new AtomicReference<>();
+        private volatile boolean abandoned = false;
+        private Element<T> nextElement = null;
+        private boolean finished = false;
+
+        private SlicedIterator(PointInTime pointInTime) {
+            for (int i = 0; i < slices; i++) {
+                var reader = new PageReader(pointInTime, i, true);
+                var thread = new Thread(() -> readSlice(reader), "elasticsearch-slice-" + i);
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+
+        private void readSlice(PageReader reader) {
+            try {
+                List<Hit<T>> page;
+                while (!abandoned && !(page = reader.nextPage()).isEmpty()) {
+                    for (var hit : page) {
+                        if (abandoned || !queue.offer(new Element<>(hit.source()), keepAlive.toMillis(), TimeUnit.MILLISECONDS)) {
+                            log.debug("Consumer stopped reading, abandoning slice {}", reader.slice);
+                            abandoned = true;
+                            break;
+                        }
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                // Record the failure so that the consumer doesn't mistake the missing elements for the end of the results
+                failure.compareAndSet(null, e);
+                abandoned = true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                abandoned = true;
+            } finally {
+                if (runningReaders.decrementAndGet() == 0) {
+                    // The last reader closes the point in time and signals the end of the results
+                    reader.pointInTime.close();
+                    signalEnd();
+                }
+            }
+        }
+
+        private void signalEnd() {
+            try {
+                if (!queue.offer(Element.end(), keepAlive.toMillis(), TimeUnit.MILLISECONDS)) {
+                    log.debug("Consumer stopped reading, end of results not signalled");
                 }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         *
+         * @throws UncheckedIOException if an IO error occurs when accessing Elasticsearch.
+         * @throws RuntimeException     if a slice failed for any other reason, such as an {@code ElasticsearchException}.
+         */
+        @Override
+        public boolean hasNext() {
+            if (nextElement != null) {
+                return true;
+            }
+            if (finished) {
+                return false;
             }
-            var hasNext = !response.hits().hits().isEmpty();
-            if (!hasNext) {
-                // If no more results are available, clear the scroll context
-                var clearScrollRequest = new ClearScrollRequest.Builder()
-                    .scrollId(response.scrollId())
-                    .build();
-
-                try {
-                    client.clearScroll(clearScrollRequest);
-                } catch (IOException e) {
-                    // ignored - clearing the scroll is for tidyness reasons
+
+            try {
+                var element = queue.take();
+                if (element.isEnd()) {
+                    finished = true;
+                    var e = failure.get();
+                    if (e instanceof IOException ioException) {
+                        throw new UncheckedIOException(ioException);
+                    } else if (e != null) {
+                        throw (RuntimeException) e;
+                    }
+                    return false;
                 }
+                nextElement = element;
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                abandoned = true;
+                finished = true;
+                throw new IllegalStateException("Interrupted while waiting for results", e);
             }
-            return hasNext;
         }
 
         @Override
         public T next() {
             if (!hasNext()) {
-                throw new NoSuchElementException("End of scroll reached");
+                throw new NoSuchElementException("End of results reached");
             }
-            return response.hits().hits().get(currentIndex++).source();
+            var value = nextElement.value();
+            nextElement = null;
+            return value;
+        }
+    }
+
+    /**
+     * An element of the sliced queue. The end of the results is signalled by an element with {@code end} set.
+     */
+    private record Element<T>(T value, boolean isEnd) {
+        private Element(T value) {
+            this(value, false);
+        }
+
+        private static <T> Element<T> end() {
+            return new Element<>(null, true);
         }
     }
 }
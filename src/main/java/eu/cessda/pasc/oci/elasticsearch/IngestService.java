@@ -18,8 +18,10 @@ package eu.cessda.pasc.oci.elasticsearch;
 import eu.cessda.pasc.oci.models.cmmstudy.CMMStudyOfLanguage;
 
 import java.io.IOException;
+import java.time.Instant;
 import java.time.LocalDateTime;
 import java.util.Collection;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 
@@ -49,6 +51,53 @@ public interface IngestService {
      */
     void bulkDelete(Collection<CMMStudyOfLanguage> cmmStudiesToDelete, String languageIsoCode) throws IndexingException;
 
+    /**
+     * Delete the studies with the specified IDs from the index of the given language.
+     *
+     * @param idsToDelete     the IDs of the studies to delete.
+     * @param languageIsoCode the language of the index to delete the studies from.
+     * @throws IndexingException if an error occurs connecting to Elasticsearch.
+     */
+    void bulkDeleteById(Collection<String> idsToDelete, String languageIsoCode) throws IndexingException;
+
+    /**
+     * Delete the studies with the specified IDs from all language indices, such as studies marked as deleted
+     * by their source repository.
+     * <p>
+     * The deletion is performed server-side by Elasticsearch, so the IDs present in each index don't need to be retrieved.
+     *
+     * @param idsToDelete the IDs of the studies to delete.
+     * @return the amount of studies deleted.
+     * @throws IndexingException if an error occurs connecting to Elasticsearch, or the deletion fails.
+     */
+    long deleteFromAllIndices(Collection<String> idsToDelete) throws IndexingException;
+
+    /**
+     * Delete all studies of a repository from all indices, such as when a repository is withdrawn.
+     * The harvest watermark of the repository is also removed.
+     * <p>
+     * The deletion is performed server-side by Elasticsearch, so no studies are transferred to the indexer.
+     *
+     * @param repository the code of the repository to delete.
+     * @return the amount of studies deleted.
+     * @throws IndexingException if an error occurs connecting to Elasticsearch, or the deletion fails.
+     */
+    long deleteByRepository(String repository) throws IndexingException;
+
+    /**
+     * Delete all studies of a repository from the index of the given language, except for the given IDs.
+     * This is used to fully replace the contents of a repository.
+     * <p>
+     * The deletion is performed server-side by Elasticsearch, so no studies are transferred to the indexer.
+     *
+     * @param repository      the code of the repository.
+     * @param idsToKeep       the IDs of the studies that should not be deleted.
+     * @param languageIsoCode the language of the index to delete the studies from.
+     * @return the amount of studies deleted.
+     * @throws IndexingException if an error occurs connecting to Elasticsearch, or the deletion fails.
+     */
+    long deleteByRepositoryExcept(String repository, Collection<String> idsToKeep, String languageIsoCode) throws IndexingException;
+
     /**
      * Gets the total number of hits for the specified language. The language is in the same form as languages configured
      * in application.yml.
@@ -75,6 +124,27 @@ public interface IngestService {
      */
     Set<CMMStudyOfLanguage> getStudiesByRepository(String repository, String language);
 
+    /**
+     * Gets the codes of all repositories with studies in any language index.
+     *
+     * @return the repository codes.
+     * @throws IOException if an IO error occurs when accessing Elasticsearch.
+     * @throws co.elastic.clients.elasticsearch._types.ElasticsearchException if Elasticsearch returns an error.
+     */
+    Set<String> getRepositoryCodes() throws IOException;
+
+    /**
+     * Gets the IDs of all studies from a specific repository, grouped by language.
+     * <p>
+     * All language indices are searched in a single pass, and only the ID and index of each study is retrieved.
+     *
+     * @param repository the code of the repository.
+     * @return a map of language ISO codes to the IDs of the studies in that language.
+     * @throws IOException if an IO error occurs when accessing Elasticsearch.
+     * @throws co.elastic.clients.elasticsearch._types.ElasticsearchException if Elasticsearch returns an error.
+     */
+    Map<String, Set<String>> getStudyIdsByRepository(String repository) throws IOException;
+
     /**
      * Gets a study with a specific ID.
      *
@@ -85,6 +155,34 @@ public interface IngestService {
      */
     Optional<CMMStudyOfLanguage> getStudy(String id, String language);
 
+    /**
+     * Gets the studies with the specified IDs. The studies are retrieved in batches, rather than one request per study.
+     *
+     * @param ids      the IDs of the studies to get.
+     * @param language the language of the index to search in.
+     * @return a map of IDs to studies. IDs that cannot be found are not present in the map.
+     * @throws IOException if an IO error occurs when accessing Elasticsearch.
+     */
+    Map<String, CMMStudyOfLanguage> getStudies(Collection<String> ids, String language) throws IOException;
+
+    /**
+     * Gets the harvest watermark of a repository, the most recent OAI-PMH datestamp indexed from the repository.
+     *
+     * @param repository the code of the repository.
+     * @return the watermark, or an empty {@link Optional} if the repository has not been harvested incrementally.
+     * @throws IOException if an IO error occurs when accessing Elasticsearch.
+     */
+    Optional<Instant> getHarvestWatermark(String repository) throws IOException;
+
+    /**
+     * Sets the harvest watermark of a repository.
+     *
+     * @param repository the code of the repository.
+     * @param watermark  the most recent OAI-PMH datestamp indexed from the repository.
+     * @throws IOException if an IO error occurs when accessing Elasticsearch.
+     */
+    void setHarvestWatermark(String repository, Instant watermark) throws IOException;
+
     /**
      * Gets the most recent lastModified date from the cluster across all indices eg pattern (cmmstudy_*)
      * <p>
@@ -0,0 +1,44 @@
+/*
+ * Copyright © 2017-2023 CESSDA ERIC (support@cessda.eu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.cessda.pasc.oci.models;
+
+import eu.cessda.pasc.oci.models.cmmstudy.CMMStudy;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The records parsed from an XML document.
+ *
+ * @param studies         the active records.
+ * @param tombstones      the records marked as deleted.
+ * @param skippedStudyIds the IDs of the active records that were skipped because they were not modified since
+ *                        the repository was last harvested.
+ */
+public record ParsedRecords(List<CMMStudy> studies, List<Tombstone> tombstones, Set<String> skippedStudyIds) {
+
+    public ParsedRecords(List<CMMStudy> studies, List<Tombstone> tombstones) {
+        this(studies, tombstones, Collections.emptySet());
+    }
+
+    /**
+     * Returns {@code true} if the document contained no records.
+     */
+    public boolean isEmpty() {
+        return studies.isEmpty() && tombstones.isEmpty() && skippedStudyIds.isEmpty();
+    }
+}
@@ -0,0 +1,25 @@
+/*
+ * Copyright © 2017-2023 CESSDA ERIC (support@cessda.eu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.cessda.pasc.oci.models;
+
+/**
+ * The harvest state of a repository, persisted between harvests.
+ *
+ * @param repository the code of the repository.
+ * @param watermark  the most recent OAI-PMH datestamp indexed from the repository, as an ISO-8601 instant.
+ */
+public record RepositoryState(String repository, String watermark) {
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright © 2017-2023 CESSDA ERIC (support@cessda.eu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.cessda.pasc.oci.models;
+
+import eu.cessda.pasc.oci.StudyIdentifiers;
+
+import java.net.URI;
+
+/**
+ * A record marked as deleted by the source repository.
+ *
+ * @param studyNumber   the identifier of the deleted record.
+ * @param repositoryUrl the URL of the repository the record was harvested from.
+ * @param lastModified  the time the record was deleted, as reported by the repository.
+ */
+public record Tombstone(String studyNumber, URI repositoryUrl, String lastModified) {
+
+    /**
+     * Get the identifier of the deleted study in the Elasticsearch indices.
+     */
+    public String studyId() {
+        return StudyIdentifiers.generate(repositoryUrl, studyNumber);
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright © 2017-2023 CESSDA ERIC (support@cessda.eu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.cessda.pasc.oci.models.report;
+
+import java.util.List;
+
+/**
+ * Report of the changes a dry run would have made to the index.
+ *
+ * @param startTime    the time the run started, in ISO 8601 format.
+ * @param endTime      the time the run finished, in ISO 8601 format.
+ * @param created      the total amount of studies that would be created.
+ * @param updated      the total amount of studies that would be updated.
+ * @param deleted      the total amount of studies that would be deleted.
+ * @param unchanged    the total amount of studies that are unchanged.
+ * @param repositories the changes of each repository.
+ */
+public record DiffReport(
+    String startTime,
+    String endTime,
+    long created,
+    long updated,
+    long deleted,
+    long unchanged,
+    List<RepositoryDiffReport> repositories
+) {
+}
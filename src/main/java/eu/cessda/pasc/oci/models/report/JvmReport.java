@@ -0,0 +1,45 @@
+/*
+ * Copyright © 2017-2023 CESSDA ERIC (support@cessda.eu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.cessda.pasc.oci.models.report;
+
+import java.util.List;
+
+/**
+ * JVM statistics of an indexer run.
+ *
+ * @param heapUsedBytes      the heap in use at the end of the run.
+ * @param heapCommittedBytes the heap committed at the end of the run.
+ * @param heapMaxBytes       the maximum size of the heap, or -1 if undefined.
+ * @param heapPeakBytes      the sum of the peak usage of each heap memory pool.
+ * @param garbageCollectors  the activity of each garbage collector during the run.
+ */
+public record JvmReport(
+    long heapUsedBytes,
+    long heapCommittedBytes,
+    long heapMaxBytes,
+    long heapPeakBytes,
+    List<GarbageCollectorReport> garbageCollectors
+) {
+    /**
+     * Activity of a garbage collector during an indexer run.
+     *
+     * @param name              the name of the garbage collector.
+     * @param collections       the amount of collections that occurred.
+     * @param collectionMillis  the approximate time spent collecting.
+     */
+    public record GarbageCollectorReport(String name, long collections, long collectionMillis) {
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright © 2017-2023 CESSDA ERIC (support@cessda.eu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.cessda.pasc.oci.models.report;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The changes a dry run would have made to a language of a repository.
+ * <p>
+ * To keep the report small, only a sample of the IDs of changed studies is included.
+ *
+ * @param language      the ISO code of the language.
+ * @param created       the amount of studies that would be created.
+ * @param updated       the amount of studies that would be updated.
+ * @param deleted       the amount of studies that would be deleted.
+ * @param unchanged     the amount of studies that are unchanged.
+ * @param changedFields the amount of updated studies in which each field changed.
+ * @param createdIds    a sample of the IDs of the studies that would be created.
+ * @param updatedIds    a sample of the IDs of the studies that would be updated.
+ * @param deletedIds    a sample of the IDs of the studies that would be deleted.
+ */
+public record LanguageDiffReport(
+    String language,
+    long created,
+    long updated,
+    long deleted,
+    long unchanged,
+    Map<String, Long> changedFields,
+    List<String> createdIds,
+    List<String> updatedIds,
+    List<String> deletedIds
+) {
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright © 2017-2023 CESSDA ERIC (support@cessda.eu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.cessda.pasc.oci.models.report;
+
+import java.util.Map;
+
+/**
+ * Performance report of a single language of a repository.
+ *
+ * @param language         the ISO code of the language.
+ * @param stageMillis      the time spent in each stage.
+ * @param studies          the amount of studies for each outcome, such as {@code created} or {@code deleted}.
+ * @param bulkRequests     the amount of bulk requests sent to Elasticsearch.
+ * @param bulkBytes        the total size of the documents sent in bulk requests.
+ * @param bulkRetries      the amount of bulk requests that were retried.
+ * @param studiesPerSecond the amount of studies indexed per second spent in the language's stages.
+ */
+public record LanguageReport(
+    String language,
+    Map<String, Double> stageMillis,
+    Map<String, Long> studies,
+    long bulkRequests,
+    long bulkBytes,
+    long bulkRetries,
+    double studiesPerSecond
+) {
+}
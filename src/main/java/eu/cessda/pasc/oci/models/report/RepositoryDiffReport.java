@@ -0,0 +1,27 @@
+/*
+ * Copyright © 2017-2023 CESSDA ERIC (support@cessda.eu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.cessda.pasc.oci.models.report;
+
+import java.util.List;
+
+/**
+ * The changes a dry run would have made to the studies of a repository.
+ *
+ * @param code      the code of the repository.
+ * @param languages the changes of each language.
+ */
+public record RepositoryDiffReport(String code, List<LanguageDiffReport> languages) {
+}
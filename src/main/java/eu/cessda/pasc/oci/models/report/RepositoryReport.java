@@ -0,0 +1,41 @@
+/*
+ * Copyright © 2017-2023 CESSDA ERIC (support@cessda.eu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.cessda.pasc.oci.models.report;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Performance report of a single repository.
+ *
+ * @param code             the code of the repository.
+ * @param stageMillis      the time spent in each stage that is not specific to a language, such as XML parsing.
+ * @param filesRead        the amount of XML files read.
+ * @param bytesRead        the total size of the XML files read.
+ * @param studiesParsed    the amount of studies parsed from the XML files.
+ * @param studiesPerSecond the amount of studies parsed per second spent in the repository level stages.
+ * @param languages        the breakdown of each language.
+ */
+public record RepositoryReport(
+    String code,
+    Map<String, Double> stageMillis,
+    long filesRead,
+    long bytesRead,
+    long studiesParsed,
+    double studiesPerSecond,
+    List<LanguageReport> languages
+) {
+}
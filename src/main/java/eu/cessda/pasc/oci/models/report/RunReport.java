@@ -0,0 +1,59 @@
+/*
+ * Copyright © 2017-2023 CESSDA ERIC (support@cessda.eu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.cessda.pasc.oci.models.report;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Machine-readable performance report of a single indexer run.
+ *
+ * @param jobId            the identifier of the run.
+ * @param startTime        the time the run started, in ISO 8601 format.
+ * @param endTime          the time the run ended, in ISO 8601 format.
+ * @param durationMillis   the wall time of the run.
+ * @param filesRead        the amount of XML files read.
+ * @param bytesRead        the total size of the XML files read.
+ * @param studies          the amount of studies for each outcome, such as {@code created} or {@code deleted}.
+ * @param bulkRequests     the amount of bulk requests sent to Elasticsearch.
+ * @param bulkBytes        the total size of the documents sent in bulk requests.
+ * @param bulkRetries      the amount of bulk requests that were retried.
+ * @param transportBytesSent     the bytes sent to Elasticsearch, after compression.
+ * @param transportBytesReceived the bytes received from Elasticsearch, before decompression.
+ * @param studiesPerSecond the amount of studies parsed per second of run wall time.
+ * @param stages           timing statistics for each stage of the pipeline.
+ * @param repositories     the breakdown of each repository.
+ * @param jvm              JVM statistics for the run.
+ */
+public record RunReport(
+    String jobId,
+    String startTime,
+    String endTime,
+    long durationMillis,
+    long filesRead,
+    long bytesRead,
+    Map<String, Long> studies,
+    long bulkRequests,
+    long bulkBytes,
+    long bulkRetries,
+    long transportBytesSent,
+    long transportBytesReceived,
+    double studiesPerSecond,
+    List<StageReport> stages,
+    List<RepositoryReport> repositories,
+    JvmReport jvm
+) {
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright © 2017-2023 CESSDA ERIC (support@cessda.eu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.cessda.pasc.oci.models.report;
+
+/**
+ * Timing statistics of a stage of the pipeline across all repositories.
+ *
+ * @param stage       the name of the stage.
+ * @param count       the amount of times the stage was run.
+ * @param totalMillis the total time spent in the stage.
+ * @param maxMillis   the longest time spent in a single run of the stage.
+ * @param p50Millis   the median time spent in the stage.
+ * @param p95Millis   the 95th percentile of the time spent in the stage.
+ * @param p99Millis   the 99th percentile of the time spent in the stage.
+ */
+public record StageReport(
+    String stage,
+    long count,
+    double totalMillis,
+    double maxMillis,
+    double p50Millis,
+    double p95Millis,
+    double p99Millis
+) {
+}
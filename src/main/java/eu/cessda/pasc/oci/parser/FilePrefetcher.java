@@ -0,0 +1,377 @@
+/*
+ * Copyright © 2017-2023 CESSDA ERIC (support@cessda.eu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.cessda.pasc.oci.parser;
+
+import eu.cessda.pasc.oci.IndexerMetrics;
+import eu.cessda.pasc.oci.configurations.AppConfigurationProperties;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.nio.file.StandardOpenOption.READ;
+
+/**
+ * Reads files ahead of the parser on a dedicated IO thread, so that parsing threads don't wait on disk
+ * or network file system latency.
+ * <p>
+ * Files at least as large as the configured map threshold are memory-mapped and loaded into memory, smaller
+ * files are read into pooled direct buffers. The amount of files and bytes read ahead are bounded for each
+ * list of files being prefetched. A file read into a pooled buffer counts as the size of the buffer.
+ */
+@Component
+@Slf4j
+public class FilePrefetcher {
+
+    /**
+     * How often a consumer waiting for a file checks whether the reader has stopped.
+     */
+    private static final long READER_POLL_INTERVAL_MILLIS = 100;
+
+    private final AppConfigurationProperties.Prefetch configuration;
+    private final IndexerMetrics indexerMetrics;
+    private final int pooledBufferSize;
+
+    /**
+     * The maximum amount of unused buffers retained in {@link #bufferPool}.
+     */
+    private final int maxPooledBuffers;
+
+    /**
+     * Direct buffers of {@link #pooledBufferSize} bytes that are not in use.
+     */
+    private final Queue<ByteBuffer> bufferPool = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Runs the reader of each list of files. Each reader has its own thread, so that a reader waiting for
+     * its consumer never delays the reader of another repository.
+     */
+    private final ExecutorService readerExecutor;
+
+    @Autowired
+    public FilePrefetcher(AppConfigurationProperties configurationProperties, IndexerMetrics indexerMetrics) {
+        this.configuration = configurationProperties.getPrefetch();
+        this.indexerMetrics = indexerMetrics;
+        this.pooledBufferSize = (int) Math.min(Math.max(configuration.getMapThreshold().toBytes(), 0), Integer.MAX_VALUE - 8);
+        // Retain enough buffers for a full read ahead queue
+        this.maxPooledBuffers = pooledBufferSize > 0
+            ? (int) Math.min(configuration.getFiles(), Math.max(configuration.getBytes().toBytes() / pooledBufferSize, 1))
+            : 0;
+
+        var threadCounter = new AtomicInteger();
+        this.readerExecutor = Executors.newCachedThreadPool(runnable -> {
+            var thread = new Thread(runnable, "indexer-prefetch-" + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Returns {@code true} if prefetching is enabled.
+     */
+    public boolean isEnabled() {
+        return configuration.getFiles() > 0;
+    }
+
+    /**
+     * Start reading files ahead of the caller. The files are returned in the order given. Each returned file
+     * must be closed once parsed so that its buffer can be reused, and the returned instance must be closed
+     * if the files are not all consumed.
+     *
+     * @param files the files to read.
+     * @return the files, in the order given.
+     */
+    public PrefetchedFiles prefetch(List<Path> files) {
+        var prefetchedFiles = new PrefetchedFiles(files);
+        readerExecutor.execute(prefetchedFiles::readAhead);
+        return prefetchedFiles;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        readerExecutor.shutdownNow();
+    }
+
+    private ByteBuffer takeBuffer() {
+        var buffer = bufferPool.poll();
+        return buffer != null ? buffer.clear() : ByteBuffer.allocateDirect(pooledBufferSize);
+    }
+
+    private void returnBuffer(ByteBuffer buffer) {
+        if (bufferPool.size() < maxPooledBuffers) {
+            bufferPool.offer(buffer);
+        }
+    }
+
+    /**
+     * Files being read ahead of a consumer.
+     */
+    public final class PrefetchedFiles implements Iterator<PrefetchedFile>, AutoCloseable {
+
+        private final List<Path> files;
+        private final BlockingQueue<PrefetchedFile> readFiles;
+        private final long maxBytes;
+        private int consumed = 0;
+        private volatile boolean closed = false;
+        private volatile boolean readerStopped = false;
+
+        // Guarded by this
+        private long bytesHeld = 0;
+
+        private PrefetchedFiles(List<Path> files) {
+            this.files = files;
+            this.readFiles = new LinkedBlockingQueue<>(Math.max(configuration.getFiles(), 1));
+            this.maxBytes = configuration.getBytes().toBytes();
+        }
+
+        /**
+         * Read each file in order, waiting while the read ahead limits are reached. This runs on the reader thread.
+         */
+        private void readAhead() {
+            try {
+                for (var path : files) {
+                    if (closed) {
+                        break;
+                    }
+                    readFiles.put(read(path));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                readerStopped = true;
+                if (closed) {
+                    // The consumer has gone, release any files it won't take
+                    releaseReadFiles();
+                }
+            }
+        }
+
+        /**
+         * Read a file. Any error reading the file, including errors such as failing to allocate a buffer, is
+         * reported when the file is parsed, so that the reader thread carries on and the consumer never waits
+         * for a file that will not arrive.
+         */
+        @SuppressWarnings("java:S1181")
+        private PrefetchedFile read(Path path) throws InterruptedException {
+            var sample = indexerMetrics.startTimer();
+            try (var channel = FileChannel.open(path, READ)) {
+                var size = channel.size();
+                if (size > Integer.MAX_VALUE) {
+                    // Too large to be held in a single buffer, read it directly when parsed
+                    return new PrefetchedFile(this, path, null, 0, false, null);
+                }
+
+                // A small file holds a whole pooled buffer regardless of its size
+                var mapped = size >= pooledBufferSize;
+                var heldBytes = mapped ? size : pooledBufferSize;
+                acquire(heldBytes);
+                try {
+                    return read(path, channel, size, mapped, heldBytes);
+                } catch (Throwable e) {
+                    release(heldBytes);
+                    throw e;
+                }
+            } catch (InterruptedException e) {
+                throw e;
+            } catch (Throwable e) {
+                // Report the error when the file is parsed
+                var exception = e instanceof IOException ioException ? ioException : new IOException("Couldn't read " + path + " ahead of the parser", e);
+                return new PrefetchedFile(this, path, null, 0, false, exception);
+            } finally {
+                indexerMetrics.stopTimer(sample, IndexerMetrics.Stage.FILE_READ);
+            }
+        }
+
+        private PrefetchedFile read(Path path, FileChannel channel, long size, boolean mapped, long heldBytes) throws IOException {
+            if (mapped) {
+                // Loading the mapping reads the file into memory on this thread
+                var mappedBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size).load();
+                return new PrefetchedFile(this, path, mappedBuffer, heldBytes, false, null);
+            }
+
+            var buffer = takeBuffer();
+            try {
+                while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                    // Read until the buffer is full or the end of the file is reached
+                }
+            } catch (IOException | RuntimeException e) {
+                returnBuffer(buffer);
+                throw e;
+            }
+            if (!buffer.hasRemaining() && channel.position() < channel.size()) {
+                // The file grew since its size was read, read it directly when parsed
+                returnBuffer(buffer);
+                release(heldBytes);
+                return new PrefetchedFile(this, path, null, 0, false, null);
+            }
+            return new PrefetchedFile(this, path, buffer.flip(), heldBytes, true, null);
+        }
+
+        /**
+         * Wait until the bytes can be held without exceeding the limit. A file larger than the limit is
+         * held once no other files are held.
+         */
+        private synchronized void acquire(long bytes) throws InterruptedException {
+            while (!closed && bytesHeld > 0 && bytesHeld + bytes > maxBytes) {
+                wait();
+            }
+            bytesHeld += bytes;
+        }
+
+        private synchronized void release(long bytes) {
+            bytesHeld -= bytes;
+            notifyAll();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !closed && consumed < files.size();
+        }
+
+        /**
+         * Get the next file, waiting for it to be read if necessary. If the reader stopped before reading
+         * the file, the file is read directly when parsed.
+         */
+        @Override
+        public PrefetchedFile next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            var sample = indexerMetrics.startTimer();
+            try {
+                PrefetchedFile file;
+                while ((file = readFiles.poll(READER_POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS)) == null) {
+                    if (readerStopped && readFiles.isEmpty()) {
+                        file = new PrefetchedFile(this, files.get(consumed), null, 0, false, null);
+                        break;
+                    }
+                }
+                consumed++;
+                return file;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CancellationException("Interrupted while waiting for " + files.get(consumed));
+            } finally {
+                indexerMetrics.stopTimer(sample, IndexerMetrics.Stage.PREFETCH_WAIT);
+            }
+        }
+
+        /**
+         * Stop reading ahead, and release the files that have been read but not consumed.
+         */
+        @Override
+        public void close() {
+            closed = true;
+            synchronized (this) {
+                notifyAll();
+            }
+            releaseReadFiles();
+        }
+
+        private void releaseReadFiles() {
+            PrefetchedFile file;
+            while ((file = readFiles.poll()) != null) {
+                file.close();
+            }
+        }
+    }
+
+    /**
+     * A file that has been read ahead of the parser.
+     */
+    public final class PrefetchedFile implements XMLSource {
+
+        private final PrefetchedFiles owner;
+        private final Path path;
+        private final long heldBytes;
+        private final boolean pooled;
+        private final IOException exception;
+        private ByteBuffer buffer;
+        private boolean closed = false;
+
+        private PrefetchedFile(PrefetchedFiles owner, Path path, ByteBuffer buffer, long heldBytes, boolean pooled, IOException exception) {
+            this.owner = owner;
+            this.path = path;
+            this.buffer = buffer;
+            this.heldBytes = heldBytes;
+            this.pooled = pooled;
+            this.exception = exception;
+        }
+
+        @Override
+        public Path path() {
+            return path;
+        }
+
+        @Override
+        public long size() throws IOException {
+            if (exception != null) {
+                throw exception;
+            }
+            return buffer != null ? buffer.limit() : Files.size(path);
+        }
+
+        @Override
+        public InputStream openStream() throws IOException {
+            if (exception != null) {
+                throw exception;
+            }
+            var currentBuffer = buffer;
+            if (currentBuffer == null) {
+                // Not read ahead, read from the file system
+                return Files.newInputStream(path);
+            }
+            return new ByteBufferInputStream(currentBuffer.duplicate());
+        }
+
+        /**
+         * Release the buffer of this file. The file must not be opened after it has been closed.
+         */
+        @Override
+        public synchronized void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (buffer != null && pooled) {
+                returnBuffer(buffer);
+            }
+            buffer = null;
+            if (heldBytes > 0) {
+                owner.release(heldBytes);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return path.toString();
+        }
+    }
+}
@@ -21,6 +21,9 @@ import lombok.extern.slf4j.Slf4j;
 import org.jdom2.input.SAXBuilder;
 
 import javax.xml.XMLConstants;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLResolver;
+import javax.xml.stream.XMLStreamException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URLEncoder;
@@ -45,6 +48,26 @@ public class OaiPmhHelpers {
         return saxBuilder;
     });
 
+    /**
+     * A StAX input factory that never loads external DTDs, entities or schemas. DTDs are not processed,
+     * so documents declaring entities are rejected. Factories are thread-safe once configured.
+     */
+    private static final XMLInputFactory XML_INPUT_FACTORY = createXMLInputFactory();
+
+    private static XMLInputFactory createXMLInputFactory() {
+        // The JDK's implementation is used regardless of the StAX implementations on the classpath
+        var factory = XMLInputFactory.newDefaultFactory();
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLConstants.ACCESS_EXTERNAL_DTD, "");
+        factory.setProperty(XMLConstants.ACCESS_EXTERNAL_SCHEMA, "");
+        factory.setProperty(XMLInputFactory.RESOLVER, (XMLResolver) (publicID, systemID, baseURI, namespace) -> {
+            throw new XMLStreamException("External access to " + systemID + " is not allowed");
+        });
+        return factory;
+    }
+
     public static URI buildGetStudyFullUrl(@NonNull URI repoUrl, @NonNull String studyIdentifier, @NonNull String metadataPrefix) throws URISyntaxException {
         return new URI(repoUrl +
             // verb=GetRecord
@@ -62,4 +85,11 @@ public class OaiPmhHelpers {
     static SAXBuilder getSaxBuilder() {
         return SAX_BUILDER_THREAD_LOCAL.get();
     }
+
+    /**
+     * Retrieve the shared {@link XMLInputFactory}. This is the JDK's StAX implementation.
+     */
+    static XMLInputFactory getXMLInputFactory() {
+        return XML_INPUT_FACTORY;
+    }
 }
@@ -0,0 +1,185 @@
+/*
+ * Copyright © 2017-2023 CESSDA ERIC (support@cessda.eu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.cessda.pasc.oci.parser;
+
+import eu.cessda.pasc.oci.models.RecordHeader;
+import lombok.experimental.UtilityClass;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+
+import static javax.xml.stream.XMLStreamConstants.END_ELEMENT;
+import static javax.xml.stream.XMLStreamConstants.START_ELEMENT;
+
+/**
+ * Streams through an OAI-PMH response reading only the request element, the record headers and the namespace
+ * of each record's metadata, without building a document. This is used to decide whether a document needs
+ * to be fully parsed.
+ */
+@UtilityClass
+class OaiPmhPrescanner {
+
+    private static final String RECORD = "record";
+    private static final String HEADER = "header";
+    private static final String METADATA = "metadata";
+    private static final String REQUEST = "request";
+
+    /**
+     * Prescan an OAI-PMH response read from the given stream. The prescan stops at the first record for which
+     * {@code requiresMapping} returns {@code true}, as the document must then be fully parsed regardless of the
+     * remaining records. The stream is not closed.
+     *
+     * @param inputStream     the stream of the XML document.
+     * @param requiresMapping tests whether a record needs its metadata to be mapped.
+     * @return the result of the prescan.
+     * @throws XMLStreamException if the document is not well-formed, or uses features not supported by the prescan.
+     */
+    static Prescan prescan(InputStream inputStream, Predicate<PrescannedRecord> requiresMapping) throws XMLStreamException {
+        var reader = OaiPmhHelpers.getXMLInputFactory().createXMLStreamReader(inputStream);
+        try {
+            return prescan(reader, requiresMapping);
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static Prescan prescan(XMLStreamReader reader, Predicate<PrescannedRecord> requiresMapping) throws XMLStreamException {
+        // Documents that are not OAI-PMH responses are always fully parsed
+        reader.nextTag();
+        if (!isOaiElement(reader, "OAI-PMH")) {
+            return new Prescan(false, null, List.of(), true);
+        }
+
+        String request = null;
+        var records = new ArrayList<PrescannedRecord>();
+        while (reader.hasNext()) {
+            if (reader.next() != START_ELEMENT) {
+                continue;
+            }
+            if (isOaiElement(reader, REQUEST)) {
+                request = reader.getElementText().trim();
+            } else if (isOaiElement(reader, RECORD)) {
+                var prescannedRecord = prescanRecord(reader);
+                if (requiresMapping.test(prescannedRecord)) {
+                    return new Prescan(true, request, List.of(), true);
+                }
+                records.add(prescannedRecord);
+            }
+        }
+
+        return new Prescan(true, request, records, false);
+    }
+
+    /**
+     * Read the header and metadata namespace of a record. The reader is left at the end of the record.
+     */
+    private static PrescannedRecord prescanRecord(XMLStreamReader reader) throws XMLStreamException {
+        RecordHeader header = null;
+        String metadataNamespace = null;
+
+        while (reader.nextTag() == START_ELEMENT) {
+            if (isOaiElement(reader, HEADER)) {
+                header = prescanHeader(reader);
+            } else if (isOaiElement(reader, METADATA)) {
+                // Only the root element of the metadata is read
+                if (nextElement(reader)) {
+                    metadataNamespace = reader.getNamespaceURI();
+                    skipElement(reader);
+                    skipElement(reader);
+                }
+            } else {
+                skipElement(reader);
+            }
+        }
+
+        return new PrescannedRecord(header, metadataNamespace);
+    }
+
+    private static RecordHeader prescanHeader(XMLStreamReader reader) throws XMLStreamException {
+        var recordHeaderBuilder = RecordHeader.builder();
+        var status = reader.getAttributeValue(null, OaiPmhConstants.STATUS_ATTR);
+        recordHeaderBuilder.deleted(OaiPmhConstants.DELETED.equals(status));
+
+        while (reader.nextTag() == START_ELEMENT) {
+            switch (reader.getLocalName()) {
+                case OaiPmhConstants.IDENTIFIER_ELEMENT -> recordHeaderBuilder.identifier(reader.getElementText());
+                case OaiPmhConstants.DATESTAMP_ELEMENT -> recordHeaderBuilder.lastModified(reader.getElementText());
+                default -> skipElement(reader);
+            }
+        }
+        return recordHeaderBuilder.build();
+    }
+
+    /**
+     * Advance to the next child element of the current element.
+     *
+     * @return {@code true} if a child element was found, {@code false} if the end of the current element was reached.
+     */
+    private static boolean nextElement(XMLStreamReader reader) throws XMLStreamException {
+        while (reader.hasNext()) {
+            var event = reader.next();
+            if (event == START_ELEMENT) {
+                return true;
+            } else if (event == END_ELEMENT) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Skip to the end of the current element, including all of its children.
+     */
+    private static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+        var depth = 1;
+        while (depth > 0 && reader.hasNext()) {
+            var event = reader.next();
+            if (event == START_ELEMENT) {
+                depth++;
+            } else if (event == END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+
+    private static boolean isOaiElement(XMLStreamReader reader, String localName) {
+        return localName.equals(reader.getLocalName()) && OaiPmhConstants.OAI_NS.getURI().equals(reader.getNamespaceURI());
+    }
+
+    /**
+     * A record read by the prescan.
+     *
+     * @param header            the header of the record, or {@code null} if the record has no header.
+     * @param metadataNamespace the namespace of the root element of the metadata, or {@code null} if the record has no metadata.
+     */
+    record PrescannedRecord(RecordHeader header, String metadataNamespace) {
+    }
+
+    /**
+     * The result of a prescan.
+     *
+     * @param oaiPmh          whether the document is an OAI-PMH response.
+     * @param request         the text of the request element, or {@code null} if not present.
+     * @param records         the records read, empty if the document must be fully parsed.
+     * @param requiresParsing whether a record needs its metadata to be mapped, so the document must be fully parsed.
+     */
+    record Prescan(boolean oaiPmh, String request, List<PrescannedRecord> records, boolean requiresParsing) {
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright © 2017-2023 CESSDA ERIC (support@cessda.eu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.cessda.pasc.oci.parser;
+
+import eu.cessda.pasc.oci.exception.UnsupportedXMLNamespaceException;
+import eu.cessda.pasc.oci.models.RecordHeader;
+import eu.cessda.pasc.oci.models.cmmstudy.CMMStudy;
+import eu.cessda.pasc.oci.models.configurations.Repo;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Caches the mapped records of XML documents by the digest of their content, so that a document mirrored by
+ * several repositories is only parsed and mapped once.
+ * <p>
+ * The cached studies are shared between repositories, so they must not be modified. Fields that depend on the
+ * repository are applied to the cached studies each time they are used. The least recently used documents are
+ * evicted once the cache is full.
+ */
+class ParseCache {
+
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // Guarded by itself
+    private final Map<Key, MappedDocument> documents;
+
+    /**
+     * @param maxEntries the maximum amount of documents to cache.
+     */
+    ParseCache(int maxEntries) {
+        this.documents = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, MappedDocument> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Get the mapped records of a document, or {@code null} if the document is not cached.
+     */
+    MappedDocument get(Key key) {
+        synchronized (documents) {
+            return documents.get(key);
+        }
+    }
+
+    void put(Key key, MappedDocument document) {
+        synchronized (documents) {
+            documents.put(key, document);
+        }
+    }
+
+    /**
+     * Discard all cached documents.
+     */
+    void clear() {
+        synchronized (documents) {
+            documents.clear();
+        }
+    }
+
+    /**
+     * Digests and retains the content of a document as it is read, so that the document doesn't have to be read
+     * again to look it up in the cache or to build it.
+     */
+    static final class DigestingInputStream extends FilterInputStream {
+
+        private final MessageDigest messageDigest;
+        private final RetainedContent content = new RetainedContent();
+        private boolean complete = false;
+
+        DigestingInputStream(InputStream inputStream) {
+            super(inputStream);
+            try {
+                messageDigest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+            } catch (NoSuchAlgorithmException e) {
+                // Every Java platform is required to support SHA-256
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            var b = super.read();
+            if (b == -1) {
+                complete = true;
+            } else {
+                messageDigest.update((byte) b);
+                content.write(b);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            var read = super.read(b, off, len);
+            if (read == -1) {
+                complete = true;
+            } else {
+                messageDigest.update(b, off, read);
+                content.write(b, off, read);
+            }
+            return read;
+        }
+
+        /**
+         * Skipped bytes are read, so that they are part of the digest.
+         */
+        @Override
+        public long skip(long n) throws IOException {
+            var skipped = 0L;
+            var buffer = new byte[(int) Math.min(Math.max(n, 0), BUFFER_SIZE)];
+            while (skipped < n) {
+                var read = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+                if (read == -1) {
+                    break;
+                }
+                skipped += read;
+            }
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public synchronized void mark(int readlimit) {
+            // Marks are not supported, as reset bytes would be digested twice
+        }
+
+        @Override
+        public synchronized void reset() throws IOException {
+            throw new IOException("mark/reset not supported");
+        }
+
+        /**
+         * Read the rest of the document, and create its key from the digest of its content. The default language
+         * of the repository is part of the key, as it is used when mapping documents that don't declare their language.
+         *
+         * @throws IOException if the document could not be read.
+         */
+        Key key(Repo repo) throws IOException {
+            var buffer = new byte[BUFFER_SIZE];
+            while (!complete) {
+                read(buffer, 0, buffer.length);
+            }
+            return new Key(HexFormat.of().formatHex(messageDigest.digest()), repo.getDefaultLanguage());
+        }
+
+        /**
+         * Get a source over the content read so far, which is the whole document once {@link #key(Repo)} has
+         * been called.
+         *
+         * @param path the path the document was read from.
+         */
+        XMLSource retained(Path path) {
+            return new XMLSource() {
+                @Override
+                public Path path() {
+                    return path;
+                }
+
+                @Override
+                public long size() {
+                    return content.size();
+                }
+
+                @Override
+                public InputStream openStream() {
+                    return content.toInputStream();
+                }
+
+                @Override
+                public String toString() {
+                    return path.toString();
+                }
+            };
+        }
+    }
+
+    /**
+     * A buffer whose content can be read without being copied.
+     */
+    private static final class RetainedContent extends ByteArrayOutputStream {
+        private RetainedContent() {
+            super(BUFFER_SIZE);
+        }
+
+        private synchronized InputStream toInputStream() {
+            return new ByteArrayInputStream(buf, 0, count);
+        }
+    }
+
+    /**
+     * The key of a cached document.
+     *
+     * @param digest          the hex encoded digest of the document's content.
+     * @param defaultLanguage the default language of the repository the document was mapped for.
+     */
+    record Key(String digest, String defaultLanguage) {
+    }
+
+    /**
+     * The records of a document, mapped independently of the repository.
+     *
+     * @param baseURL the base URL declared in the OAI-PMH request element, or {@code null} if not declared.
+     * @param records the records of the document, in document order.
+     */
+    record MappedDocument(URI baseURL, List<MappedRecord> records) {
+    }
+
+    /**
+     * A record of a document.
+     *
+     * @param header               the OAI-PMH header of the record, or {@code null} if the record has no header.
+     * @param study                the mapped study, or {@code null} if the record was not mapped.
+     * @param unsupportedNamespace set if the record couldn't be mapped because its metadata is not supported.
+     */
+    record MappedRecord(RecordHeader header, CMMStudy study, UnsupportedXMLNamespaceException unsupportedNamespace) {
+    }
+}
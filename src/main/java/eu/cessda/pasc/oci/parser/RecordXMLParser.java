@@ -15,12 +15,18 @@
  */
 package eu.cessda.pasc.oci.parser;
 
+import eu.cessda.pasc.oci.IndexerMetrics;
+import eu.cessda.pasc.oci.StudyIdentifiers;
+import eu.cessda.pasc.oci.TimeUtility;
+import eu.cessda.pasc.oci.configurations.AppConfigurationProperties;
 import eu.cessda.pasc.oci.exception.InvalidUniverseException;
 import eu.cessda.pasc.oci.exception.UnsupportedXMLNamespaceException;
 import eu.cessda.pasc.oci.exception.XMLParseException;
+import eu.cessda.pasc.oci.models.ParsedRecords;
 import eu.cessda.pasc.oci.models.Record;
 import eu.cessda.pasc.oci.models.RecordHeader;
 import eu.cessda.pasc.oci.models.Request;
+import eu.cessda.pasc.oci.models.Tombstone;
 import eu.cessda.pasc.oci.models.cmmstudy.CMMStudy;
 import eu.cessda.pasc.oci.models.configurations.Repo;
 import lombok.extern.slf4j.Slf4j;
@@ -31,19 +37,18 @@ import org.jdom2.Namespace;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
+import javax.xml.stream.XMLStreamException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Instant;
 import java.time.LocalDateTime;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
-import java.util.Set;
+import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 
-import static com.google.common.io.Files.getNameWithoutExtension;
 
 /**
  * Service Class responsible for querying the repository to fetch remote records.
@@ -55,30 +60,50 @@ import static com.google.common.io.Files.getNameWithoutExtension;
 public class RecordXMLParser {
 
     private final CMMStudyMapper cmmStudyMapper;
+    private final IndexerMetrics indexerMetrics;
+    private final XMLDocumentBuilder documentBuilder;
+    private final ParseCache parseCache;
     Set<Map.Entry<String, Namespace>> suppressedNamespaceWarnings = null;
 
     @Autowired
-    public RecordXMLParser(CMMStudyMapper cmmStudyMapper) {
+    public RecordXMLParser(CMMStudyMapper cmmStudyMapper, IndexerMetrics indexerMetrics, AppConfigurationProperties configurationProperties) {
         this.cmmStudyMapper = cmmStudyMapper;
+        this.indexerMetrics = indexerMetrics;
+        this.documentBuilder = configurationProperties.getXmlParser().newDocumentBuilder();
+        var parseCacheProperties = configurationProperties.getParseCache();
+        this.parseCache = parseCacheProperties.isEnabled() ? new ParseCache(parseCacheProperties.getMaxEntries()) : null;
+        log.debug("Using the {} XML parser", configurationProperties.getXmlParser());
     }
 
     // Messaging and Exceptions
     private static final String RECORD_HEADER = "RecordHeader";
     private static final String STUDY = "Study";
+    private static final String METADATA = "metadata";
 
     /**
-     * Load an XML document from the given path.
-     * @param path the path to the XML document.
+     * Load an XML document from the given source.
+     * @param source the source of the XML document.
      * @throws XMLParseException if the document could not be parsed, or an IO error occured.
      */
-    private Document getDocument(Path path) throws XMLParseException {
-        try (var inputStream = Files.newInputStream(path)) {
-            return OaiPmhHelpers.getSaxBuilder().build(inputStream);
+    private Document getDocument(XMLSource source) throws XMLParseException {
+        var sample = indexerMetrics.startTimer();
+        try (var inputStream = openStream(source)) {
+            indexerMetrics.recordFile(source.size());
+            return documentBuilder.build(inputStream);
         } catch (IOException | JDOMException e) {
             throw new XMLParseException(e);
+        } finally {
+            indexerMetrics.stopTimer(sample, IndexerMetrics.Stage.XML_PARSE);
         }
     }
 
+    /**
+     * Open a stream over the XML of a source, decompressing it if it is compressed.
+     */
+    private InputStream openStream(XMLSource source) throws IOException {
+        return XMLCompression.decompress(source.openStream(), elapsed -> indexerMetrics.recordTime(IndexerMetrics.Stage.DECOMPRESSION, elapsed));
+    }
+
     private RecordHeader parseRecordHeader(Element headerElement) {
 
         var recordHeaderBuilder = RecordHeader.builder();
@@ -126,40 +151,292 @@ public class RecordXMLParser {
      * @throws XMLParseException if an error occurred parsing the XML.
      */
     public List<CMMStudy> getRecord(Repo repo, Path path) throws XMLParseException {
+        return parseRecords(repo, path).studies();
+    }
 
-        // Retrieve
-        var document = getDocument(path);
+    /**
+     * Parses the records of an XML document. Records marked as deleted are returned as tombstones,
+     * so that they can be deleted from the index.
+     * @param repo the repository to retrieve the records from.
+     * @param path the path to the XML document.
+     * @return the active records and the tombstones of the deleted records.
+     * @throws XMLParseException if an error occurred parsing the XML.
+     */
+    public ParsedRecords parseRecords(Repo repo, Path path) throws XMLParseException {
+        return parseRecords(repo, path, null);
+    }
 
-        // Parse request element to retrieve the base URL of the repository
-        var request = parseRecord(repo, path, document);
+    /**
+     * Parses the records of an XML document, skipping records that have not been modified since the given time.
+     * Skipped records are not mapped, only their IDs are returned so that they are not treated as deleted.
+     * Records without a valid datestamp are always parsed.
+     * @param repo the repository to retrieve the records from.
+     * @param path the path to the XML document.
+     * @param modifiedSince records with a datestamp before this time are skipped, or {@code null} to parse every record.
+     * @return the active records, the tombstones of the deleted records and the IDs of the skipped records.
+     * @throws XMLParseException if an error occurred parsing the XML.
+     */
+    public ParsedRecords parseRecords(Repo repo, Path path, Instant modifiedSince) throws XMLParseException {
+        return parseRecords(repo, XMLSource.of(path), modifiedSince);
+    }
 
-        var cmmStudies = new ArrayList<CMMStudy>();
+    /**
+     * Parses the records of an XML document read from the given source, such as a file that has been read ahead
+     * of the parser.
+     * @param repo the repository to retrieve the records from.
+     * @param source the source of the XML document.
+     * @param modifiedSince records with a datestamp before this time are skipped, or {@code null} to parse every record.
+     * @return the active records, the tombstones of the deleted records and the IDs of the skipped records.
+     * @throws XMLParseException if an error occurred parsing the XML.
+     * @see #parseRecords(Repo, Path, Instant)
+     */
+    public ParsedRecords parseRecords(Repo repo, XMLSource source, Instant modifiedSince) throws XMLParseException {
+        var path = source.path();
+
+        // Read the headers first, the document is only built if a record needs to be mapped
+        var prescanned = prescan(repo, source, modifiedSince);
+        var request = prescanned.request();
+        var cacheKey = prescanned.cacheKey();
+
+        if (request == null) {
+            // Documents with the same content as a document already mapped are not parsed again
+            if (cacheKey != null) {
+                var cachedDocument = parseCache.get(cacheKey);
+                indexerMetrics.recordParseCache(cachedDocument != null);
+                if (cachedDocument != null) {
+                    log.trace("[{}] {}: Reusing the mapped records of identical content", repo.getCode(), path);
+                    return toParsedRecords(repo, path, cachedDocument, modifiedSince);
+                }
+            }
+
+            // Build the document from the content retained by the prescan if possible, rather than reading it again
+            var document = getDocument(prescanned.content() != null ? prescanned.content() : source);
+
+            // Parse request element to retrieve the base URL of the repository
+            request = parseRecord(repo, path, document);
+        }
+
+        var mappedRecords = new ArrayList<ParseCache.MappedRecord>(request.records().size());
+        var cacheable = true;
 
         for (var record : request.records()) {
             // Short-Circuit. We carry on to parse beyond the headers only if the record is active.
             if ((record.recordHeader() != null && record.recordHeader().isDeleted())) {
-                // Marked as deleted, don't store
+                mappedRecords.add(new ParseCache.MappedRecord(record.recordHeader(), null, null));
                 continue;
             }
+            if (modifiedSince != null && isNotModifiedSince(record.recordHeader(), modifiedSince)) {
+                // Not mapped, so the document can't be reused for a harvest that needs the record
+                mappedRecords.add(new ParseCache.MappedRecord(record.recordHeader(), null, null));
+                cacheable = false;
+                continue;
+            }
+            if (record.recordHeader() == null) {
+                // The study number is derived from the file name, which is not part of the content
+                cacheable = false;
+            }
+            var sample = indexerMetrics.startTimer();
             try {
-                var cmmStudy = mapDDIRecordToCMMStudy(repo, request, record, path);
-                cmmStudies.add(cmmStudy);
+                var cmmStudy = mapDDIRecordToCMMStudy(repo, record, path);
+                mappedRecords.add(new ParseCache.MappedRecord(record.recordHeader(), cmmStudy, null));
             } catch (UnsupportedXMLNamespaceException e) {
-                logUnsupportedNamespace(repo, record, e);
+                mappedRecords.add(new ParseCache.MappedRecord(record.recordHeader(), null, e));
+            } finally {
+                indexerMetrics.stopTimer(sample, IndexerMetrics.Stage.FIELD_EXTRACTION);
+            }
+        }
+
+        var mappedDocument = new ParseCache.MappedDocument(request.baseURL(), mappedRecords);
+        if (cacheKey != null && cacheable) {
+            parseCache.put(cacheKey, mappedDocument);
+        }
+        return toParsedRecords(repo, path, mappedDocument, modifiedSince);
+    }
+
+    /**
+     * Read the rest of a document digested by the prescan, and get its key in the parse cache.
+     *
+     * @throws IOException if the document could not be read.
+     */
+    private ParseCache.Key getCacheKey(Repo repo, ParseCache.DigestingInputStream contentStream) throws IOException {
+        var sample = indexerMetrics.startTimer();
+        try {
+            return contentStream.key(repo);
+        } finally {
+            indexerMetrics.stopTimer(sample, IndexerMetrics.Stage.CONTENT_DIGEST);
+        }
+    }
+
+    /**
+     * Discard the mapped records of all cached documents. This is done when each harvest starts, so that
+     * documents are mapped again by each harvest.
+     */
+    public void clearParseCache() {
+        if (parseCache != null) {
+            parseCache.clear();
+        }
+    }
+
+    /**
+     * Convert the mapped records of a document to the studies, tombstones and skipped studies of a repository.
+     * The fields of each study that depend on the repository are set here, as mapped studies may be shared
+     * between repositories.
+     */
+    private ParsedRecords toParsedRecords(Repo repo, Path path, ParseCache.MappedDocument document, Instant modifiedSince) {
+        var repositoryUrl = getRepositoryUrl(repo, document.baseURL());
+        var cmmStudies = new ArrayList<CMMStudy>();
+        var tombstones = new ArrayList<Tombstone>();
+        var skippedStudyIds = new HashSet<String>();
+
+        for (var record : document.records()) {
+            var header = record.header();
+            if (header != null && header.isDeleted()) {
+                // Marked as deleted, don't store, but record a tombstone so that the study can be deleted
+                var studyNumber = header.getIdentifier();
+                if (studyNumber != null && !studyNumber.isEmpty()) {
+                    tombstones.add(new Tombstone(studyNumber, repositoryUrl, header.getLastModified()));
+                } else {
+                    log.debug("[{}] {}: Deleted record has no identifier", repo.getCode(), path);
+                }
+            } else if (modifiedSince != null && isNotModifiedSince(header, modifiedSince)) {
+                // Unchanged since the last harvest, the indexed study is still current
+                skippedStudyIds.add(StudyIdentifiers.generate(repositoryUrl, header.getIdentifier()));
+            } else if (record.unsupportedNamespace() != null) {
+                logUnsupportedNamespace(repo, header, record.unsupportedNamespace());
+            } else if (record.study() != null) {
+                cmmStudies.add(withRepositoryFields(record.study(), repo, repositoryUrl));
+            }
+        }
+
+        return new ParsedRecords(cmmStudies, tombstones, skippedStudyIds);
+    }
+
+    /**
+     * Set the fields of a study that depend on the repository it was harvested from.
+     */
+    private static CMMStudy withRepositoryFields(CMMStudy cmmStudy, Repo repository, URI repositoryUrl) {
+        URI studyXmlSourceUrl = null;
+        try {
+            //should retrieve from header, if present
+            studyXmlSourceUrl = OaiPmhHelpers.buildGetStudyFullUrl(repository.getUrl(), cmmStudy.getStudyNumber(), repository.getPreferredMetadataParam());
+        } catch (URISyntaxException e) {
+            log.warn("[{}] Study URL for {} couldn't be parsed: {}", repository.getCode(), cmmStudy.getStudyNumber(), e.toString());
+        }
+        return cmmStudy.withRepositoryUrl(repositoryUrl).withStudyXmlSourceUrl(studyXmlSourceUrl);
+    }
+
+    /**
+     * Prescan the headers and metadata namespaces of a document. If no record needs to be mapped, because every
+     * record is deleted, unmodified or in an unsupported namespace, the records are returned without building
+     * the document.
+     * <p>
+     * If the parse cache is enabled, the content is digested and retained as it is prescanned. If the document must
+     * be fully parsed, the rest of the content is read so that the document can be looked up in the cache and built
+     * without reading it again.
+     *
+     * @return the records of the document, or a {@code null} request if the document must be fully parsed.
+     */
+    private Prescanned prescan(Repo repo, XMLSource source, Instant modifiedSince) {
+        var path = source.path();
+        var sample = indexerMetrics.startTimer();
+        try (
+            var contentStream = parseCache != null ? new ParseCache.DigestingInputStream(source.openStream()) : source.openStream();
+            var inputStream = XMLCompression.decompress(contentStream, elapsed -> indexerMetrics.recordTime(IndexerMetrics.Stage.DECOMPRESSION, elapsed))
+        ) {
+            OaiPmhPrescanner.Prescan prescan;
+            try {
+                prescan = OaiPmhPrescanner.prescan(inputStream, prescannedRecord -> requiresMapping(prescannedRecord, modifiedSince));
+            } catch (XMLStreamException e) {
+                // Report errors from the full parse instead
+                log.trace("[{}] {}: Prescan failed: {}", repo.getCode(), path, e.toString());
+                prescan = null;
+            } finally {
+                indexerMetrics.stopTimer(sample, IndexerMetrics.Stage.XML_PRESCAN);
             }
+
+            if (prescan == null || !prescan.oaiPmh() || prescan.requiresParsing()) {
+                if (contentStream instanceof ParseCache.DigestingInputStream digestingStream) {
+                    return new Prescanned(null, getCacheKey(repo, digestingStream), digestingStream.retained(path));
+                }
+                return new Prescanned(null, null, null);
+            }
+            indexerMetrics.recordFile(source.size());
+
+            var records = new ArrayList<Record>(prescan.records().size());
+            for (var prescannedRecord : prescan.records()) {
+                // Only the namespace of the metadata is needed to report that it is unsupported
+                Document metadata = null;
+                if (prescannedRecord.metadataNamespace() != null) {
+                    metadata = new Document(new Element(METADATA, Namespace.getNamespace(prescannedRecord.metadataNamespace())));
+                }
+                records.add(new Record(prescannedRecord.header(), metadata));
+            }
+            return new Prescanned(new Request(parseBaseURL(repo, path, prescan.request()), records), null, null);
+        } catch (IOException e) {
+            // Report errors from the full parse instead
+            log.trace("[{}] {}: Prescan failed: {}", repo.getCode(), path, e.toString());
+            return new Prescanned(null, null, null);
         }
+    }
+
+    /**
+     * The result of a prescan.
+     *
+     * @param request  the records of the document, or {@code null} if the document must be fully parsed.
+     * @param cacheKey the key of the document in the parse cache, or {@code null} if the document is not
+     *                 looked up in the cache.
+     * @param content  the content of the document read by the prescan, or {@code null} if it was not retained.
+     */
+    private record Prescanned(Request request, ParseCache.Key cacheKey, XMLSource content) {
+    }
 
-        return cmmStudies;
+    /**
+     * Returns {@code true} if a prescanned record is active, modified since the given time and in a supported namespace.
+     */
+    private static boolean requiresMapping(OaiPmhPrescanner.PrescannedRecord prescannedRecord, Instant modifiedSince) {
+        var header = prescannedRecord.header();
+        if (header == null) {
+            // The study number is derived from the file name
+            return true;
+        }
+        if (header.isDeleted() || (modifiedSince != null && isNotModifiedSince(header, modifiedSince))) {
+            return false;
+        }
+        var metadataNamespace = prescannedRecord.metadataNamespace();
+        return metadataNamespace == null || XPaths.isSupported(Namespace.getNamespace(metadataNamespace));
     }
 
-    private void logUnsupportedNamespace(Repo repo, Record record, UnsupportedXMLNamespaceException e) {
+    /**
+     * Returns {@code true} if the record has an identifier and a datestamp before the given time.
+     */
+    private static boolean isNotModifiedSince(RecordHeader header, Instant modifiedSince) {
+        if (header == null || header.getIdentifier() == null || header.getIdentifier().isEmpty()) {
+            return false;
+        }
+        return TimeUtility.parseDatestamp(header.getLastModified())
+            .map(datestamp -> datestamp.isBefore(modifiedSince))
+            .orElse(false);
+    }
+
+    /**
+     * Get the URL of the repository, preferring the base URL of the OAI-PMH request if present.
+     */
+    private static URI getRepositoryUrl(Repo repository, URI baseURL) {
+        if (baseURL != null) {
+            return baseURL;
+        } else {
+            return repository.getUrl();
+        }
+    }
+
+    private void logUnsupportedNamespace(Repo repo, RecordHeader recordHeader, UnsupportedXMLNamespaceException e) {
         // Only initialise if required
         if (suppressedNamespaceWarnings == null) {
             suppressedNamespaceWarnings = ConcurrentHashMap.newKeySet();
         }
         if (suppressedNamespaceWarnings.add(Map.entry(repo.getCode(), e.getNamespace()))) {
             // Only log on first encounter with this namespace
-            var recordIdentifier = record.recordHeader() != null ? record.recordHeader().getIdentifier() : null;
+            var recordIdentifier = recordHeader != null ? recordHeader.getIdentifier() : null;
             log.warn("[{}]: {} cannot be parsed: {}. Further reports for this namespace have been suppressed.", repo.getCode(), recordIdentifier, e.getMessage());
         }
     }
@@ -170,13 +447,7 @@ public class RecordXMLParser {
 
             // Parse request element
             var elem = document.getRootElement().getChild("request", OaiPmhConstants.OAI_NS);
-
-            URI baseURL = null;
-            try {
-                baseURL = new URI(elem.getTextTrim());
-            } catch (URISyntaxException e) {
-                log.warn("{}: {}: {} could not be parsed as a URL: {}", repo.getCode(), path, elem.getText(), e.toString());
-            }
+            var baseURL = parseBaseURL(repo, path, elem.getTextTrim());
             
             // Find all records, iterate through them
             var elements = DocElementParser.getElements(document, OaiPmhConstants.RECORD_ELEMENT, OaiPmhConstants.OAI_NS);
@@ -205,16 +476,32 @@ public class RecordXMLParser {
         }
     }
 
+    /**
+     * Parse the text of the request element as the base URL of the repository.
+     *
+     * @return the base URL, or {@code null} if the request element was not present or could not be parsed.
+     */
+    private static URI parseBaseURL(Repo repo, Path path, String request) {
+        if (request == null) {
+            return null;
+        }
+        try {
+            return new URI(request);
+        } catch (URISyntaxException e) {
+            log.warn("{}: {}: {} could not be parsed as a URL: {}", repo.getCode(), path, request, e.toString());
+            return null;
+        }
+    }
+
     /**
      * Convert a {@link Document} to a {@link CMMStudy}.
      *
      * @param repository the source repository.
-     * @param request the request element from the OAI-PMH response.
      * @param record   the {@link Record} to convert.
      * @param path the path of the source XML.
      */
     @SuppressWarnings("UnstableApiUsage")
-    private CMMStudy mapDDIRecordToCMMStudy(Repo repository, Request request, Record record, Path path) {
+    private CMMStudy mapDDIRecordToCMMStudy(Repo repository, Record record, Path path) {
 
         CMMStudy.CMMStudyBuilder builder = CMMStudy.builder();
 
@@ -226,7 +513,7 @@ public class RecordXMLParser {
             lastModified = record.recordHeader().getLastModified();
         } else {
             // Derive the study number from the file name, set last modified to the current time
-            studyNumber = getNameWithoutExtension(path.toString());
+            studyNumber = XMLCompression.getBaseName(path);
             lastModified = LocalDateTime.now().toString();
         }
 
@@ -290,21 +577,6 @@ public class RecordXMLParser {
             builder.relatedPublications(cmmStudyMapper.parseRelatedPublications(metadata, xPaths, defaultLangIsoCode));
         }
 
-        URI repositoryUrl;
-        if (request.baseURL() != null) {
-            repositoryUrl = request.baseURL();
-        } else {
-            repositoryUrl = repository.getUrl();
-        }
-        builder.repositoryUrl(repositoryUrl);
-
-        try {
-            //should retrieve from header, if present
-            builder.studyXmlSourceUrl(OaiPmhHelpers.buildGetStudyFullUrl(repository.getUrl(), studyNumber, repository.getPreferredMetadataParam()));
-        } catch (URISyntaxException e) {
-            log.warn("[{}] Study URL for {} couldn't be parsed: {}", repository.getCode(), studyNumber, e.toString());
-        }
-
         return builder.build();
     }
 }
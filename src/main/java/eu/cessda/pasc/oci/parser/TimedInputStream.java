@@ -0,0 +1,79 @@
+/*
+ * Copyright © 2017-2023 CESSDA ERIC (support@cessda.eu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.cessda.pasc.oci.parser;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.function.LongConsumer;
+
+/**
+ * Measures the time spent reading from a stream, such as a decompressing stream. The total is reported
+ * when the stream is closed.
+ */
+class TimedInputStream extends FilterInputStream {
+
+    private final LongConsumer timer;
+    private long elapsedNanos = 0;
+    private boolean closed = false;
+
+    TimedInputStream(InputStream in, LongConsumer timer) {
+        super(in);
+        this.timer = timer;
+    }
+
+    @Override
+    public int read() throws IOException {
+        var start = System.nanoTime();
+        try {
+            return super.read();
+        } finally {
+            elapsedNanos += System.nanoTime() - start;
+        }
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        var start = System.nanoTime();
+        try {
+            return super.read(b, off, len);
+        } finally {
+            elapsedNanos += System.nanoTime() - start;
+        }
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        var start = System.nanoTime();
+        try {
+            return super.skip(n);
+        } finally {
+            elapsedNanos += System.nanoTime() - start;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            super.close();
+        } finally {
+            if (!closed) {
+                closed = true;
+                timer.accept(elapsedNanos);
+            }
+        }
+    }
+}
@@ -0,0 +1,340 @@
+/*
+ * Copyright © 2017-2023 CESSDA ERIC (support@cessda.eu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.cessda.pasc.oci.parser;
+
+import lombok.experimental.UtilityClass;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Reads the XML files held in a zip or tar archive without extracting them.
+ * <p>
+ * Entries are returned in the order they are stored in the archive. Each entry is identified by the path of
+ * the archive resolved against the entry's name, so that the file name of the entry can still be used to derive
+ * the study number of records without a header. Entries that are not XML files are ignored.
+ */
+@UtilityClass
+public class XMLArchives {
+
+    private static final List<String> ZIP_EXTENSIONS = List.of(".zip");
+    private static final List<String> TAR_EXTENSIONS = List.of(".tar", ".tar.gz", ".tgz", ".tar.zst");
+
+    /**
+     * Returns {@code true} if the file is named as a supported archive.
+     */
+    public static boolean isArchive(Path path) {
+        return isZip(path) || isTar(path);
+    }
+
+    private static boolean isZip(Path path) {
+        return hasExtension(path, ZIP_EXTENSIONS);
+    }
+
+    private static boolean isTar(Path path) {
+        return hasExtension(path, TAR_EXTENSIONS);
+    }
+
+    private static boolean hasExtension(Path path, List<String> extensions) {
+        var fileName = path.getFileName();
+        return fileName != null && extensions.stream().anyMatch(fileName.toString()::endsWith);
+    }
+
+    /**
+     * Open an archive and stream the XML files it contains. The stream must be closed to close the archive.
+     * <p>
+     * Zip entries are read from the archive when they are opened. Tar archives can only be read sequentially,
+     * so each tar entry is read into memory as the stream advances. If a tar archive is truncated or corrupt,
+     * the entry being read reports the error when opened, and the stream ends. A tar archive that ends without
+     * an end of archive marker is treated as truncated.
+     * <p>
+     * Errors reading the archive are also passed to the error handler, as the entries of a corrupt archive
+     * may not be returned at all.
+     *
+     * @param archive            the path to the archive.
+     * @param decompressionTimer receives the time spent decompressing a compressed tar archive.
+     * @param errorHandler       receives errors reading the archive.
+     * @return the XML files in the archive.
+     * @throws IOException if the archive could not be opened.
+     */
+    public static Stream<XMLSource> open(Path archive, LongConsumer decompressionTimer, Consumer<IOException> errorHandler) throws IOException {
+        if (isZip(archive)) {
+            return openZip(archive, errorHandler);
+        } else if (isTar(archive)) {
+            return openTar(archive, decompressionTimer, errorHandler);
+        } else {
+            throw new IOException(archive + " is not a supported archive");
+        }
+    }
+
+    private static Stream<XMLSource> openZip(Path archive, Consumer<IOException> errorHandler) throws IOException {
+        var zipFile = new ZipFile(archive.toFile());
+        return zipFile.stream()
+            .filter(entry -> !entry.isDirectory() && XMLCompression.isXMLFile(Path.of(entry.getName())))
+            .<XMLSource>map(entry -> new ZipEntrySource(zipFile, entry, resolveEntry(archive, entry.getName()), errorHandler))
+            .onClose(() -> {
+                try {
+                    zipFile.close();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+    }
+
+    private static Stream<XMLSource> openTar(Path archive, LongConsumer decompressionTimer, Consumer<IOException> errorHandler) throws IOException {
+        var inputStream = Files.newInputStream(archive);
+        EndMarkerInputStream endMarkerStream;
+        TarArchiveInputStream tarStream;
+        try {
+            endMarkerStream = new EndMarkerInputStream(XMLCompression.decompress(inputStream, decompressionTimer));
+            tarStream = new TarArchiveInputStream(endMarkerStream);
+        } catch (IOException | RuntimeException e) {
+            inputStream.close();
+            throw e;
+        }
+        return StreamSupport.stream(new TarEntrySpliterator(archive, tarStream, endMarkerStream, errorHandler), false).onClose(() -> {
+            try {
+                tarStream.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    /**
+     * Resolve the name of an entry against the path of its archive. The result is only used to identify the
+     * entry and is never opened, leading separators are removed so that the archive's path is kept.
+     */
+    static Path resolveEntry(Path archive, String entryName) {
+        var relativeName = entryName.replaceFirst("^/+", "");
+        return archive.resolve(relativeName).normalize();
+    }
+
+    /**
+     * A zip entry, read from the archive each time it is opened. Errors reading the entry are passed
+     * to the error handler.
+     */
+    private record ZipEntrySource(ZipFile zipFile, ZipEntry entry, Path path, Consumer<IOException> errorHandler) implements XMLSource {
+        @Override
+        public long size() {
+            return entry.getSize();
+        }
+
+        @Override
+        public InputStream openStream() throws IOException {
+            try {
+                return new ErrorReportingInputStream(zipFile.getInputStream(entry), errorHandler);
+            } catch (IOException e) {
+                errorHandler.accept(e);
+                throw e;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return path.toString();
+        }
+    }
+
+    /**
+     * A tar entry that has been read into memory, or the error that stopped it from being read.
+     */
+    private record TarEntrySource(Path path, byte[] content, IOException exception) implements XMLSource {
+        @Override
+        public long size() throws IOException {
+            if (exception != null) {
+                throw exception;
+            }
+            return content.length;
+        }
+
+        @Override
+        public InputStream openStream() throws IOException {
+            if (exception != null) {
+                throw exception;
+            }
+            return new ByteBufferInputStream(ByteBuffer.wrap(content));
+        }
+
+        @Override
+        public String toString() {
+            return path.toString();
+        }
+    }
+
+    /**
+     * Passes errors reading a stream to an error handler.
+     */
+    private static class ErrorReportingInputStream extends FilterInputStream {
+
+        private final Consumer<IOException> errorHandler;
+
+        ErrorReportingInputStream(InputStream in, Consumer<IOException> errorHandler) {
+            super(in);
+            this.errorHandler = errorHandler;
+        }
+
+        @Override
+        public int read() throws IOException {
+            try {
+                return super.read();
+            } catch (IOException e) {
+                errorHandler.accept(e);
+                throw e;
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            try {
+                return super.read(b, off, len);
+            } catch (IOException e) {
+                errorHandler.accept(e);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Tracks whether a tar archive ended with an end of archive marker, a record of zeros. The tar reader
+     * treats the end of the stream the same as the marker, so a tar archive truncated between entries would
+     * otherwise be indistinguishable from a complete archive.
+     */
+    private static class EndMarkerInputStream extends FilterInputStream {
+
+        private static final int RECORD_SIZE = 512;
+
+        /**
+         * The amount of consecutive zero bytes at the end of the bytes read so far.
+         */
+        private long trailingZeros = 0;
+        private byte[] skipBuffer;
+
+        EndMarkerInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            var b = super.read();
+            if (b == 0) {
+                trailingZeros++;
+            } else if (b > 0) {
+                trailingZeros = 0;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            var read = super.read(b, off, len);
+            if (read > 0) {
+                var zeros = 0;
+                while (zeros < read && b[off + read - 1 - zeros] == 0) {
+                    zeros++;
+                }
+                trailingZeros = zeros == read ? trailingZeros + zeros : zeros;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // The padding at the end of the archive is skipped, so skipped bytes are read to be counted
+            if (skipBuffer == null) {
+                skipBuffer = new byte[RECORD_SIZE * 16];
+            }
+            long skipped = 0;
+            while (skipped < n) {
+                var read = read(skipBuffer, 0, (int) Math.min(skipBuffer.length, n - skipped));
+                if (read < 0) {
+                    break;
+                }
+                skipped += read;
+            }
+            return skipped;
+        }
+
+        boolean endedWithMarker() {
+            return trailingZeros >= RECORD_SIZE;
+        }
+    }
+
+    /**
+     * Reads the XML entries of a tar archive in order.
+     */
+    private static class TarEntrySpliterator extends Spliterators.AbstractSpliterator<XMLSource> {
+
+        private final Path archive;
+        private final TarArchiveInputStream tarStream;
+        private final EndMarkerInputStream endMarkerStream;
+        private final Consumer<IOException> errorHandler;
+        private boolean failed = false;
+
+        TarEntrySpliterator(Path archive, TarArchiveInputStream tarStream, EndMarkerInputStream endMarkerStream, Consumer<IOException> errorHandler) {
+            super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL);
+            this.archive = archive;
+            this.tarStream = tarStream;
+            this.endMarkerStream = endMarkerStream;
+            this.errorHandler = errorHandler;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super XMLSource> action) {
+            if (failed) {
+                return false;
+            }
+
+            var entryPath = archive;
+            try {
+                TarArchiveEntry entry;
+                while ((entry = tarStream.getNextTarEntry()) != null) {
+                    entryPath = resolveEntry(archive, entry.getName());
+                    if (entry.isFile() && XMLCompression.isXMLFile(entryPath)) {
+                        action.accept(new TarEntrySource(entryPath, tarStream.readAllBytes(), null));
+                        return true;
+                    }
+                }
+                if (!endMarkerStream.endedWithMarker()) {
+                    throw new IOException("Truncated TAR archive, the end of archive marker is missing");
+                }
+                return false;
+            } catch (IOException e) {
+                // The rest of the archive can't be read, report the error against the entry being read
+                failed = true;
+                errorHandler.accept(e);
+                action.accept(new TarEntrySource(entryPath, null, e));
+                return true;
+            }
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright © 2017-2023 CESSDA ERIC (support@cessda.eu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.cessda.pasc.oci.parser;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.primitives.Bytes;
+import org.apache.commons.compress.compressors.zstandard.ZstdCompressorInputStream;
+import org.apache.commons.compress.compressors.zstandard.ZstdUtils;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.function.LongConsumer;
+import java.util.zip.GZIPInputStream;
+
+import static com.google.common.io.Files.getNameWithoutExtension;
+
+/**
+ * The compression formats supported for source files. The format of a file is detected from its content,
+ * the file name is only used to select the files to harvest.
+ */
+public enum XMLCompression {
+    NONE("") {
+        @Override
+        InputStream decompress(InputStream inputStream) {
+            return inputStream;
+        }
+    },
+    GZIP(".gz", (byte) 0x1F, (byte) 0x8B) {
+        @Override
+        InputStream decompress(InputStream inputStream) throws IOException {
+            return new GZIPInputStream(inputStream, BUFFER_SIZE);
+        }
+    },
+    ZSTD(".zst", (byte) 0x28, (byte) 0xB5, (byte) 0x2F, (byte) 0xFD) {
+        @Override
+        InputStream decompress(InputStream inputStream) throws IOException {
+            if (!ZstdUtils.isZstdCompressionAvailable()) {
+                throw new IOException("Zstandard compressed files require zstd-jni to be on the classpath");
+            }
+            return new ZstdCompressorInputStream(inputStream);
+        }
+    };
+
+    private static final String XML_EXTENSION = ".xml";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAGIC_LENGTH = 4;
+
+    private final String fileExtension;
+    private final ImmutableList<Byte> magic;
+
+    XMLCompression(String fileExtension, byte... magic) {
+        this.fileExtension = fileExtension;
+        this.magic = ImmutableList.copyOf(Bytes.asList(magic));
+    }
+
+    /**
+     * Wrap a stream in a decompressing stream.
+     */
+    abstract InputStream decompress(InputStream inputStream) throws IOException;
+
+    /**
+     * Get the compression format of the given bytes from the start of a file.
+     *
+     * @param header the bytes from the start of the file.
+     * @param length the amount of bytes read.
+     */
+    static XMLCompression detect(byte[] header, int length) {
+        for (var compression : values()) {
+            if (compression.matches(header, length)) {
+                return compression;
+            }
+        }
+        return NONE;
+    }
+
+    /**
+     * Returns {@code true} if the given bytes start with the magic number of this format. Always {@code false}
+     * for formats without a magic number.
+     */
+    private boolean matches(byte[] header, int length) {
+        if (magic.isEmpty() || length < magic.size()) {
+            return false;
+        }
+        for (int i = 0; i < magic.size(); i++) {
+            if (header[i] != magic.get(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Detect the compression format of a stream and return a stream of the decompressed content. Uncompressed
+     * content is returned as is.
+     *
+     * @param inputStream         the stream to decompress.
+     * @param decompressionTimer  receives the time in nanoseconds spent decompressing when the returned stream
+     *                            is closed. Not called for uncompressed content.
+     * @throws IOException if the stream could not be read, or the compression format is not supported.
+     */
+    public static InputStream decompress(InputStream inputStream, LongConsumer decompressionTimer) throws IOException {
+        var bufferedStream = new BufferedInputStream(inputStream, BUFFER_SIZE);
+        bufferedStream.mark(MAGIC_LENGTH);
+        var header = bufferedStream.readNBytes(MAGIC_LENGTH);
+        bufferedStream.reset();
+
+        var compression = detect(header, header.length);
+        if (compression == NONE) {
+            return bufferedStream;
+        }
+        return new TimedInputStream(compression.decompress(bufferedStream), decompressionTimer);
+    }
+
+    /**
+     * Returns {@code true} if the file is named as an XML file, optionally with the extension of a supported
+     * compression format, such as {@code study.xml} or {@code study.xml.gz}.
+     */
+    public static boolean isXMLFile(Path path) {
+        var fileName = path.getFileName();
+        return fileName != null && getNameWithoutExtensions(fileName.toString()) != null;
+    }
+
+    /**
+     * Get the file name of a source file without its XML and compression extensions. The study number of records
+     * without a header is derived from this.
+     *
+     * @return the base name, or the file name without its last extension if it is not named as an XML file.
+     */
+    public static String getBaseName(Path path) {
+        var fileName = path.getFileName().toString();
+        var baseName = getNameWithoutExtensions(fileName);
+        return baseName != null ? baseName : getNameWithoutExtension(fileName);
+    }
+
+    private static String getNameWithoutExtensions(String fileName) {
+        for (var compression : values()) {
+            var extension = XML_EXTENSION + compression.fileExtension;
+            if (fileName.endsWith(extension)) {
+                return fileName.substring(0, fileName.length() - extension.length());
+            }
+        }
+        return null;
+    }
+}
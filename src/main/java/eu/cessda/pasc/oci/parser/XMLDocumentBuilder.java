@@ -0,0 +1,38 @@
+/*
+ * Copyright © 2017-2023 CESSDA ERIC (support@cessda.eu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.cessda.pasc.oci.parser;
+
+import org.jdom2.Document;
+import org.jdom2.JDOMException;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Builds JDOM documents from XML. Implementations must not load external DTDs, entities or schemas.
+ */
+public interface XMLDocumentBuilder {
+
+    /**
+     * Build a document from an input stream.
+     *
+     * @param inputStream the XML to parse.
+     * @return the parsed document.
+     * @throws IOException   if an IO error occurs reading the stream.
+     * @throws JDOMException if the XML is not well-formed.
+     */
+    Document build(InputStream inputStream) throws IOException, JDOMException;
+}
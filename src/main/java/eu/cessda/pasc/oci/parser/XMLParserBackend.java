@@ -0,0 +1,62 @@
+/*
+ * Copyright © 2017-2023 CESSDA ERIC (support@cessda.eu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.cessda.pasc.oci.parser;
+
+import org.jdom2.JDOMException;
+import org.jdom2.input.StAXStreamBuilder;
+
+import javax.xml.stream.XMLStreamException;
+
+/**
+ * The XML parsers that can be used to build JDOM documents.
+ */
+public enum XMLParserBackend {
+    /**
+     * JDOM's {@link org.jdom2.input.SAXBuilder} over the JDK's SAX parser.
+     */
+    SAX {
+        @Override
+        public XMLDocumentBuilder newDocumentBuilder() {
+            return inputStream -> OaiPmhHelpers.getSaxBuilder().build(inputStream);
+        }
+    },
+    /**
+     * JDOM's {@link StAXStreamBuilder} over the JDK's StAX parser. Documents with a DTD internal subset
+     * are rejected.
+     */
+    STAX {
+        @Override
+        public XMLDocumentBuilder newDocumentBuilder() {
+            return inputStream -> {
+                try {
+                    var reader = OaiPmhHelpers.getXMLInputFactory().createXMLStreamReader(inputStream);
+                    try {
+                        return new StAXStreamBuilder().build(reader);
+                    } finally {
+                        reader.close();
+                    }
+                } catch (XMLStreamException e) {
+                    throw new JDOMException(e.getMessage(), e);
+                }
+            };
+        }
+    };
+
+    /**
+     * Create a document builder using this parser. The builder is thread-safe.
+     */
+    public abstract XMLDocumentBuilder newDocumentBuilder();
+}
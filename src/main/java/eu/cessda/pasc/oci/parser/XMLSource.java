@@ -0,0 +1,83 @@
+/*
+ * Copyright © 2017-2023 CESSDA ERIC (support@cessda.eu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.cessda.pasc.oci.parser;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * A source of XML to be parsed. The source can be opened multiple times, such as to prescan the document
+ * before it is fully parsed. Sources holding buffers release them when closed.
+ */
+public interface XMLSource extends AutoCloseable {
+
+    /**
+     * Get the path the XML was read from. This is used to identify the source in logs, and to derive the
+     * study number of records without a header.
+     */
+    Path path();
+
+    /**
+     * Get the size of the XML in bytes.
+     *
+     * @throws IOException if an IO error occurs.
+     */
+    long size() throws IOException;
+
+    /**
+     * Open a new stream over the XML.
+     *
+     * @throws IOException if an IO error occurs.
+     */
+    InputStream openStream() throws IOException;
+
+    /**
+     * Release any resources held by this source. The source must not be opened after it has been closed.
+     */
+    @Override
+    default void close() {
+        // Nothing to release by default
+    }
+
+    /**
+     * Create a source that reads the file at the given path when opened.
+     */
+    static XMLSource of(Path path) {
+        return new XMLSource() {
+            @Override
+            public Path path() {
+                return path;
+            }
+
+            @Override
+            public long size() throws IOException {
+                return Files.size(path);
+            }
+
+            @Override
+            public InputStream openStream() throws IOException {
+                return Files.newInputStream(path);
+            }
+
+            @Override
+            public String toString() {
+                return path.toString();
+            }
+        };
+    }
+}
@@ -155,6 +155,13 @@ public final class XPaths implements Serializable {
         Map.entry(NESSTAR_XPATHS.getNamespace(), NESSTAR_XPATHS)
     );
 
+    /**
+     * Returns {@code true} if XPaths are defined for the given XML namespace
+     */
+    public static boolean isSupported(Namespace namespace) {
+        return XPATH_MAP.containsKey(namespace);
+    }
+
     /**
      * Get the XPaths for a given XML namespace
      *
@@ -0,0 +1,114 @@
+/*
+ * Copyright © 2017-2023 CESSDA ERIC (support@cessda.eu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.cessda.pasc.oci.service;
+
+import eu.cessda.pasc.oci.LoggingConstants;
+import lombok.extern.slf4j.Slf4j;
+import org.slf4j.MDC;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedOperationParameter;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Service;
+
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Exposes the live progress of the running harvest over JMX.
+ */
+@Service
+@ManagedResource(description = "Live progress of the running harvest")
+@Slf4j
+public class HarvestProgress {
+
+    private final Map<String, RepositoryProgress> repositories = new ConcurrentHashMap<>();
+
+    /**
+     * Remove the progress of all previously harvested repositories.
+     */
+    public void clear() {
+        repositories.clear();
+    }
+
+    /**
+     * Start tracking the progress of a repository. Any existing progress for the repository is replaced.
+     *
+     * @param code the code of the repository.
+     * @return the progress tracker for the repository.
+     */
+    public RepositoryProgress register(String code) {
+        var progress = new RepositoryProgress(code);
+        repositories.put(code, progress);
+        return progress;
+    }
+
+    /**
+     * Get the progress of a repository.
+     *
+     * @param code the code of the repository.
+     */
+    public Optional<RepositoryProgress> getRepository(String code) {
+        return Optional.ofNullable(repositories.get(code));
+    }
+
+    /**
+     * Get the progress of the repository currently being processed by this thread, as set in the MDC.
+     */
+    public Optional<RepositoryProgress> getCurrentRepository() {
+        var code = MDC.get(LoggingConstants.REPO_NAME);
+        if (code == null) {
+            return Optional.empty();
+        }
+        return getRepository(code);
+    }
+
+    @ManagedAttribute(description = "The progress of each repository in the current harvest")
+    public String[] getRepositoryProgress() {
+        return repositories.values().stream()
+            .sorted(Comparator.comparing(RepositoryProgress::getCode))
+            .map(RepositoryProgress::toString)
+            .toArray(String[]::new);
+    }
+
+    @ManagedAttribute(description = "The amount of repositories currently being processed")
+    public long getActiveRepositories() {
+        return repositories.values().stream().filter(progress -> switch (progress.getStage()) {
+            case DISCOVERING, PARSING, INDEXING -> true;
+            default -> false;
+        }).count();
+    }
+
+    @ManagedOperation(description = "Prints out the progress of a repository")
+    @ManagedOperationParameter(name = "code", description = "The code of the repository")
+    public String printRepositoryProgress(String code) {
+        return getRepository(code).map(RepositoryProgress::toString).orElse(code + ": not found");
+    }
+
+    @ManagedOperation(description = "Cancels the harvest of a repository")
+    @ManagedOperationParameter(name = "code", description = "The code of the repository")
+    public boolean cancelRepository(String code) {
+        var progress = repositories.get(code);
+        if (progress != null) {
+            log.info("[{}] Cancellation requested", code);
+            progress.cancel();
+            return true;
+        }
+        return false;
+    }
+}
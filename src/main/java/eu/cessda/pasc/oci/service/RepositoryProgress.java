@@ -0,0 +1,195 @@
+/*
+ * Copyright © 2017-2023 CESSDA ERIC (support@cessda.eu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.cessda.pasc.oci.service;
+
+import lombok.Getter;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Tracks the progress of a single repository while it is being harvested.
+ * <p>
+ * Instances are safe to update from multiple threads.
+ */
+public class RepositoryProgress {
+
+    @Getter
+    private final String code;
+    @Getter
+    private final Instant startTime;
+
+    private final AtomicLong filesSeen = new AtomicLong();
+    private final AtomicLong filesParsed = new AtomicLong();
+    private final Map<String, LongAdder> studiesPerLanguage = new ConcurrentHashMap<>();
+    private final AtomicLong bulkRequestsInFlight = new AtomicLong();
+    private final AtomicLong documentsAcknowledged = new AtomicLong();
+
+    @Getter
+    private volatile Stage stage = Stage.QUEUED;
+    private volatile Instant stageStartTime;
+    private volatile Instant endTime;
+    private volatile boolean cancelled;
+
+    public RepositoryProgress(String code) {
+        this.code = code;
+        this.startTime = Instant.now();
+        this.stageStartTime = startTime;
+    }
+
+    /**
+     * Move the repository to the given stage.
+     */
+    public void setStage(Stage stage) {
+        this.stageStartTime = Instant.now();
+        this.stage = stage;
+        if (stage == Stage.FINISHED || stage == Stage.CANCELLED || stage == Stage.FAILED) {
+            endTime = stageStartTime;
+        }
+    }
+
+    public void addFilesSeen(long files) {
+        filesSeen.addAndGet(files);
+    }
+
+    public void incrementFilesParsed() {
+        filesParsed.incrementAndGet();
+    }
+
+    public void addStudies(String language, long studies) {
+        studiesPerLanguage.computeIfAbsent(language, k -> new LongAdder()).add(studies);
+    }
+
+    public void bulkRequestStarted() {
+        bulkRequestsInFlight.incrementAndGet();
+    }
+
+    /**
+     * Record the completion of a bulk request.
+     *
+     * @param acknowledged the amount of documents acknowledged by Elasticsearch.
+     */
+    public void bulkRequestFinished(long acknowledged) {
+        bulkRequestsInFlight.decrementAndGet();
+        documentsAcknowledged.addAndGet(acknowledged);
+    }
+
+    public long getFilesSeen() {
+        return filesSeen.get();
+    }
+
+    public long getFilesParsed() {
+        return filesParsed.get();
+    }
+
+    /**
+     * Get the amount of studies extracted for each language, sorted by language.
+     */
+    public Map<String, Long> getStudiesPerLanguage() {
+        var studies = new TreeMap<String, Long>();
+        studiesPerLanguage.forEach((lang, adder) -> studies.put(lang, adder.sum()));
+        return studies;
+    }
+
+    public long getBulkRequestsInFlight() {
+        return bulkRequestsInFlight.get();
+    }
+
+    public long getDocumentsAcknowledged() {
+        return documentsAcknowledged.get();
+    }
+
+    /**
+     * Request that processing of the repository stops at the next opportunity.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Get the time the repository has been processing for.
+     */
+    public Duration getElapsed() {
+        var end = endTime != null ? endTime : Instant.now();
+        return Duration.between(startTime, end);
+    }
+
+    /**
+     * Estimate the time remaining in the current stage from the throughput observed so far.
+     *
+     * @return the estimated time remaining, or an empty optional if no estimate can be made.
+     */
+    public Optional<Duration> getEstimatedTimeRemaining() {
+        final long done;
+        final long total;
+        switch (stage) {
+            case PARSING -> {
+                done = filesParsed.get();
+                total = filesSeen.get();
+            }
+            case INDEXING -> {
+                done = documentsAcknowledged.get();
+                total = studiesPerLanguage.values().stream().mapToLong(LongAdder::sum).sum();
+            }
+            default -> {
+                return Optional.empty();
+            }
+        }
+
+        var elapsed = Duration.between(stageStartTime, Instant.now());
+        if (done <= 0 || elapsed.isZero()) {
+            return Optional.empty();
+        }
+
+        var remaining = Math.max(total - done, 0);
+        return Optional.of(Duration.ofMillis(elapsed.toMillis() * remaining / done));
+    }
+
+    @Override
+    public String toString() {
+        return code + ": stage=" + stage +
+            ", files=" + getFilesParsed() + "/" + getFilesSeen() +
+            ", studies=" + getStudiesPerLanguage() +
+            ", bulkRequestsInFlight=" + getBulkRequestsInFlight() +
+            ", documentsAcknowledged=" + getDocumentsAcknowledged() +
+            ", elapsed=" + Duration.ofSeconds(getElapsed().getSeconds()) +
+            ", eta=" + getEstimatedTimeRemaining().map(d -> Duration.ofSeconds(d.getSeconds()).toString()).orElse("unknown") +
+            (cancelled ? ", cancelled" : "");
+    }
+
+    /**
+     * The stages a repository passes through during a harvest.
+     */
+    public enum Stage {
+        QUEUED,
+        DISCOVERING,
+        PARSING,
+        INDEXING,
+        FINISHED,
+        CANCELLED,
+        FAILED
+    }
+}
@@ -22,22 +22,36 @@ import eu.cessda.pasc.oci.configurations.AppConfigurationProperties;
 import eu.cessda.pasc.oci.elasticsearch.IndexingException;
 import eu.cessda.pasc.oci.elasticsearch.IngestService;
 import eu.cessda.pasc.oci.exception.IndexerException;
+import eu.cessda.pasc.oci.models.ParsedRecords;
 import eu.cessda.pasc.oci.models.RecordHeader;
+import eu.cessda.pasc.oci.models.cmmstudy.CMMStudyOfLanguage;
 import eu.cessda.pasc.oci.models.configurations.Repo;
+import eu.cessda.pasc.oci.parser.FilePrefetcher;
 import eu.cessda.pasc.oci.parser.RecordXMLParser;
+import eu.cessda.pasc.oci.parser.XMLSource;
 import eu.cessda.pasc.oci.service.DebuggingJMXBean;
+import eu.cessda.pasc.oci.service.HarvestProgress;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
+import org.slf4j.MDC;
 
 import java.io.IOException;
-import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static eu.cessda.pasc.oci.mock.data.RecordTestData.*;
 import static eu.cessda.pasc.oci.mock.data.ReposTestData.getSingleEndpoint;
 import static eu.cessda.pasc.oci.mock.data.ReposTestData.getUKDSRepo;
+import static org.junit.Assert.assertEquals;
 import static org.mockito.Mockito.*;
 
 
@@ -53,14 +67,24 @@ public class ConsumerSchedulerTest {
     private final PipelineUtilities pipelineUtilities = mock(PipelineUtilities.class);
     private final LanguageExtractor extractor = new LanguageExtractor(appConfigurationProperties);
     private final RecordXMLParser recordXMLParser = mock(RecordXMLParser.class);
+    private final IndexerMetrics indexerMetrics = new IndexerMetrics(new SimpleMeterRegistry());
+    private final HarvestProgress harvestProgress = new HarvestProgress();
 
     private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    // Reports are not written as no report directory is configured
+    private final RunReporter runReporter = new RunReporter(new AppConfigurationProperties(), indexerMetrics, objectMapper);
+    private final RepositoryStatistics repositoryStatistics = new RepositoryStatistics(appConfigurationProperties, objectMapper);
+    private final HarvestCheckpoint harvestCheckpoint = new HarvestCheckpoint(appConfigurationProperties, objectMapper);
+    private final DryRunReporter dryRunReporter = new DryRunReporter(new AppConfigurationProperties(), esIndexer, objectMapper);
+    private final HarvestWatermark harvestWatermark = new HarvestWatermark(new AppConfigurationProperties(), esIndexer);
     private static final CollectionType RECORD_HEADER_LIST = objectMapper.getTypeFactory().constructCollectionType(List.class, RecordHeader.class);
 
     public ConsumerSchedulerTest() {
         // mock for configuration of our repos
         when(appConfigurationProperties.getEndpoints()).thenReturn(getSingleEndpoint());
         when(appConfigurationProperties.getLanguages()).thenReturn(List.of("cs", "da", "de", "el", "en", "et", "fi", "fr", "hu", "it", "nl", "no", "pt", "sk", "sl", "sr", "sv"));
+        when(pipelineUtilities.discover(any())).thenReturn(new PipelineUtilities.DiscoveredRepositories(List.of(), true));
     }
 
     private DebuggingJMXBean mockDebuggingJMXBean() throws IOException {
@@ -81,11 +105,11 @@ public class ConsumerSchedulerTest {
         when(esIndexer.getStudy(Mockito.anyString(), Mockito.anyString())).thenReturn(Optional.empty());
 
         // Mock requests for indexed repository content
-        when(esIndexer.getStudiesByRepository(anyString(), anyString())).thenReturn(Collections.emptySet());
+        when(esIndexer.getStudyIdsByRepository(anyString())).thenReturn(Collections.emptyMap());
 
         // Given
-        var harvesterRunner = new IndexerRunner(appConfigurationProperties, harvesterConsumerService, pipelineUtilities, esIndexer);
-        var scheduler = new ConsumerScheduler(debuggingJMXBean, harvesterRunner);
+        var harvesterRunner = new IndexerRunner(appConfigurationProperties, harvesterConsumerService, pipelineUtilities, esIndexer, indexerMetrics, harvestProgress, repositoryStatistics, harvestCheckpoint, dryRunReporter, harvestWatermark);
+        var scheduler = new ConsumerScheduler(debuggingJMXBean, harvesterRunner, indexerMetrics, runReporter);
 
         // When
         scheduler.runIndexer();
@@ -105,8 +129,8 @@ public class ConsumerSchedulerTest {
         when(esIndexer.getStudy(Mockito.eq("UKDS__998"), Mockito.anyString())).thenReturn(Optional.of(getCmmStudyOfLanguageCodeEnX1().get(0)));
 
         // Given
-        var harvesterRunner = new IndexerRunner(appConfigurationProperties, harvesterConsumerService, pipelineUtilities, esIndexer);
-        var scheduler = new ConsumerScheduler(debuggingJMXBean, harvesterRunner);
+        var harvesterRunner = new IndexerRunner(appConfigurationProperties, harvesterConsumerService, pipelineUtilities, esIndexer, indexerMetrics, harvestProgress, repositoryStatistics, harvestCheckpoint, dryRunReporter, harvestWatermark);
+        var scheduler = new ConsumerScheduler(debuggingJMXBean, harvesterRunner, indexerMetrics, runReporter);
 
         // When
         scheduler.runIndexer();
@@ -125,8 +149,8 @@ public class ConsumerSchedulerTest {
             .thenThrow(RuntimeException.class);
 
         // Given
-        var harvesterRunner = new IndexerRunner(appConfigurationProperties, indexerConsumerService, pipelineUtilities, esIndexer);
-        var scheduler = new ConsumerScheduler(debuggingJMXBean, harvesterRunner);
+        var harvesterRunner = new IndexerRunner(appConfigurationProperties, indexerConsumerService, pipelineUtilities, esIndexer, indexerMetrics, harvestProgress, repositoryStatistics, harvestCheckpoint, dryRunReporter, harvestWatermark);
+        var scheduler = new ConsumerScheduler(debuggingJMXBean, harvesterRunner, indexerMetrics, runReporter);
 
         // When
         scheduler.runIndexer();
@@ -143,16 +167,17 @@ public class ConsumerSchedulerTest {
      */
     private IndexerConsumerService mockRecordRequests() throws IOException, IndexerException {
 
-        var indexerConsumerService = new IndexerConsumerService(extractor, recordXMLParser);
+        var indexerConsumerService = new IndexerConsumerService(extractor, recordXMLParser, indexerMetrics, harvestProgress, new FilePrefetcher(new AppConfigurationProperties(), indexerMetrics));
         var recordHeaders = objectMapper.<List<RecordHeader>>readValue(LIST_RECORDER_HEADERS_BODY_EXAMPLE, RECORD_HEADER_LIST);
 
         // mock record requests from each header
         var ukdsRepo = getUKDSRepo();
         for (var recordHeader : recordHeaders) {
-            when(recordXMLParser.getRecord(
+            when(recordXMLParser.parseRecords(
                 eq(ukdsRepo),
-                any(Path.class)
-            )).thenReturn(List.of(getSyntheticCmmStudy(recordHeader.getIdentifier())));
+                any(XMLSource.class),
+                any()
+            )).thenReturn(new ParsedRecords(List.of(getSyntheticCmmStudy(recordHeader.getIdentifier())), List.of()));
         }
 
         return indexerConsumerService;
@@ -165,18 +190,24 @@ public class ConsumerSchedulerTest {
         verify(appConfigurationProperties, times(1)).getEndpoints();
         verify(appConfigurationProperties, atLeastOnce()).getLanguages();
         verify(appConfigurationProperties, atLeastOnce()).getBaseDirectory();
+        verify(appConfigurationProperties, atLeastOnce()).getIndexingConcurrency();
+        verify(appConfigurationProperties, atLeastOnce()).getHarvestConcurrency();
+        verify(appConfigurationProperties, atLeastOnce()).getStateDirectory();
+        verify(appConfigurationProperties, atLeastOnce()).isDryRun();
+        verify(appConfigurationProperties, atLeastOnce()).isDeleteWithdrawnRepositories();
         verifyNoMoreInteractions(appConfigurationProperties);
 
-        verify(recordXMLParser, times(9)).getRecord(any(Repo.class), any(Path.class));
+        verify(recordXMLParser, times(9)).parseRecords(any(Repo.class), any(XMLSource.class), any());
+        verify(recordXMLParser).clearParseCache();
         verifyNoMoreInteractions(recordXMLParser);
 
         // No bulk attempt should have been made for "sv" as it does not have the minimum valid cmm fields
         // 'en', 'fi', 'de' has all minimum fields
         verify(esIndexer, times(3)).bulkIndex(anyList(), matches("(en|fi|de)"));
-        verify(esIndexer, times(3)).bulkDelete(anyList(), matches("(en|fi|de)"));
+        verify(esIndexer, times(3)).bulkDeleteById(anyList(), matches("(en|fi|de)"));
 
-        // Called for deletions
-        verify(esIndexer, times(3)).getStudiesByRepository(anyString(), anyString());
+        // Called once per repository for deletions
+        verify(esIndexer, times(1)).getStudyIdsByRepository(anyString());
 
         // Called for logging purposes
         verify(esIndexer, times(27)).getStudy(Mockito.anyString(), Mockito.anyString());
@@ -184,6 +215,174 @@ public class ConsumerSchedulerTest {
         verifyNoMoreInteractions(esIndexer);
     }
 
+    @Test
+    public void shouldIndexEachLanguageWithItsOwnLoggingContext() throws IOException, IndexerException, IndexingException {
+        // mock for our record headers
+        var harvesterConsumerService = mockRecordRequests();
+        var debuggingJMXBean = mockDebuggingJMXBean();
+        when(esIndexer.getStudy(Mockito.anyString(), Mockito.anyString())).thenReturn(Optional.empty());
+        when(esIndexer.getStudyIdsByRepository(anyString())).thenReturn(Collections.emptyMap());
+
+        // Record the logging context each language is indexed with
+        var languageContexts = new ConcurrentHashMap<String, Map<String, String>>();
+        doAnswer(invocation -> {
+            languageContexts.put(invocation.getArgument(1), MDC.getCopyOfContextMap());
+            return null;
+        }).when(esIndexer).bulkIndex(anyList(), anyString());
+
+        // Given
+        var harvesterRunner = new IndexerRunner(appConfigurationProperties, harvesterConsumerService, pipelineUtilities, esIndexer, indexerMetrics, harvestProgress, repositoryStatistics, harvestCheckpoint, dryRunReporter, harvestWatermark);
+        var scheduler = new ConsumerScheduler(debuggingJMXBean, harvesterRunner, indexerMetrics, runReporter);
+
+        // When
+        scheduler.runIndexer();
+
+        // Then
+        assertEquals(3, languageContexts.size());
+        languageContexts.forEach((language, context) -> {
+            assertEquals(language, context.get(LoggingConstants.LANG_CODE));
+            assertEquals(getUKDSRepo().getCode(), context.get(LoggingConstants.REPO_NAME));
+        });
+    }
+
+    @Test
+    public void shouldNotChangeTheIndexDuringADryRun() throws IOException, IndexerException, IndexingException {
+        // mock for our record headers
+        var harvesterConsumerService = mockRecordRequests();
+        var debuggingJMXBean = mockDebuggingJMXBean();
+        when(appConfigurationProperties.isDryRun()).thenReturn(true);
+        when(esIndexer.getStudyIdsByRepository(anyString())).thenReturn(Map.of("en", Set.of("UKDS__deleted")));
+
+        // Given
+        var harvesterRunner = new IndexerRunner(appConfigurationProperties, harvesterConsumerService, pipelineUtilities, esIndexer, indexerMetrics, harvestProgress, repositoryStatistics, harvestCheckpoint, dryRunReporter, harvestWatermark);
+        var scheduler = new ConsumerScheduler(debuggingJMXBean, harvesterRunner, indexerMetrics, runReporter);
+
+        // When
+        scheduler.runIndexer();
+
+        // Then - studies should only be compared with the index
+        verify(esIndexer, times(1)).getStudyIdsByRepository(anyString());
+        verify(esIndexer, times(3)).getStudies(anyCollection(), matches("(en|fi|de)"));
+        verify(esIndexer, times(1)).getTotalHitCount("*");
+        verifyNoMoreInteractions(esIndexer);
+
+        var report = dryRunReporter.buildReport();
+        assertEquals(27, report.created());
+        assertEquals(1, report.deleted());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void shouldKeepSkippedStudiesWhenDeletingServerSide() throws IOException, IndexingException {
+        // Given - an incremental harvest that skipped unmodified studies and needs to delete many studies
+        var ukdsRepo = getUKDSRepo();
+        var watermark = mock(HarvestWatermark.class);
+        when(watermark.getModifiedSince(any(Repo.class))).thenReturn(Optional.of(Instant.EPOCH));
+        var indexerConsumerService = mock(IndexerConsumerService.class);
+        when(indexerConsumerService.getRecords(eq(ukdsRepo), eq(Instant.EPOCH)))
+            .thenReturn(Map.of("en", List.of(CMMStudyOfLanguage.builder().id("UKDS__modified").build())));
+        when(indexerConsumerService.takeSkippedStudyIds(ukdsRepo)).thenReturn(Set.of("UKDS__skipped"));
+
+        var storedIds = new HashSet<String>();
+        for (int i = 0; i <= 10000; i++) {
+            storedIds.add("UKDS__removed" + i);
+        }
+        storedIds.add("UKDS__modified");
+        storedIds.add("UKDS__skipped");
+        when(esIndexer.getStudyIdsByRepository(ukdsRepo.getCode())).thenReturn(Map.of("en", storedIds));
+
+        var harvesterRunner = new IndexerRunner(appConfigurationProperties, indexerConsumerService, pipelineUtilities, esIndexer, indexerMetrics, harvestProgress, repositoryStatistics, harvestCheckpoint, dryRunReporter, watermark);
+
+        // When
+        harvesterRunner.executeHarvestAndIngest();
+
+        // Then - the skipped study should not be deleted
+        var idsToKeep = ArgumentCaptor.forClass(Collection.class);
+        verify(esIndexer).deleteByRepositoryExcept(eq(ukdsRepo.getCode()), idsToKeep.capture(), eq("en"));
+        assertEquals(Set.of("UKDS__modified", "UKDS__skipped"), Set.copyOf(idsToKeep.getValue()));
+        verify(esIndexer, never()).bulkDeleteById(anyCollection(), anyString());
+    }
+
+    @Test
+    public void shouldDeleteRemovedStudiesWhenEveryRecordIsSkipped() throws IOException, IndexingException {
+        // Given - an incremental harvest where no records were modified, but a source file was removed
+        var ukdsRepo = getUKDSRepo();
+        var watermark = mock(HarvestWatermark.class);
+        when(watermark.getModifiedSince(any(Repo.class))).thenReturn(Optional.of(Instant.EPOCH));
+        var indexerConsumerService = mock(IndexerConsumerService.class);
+        when(indexerConsumerService.getRecords(eq(ukdsRepo), eq(Instant.EPOCH))).thenReturn(Map.of());
+        when(indexerConsumerService.takeSkippedStudyIds(ukdsRepo)).thenReturn(Set.of("UKDS__skipped"));
+        when(esIndexer.getStudyIdsByRepository(ukdsRepo.getCode())).thenReturn(Map.of(
+            "en", Set.of("UKDS__skipped", "UKDS__removed"),
+            "fi", Set.of("UKDS__skipped")
+        ));
+
+        var harvesterRunner = new IndexerRunner(appConfigurationProperties, indexerConsumerService, pipelineUtilities, esIndexer, indexerMetrics, harvestProgress, repositoryStatistics, harvestCheckpoint, dryRunReporter, watermark);
+
+        // When
+        harvesterRunner.executeHarvestAndIngest();
+
+        // Then - languages without harvested studies should still be diffed
+        verify(esIndexer).bulkDeleteById(List.of("UKDS__removed"), "en");
+        verify(esIndexer, never()).bulkDeleteById(anyCollection(), eq("fi"));
+        verify(esIndexer, never()).bulkIndex(anyCollection(), anyString());
+    }
+
+    @Test
+    public void shouldDeleteTheStudiesOfWithdrawnRepositories() throws IOException, IndexerException, IndexingException {
+        // Given - the index holds the studies of a repository that is no longer configured
+        var harvesterConsumerService = mockRecordRequests();
+        when(appConfigurationProperties.isDeleteWithdrawnRepositories()).thenReturn(true);
+        when(esIndexer.getStudy(Mockito.anyString(), Mockito.anyString())).thenReturn(Optional.empty());
+        when(esIndexer.getRepositoryCodes()).thenReturn(Set.of(getUKDSRepo().getCode(), "WITHDRAWN"));
+
+        var harvesterRunner = new IndexerRunner(appConfigurationProperties, harvesterConsumerService, pipelineUtilities, esIndexer, indexerMetrics, harvestProgress, repositoryStatistics, harvestCheckpoint, dryRunReporter, harvestWatermark);
+
+        // When
+        harvesterRunner.executeHarvestAndIngest();
+
+        // Then - only the withdrawn repository should be deleted
+        verify(esIndexer).deleteByRepository("WITHDRAWN");
+        verify(esIndexer, never()).deleteByRepository(getUKDSRepo().getCode());
+    }
+
+    @Test
+    public void shouldNotDeleteWithdrawnRepositoriesWhenDiscoveryIsIncomplete() throws IOException, IndexerException, IndexingException {
+        // Given - a pipeline definition couldn't be read
+        var harvesterConsumerService = mockRecordRequests();
+        when(appConfigurationProperties.isDeleteWithdrawnRepositories()).thenReturn(true);
+        when(pipelineUtilities.discover(any())).thenReturn(new PipelineUtilities.DiscoveredRepositories(List.of(), false));
+        when(esIndexer.getStudy(Mockito.anyString(), Mockito.anyString())).thenReturn(Optional.empty());
+        when(esIndexer.getRepositoryCodes()).thenReturn(Set.of(getUKDSRepo().getCode(), "WITHDRAWN"));
+
+        var harvesterRunner = new IndexerRunner(appConfigurationProperties, harvesterConsumerService, pipelineUtilities, esIndexer, indexerMetrics, harvestProgress, repositoryStatistics, harvestCheckpoint, dryRunReporter, harvestWatermark);
+
+        // When
+        harvesterRunner.executeHarvestAndIngest();
+
+        // Then
+        verify(esIndexer, never()).getRepositoryCodes();
+        verify(esIndexer, never()).deleteByRepository(anyString());
+    }
+
+    @Test
+    public void shouldNotDeleteWithdrawnRepositoriesWhenHarvestingASelection() throws IOException, IndexerException, IndexingException {
+        // Given
+        var harvesterConsumerService = mockRecordRequests();
+        when(appConfigurationProperties.isDeleteWithdrawnRepositories()).thenReturn(true);
+        when(esIndexer.getStudy(Mockito.anyString(), Mockito.anyString())).thenReturn(Optional.empty());
+        when(esIndexer.getRepositoryCodes()).thenReturn(Set.of(getUKDSRepo().getCode(), "WITHDRAWN"));
+
+        var harvesterRunner = new IndexerRunner(appConfigurationProperties, harvesterConsumerService, pipelineUtilities, esIndexer, indexerMetrics, harvestProgress, repositoryStatistics, harvestCheckpoint, dryRunReporter, harvestWatermark);
+
+        // When
+        harvesterRunner.executeHarvestAndIngest(new HarvestSelection(Set.of(getUKDSRepo().getCode()), Set.of(), Set.of()));
+
+        // Then
+        verify(esIndexer, never()).getRepositoryCodes();
+        verify(esIndexer, never()).deleteByRepository(anyString());
+    }
+
     @Test
     public void shouldHandleElasticsearchExceptions() throws IOException, IndexerException, IndexingException {
         // mock for our record headers
@@ -195,8 +394,8 @@ public class ConsumerSchedulerTest {
         when(esIndexer.getStudy(Mockito.anyString(), Mockito.anyString())).thenReturn(Optional.empty());
 
         // Given
-        var harvesterRunner = new IndexerRunner(appConfigurationProperties, harvesterConsumerService, pipelineUtilities, esIndexer);
-        var scheduler = new ConsumerScheduler(debuggingJMXBean, harvesterRunner);
+        var harvesterRunner = new IndexerRunner(appConfigurationProperties, harvesterConsumerService, pipelineUtilities, esIndexer, indexerMetrics, harvestProgress, repositoryStatistics, harvestCheckpoint, dryRunReporter, harvestWatermark);
+        var scheduler = new ConsumerScheduler(debuggingJMXBean, harvesterRunner, indexerMetrics, runReporter);
 
         // When
         scheduler.runIndexer();
@@ -205,10 +404,27 @@ public class ConsumerSchedulerTest {
         verify(esIndexer, times(27)).getStudy(Mockito.anyString(), Mockito.anyString());
         verify(esIndexer, times(1)).getTotalHitCount("*");
         verify(esIndexer, times(3)).bulkIndex(anyList(), anyString());
-        verify(esIndexer, times(3)).getStudiesByRepository(anyString(), anyString());
+        verify(esIndexer, times(1)).getStudyIdsByRepository(anyString());
         verifyNoMoreInteractions(esIndexer);
     }
 
+    @Test
+    public void shouldNotCheckpointRepositoriesWhereALanguageFailed() throws IOException, IndexerException, IndexingException {
+        // Given
+        var harvesterConsumerService = mockRecordRequests();
+        var checkpoint = spy(harvestCheckpoint);
+        doThrow(ElasticsearchException.class).when(esIndexer).bulkIndex(anyList(), anyString());
+        when(esIndexer.getStudy(Mockito.anyString(), Mockito.anyString())).thenReturn(Optional.empty());
+
+        var harvesterRunner = new IndexerRunner(appConfigurationProperties, harvesterConsumerService, pipelineUtilities, esIndexer, indexerMetrics, harvestProgress, repositoryStatistics, checkpoint, dryRunReporter, harvestWatermark);
+
+        // When
+        harvesterRunner.executeHarvestAndIngest();
+
+        // Then - a resumed harvest must retry the failed languages
+        verify(checkpoint, never()).completeRepository(anyString(), anyCollection());
+    }
+
     @Test
     public void shouldHandleIOExceptions() throws IOException, IndexerException, IndexingException {
         // mock for our record headers
@@ -221,8 +437,8 @@ public class ConsumerSchedulerTest {
         when(esIndexer.getStudy(Mockito.anyString(), Mockito.anyString())).thenReturn(Optional.empty());
 
         // Given
-        var harvesterRunner = new IndexerRunner(appConfigurationProperties, harvesterConsumerService, pipelineUtilities, esIndexer);
-        var scheduler = new ConsumerScheduler(debuggingJMXBean, harvesterRunner);
+        var harvesterRunner = new IndexerRunner(appConfigurationProperties, harvesterConsumerService, pipelineUtilities, esIndexer, indexerMetrics, harvestProgress, repositoryStatistics, harvestCheckpoint, dryRunReporter, harvestWatermark);
+        var scheduler = new ConsumerScheduler(debuggingJMXBean, harvesterRunner, indexerMetrics, runReporter);
 
         // When
         scheduler.runIndexer();
@@ -231,7 +447,7 @@ public class ConsumerSchedulerTest {
         verify(esIndexer, times(27)).getStudy(Mockito.anyString(), Mockito.anyString());
         verify(esIndexer, times(1)).getTotalHitCount("*");
         verify(esIndexer, times(3)).bulkIndex(anyList(), anyString());
-        verify(esIndexer, times(3)).getStudiesByRepository(anyString(), anyString());
+        verify(esIndexer, times(1)).getStudyIdsByRepository(anyString());
         verifyNoMoreInteractions(esIndexer);
     }
 }
@@ -0,0 +1,99 @@
+/*
+ * Copyright © 2017-2023 CESSDA ERIC (support@cessda.eu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.cessda.pasc.oci;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import eu.cessda.pasc.oci.configurations.AppConfigurationProperties;
+import eu.cessda.pasc.oci.elasticsearch.IngestService;
+import eu.cessda.pasc.oci.models.cmmstudy.CMMStudyOfLanguage;
+import eu.cessda.pasc.oci.models.configurations.Repo;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+class DryRunReporterTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final AppConfigurationProperties configurationProperties = new AppConfigurationProperties();
+    private final IngestService ingestService = mock(IngestService.class);
+    private final DryRunReporter dryRunReporter = new DryRunReporter(configurationProperties, ingestService, objectMapper);
+
+    private static Repo getRepo() {
+        var repo = new Repo();
+        repo.setCode("UKDS");
+        return repo;
+    }
+
+    private static CMMStudyOfLanguage study(String id, String title) {
+        return CMMStudyOfLanguage.builder().id(id).titleStudy(title).build();
+    }
+
+    @Test
+    void shouldReportCreatedUpdatedAndDeletedStudies() throws IOException {
+        // Given
+        var studies = List.of(study("1", "New"), study("2", "Changed title"), study("3", "Same"));
+        when(ingestService.getStudies(anyCollection(), eq("en"))).thenReturn(Map.of(
+            "2", study("2", "Old title"),
+            "3", study("3", "Same")
+        ));
+
+        // When
+        var diff = dryRunReporter.diff(getRepo(), "en", studies, Set.of("2", "3", "4"));
+
+        // Then
+        assertThat(diff.created()).isEqualTo(1);
+        assertThat(diff.updated()).isEqualTo(1);
+        assertThat(diff.deleted()).isEqualTo(1);
+        assertThat(diff.unchanged()).isEqualTo(1);
+        assertThat(diff.createdIds()).containsExactly("1");
+        assertThat(diff.updatedIds()).containsExactly("2");
+        assertThat(diff.deletedIds()).containsExactly("4");
+        assertThat(diff.changedFields()).containsExactly(Map.entry("titleStudy", 1L));
+
+        // Only studies that are already indexed should be retrieved
+        verify(ingestService).getStudies(argThat(ids -> Set.copyOf(ids).equals(Set.of("2", "3"))), eq("en"));
+        verifyNoMoreInteractions(ingestService);
+    }
+
+    @Test
+    void shouldWriteReport(@TempDir Path reportDirectory) throws IOException {
+        // Given
+        configurationProperties.setReportDirectory(reportDirectory);
+        dryRunReporter.start();
+        dryRunReporter.diff(getRepo(), "en", List.of(study("1", "New")), Set.of());
+        dryRunReporter.diff(getRepo(), "fi", List.of(), Set.of("2"));
+
+        // When
+        var reportFile = dryRunReporter.writeReport();
+
+        // Then
+        assertThat(reportFile).hasValueSatisfying(file -> assertThat(file).exists());
+        var report = objectMapper.readTree(reportFile.orElseThrow().toFile());
+        assertThat(report.get("created").asLong()).isEqualTo(1);
+        assertThat(report.get("deleted").asLong()).isEqualTo(1);
+        assertThat(report.get("repositories").get(0).get("languages")).hasSize(2);
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright © 2017-2023 CESSDA ERIC (support@cessda.eu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.cessda.pasc.oci;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import eu.cessda.pasc.oci.configurations.AppConfigurationProperties;
+import eu.cessda.pasc.oci.models.configurations.Repo;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class HarvestCheckpointTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final AppConfigurationProperties configurationProperties = new AppConfigurationProperties();
+
+    private static Repo getRepo(Path path) {
+        var repo = new Repo();
+        repo.setCode("UKDS");
+        repo.setPath(path);
+        return repo;
+    }
+
+    @Test
+    void shouldResumeFromInterruptedHarvest(@TempDir Path stateDirectory, @TempDir Path repositoryDirectory) throws IOException {
+        // Given
+        configurationProperties.setStateDirectory(stateDirectory);
+        Files.writeString(repositoryDirectory.resolve("study.xml"), "<record/>");
+        var repo = getRepo(repositoryDirectory);
+
+        var interrupted = new HarvestCheckpoint(configurationProperties, objectMapper);
+        interrupted.begin(true);
+        assertThat(interrupted.startRepository(repo)).isFalse();
+        interrupted.completeLanguage("UKDS", "en");
+        interrupted.acknowledgeBatch("UKDS", "fi");
+        interrupted.acknowledgeBatch("UKDS", "fi");
+
+        // When
+        var resumed = new HarvestCheckpoint(configurationProperties, objectMapper);
+        resumed.begin(true);
+
+        // Then
+        assertThat(resumed.startRepository(repo)).isFalse();
+        assertThat(resumed.isLanguageComplete("UKDS", "en")).isTrue();
+        assertThat(resumed.isLanguageComplete("UKDS", "fi")).isFalse();
+        assertThat(resumed.getAcknowledgedBatches("UKDS", "fi")).isEqualTo(2);
+    }
+
+    @Test
+    void shouldSkipCompletedRepositories(@TempDir Path stateDirectory, @TempDir Path repositoryDirectory) {
+        // Given
+        configurationProperties.setStateDirectory(stateDirectory);
+        var repo = getRepo(repositoryDirectory);
+
+        var interrupted = new HarvestCheckpoint(configurationProperties, objectMapper);
+        interrupted.begin(true);
+        interrupted.startRepository(repo);
+        interrupted.completeLanguage("UKDS", "en");
+
+        // The repository is incomplete until all of its languages have completed
+        interrupted.completeRepository("UKDS", List.of("en", "fi"));
+        interrupted.completeLanguage("UKDS", "fi");
+        interrupted.completeRepository("UKDS", List.of("en", "fi"));
+
+        // When
+        var resumed = new HarvestCheckpoint(configurationProperties, objectMapper);
+        resumed.begin(true);
+
+        // Then
+        assertThat(resumed.startRepository(repo)).isTrue();
+    }
+
+    @Test
+    void shouldDiscardProgressIfSourceFilesChanged(@TempDir Path stateDirectory, @TempDir Path repositoryDirectory) throws IOException {
+        // Given
+        configurationProperties.setStateDirectory(stateDirectory);
+        var repo = getRepo(repositoryDirectory);
+
+        var interrupted = new HarvestCheckpoint(configurationProperties, objectMapper);
+        interrupted.begin(true);
+        interrupted.startRepository(repo);
+        interrupted.acknowledgeBatch("UKDS", "en");
+
+        // When
+        Files.writeString(repositoryDirectory.resolve("new.xml"), "<record/>");
+        var resumed = new HarvestCheckpoint(configurationProperties, objectMapper);
+        resumed.begin(true);
+
+        // Then
+        assertThat(resumed.startRepository(repo)).isFalse();
+        assertThat(resumed.getAcknowledgedBatches("UKDS", "en")).isZero();
+    }
+
+    @Test
+    void shouldRemoveCheckpointWhenFinished(@TempDir Path stateDirectory, @TempDir Path repositoryDirectory) {
+        // Given
+        configurationProperties.setStateDirectory(stateDirectory);
+        var checkpoint = new HarvestCheckpoint(configurationProperties, objectMapper);
+        checkpoint.begin(true);
+        checkpoint.startRepository(getRepo(repositoryDirectory));
+        checkpoint.acknowledgeBatch("UKDS", "en");
+        assertThat(stateDirectory.resolve(HarvestCheckpoint.CHECKPOINT_FILE)).exists();
+
+        // When
+        checkpoint.finish();
+
+        // Then
+        assertThat(stateDirectory.resolve(HarvestCheckpoint.CHECKPOINT_FILE)).doesNotExist();
+    }
+
+    @Test
+    void shouldNotRecordProgressWhenDisabled(@TempDir Path stateDirectory, @TempDir Path repositoryDirectory) {
+        // Given
+        configurationProperties.setStateDirectory(stateDirectory);
+        var checkpoint = new HarvestCheckpoint(configurationProperties, objectMapper);
+
+        // When
+        checkpoint.begin(false);
+        checkpoint.startRepository(getRepo(repositoryDirectory));
+        checkpoint.acknowledgeBatch("UKDS", "en");
+
+        // Then
+        assertThat(checkpoint.isEnabled()).isFalse();
+        assertThat(checkpoint.getAcknowledgedBatches("UKDS", "en")).isZero();
+        assertThat(stateDirectory.resolve(HarvestCheckpoint.CHECKPOINT_FILE)).doesNotExist();
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright © 2017-2023 CESSDA ERIC (support@cessda.eu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.cessda.pasc.oci;
+
+import eu.cessda.pasc.oci.models.configurations.Repo;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.DefaultApplicationArguments;
+
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class HarvestSelectionTest {
+
+    private static Repo getRepo(String code, Path path) {
+        var repo = new Repo();
+        repo.setCode(code);
+        repo.setPath(path);
+        return repo;
+    }
+
+    @Test
+    void shouldSelectEverythingWithoutOptions() {
+        var selection = HarvestSelection.fromArguments(new DefaultApplicationArguments("--baseDirectory=/data"));
+
+        assertThat(selection.isEverything()).isTrue();
+        assertThat(selection.includesRepository(getRepo("UKDS", Path.of("/data/UKDS")))).isTrue();
+        assertThat(selection.includesLanguage("en")).isTrue();
+    }
+
+    @Test
+    void shouldParseRepeatedAndCommaSeparatedOptions() {
+        var selection = HarvestSelection.fromArguments(new DefaultApplicationArguments(
+            "--repository=UKDS,FSD", "--repository=GESIS", "--language=en"
+        ));
+
+        assertThat(selection.repositories()).containsExactlyInAnyOrder("UKDS", "FSD", "GESIS");
+        assertThat(selection.includesRepository(getRepo("ukds", Path.of("/data/UKDS")))).isTrue();
+        assertThat(selection.includesRepository(getRepo("SND", Path.of("/data/SND")))).isFalse();
+        assertThat(selection.includesLanguage("en")).isTrue();
+        assertThat(selection.includesLanguage("fi")).isFalse();
+    }
+
+    @Test
+    void shouldOnlyIncludeRepositoriesContainingSelectedFiles() {
+        var selection = HarvestSelection.fromArguments(new DefaultApplicationArguments("--file=/data/UKDS/../UKDS/study.xml"));
+        var ukds = getRepo("UKDS", Path.of("/data/UKDS"));
+
+        assertThat(selection.includesRepository(ukds)).isTrue();
+        assertThat(selection.includesRepository(getRepo("FSD", Path.of("/data/FSD")))).isFalse();
+        assertThat(selection.getFiles(ukds)).containsExactly(Path.of("/data/UKDS/study.xml").toAbsolutePath());
+    }
+}
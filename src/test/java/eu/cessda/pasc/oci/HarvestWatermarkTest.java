@@ -0,0 +1,123 @@
+/*
+ * Copyright © 2017-2023 CESSDA ERIC (support@cessda.eu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.cessda.pasc.oci;
+
+import eu.cessda.pasc.oci.configurations.AppConfigurationProperties;
+import eu.cessda.pasc.oci.elasticsearch.IngestService;
+import eu.cessda.pasc.oci.models.cmmstudy.CMMStudyOfLanguage;
+import eu.cessda.pasc.oci.models.configurations.Repo;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+class HarvestWatermarkTest {
+
+    private final AppConfigurationProperties configurationProperties = new AppConfigurationProperties();
+    private final IngestService ingestService = mock(IngestService.class);
+    private final HarvestWatermark harvestWatermark = new HarvestWatermark(configurationProperties, ingestService);
+    private final Repo repo = new Repo();
+
+    @BeforeEach
+    void setUp() {
+        repo.setCode("UKDS");
+        configurationProperties.getIncremental().setEnabled(true);
+        configurationProperties.getIncremental().setOverlap(Duration.ofHours(1));
+    }
+
+    private static CMMStudyOfLanguage study(String lastModified) {
+        return CMMStudyOfLanguage.builder().id(lastModified).lastModified(lastModified).build();
+    }
+
+    @Test
+    void shouldSubtractTheOverlapFromTheWatermark() throws IOException {
+        // Given
+        when(ingestService.getHarvestWatermark("UKDS")).thenReturn(Optional.of(Instant.parse("2023-06-01T12:00:00Z")));
+
+        // Then
+        assertThat(harvestWatermark.getModifiedSince(repo)).contains(Instant.parse("2023-06-01T11:00:00Z"));
+    }
+
+    @Test
+    void shouldParseEveryRecordWithoutAWatermark() throws IOException {
+        // Given
+        when(ingestService.getHarvestWatermark("UKDS")).thenReturn(Optional.empty());
+
+        // Then
+        assertThat(harvestWatermark.getModifiedSince(repo)).isEmpty();
+    }
+
+    @Test
+    void shouldParseEveryRecordIfTheWatermarkCannotBeRetrieved() throws IOException {
+        // Given
+        when(ingestService.getHarvestWatermark("UKDS")).thenThrow(IOException.class);
+
+        // Then
+        assertThat(harvestWatermark.getModifiedSince(repo)).isEmpty();
+    }
+
+    @Test
+    void shouldAdvanceToTheMostRecentDatestamp() throws IOException {
+        // Given
+        when(ingestService.getHarvestWatermark("UKDS")).thenReturn(Optional.of(Instant.parse("2023-01-01T00:00:00Z")));
+        var studies = List.of(
+            List.of(study("2023-05-01T00:00:00Z"), study("2023-06-01T00:00:00Z")),
+            // Datestamps after the start of the harvest are not trusted
+            List.of(study("2023-08-01T00:00:00Z"), study("not-a-datestamp"))
+        );
+
+        // When
+        harvestWatermark.advance(repo, studies, Instant.parse("2023-07-01T00:00:00Z"));
+
+        // Then
+        verify(ingestService).setHarvestWatermark("UKDS", Instant.parse("2023-06-01T00:00:00Z"));
+    }
+
+    @Test
+    void shouldNotMoveTheWatermarkBackwards() throws IOException {
+        // Given
+        when(ingestService.getHarvestWatermark("UKDS")).thenReturn(Optional.of(Instant.parse("2023-06-01T00:00:00Z")));
+
+        // When
+        harvestWatermark.advance(repo, List.of(List.of(study("2023-05-01"))), Instant.parse("2023-07-01T00:00:00Z"));
+
+        // Then
+        verify(ingestService, never()).setHarvestWatermark(anyString(), any(Instant.class));
+    }
+
+    @Test
+    void shouldDoNothingWhenDisabled() {
+        // Given
+        configurationProperties.getIncremental().setEnabled(false);
+
+        // When
+        var modifiedSince = harvestWatermark.getModifiedSince(repo);
+        harvestWatermark.advance(repo, List.of(List.of(study("2023-05-01"))), Instant.now());
+
+        // Then
+        assertThat(modifiedSince).isEmpty();
+        verifyNoInteractions(ingestService);
+    }
+}
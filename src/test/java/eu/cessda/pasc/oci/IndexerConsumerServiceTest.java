@@ -15,17 +15,35 @@
  */
 package eu.cessda.pasc.oci;
 
+import eu.cessda.pasc.oci.configurations.AppConfigurationProperties;
 import eu.cessda.pasc.oci.exception.IndexerException;
 import eu.cessda.pasc.oci.exception.XMLParseException;
 import eu.cessda.pasc.oci.mock.data.ReposTestData;
+import eu.cessda.pasc.oci.models.ParsedRecords;
+import eu.cessda.pasc.oci.models.Tombstone;
+import eu.cessda.pasc.oci.models.cmmstudy.CMMStudy;
+import eu.cessda.pasc.oci.models.cmmstudy.CMMStudyOfLanguage;
 import eu.cessda.pasc.oci.models.configurations.Repo;
+import eu.cessda.pasc.oci.parser.FilePrefetcher;
 import eu.cessda.pasc.oci.parser.RecordXMLParser;
+import eu.cessda.pasc.oci.parser.XMLSource;
+import eu.cessda.pasc.oci.service.HarvestProgress;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mockito;
 
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 import static eu.cessda.pasc.oci.mock.data.ReposTestData.getUKDSRepo;
 import static org.assertj.core.api.Assertions.assertThatThrownBy;
@@ -51,13 +69,15 @@ public class IndexerConsumerServiceTest {
 
     @Before
     public void setUp() {
-        indexerConsumerService = new IndexerConsumerService(languageExtractor, recordXMLParser);
+        var indexerMetrics = new IndexerMetrics(new SimpleMeterRegistry());
+        var filePrefetcher = new FilePrefetcher(new AppConfigurationProperties(), indexerMetrics);
+        indexerConsumerService = new IndexerConsumerService(languageExtractor, recordXMLParser, indexerMetrics, new HarvestProgress(), filePrefetcher);
     }
 
     @Test
     public void shouldLogWhenAnXMLParseExceptionIsThrown() throws IndexerException {
         // When
-        Mockito.when(recordXMLParser.getRecord(eq(UKDS_REPO), any(Path.class))).thenThrow(XMLParseException.class);
+        Mockito.when(recordXMLParser.parseRecords(eq(UKDS_REPO), any(XMLSource.class), any())).thenThrow(XMLParseException.class);
 
         // Then
         var recordHeaders = indexerConsumerService.getRecords(UKDS_REPO);
@@ -67,13 +87,90 @@ public class IndexerConsumerServiceTest {
     @Test
     public void getRecordShouldLogWhenACustomHandlerExceptionIsThrown() throws IndexerException {
         // When
-        Mockito.when(recordXMLParser.getRecord(eq(UKDS_REPO), any(Path.class))).thenThrow(XMLParseException.class);
+        Mockito.when(recordXMLParser.parseRecords(eq(UKDS_REPO), any(XMLSource.class), any())).thenThrow(XMLParseException.class);
 
         // Then
         var record = indexerConsumerService.getRecord(UKDS_REPO, Path.of("."));
         Assert.assertTrue(record.isEmpty());
     }
 
+    @Test
+    public void shouldCollectTheIdsOfDeletedStudies() throws IndexerException {
+        // Given
+        var tombstone = new Tombstone("1031", URI.create("https://oai.ukdataservice.ac.uk:8443/oai/provider"), "2017-05-02T08:31:32Z");
+        Mockito.when(recordXMLParser.parseRecords(eq(UKDS_REPO), any(XMLSource.class), any()))
+            .thenReturn(new ParsedRecords(List.of(), List.of(tombstone)));
+
+        // When
+        var records = indexerConsumerService.getRecords(UKDS_REPO, Path.of("1031.xml"));
+
+        // Then
+        Assert.assertTrue(records.isEmpty());
+        Assert.assertEquals(Set.of(tombstone.studyId()), indexerConsumerService.takeDeletedStudyIds(UKDS_REPO));
+        Assert.assertTrue(indexerConsumerService.takeDeletedStudyIds(UKDS_REPO).isEmpty());
+    }
+
+    @Test
+    public void shouldRecordRepositoriesWithCorruptArchivesAsUnreadable() throws IOException {
+        // Given
+        var repositoryDirectory = Files.createTempDirectory("UKDS");
+        var corruptArchive = Files.write(repositoryDirectory.resolve("records.zip"), "not a zip file".getBytes(StandardCharsets.UTF_8));
+        corruptArchive.toFile().deleteOnExit();
+        repositoryDirectory.toFile().deleteOnExit();
+        var repo = ReposTestData.getUKDSRepo();
+        repo.setPath(repositoryDirectory);
+
+        // When
+        var records = indexerConsumerService.getRecords(repo);
+
+        // Then
+        Assert.assertTrue(records.isEmpty());
+        Assert.assertTrue(indexerConsumerService.takeUnreadable(repo));
+        Assert.assertFalse(indexerConsumerService.takeUnreadable(repo));
+    }
+
+    @Test
+    public void shouldTrackTheStudiesOfArchivesByTheirPath() throws IOException, IndexerException {
+        // Given - an archive of two files, each holding a study named after the file
+        var repositoryDirectory = Files.createTempDirectory("UKDS");
+        var archive = repositoryDirectory.resolve("records.zip");
+        try (var outputStream = new ZipOutputStream(Files.newOutputStream(archive))) {
+            for (var name : List.of("1.xml", "2.xml")) {
+                outputStream.putNextEntry(new ZipEntry(name));
+                outputStream.write("<record/>".getBytes(StandardCharsets.UTF_8));
+                outputStream.closeEntry();
+            }
+        }
+        archive.toFile().deleteOnExit();
+        repositoryDirectory.toFile().deleteOnExit();
+        var repo = ReposTestData.getUKDSRepo();
+        repo.setPath(repositoryDirectory);
+
+        Mockito.when(recordXMLParser.parseRecords(eq(repo), any(XMLSource.class), any())).thenAnswer(invocation -> {
+            XMLSource source = invocation.getArgument(1);
+            var studyNumber = source.path().getFileName().toString().replace(".xml", "");
+            return new ParsedRecords(List.of(CMMStudy.builder().studyNumber(studyNumber).build()), List.of());
+        });
+        Mockito.when(languageExtractor.extractFromStudy(any(CMMStudy.class), eq(repo))).thenAnswer(invocation -> {
+            CMMStudy study = invocation.getArgument(0);
+            return Map.of("en", CMMStudyOfLanguage.builder().id(study.getStudyNumber()).build());
+        });
+        indexerConsumerService.setTrackStudyFiles(true);
+
+        // When
+        var records = indexerConsumerService.getRecords(repo, archive);
+
+        // Then
+        Assert.assertEquals(2, records.get("en").size());
+        Assert.assertEquals(Map.of("en", Set.of("1", "2")), indexerConsumerService.getStudyIds(archive));
+
+        // When - the archive is deleted
+        indexerConsumerService.forgetStudyIds(archive);
+
+        // Then
+        Assert.assertTrue(indexerConsumerService.getStudyIds(archive).isEmpty());
+    }
+
     @Test
     public void shouldThrowIfAURLAndAPathIsNotConfigured() {
         // Given
@@ -0,0 +1,206 @@
+/*
+ * Copyright © 2017-2023 CESSDA ERIC (support@cessda.eu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.cessda.pasc.oci;
+
+import eu.cessda.pasc.oci.configurations.AppConfigurationProperties;
+import eu.cessda.pasc.oci.elasticsearch.IndexingException;
+import eu.cessda.pasc.oci.elasticsearch.IngestService;
+import eu.cessda.pasc.oci.models.cmmstudy.CMMStudyOfLanguage;
+import eu.cessda.pasc.oci.models.configurations.Repo;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+class IndexerDaemonTest {
+
+    private final AppConfigurationProperties configurationProperties = new AppConfigurationProperties();
+    private final PipelineUtilities pipelineUtilities = mock(PipelineUtilities.class);
+    private final IndexerConsumerService indexer = mock(IndexerConsumerService.class);
+    private final IngestService ingestService = mock(IngestService.class);
+    private final ConsumerScheduler consumerScheduler = mock(ConsumerScheduler.class);
+
+    private IndexerDaemon createDaemon() {
+        return new IndexerDaemon(configurationProperties, pipelineUtilities, indexer, ingestService, consumerScheduler);
+    }
+
+    private static Repo getRepo(Path path) {
+        var repo = new Repo();
+        repo.setCode("UKDS");
+        repo.setPath(path);
+        return repo;
+    }
+
+    private static CMMStudyOfLanguage study(String id) {
+        return CMMStudyOfLanguage.builder().id(id).build();
+    }
+
+    @Test
+    void shouldIndexChangedFilesAndDeleteRemovedStudies(@TempDir Path repositoryDirectory) throws IOException, IndexingException {
+        // Given
+        var repo = getRepo(repositoryDirectory);
+        var file = Files.writeString(repositoryDirectory.resolve("study.xml"), "<record/>");
+        when(indexer.getStudyIds(file)).thenReturn(Map.of("en", Set.of("UKDS__1", "UKDS__2")));
+        when(indexer.getRecords(repo, file)).thenReturn(Map.of("en", List.of(study("UKDS__1"))));
+
+        // When
+        createDaemon().indexChanges(repo, List.of(file));
+
+        // Then
+        verify(ingestService).bulkIndex(List.of(study("UKDS__1")), "en");
+        verify(ingestService).bulkDeleteById(Set.of("UKDS__2"), "en");
+        verifyNoMoreInteractions(ingestService);
+    }
+
+    @Test
+    void shouldDeleteStudiesOfDeletedFiles(@TempDir Path repositoryDirectory) throws IndexingException {
+        // Given
+        var repo = getRepo(repositoryDirectory);
+        var file = repositoryDirectory.resolve("deleted.xml");
+        when(indexer.getStudyIds(file)).thenReturn(Map.of("en", Set.of("UKDS__1"), "fi", Set.of("UKDS__1")));
+
+        // When
+        createDaemon().indexChanges(repo, List.of(file));
+
+        // Then
+        verify(indexer, never()).getRecords(any(Repo.class), any(Path.class));
+        verify(indexer).forgetStudyIds(file);
+        verify(ingestService).bulkDeleteById(Set.of("UKDS__1"), "en");
+        verify(ingestService).bulkDeleteById(Set.of("UKDS__1"), "fi");
+        verifyNoMoreInteractions(ingestService);
+    }
+
+    @Test
+    void shouldNotDeleteStudiesThatMovedToAnotherFile(@TempDir Path repositoryDirectory) throws IOException, IndexingException {
+        // Given
+        var repo = getRepo(repositoryDirectory);
+        var deletedFile = repositoryDirectory.resolve("old.xml");
+        var newFile = Files.writeString(repositoryDirectory.resolve("new.xml"), "<record/>");
+        when(indexer.getStudyIds(deletedFile)).thenReturn(Map.of("en", Set.of("UKDS__1")));
+        when(indexer.getRecords(repo, newFile)).thenReturn(Map.of("en", List.of(study("UKDS__1"))));
+
+        // When
+        createDaemon().indexChanges(repo, List.of(deletedFile, newFile));
+
+        // Then
+        verify(ingestService).bulkIndex(List.of(study("UKDS__1")), "en");
+        verify(ingestService, never()).bulkDeleteById(anyCollection(), anyString());
+    }
+
+    @Test
+    void shouldDeleteStudiesMarkedAsDeleted(@TempDir Path repositoryDirectory) throws IOException, IndexingException {
+        // Given
+        var repo = getRepo(repositoryDirectory);
+        var file = Files.writeString(repositoryDirectory.resolve("deleted.xml"), "<record/>");
+        when(indexer.getStudyIds(file)).thenReturn(Map.of());
+        when(indexer.getRecords(repo, file)).thenReturn(Map.of());
+        when(indexer.takeDeletedStudyIds(repo)).thenReturn(Set.of("UKDS__1"));
+        when(ingestService.deleteFromAllIndices(Set.of("UKDS__1"))).thenReturn(1L);
+
+        // When
+        createDaemon().indexChanges(repo, List.of(file));
+
+        // Then
+        verify(ingestService).deleteFromAllIndices(Set.of("UKDS__1"));
+        verifyNoMoreInteractions(ingestService);
+    }
+
+    @Test
+    void shouldNotDeleteStudiesOfUnreadableFiles(@TempDir Path repositoryDirectory) throws IOException, IndexingException {
+        // Given - an archive that couldn't be fully read
+        var repo = getRepo(repositoryDirectory);
+        var archive = Files.writeString(repositoryDirectory.resolve("studies.zip"), "truncated");
+        when(indexer.getStudyIds(archive)).thenReturn(Map.of("en", Set.of("UKDS__1", "UKDS__2")));
+        when(indexer.getRecords(repo, archive)).thenReturn(Map.of("en", List.of(study("UKDS__1"))));
+        when(indexer.takeUnreadable(repo)).thenReturn(true);
+
+        // When
+        createDaemon().indexChanges(repo, List.of(archive));
+
+        // Then
+        verify(ingestService).bulkIndex(List.of(study("UKDS__1")), "en");
+        verify(ingestService, never()).bulkDeleteById(anyCollection(), anyString());
+    }
+
+    @Test
+    void shouldIndexFilesWhenTheyChange(@TempDir Path repositoryDirectory) throws IOException, IndexingException {
+        shouldIndexWhenChanged(repositoryDirectory, "study.xml");
+    }
+
+    @Test
+    void shouldIndexArchivesWhenTheyChange(@TempDir Path repositoryDirectory) throws IOException, IndexingException {
+        shouldIndexWhenChanged(repositoryDirectory, "studies.zip");
+    }
+
+    private void shouldIndexWhenChanged(Path repositoryDirectory, String fileName) throws IOException, IndexingException {
+        // Given
+        configurationProperties.getDaemon().setEnabled(true);
+        configurationProperties.getDaemon().setDebounce(Duration.ofMillis(100));
+        configurationProperties.setBaseDirectory(repositoryDirectory);
+        var repo = getRepo(repositoryDirectory);
+        var file = repositoryDirectory.resolve(fileName);
+        when(pipelineUtilities.discoverRepositories(repositoryDirectory)).thenAnswer(invocation -> Stream.of(repo));
+        when(indexer.getStudyIds(any(Path.class))).thenReturn(Map.of());
+        when(indexer.getRecords(repo, file)).thenReturn(Map.of("en", List.of(study("UKDS__1"))));
+        var indexed = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            indexed.countDown();
+            return null;
+        }).when(ingestService).bulkIndex(List.of(study("UKDS__1")), "en");
+
+        var daemon = createDaemon();
+        verify(indexer).setTrackStudyFiles(true);
+        var running = CompletableFuture.runAsync(() -> {
+            try {
+                daemon.run();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+
+        try {
+            // When - the directory is registered asynchronously, so the file is rewritten until the change is seen
+            verify(pipelineUtilities, timeout(5000)).discoverRepositories(repositoryDirectory);
+
+            // Then
+            assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+                do {
+                    Files.writeString(file, "<record/>");
+                } while (!indexed.await(200, TimeUnit.MILLISECONDS));
+            });
+        } finally {
+            daemon.close();
+        }
+        running.join();
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright © 2017-2023 CESSDA ERIC (support@cessda.eu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.cessda.pasc.oci;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.slf4j.MDC;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatCode;
+
+class IndexerMetricsTest {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private final IndexerMetrics indexerMetrics = new IndexerMetrics(registry);
+
+    @AfterEach
+    void tearDown() {
+        MDC.clear();
+    }
+
+    @Test
+    void shouldTagStageTimersWithTheRepositoryAndLanguage() {
+        // Given
+        MDC.put(LoggingConstants.REPO_NAME, "UKDS");
+        MDC.put(LoggingConstants.LANG_CODE, "en");
+
+        // When
+        var sample = indexerMetrics.startTimer();
+        indexerMetrics.stopTimer(sample, IndexerMetrics.Stage.BULK_REQUEST);
+
+        // Then
+        var timer = registry.find(IndexerMetrics.STAGE_TIMER)
+            .tag(IndexerMetrics.STAGE_TAG, "bulk_request")
+            .tag(IndexerMetrics.REPOSITORY_TAG, "UKDS")
+            .tag(IndexerMetrics.LANGUAGE_TAG, "en")
+            .timer();
+        assertThat(timer).isNotNull();
+        assertThat(timer.count()).isEqualTo(1);
+
+        // The run level timer should also be updated
+        var runTimer = registry.find(IndexerMetrics.RUN_STAGE_TIMER).tag(IndexerMetrics.STAGE_TAG, "bulk_request").timer();
+        assertThat(runTimer).isNotNull();
+        assertThat(runTimer.count()).isEqualTo(1);
+    }
+
+    @Test
+    void shouldUseDefaultTagsOutsideOfARepositoryContext() {
+        // When
+        indexerMetrics.recordStudies(IndexerMetrics.StudyOutcome.CREATED, 3);
+
+        // Then
+        var counter = registry.find(IndexerMetrics.STUDIES)
+            .tag(IndexerMetrics.REPOSITORY_TAG, "none")
+            .tag(IndexerMetrics.LANGUAGE_TAG, "none")
+            .tag(IndexerMetrics.OUTCOME_TAG, "created")
+            .counter();
+        assertThat(counter).isNotNull();
+        assertThat(counter.count()).isEqualTo(3);
+    }
+
+    @Test
+    void shouldAccumulateTransferredBytes() {
+        // When
+        indexerMetrics.recordTransfer(100, 20);
+        indexerMetrics.recordTransfer(50, 5);
+
+        // Then
+        var sent = registry.find(IndexerMetrics.TRANSPORT_BYTES).tag(IndexerMetrics.DIRECTION_TAG, IndexerMetrics.SENT).counter();
+        var received = registry.find(IndexerMetrics.TRANSPORT_BYTES).tag(IndexerMetrics.DIRECTION_TAG, IndexerMetrics.RECEIVED).counter();
+        assertThat(sent).isNotNull();
+        assertThat(sent.count()).isEqualTo(150);
+        assertThat(received).isNotNull();
+        assertThat(received.count()).isEqualTo(25);
+    }
+
+    @Test
+    void shouldRemoveIndexerMetersOnReset() {
+        // Given
+        registry.counter("unrelated.counter").increment();
+        indexerMetrics.recordFile(1024);
+        indexerMetrics.recordBulkRequest(2048);
+        indexerMetrics.recordBulkRetry();
+        indexerMetrics.recordTransfer(10, 10);
+
+        // When
+        indexerMetrics.reset();
+
+        // Then
+        assertThat(registry.getMeters()).extracting(meter -> meter.getId().getName()).containsOnly("unrelated.counter");
+    }
+
+    @Test
+    void shouldLogSummary() {
+        // Given
+        var sample = indexerMetrics.startTimer();
+        indexerMetrics.stopTimer(sample, IndexerMetrics.Stage.XML_PARSE);
+
+        // Then
+        assertThatCode(indexerMetrics::logSummary).doesNotThrowAnyException();
+    }
+}
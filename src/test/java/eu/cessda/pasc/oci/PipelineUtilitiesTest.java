@@ -16,19 +16,30 @@
 package eu.cessda.pasc.oci;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import eu.cessda.pasc.oci.configurations.AppConfigurationProperties;
 import eu.cessda.pasc.oci.models.configurations.Repo;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
+import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
 import java.util.List;
+import java.util.Set;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
 class PipelineUtilitiesTest {
 
     private final ObjectMapper objectMapper = new ObjectMapper();
-    private final PipelineUtilities pipelineUtilities = new PipelineUtilities(objectMapper);
+    private final AppConfigurationProperties configurationProperties = new AppConfigurationProperties();
+    private final PipelineUtilities pipelineUtilities = new PipelineUtilities(objectMapper, configurationProperties);
+
+    private static void createRepository(Path directory, String code) throws IOException {
+        Files.createDirectories(directory);
+        Files.writeString(directory.resolve("pipeline.json"), "{\"code\": \"" + code + "\", \"url\": \"https://example.org/oai\"}");
+    }
 
     @Test
     void shouldDiscoverRepositories() {
@@ -42,6 +53,34 @@ class PipelineUtilitiesTest {
         repositoryAssert.map(Repo::getPreferredMetadataParam).containsAnyElementsOf(List.of("ddi_c", "oai_ddi25"));
     }
 
+    @Test
+    void shouldReportIncompleteDiscoveryIfADefinitionCantBeLoaded() {
+        var pipeline = Path.of("src/test/resources/pipeline");
+        var discovered = pipelineUtilities.discover(pipeline);
+
+        // The invalid definition should be reported, as it may belong to a repository that still exists
+        assertThat(discovered.repositories()).map(Repo::getCode).containsOnly("APIS", "UniData");
+        assertThat(discovered.complete()).isFalse();
+    }
+
+    @Test
+    void shouldReportCompleteDiscovery(@TempDir Path baseDirectory) throws IOException {
+        // Given
+        createRepository(baseDirectory.resolve("UKDS"), "UKDS");
+
+        // When
+        var discovered = pipelineUtilities.discover(baseDirectory);
+
+        // Then
+        assertThat(discovered.repositories()).map(Repo::getCode).containsExactly("UKDS");
+        assertThat(discovered.complete()).isTrue();
+    }
+
+    @Test
+    void shouldReportIncompleteDiscoveryIfTheBaseDirectoryIsMissing() {
+        assertThat(pipelineUtilities.discover(Path.of("this/directory/does/not/exist")).complete()).isFalse();
+    }
+
     @Test
     void shouldReturnEmptyListIfNoRepositoriesWereDiscovered() {
         // This is a directory that contains XML files, but no pipeline definitions.
@@ -60,4 +99,89 @@ class PipelineUtilitiesTest {
 
         pipelineUtilities.discoverRepositories(nonExistentDirectory);
     }
-}
\ No newline at end of file
+
+    @Test
+    void shouldDiscoverSelectedRepositoriesIgnoringCase() {
+        var pipeline = Path.of("src/test/resources/pipeline");
+        var selection = new HarvestSelection(Set.of("unidata"), Set.of(), Set.of());
+
+        var discoveredRepositories = pipelineUtilities.discoverRepositories(pipeline, selection);
+
+        assertThat(discoveredRepositories).map(Repo::getCode).containsExactly("UniData");
+    }
+
+    @Test
+    void shouldDiscoverRepositoriesOfSelectedFiles() {
+        var pipeline = Path.of("src/test/resources/pipeline");
+        var selection = new HarvestSelection(Set.of(), Set.of(), Set.of(pipeline.resolve("APIS/study.xml")));
+
+        var discoveredRepositories = pipelineUtilities.discoverRepositories(pipeline, selection);
+
+        assertThat(discoveredRepositories).map(Repo::getCode).containsExactly("APIS");
+    }
+
+    @Test
+    void shouldNotDiscoverRepositoriesOutsideTheSelection() {
+        var pipeline = Path.of("src/test/resources/pipeline");
+        var selection = new HarvestSelection(Set.of("UKDS"), Set.of(), Set.of());
+
+        var discoveredRepositories = pipelineUtilities.discoverRepositories(pipeline, selection);
+
+        assertThat(discoveredRepositories).isEmpty();
+    }
+
+    @Test
+    void shouldNotSearchInsideRepositories(@TempDir Path baseDirectory) throws IOException {
+        // Given
+        createRepository(baseDirectory.resolve("group/UKDS"), "UKDS");
+        createRepository(baseDirectory.resolve("group/UKDS/nested"), "NESTED");
+        createRepository(baseDirectory.resolve("FSD"), "FSD");
+
+        // When
+        var discoveredRepositories = pipelineUtilities.discoverRepositories(baseDirectory);
+
+        // Then
+        assertThat(discoveredRepositories).map(Repo::getCode).containsExactly("FSD", "UKDS");
+    }
+
+    @Test
+    void shouldOnlyListDirectoriesModifiedSinceTheLastDiscovery(@TempDir Path baseDirectory) throws IOException {
+        // Given
+        createRepository(baseDirectory.resolve("UKDS"), "UKDS");
+        var group = Files.createDirectory(baseDirectory.resolve("group"));
+        var lastModified = Files.getLastModifiedTime(group);
+        assertThat(pipelineUtilities.discoverRepositories(baseDirectory)).map(Repo::getCode).containsExactly("UKDS");
+
+        // When - a repository is added, but the directory's modification time is unchanged
+        createRepository(group.resolve("FSD"), "FSD");
+        Files.setLastModifiedTime(group, lastModified);
+
+        // Then - the cached contents of the directory are used
+        assertThat(pipelineUtilities.discoverRepositories(baseDirectory)).map(Repo::getCode).containsExactly("UKDS");
+
+        // When - the directory's modification time changes
+        Files.setLastModifiedTime(group, FileTime.fromMillis(lastModified.toMillis() + 1000));
+
+        // Then
+        assertThat(pipelineUtilities.discoverRepositories(baseDirectory)).map(Repo::getCode).containsExactlyInAnyOrder("FSD", "UKDS");
+    }
+
+    @Test
+    void shouldPersistTheDiscoveryCache(@TempDir Path baseDirectory, @TempDir Path stateDirectory) throws IOException {
+        // Given
+        configurationProperties.setStateDirectory(stateDirectory);
+        createRepository(baseDirectory.resolve("UKDS"), "UKDS");
+        pipelineUtilities.discoverRepositories(baseDirectory).close();
+
+        // When - a repository is added, but the base directory's modification time is unchanged
+        var lastModified = Files.getLastModifiedTime(baseDirectory);
+        var group = Files.createDirectory(baseDirectory.resolve("group"));
+        createRepository(group.resolve("FSD"), "FSD");
+        Files.setLastModifiedTime(baseDirectory, lastModified);
+        var loadedPipelineUtilities = new PipelineUtilities(objectMapper, configurationProperties);
+
+        // Then
+        assertThat(stateDirectory.resolve(PipelineUtilities.DISCOVERY_CACHE_FILE)).exists();
+        assertThat(loadedPipelineUtilities.discoverRepositories(baseDirectory)).map(Repo::getCode).containsExactly("UKDS");
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright © 2017-2023 CESSDA ERIC (support@cessda.eu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.cessda.pasc.oci;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import eu.cessda.pasc.oci.configurations.AppConfigurationProperties;
+import eu.cessda.pasc.oci.models.configurations.Repo;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class RepositoryStatisticsTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final AppConfigurationProperties configurationProperties = new AppConfigurationProperties();
+    private final RepositoryStatistics repositoryStatistics = new RepositoryStatistics(configurationProperties, objectMapper);
+
+    @Test
+    void shouldNotPredictWithoutStatistics() {
+        assertThat(repositoryStatistics.predict("UKDS", 1000)).isEmpty();
+    }
+
+    @Test
+    void shouldScalePreviousDurationBySize() {
+        // Given
+        repositoryStatistics.record("UKDS", 1000, Duration.ofSeconds(10));
+
+        // Then
+        assertThat(repositoryStatistics.predict("UKDS", 2000)).contains(Duration.ofSeconds(20));
+        assertThat(repositoryStatistics.predict("UKDS", 0)).contains(Duration.ofSeconds(10));
+    }
+
+    @Test
+    void shouldPredictNewRepositoriesFromTheThroughputOfOthers() {
+        // Given
+        repositoryStatistics.record("UKDS", 1000, Duration.ofSeconds(10));
+        repositoryStatistics.record("FSD", 3000, Duration.ofSeconds(30));
+
+        // Then - the average throughput is 100 bytes per second
+        assertThat(repositoryStatistics.predict("GESIS", 500)).contains(Duration.ofSeconds(5));
+    }
+
+    @Test
+    void shouldPersistStatisticsBetweenRuns(@TempDir Path stateDirectory) {
+        // Given
+        configurationProperties.setStateDirectory(stateDirectory);
+        repositoryStatistics.record("UKDS", 1000, Duration.ofSeconds(10));
+
+        // When
+        repositoryStatistics.save();
+        var loadedStatistics = new RepositoryStatistics(configurationProperties, objectMapper);
+        loadedStatistics.load();
+
+        // Then
+        assertThat(stateDirectory.resolve(RepositoryStatistics.STATISTICS_FILE)).exists();
+        assertThat(loadedStatistics.get("UKDS")).hasValueSatisfying(entry -> {
+            assertThat(entry.bytes()).isEqualTo(1000);
+            assertThat(entry.durationMillis()).isEqualTo(10000);
+        });
+    }
+
+    @Test
+    void shouldIgnoreMissingStatistics(@TempDir Path stateDirectory) {
+        // Given
+        configurationProperties.setStateDirectory(stateDirectory);
+
+        // When
+        repositoryStatistics.load();
+
+        // Then
+        assertThat(repositoryStatistics.get("UKDS")).isEmpty();
+    }
+
+    @Test
+    void shouldEstimateSizeFromDirectory(@TempDir Path repositoryDirectory) throws IOException {
+        // Given
+        Files.write(repositoryDirectory.resolve("a.xml"), new byte[100]);
+        Files.write(repositoryDirectory.resolve("b.xml"), new byte[50]);
+        var repo = new Repo();
+        repo.setCode("UKDS");
+        repo.setPath(repositoryDirectory);
+
+        // Then
+        assertThat(RepositoryStatistics.estimateSize(repo)).isEqualTo(150);
+        assertThat(RepositoryStatistics.estimateSize(new Repo())).isZero();
+    }
+}
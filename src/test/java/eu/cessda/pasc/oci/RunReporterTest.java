@@ -0,0 +1,108 @@
+/*
+ * Copyright © 2017-2023 CESSDA ERIC (support@cessda.eu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.cessda.pasc.oci;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import eu.cessda.pasc.oci.configurations.AppConfigurationProperties;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.slf4j.MDC;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class RunReporterTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final AppConfigurationProperties configurationProperties = new AppConfigurationProperties();
+    private final IndexerMetrics indexerMetrics = new IndexerMetrics(new SimpleMeterRegistry());
+    private final RunReporter runReporter = new RunReporter(configurationProperties, indexerMetrics, objectMapper);
+
+    @AfterEach
+    void tearDown() {
+        MDC.clear();
+    }
+
+    @Test
+    void shouldGroupMetricsByRepositoryAndLanguage() {
+        // Given
+        runReporter.start();
+        MDC.put(LoggingConstants.REPO_NAME, "UKDS");
+        indexerMetrics.recordFile(1024);
+        indexerMetrics.recordFile(2048);
+        indexerMetrics.recordStudies(IndexerMetrics.StudyOutcome.PARSED, 4);
+        indexerMetrics.stopTimer(indexerMetrics.startTimer(), IndexerMetrics.Stage.XML_PARSE);
+
+        MDC.put(LoggingConstants.LANG_CODE, "en");
+        indexerMetrics.recordStudies(IndexerMetrics.StudyOutcome.CREATED, 3);
+        indexerMetrics.recordStudies(IndexerMetrics.StudyOutcome.UNCHANGED, 1);
+        indexerMetrics.recordBulkRequest(4096);
+        indexerMetrics.recordBulkRetry();
+        indexerMetrics.stopTimer(indexerMetrics.startTimer(), IndexerMetrics.Stage.BULK_REQUEST);
+
+        // When
+        var report = runReporter.buildReport("job");
+
+        // Then
+        assertThat(report.jobId()).isEqualTo("job");
+        assertThat(report.filesRead()).isEqualTo(2);
+        assertThat(report.bytesRead()).isEqualTo(3072);
+        assertThat(report.studies()).containsEntry("parsed", 4L).containsEntry("created", 3L);
+        assertThat(report.bulkRequests()).isEqualTo(1);
+        assertThat(report.bulkRetries()).isEqualTo(1);
+        assertThat(report.stages()).extracting("stage").containsExactly("xml_parse", "bulk_request");
+        assertThat(report.jvm().garbageCollectors()).isNotEmpty();
+
+        assertThat(report.repositories()).singleElement().satisfies(repository -> {
+            assertThat(repository.code()).isEqualTo("UKDS");
+            assertThat(repository.filesRead()).isEqualTo(2);
+            assertThat(repository.studiesParsed()).isEqualTo(4);
+            assertThat(repository.stageMillis()).containsOnlyKeys("xml_parse");
+
+            assertThat(repository.languages()).singleElement().satisfies(language -> {
+                assertThat(language.language()).isEqualTo("en");
+                assertThat(language.studies()).containsOnlyKeys("created", "unchanged");
+                assertThat(language.bulkBytes()).isEqualTo(4096);
+                assertThat(language.stageMillis()).containsOnlyKeys("bulk_request");
+            });
+        });
+    }
+
+    @Test
+    void shouldWriteReportToTheConfiguredDirectory(@TempDir Path tempDir) throws IOException {
+        // Given
+        configurationProperties.setReportDirectory(tempDir.resolve("reports"));
+        runReporter.start();
+
+        // When
+        var reportFile = runReporter.writeReport("job");
+
+        // Then
+        assertThat(reportFile).isPresent();
+        var report = objectMapper.readTree(reportFile.orElseThrow().toFile());
+        assertThat(report.get("jobId").asText()).isEqualTo("job");
+        assertThat(report.has("jvm")).isTrue();
+    }
+
+    @Test
+    void shouldNotWriteReportIfNoDirectoryIsConfigured() {
+        assertThat(runReporter.writeReport("job")).isEmpty();
+    }
+}
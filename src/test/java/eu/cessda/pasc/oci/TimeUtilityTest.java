@@ -17,6 +17,7 @@ package eu.cessda.pasc.oci;
 
 import org.junit.Test;
 
+import java.time.Instant;
 import java.util.TimeZone;
 
 import static org.assertj.core.api.Assertions.fail;
@@ -68,4 +69,12 @@ public class TimeUtilityTest {
           then(e.getExpectedDateFormats()).isNotEmpty();
       }
   }
+
+    @Test
+    public void shouldParseOaiPmhDatestamps() {
+        then(TimeUtility.parseDatestamp("2017-05-02T08:31:32Z")).contains(Instant.parse("2017-05-02T08:31:32Z"));
+        then(TimeUtility.parseDatestamp("2017-05-02")).contains(Instant.parse("2017-05-02T00:00:00Z"));
+        then(TimeUtility.parseDatestamp("invalid-date-string")).isEmpty();
+        then(TimeUtility.parseDatestamp(null)).isEmpty();
+    }
 }
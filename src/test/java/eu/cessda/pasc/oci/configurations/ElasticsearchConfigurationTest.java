@@ -15,21 +15,47 @@
  */
 package eu.cessda.pasc.oci.configurations;
 
+import co.elastic.clients.transport.rest_client.RestClientTransport;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpServer;
+import eu.cessda.pasc.oci.IndexerMetrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.elasticsearch.client.Request;
+import org.junit.After;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertSame;
 
 public class ElasticsearchConfigurationTest {
 
+    private final List<HttpServer> nodes = new ArrayList<>();
+    private final List<AtomicInteger> requestCounts = new ArrayList<>();
+    private final List<String> acceptEncodings = new CopyOnWriteArrayList<>();
+    private final List<String> contentEncodings = new CopyOnWriteArrayList<>();
+    private final List<byte[]> requestBodies = new CopyOnWriteArrayList<>();
+
     private ElasticsearchConfiguration getElasticsearchConfiguration() {
         return new ElasticsearchConfiguration(
             "localhost",
             9200,
             null,
             null,
-            new ObjectMapper()
+            new ObjectMapper(),
+            new ESConfigurationProperties(),
+            new IndexerMetrics(new SimpleMeterRegistry())
         );
     }
 
@@ -59,4 +85,174 @@ public class ElasticsearchConfigurationTest {
             assertSame(firstESClient, secondESClient);
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Start a stand-in Elasticsearch node that responds to every request with an empty success response.
+     */
+    private String startNode() throws IOException {
+        var requestCount = new AtomicInteger();
+        var server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", exchange -> {
+            requestCount.incrementAndGet();
+            acceptEncodings.add(exchange.getRequestHeaders().getFirst("Accept-Encoding"));
+            var contentEncoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+            if (contentEncoding != null) {
+                contentEncodings.add(contentEncoding);
+            }
+            var body = exchange.getRequestBody().readAllBytes();
+            if (body.length > 0) {
+                requestBodies.add(body);
+            }
+            exchange.getResponseHeaders().add("X-Elastic-Product", "Elasticsearch");
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+        });
+        server.start();
+
+        nodes.add(server);
+        requestCounts.add(requestCount);
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort();
+    }
+
+    @After
+    public void stopNodes() {
+        nodes.forEach(server -> server.stop(0));
+    }
+
+    private ElasticsearchConfiguration getMultiNodeConfiguration(int nodeCount) throws IOException {
+        var esConfig = new ESConfigurationProperties();
+        var hosts = new ArrayList<String>();
+        for (int i = 0; i < nodeCount; i++) {
+            hosts.add(startNode());
+        }
+        esConfig.setHosts(hosts);
+        return new ElasticsearchConfiguration("localhost", 9200, null, null, new ObjectMapper(), esConfig, new IndexerMetrics(new SimpleMeterRegistry()));
+    }
+
+    @Test
+    public void shouldSpreadRequestsAcrossAllNodes() throws IOException {
+        try (var elasticsearchConfiguration = getMultiNodeConfiguration(3)) {
+            // Given
+            var client = elasticsearchConfiguration.elasticsearchClient();
+
+            // When
+            for (int i = 0; i < 9; i++) {
+                assertThat(client.ping().value()).isTrue();
+            }
+
+            // Then - each node should have received requests
+            assertThat(requestCounts).allSatisfy(count -> assertThat(count.get()).isPositive());
+            assertThat(requestCounts.stream().mapToInt(AtomicInteger::get).sum()).isEqualTo(9);
+        }
+    }
+
+    @Test
+    public void shouldRetryRequestsOnRemainingNodesWhenANodeFails() throws IOException {
+        try (var elasticsearchConfiguration = getMultiNodeConfiguration(3)) {
+            // Given
+            var client = elasticsearchConfiguration.elasticsearchClient();
+            nodes.get(0).stop(0);
+
+            // When
+            for (int i = 0; i < 6; i++) {
+                assertThat(client.ping().value()).isTrue();
+            }
+
+            // Then - the stopped node should not have served any requests
+            assertThat(requestCounts.get(0).get()).isZero();
+            assertThat(requestCounts.get(1).get() + requestCounts.get(2).get()).isEqualTo(6);
+        }
+    }
+
+    @Test
+    public void shouldSizeConnectionPoolForConcurrentBulkRequests() {
+        // Given
+        var esConfig = new ESConfigurationProperties();
+        var elasticsearchConfiguration = new ElasticsearchConfiguration("localhost", 9200, null, null, new ObjectMapper(), esConfig, new IndexerMetrics(new SimpleMeterRegistry()));
+
+        // Then - the default pool should allow a request from every harvesting thread
+        assertThat(elasticsearchConfiguration.getMaxConnectionsPerRoute())
+            .isGreaterThanOrEqualTo(Runtime.getRuntime().availableProcessors())
+            .isGreaterThanOrEqualTo(10);
+
+        // When
+        esConfig.setMaxConnectionsPerRoute(4);
+
+        // Then
+        assertThat(elasticsearchConfiguration.getMaxConnectionsPerRoute()).isEqualTo(4);
+    }
+
+    @Test
+    public void shouldNotSizeTotalConnectionsFromConfiguredHosts() throws IOException {
+        // Given
+        try (var singleNodeConfiguration = getMultiNodeConfiguration(1);
+             var multiNodeConfiguration = getMultiNodeConfiguration(3)) {
+
+            // Then - nodes added by sniffing need connections too, so the total is not derived from the seed hosts
+            assertThat(singleNodeConfiguration.getMaxConnectionsTotal())
+                .isEqualTo(multiNodeConfiguration.getMaxConnectionsTotal())
+                .isEqualTo(new ESConfigurationProperties().getMaxConnectionsTotal());
+        }
+    }
+
+    @Test
+    public void shouldRaiseTotalConnectionsToConnectionsPerRoute() {
+        // Given
+        var esConfig = new ESConfigurationProperties();
+        esConfig.setMaxConnectionsPerRoute(20);
+        esConfig.setMaxConnectionsTotal(5);
+        var elasticsearchConfiguration = new ElasticsearchConfiguration("localhost", 9200, null, null, new ObjectMapper(), esConfig, new IndexerMetrics(new SimpleMeterRegistry()));
+
+        // Then
+        assertThat(elasticsearchConfiguration.getMaxConnectionsTotal()).isEqualTo(20);
+    }
+
+    @Test
+    public void shouldGzipRequestBodies() throws IOException {
+        // Given
+        var esConfig = new ESConfigurationProperties();
+        esConfig.setHosts(List.of(startNode()));
+        var body = "{\"index\":{\"_id\":\"1\"}}\n{\"titleStudy\":\"Study\"}\n";
+
+        try (var elasticsearchConfiguration = new ElasticsearchConfiguration(
+            "localhost", 9200, null, null, new ObjectMapper(), esConfig, new IndexerMetrics(new SimpleMeterRegistry())
+        )) {
+            var restClient = ((RestClientTransport) elasticsearchConfiguration.elasticsearchClient()._transport()).restClient();
+            var request = new Request("POST", "/_bulk");
+            request.setJsonEntity(body);
+
+            // When
+            restClient.performRequest(request);
+        }
+
+        // Then - the body on the wire should start with the gzip magic number and decompress to the original body
+        assertThat(contentEncodings).containsExactly("gzip");
+        assertThat(requestBodies).singleElement().satisfies(sent -> {
+            assertThat(sent).startsWith((byte) 0x1F, (byte) 0x8B);
+            try (var decompressed = new GZIPInputStream(new ByteArrayInputStream(sent))) {
+                assertThat(new String(decompressed.readAllBytes(), StandardCharsets.UTF_8)).isEqualTo(body);
+            }
+        });
+    }
+
+    @Test
+    public void shouldAcceptCompressedResponsesAndCountTransferredBytes() throws IOException {
+        // Given
+        var indexerMetrics = new IndexerMetrics(new SimpleMeterRegistry());
+        var esConfig = new ESConfigurationProperties();
+        esConfig.setHosts(List.of(startNode()));
+
+        try (var elasticsearchConfiguration = new ElasticsearchConfiguration(
+            "localhost", 9200, null, null, new ObjectMapper(), esConfig, indexerMetrics
+        )) {
+            // When
+            assertThat(elasticsearchConfiguration.elasticsearchClient().ping().value()).isTrue();
+        }
+
+        // Then
+        assertThat(acceptEncodings).containsExactly("gzip");
+        var sent = indexerMetrics.getRegistry().find("indexer.transport.bytes").tag("direction", "sent").counter();
+        assertThat(sent).isNotNull();
+        assertThat(sent.count()).isPositive();
+    }
+}
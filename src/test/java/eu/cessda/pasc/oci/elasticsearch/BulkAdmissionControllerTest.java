@@ -0,0 +1,223 @@
+/*
+ * Copyright © 2017-2023 CESSDA ERIC (support@cessda.eu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.cessda.pasc.oci.elasticsearch;
+
+import co.elastic.clients.elasticsearch.ElasticsearchClient;
+import co.elastic.clients.elasticsearch.core.BulkRequest;
+import co.elastic.clients.elasticsearch.core.BulkResponse;
+import co.elastic.clients.elasticsearch.core.bulk.BulkResponseItem;
+import co.elastic.clients.elasticsearch.core.bulk.OperationType;
+import co.elastic.clients.json.jackson.JacksonJsonpMapper;
+import co.elastic.clients.transport.ElasticsearchTransport;
+import eu.cessda.pasc.oci.IndexerMetrics;
+import eu.cessda.pasc.oci.configurations.ESConfigurationProperties;
+import eu.cessda.pasc.oci.service.HarvestProgress;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+class BulkAdmissionControllerTest {
+
+    @Test
+    void shouldLimitRequestsInFlight() throws InterruptedException {
+        // Given
+        var controller = new BulkAdmissionController(2, 1000);
+        var first = controller.acquire("UKDS", 10);
+        var second = controller.acquire("UKDS", 10);
+
+        // When
+        var admitted = new AtomicBoolean();
+        var waiter = CompletableFuture.runAsync(() -> {
+            try (var ignored = controller.acquire("UKDS", 10)) {
+                admitted.set(true);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        // Then
+        TimeUnit.MILLISECONDS.sleep(100);
+        assertThat(admitted).isFalse();
+        assertThat(controller.getRequestsInFlight()).isEqualTo(2);
+
+        first.close();
+        waiter.join();
+        assertThat(admitted).isTrue();
+
+        second.close();
+        assertThat(controller.getRequestsInFlight()).isZero();
+        assertThat(controller.getBytesInFlight()).isZero();
+    }
+
+    @Test
+    void shouldLimitBytesInFlight() throws InterruptedException {
+        // Given
+        var controller = new BulkAdmissionController(10, 100);
+        var first = controller.acquire("UKDS", 80);
+
+        // When
+        var waiter = CompletableFuture.runAsync(() -> {
+            try (var ignored = controller.acquire("FSD", 80)) {
+                assertThat(controller.getBytesInFlight()).isEqualTo(80);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        // Then
+        TimeUnit.MILLISECONDS.sleep(100);
+        assertThat(waiter).isNotDone();
+        first.close();
+        waiter.join();
+    }
+
+    @Test
+    void shouldAdmitOversizedRequestsWhenIdle() throws InterruptedException {
+        var controller = new BulkAdmissionController(10, 100);
+        try (var ignored = controller.acquire("UKDS", 1000)) {
+            assertThat(controller.getBytesInFlight()).isEqualTo(1000);
+        }
+    }
+
+    @Test
+    void shouldShareRequestsFairlyBetweenRepositories() throws InterruptedException {
+        // Given - one repository is using every request
+        var controller = new BulkAdmissionController(4, 1000);
+        var permits = new ArrayList<BulkAdmissionController.Permit>();
+        for (int i = 0; i < 4; i++) {
+            permits.add(controller.acquire("UKDS", 1));
+        }
+
+        // When - another repository starts waiting
+        var fsdPermit = acquireAsync(controller, "FSD");
+        TimeUnit.MILLISECONDS.sleep(100);
+
+        // A request from the first repository should not be admitted before the waiting repository
+        var ukdsPermit = acquireAsync(controller, "UKDS");
+        TimeUnit.MILLISECONDS.sleep(100);
+        permits.remove(0).close();
+
+        // Then
+        fsdPermit.join();
+        assertThat(ukdsPermit).isNotDone();
+
+        fsdPermit.join().close();
+        permits.forEach(BulkAdmissionController.Permit::close);
+        ukdsPermit.join().close();
+        assertThat(controller.getRequestsInFlight()).isZero();
+    }
+
+    private static CompletableFuture<BulkAdmissionController.Permit> acquireAsync(BulkAdmissionController controller, String repository) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return controller.acquire(repository, 1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    @Test
+    void shouldHalveLimitOnRejectionAndRecoverAdditively() {
+        // Given
+        var controller = new BulkAdmissionController(8, 1000);
+
+        // When
+        controller.onRejected();
+        controller.onRejected();
+
+        // Then
+        assertThat(controller.getRequestLimit()).isEqualTo(2);
+
+        // The limit should grow by about one request for each limit's worth of successes
+        controller.onSuccess();
+        controller.onSuccess();
+        assertThat(controller.getRequestLimit()).isEqualTo(2);
+        controller.onSuccess();
+        assertThat(controller.getRequestLimit()).isEqualTo(3);
+
+        // The limit should never exceed the configured maximum
+        for (int i = 0; i < 100; i++) {
+            controller.onSuccess();
+        }
+        assertThat(controller.getRequestLimit()).isEqualTo(8);
+    }
+
+    @Test
+    void shouldNotReduceLimitBelowOne() {
+        var controller = new BulkAdmissionController(2, 1000);
+        for (int i = 0; i < 10; i++) {
+            controller.onRejected();
+        }
+        assertThat(controller.getRequestLimit()).isEqualTo(1);
+    }
+
+    @Test
+    void shouldRejectInvalidLimits() {
+        assertThatThrownBy(() -> new BulkAdmissionController(0, 1000)).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> new BulkAdmissionController(1, 0)).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void shouldRetryOperationsRejectedByElasticsearch() throws IOException, IndexingException {
+        // Given
+        var client = mock(ElasticsearchClient.class);
+        var transport = mock(ElasticsearchTransport.class);
+        when(transport.jsonpMapper()).thenReturn(new JacksonJsonpMapper());
+        when(client._transport()).thenReturn(transport);
+
+        // The first delete is rejected on the first attempt
+        var attempts = new AtomicInteger();
+        when(client.bulk(any(BulkRequest.class))).thenAnswer(invocation -> {
+            BulkRequest request = invocation.getArgument(0);
+            var attempt = attempts.getAndIncrement();
+            var items = new ArrayList<BulkResponseItem>();
+            for (int i = 0; i < request.operations().size(); i++) {
+                var id = request.operations().get(i).delete().id();
+                var status = attempt == 0 && i == 0 ? 429 : 200;
+                items.add(BulkResponseItem.of(item -> item.operationType(OperationType.Delete)
+                    .index("cmmstudy_en").id(id).status(status)));
+            }
+            return BulkResponse.of(r -> r.items(items).errors(false).took(1));
+        });
+
+        var controller = new BulkAdmissionController(4, 1000);
+        var ingestService = new ESIngestService(client, new ESConfigurationProperties(), new IndexerMetrics(new SimpleMeterRegistry()), new HarvestProgress(), controller);
+
+        // When
+        ingestService.bulkDeleteById(List.of("1", "2", "3"), "en");
+
+        // Then - only the rejected operation should be retried, with a reduced limit
+        verify(client, times(2)).bulk(any(BulkRequest.class));
+        verify(client).bulk(argThat((BulkRequest request) -> request.operations().size() == 1
+            && request.operations().get(0).delete().id().equals("1")));
+        assertThat(controller.getRequestLimit()).isEqualTo(2);
+        assertThat(controller.getRequestsInFlight()).isZero();
+    }
+}
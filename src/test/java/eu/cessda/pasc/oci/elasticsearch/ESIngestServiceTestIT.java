@@ -29,9 +29,11 @@ import co.elastic.clients.elasticsearch.indices.DeleteIndexRequest;
 import co.elastic.clients.elasticsearch.indices.RefreshRequest;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import eu.cessda.pasc.oci.IndexerMetrics;
 import eu.cessda.pasc.oci.configurations.ESConfigurationProperties;
 import eu.cessda.pasc.oci.models.cmmstudy.CMMStudyOfLanguage;
 import eu.cessda.pasc.oci.models.cmmstudy.CMMStudyOfLanguageConverter;
+import eu.cessda.pasc.oci.service.HarvestProgress;
 import lombok.extern.slf4j.Slf4j;
 import org.junit.After;
 import org.junit.Assert;
@@ -45,6 +47,7 @@ import org.springframework.test.context.junit4.SpringRunner;
 
 import java.io.IOException;
 import java.io.UncheckedIOException;
+import java.time.Instant;
 import java.time.LocalDateTime;
 import java.util.*;
 
@@ -83,8 +86,21 @@ public class ESIngestServiceTestIT {
     @Autowired
     private ElasticsearchClient elasticsearchClient;
 
+    @Autowired
+    private IndexerMetrics indexerMetrics;
+
+    @Autowired
+    private HarvestProgress harvestProgress;
+
+    @Autowired
+    private BulkAdmissionController admissionController;
+
     private final CMMStudyOfLanguageConverter cmmStudyOfLanguageConverter = new CMMStudyOfLanguageConverter();
 
+    private ESIngestService newIngestService(ElasticsearchClient client) {
+        return new ESIngestService(client, esConfigProp, indexerMetrics, harvestProgress, admissionController);
+    }
+
     /**
      * Reset Elasticsearch after each test
      */
@@ -102,7 +118,7 @@ public class ESIngestServiceTestIT {
 
         // Given
         List<CMMStudyOfLanguage> studyOfLanguages = getCmmStudyOfLanguageCodeEnX1();
-        ESIngestService ingestService = new ESIngestService(elasticsearchClient, esConfigProp);
+        ESIngestService ingestService = newIngestService(elasticsearchClient);
 
         // Set the id to a random UUID
         var expected = studyOfLanguages.get(0);
@@ -130,7 +146,7 @@ public class ESIngestServiceTestIT {
 
         // Given
         List<CMMStudyOfLanguage> studyOfLanguages = getCmmStudyOfLanguageCodeEnX3();
-        ESIngestService ingestService = new ESIngestService(elasticsearchClient, esConfigProp);
+        ESIngestService ingestService = newIngestService(elasticsearchClient);
         ingestService.bulkIndex(studyOfLanguages, LANGUAGE_ISO_CODE);
 
         elasticsearchClient.indices().refresh(RefreshRequest.of(r -> r.index(INDEX_NAME)));
@@ -164,7 +180,7 @@ public class ESIngestServiceTestIT {
         List<CMMStudyOfLanguage> studyOfLanguages = getCmmStudyOfLanguageCodeEnX3();
 
         var elasticsearchClientSpy = spy(elasticsearchClient);
-        var ingestService = new ESIngestService(elasticsearchClientSpy, esConfigProp);
+        var ingestService = newIngestService(elasticsearchClientSpy);
 
         // Given
         doThrow(IOException.class).when(elasticsearchClientSpy).search(any(SearchRequest.class), eq(CMMStudyOfLanguage.class));
@@ -184,7 +200,7 @@ public class ESIngestServiceTestIT {
     public void shouldReturnEmptyOptionalWithNoResults() {
 
         // Given
-        var ingestService = new ESIngestService(elasticsearchClient, esConfigProp);
+        var ingestService = newIngestService(elasticsearchClient);
 
         // When
         Optional<LocalDateTime> mostRecentLastModified = ingestService.getMostRecentLastModified();
@@ -198,7 +214,7 @@ public class ESIngestServiceTestIT {
 
         // Setup
         List<CMMStudyOfLanguage> studyOfLanguages = getCmmStudyOfLanguageCodeEnX3();
-        ESIngestService ingestService = new ESIngestService(elasticsearchClient, esConfigProp);
+        ESIngestService ingestService = newIngestService(elasticsearchClient);
 
         // Given
         ingestService.bulkIndex(studyOfLanguages, LANGUAGE_ISO_CODE);
@@ -216,7 +232,7 @@ public class ESIngestServiceTestIT {
         // Setup
         List<CMMStudyOfLanguage> studyOfLanguages = getCmmStudyOfLanguageCodeEnX3();
         var elasticsearchClientSpy = spy(elasticsearchClient);
-        ESIngestService ingestService = new ESIngestService(elasticsearchClientSpy, esConfigProp);
+        ESIngestService ingestService = newIngestService(elasticsearchClientSpy);
 
         // Given
         doThrow(IOException.class).when(elasticsearchClientSpy)
@@ -233,7 +249,7 @@ public class ESIngestServiceTestIT {
     public void shouldReturnNoStudiesForAnEmptyIndex() throws IndexingException {
 
         // Setup
-        var ingestService = new ESIngestService(elasticsearchClient, esConfigProp);
+        var ingestService = newIngestService(elasticsearchClient);
         ingestService.bulkIndex(Collections.emptyList(), LANGUAGE_ISO_CODE);
 
         // Then
@@ -247,7 +263,7 @@ public class ESIngestServiceTestIT {
 
         // Setup
         List<CMMStudyOfLanguage> studyOfLanguages = getCmmStudyOfLanguageCodeEnX3();
-        ESIngestService ingestService = new ESIngestService(elasticsearchClient, esConfigProp);
+        ESIngestService ingestService = newIngestService(elasticsearchClient);
 
         // Given
         ingestService.bulkIndex(studyOfLanguages, LANGUAGE_ISO_CODE);
@@ -263,7 +279,7 @@ public class ESIngestServiceTestIT {
     public void shouldReturnEmptyOptionalOnInvalidIndex() {
 
         // Setup
-        ESIngestService ingestService = new ESIngestService(elasticsearchClient, esConfigProp);
+        ESIngestService ingestService = newIngestService(elasticsearchClient);
 
         // Then
         var study = ingestService.getStudy(UUID.randomUUID().toString(), "moon");
@@ -276,7 +292,7 @@ public class ESIngestServiceTestIT {
 
         // Setup
         List<CMMStudyOfLanguage> studyOfLanguages = getCmmStudyOfLanguageCodeEnX3();
-        ESIngestService ingestService = new ESIngestService(elasticsearchClient, esConfigProp);
+        ESIngestService ingestService = newIngestService(elasticsearchClient);
 
         // Given
         ingestService.bulkIndex(studyOfLanguages, LANGUAGE_ISO_CODE);
@@ -291,7 +307,7 @@ public class ESIngestServiceTestIT {
         // Setup
         List<CMMStudyOfLanguage> studyOfLanguages = getCmmStudyOfLanguageCodeEnX3();
         var elasticsearchClientSpy = spy(elasticsearchClient);
-        ESIngestService ingestService = new ESIngestService(elasticsearchClientSpy, esConfigProp);
+        ESIngestService ingestService = newIngestService(elasticsearchClientSpy);
 
         // Given
         doThrow(IOException.class).when(elasticsearchClientSpy).get(any(co.elastic.clients.elasticsearch.core.GetRequest.class), eq(CMMStudyOfLanguage.class));
@@ -310,7 +326,7 @@ public class ESIngestServiceTestIT {
         List<CMMStudyOfLanguage> studyOfLanguages = getCmmStudyOfLanguageCodeEnX3();
         var cmmStudyOfLanguageConverterSpy = spy(this.cmmStudyOfLanguageConverter);
         var objectWriterSpy = spy(this.cmmStudyOfLanguageConverter.getWriter());
-        ESIngestService ingestService = new ESIngestService(elasticsearchClient, esConfigProp);
+        ESIngestService ingestService = newIngestService(elasticsearchClient);
 
         // Given
         Mockito.doReturn(objectWriterSpy).when(cmmStudyOfLanguageConverterSpy).getWriter();
@@ -324,7 +340,7 @@ public class ESIngestServiceTestIT {
     public void shouldDeleteGivenStudies() throws IOException, IndexingException {
         // Setup
         List<CMMStudyOfLanguage> studyOfLanguages = getCmmStudyOfLanguageCodeEnX3();
-        ESIngestService ingestService = new ESIngestService(elasticsearchClient, esConfigProp);
+        ESIngestService ingestService = newIngestService(elasticsearchClient);
         ingestService.bulkIndex(studyOfLanguages, LANGUAGE_ISO_CODE);
         elasticsearchClient.indices().refresh(RefreshRequest.of(r -> r.index(INDEX_NAME)));
 
@@ -366,7 +382,7 @@ public class ESIngestServiceTestIT {
         var studiesToIngest = new ArrayList<>(studyOfLanguages);
         studiesToIngest.add(studyWithDifferentRepoCode);
 
-        ESIngestService ingestService = new ESIngestService(elasticsearchClient, esConfigProp);
+        ESIngestService ingestService = newIngestService(elasticsearchClient);
         ingestService.bulkIndex(studiesToIngest, LANGUAGE_ISO_CODE);
         elasticsearchClient.indices().refresh(RefreshRequest.of(r -> r.index(INDEX_NAME)));
 
@@ -381,4 +397,161 @@ public class ESIngestServiceTestIT {
         studies = ingestService.getStudiesByRepository("TEST", LANGUAGE_ISO_CODE);
         then(studies).contains(studyWithDifferentRepoCode).doesNotContainAnyElementsOf(studyOfLanguages);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void shouldReturnStudyIdsBelongingToARepositoryGroupedByLanguage() throws IOException, IndexingException {
+        // Setup
+        List<CMMStudyOfLanguage> studyOfLanguages = getCmmStudyOfLanguageCodeEnX3();
+
+        // Study with a different repository code
+        var studyWithDifferentRepoCode = getCmmStudyOfLanguageCodeEnX1().get(0)
+            .withId(UUID.randomUUID().toString()).withCode("TEST");
+
+        var studiesToIngest = new ArrayList<>(studyOfLanguages);
+        studiesToIngest.add(studyWithDifferentRepoCode);
+
+        ESIngestService ingestService = newIngestService(elasticsearchClient);
+        ingestService.bulkIndex(studiesToIngest, LANGUAGE_ISO_CODE);
+        elasticsearchClient.indices().refresh(RefreshRequest.of(r -> r.index(INDEX_NAME)));
+
+        // When
+        var studyIds = ingestService.getStudyIdsByRepository(studyOfLanguages.get(0).getCode());
+
+        // Then
+        then(studyIds).containsOnlyKeys(LANGUAGE_ISO_CODE);
+        then(studyIds.get(LANGUAGE_ISO_CODE))
+            .containsExactlyInAnyOrderElementsOf(studyOfLanguages.stream().map(CMMStudyOfLanguage::getId).toList());
+    }
+
+    @Test
+    public void shouldDeleteAllStudiesOfARepositoryServerSide() throws IOException, IndexingException {
+        // Setup
+        List<CMMStudyOfLanguage> studyOfLanguages = getCmmStudyOfLanguageCodeEnX3();
+        var studyWithDifferentRepoCode = getCmmStudyOfLanguageCodeEnX1().get(0)
+            .withId(UUID.randomUUID().toString()).withCode("TEST");
+
+        var studiesToIngest = new ArrayList<>(studyOfLanguages);
+        studiesToIngest.add(studyWithDifferentRepoCode);
+
+        ESIngestService ingestService = newIngestService(elasticsearchClient);
+        ingestService.bulkIndex(studiesToIngest, LANGUAGE_ISO_CODE);
+        elasticsearchClient.indices().refresh(RefreshRequest.of(r -> r.index(INDEX_NAME)));
+
+        // When
+        var deleted = ingestService.deleteByRepository(studyOfLanguages.get(0).getCode());
+
+        // Then - only the study from the other repository should remain
+        then(deleted).isEqualTo(3);
+        then(ingestService.getStudyIdsByRepository(studyOfLanguages.get(0).getCode())).isEmpty();
+        then(ingestService.getStudyIdsByRepository("TEST").get(LANGUAGE_ISO_CODE)).containsExactly(studyWithDifferentRepoCode.getId());
+    }
+
+    @Test
+    public void shouldDeleteStudiesNotInTheGivenIdsServerSide() throws IOException, IndexingException {
+        // Setup
+        List<CMMStudyOfLanguage> studyOfLanguages = getCmmStudyOfLanguageCodeEnX3();
+        ESIngestService ingestService = newIngestService(elasticsearchClient);
+        ingestService.bulkIndex(studyOfLanguages, LANGUAGE_ISO_CODE);
+        elasticsearchClient.indices().refresh(RefreshRequest.of(r -> r.index(INDEX_NAME)));
+
+        // Given
+        var repoCode = studyOfLanguages.get(0).getCode();
+        var idsToKeep = List.of(studyOfLanguages.get(1).getId(), studyOfLanguages.get(2).getId());
+
+        // When
+        var deleted = ingestService.deleteByRepositoryExcept(repoCode, idsToKeep, LANGUAGE_ISO_CODE);
+
+        // Then
+        then(deleted).isEqualTo(1);
+        then(ingestService.getStudyIdsByRepository(repoCode).get(LANGUAGE_ISO_CODE)).containsExactlyInAnyOrderElementsOf(idsToKeep);
+    }
+
+    @Test
+    public void shouldKeepIdsFromEveryClauseWhenDeletingServerSide() throws IOException, IndexingException {
+        // Setup
+        List<CMMStudyOfLanguage> studyOfLanguages = getCmmStudyOfLanguageCodeEnX3();
+        ESIngestService ingestService = newIngestService(elasticsearchClient);
+        ingestService.bulkIndex(studyOfLanguages, LANGUAGE_ISO_CODE);
+        elasticsearchClient.indices().refresh(RefreshRequest.of(r -> r.index(INDEX_NAME)));
+
+        // Given - enough IDs to keep that they are split across several clauses, with the stored IDs last
+        var repoCode = studyOfLanguages.get(0).getCode();
+        var idsToKeep = new ArrayList<String>();
+        for (int i = 0; i < 25000; i++) {
+            idsToKeep.add(UUID.randomUUID().toString());
+        }
+        idsToKeep.add(studyOfLanguages.get(1).getId());
+        idsToKeep.add(studyOfLanguages.get(2).getId());
+
+        // When
+        var deleted = ingestService.deleteByRepositoryExcept(repoCode, idsToKeep, LANGUAGE_ISO_CODE);
+
+        // Then
+        then(deleted).isEqualTo(1);
+        then(ingestService.getStudyIdsByRepository(repoCode).get(LANGUAGE_ISO_CODE))
+            .containsExactlyInAnyOrder(studyOfLanguages.get(1).getId(), studyOfLanguages.get(2).getId());
+    }
+
+    @Test
+    public void shouldDeleteIdsFromEveryClauseInAllIndices() throws IOException, IndexingException {
+        // Setup
+        List<CMMStudyOfLanguage> studyOfLanguages = getCmmStudyOfLanguageCodeEnX3();
+        ESIngestService ingestService = newIngestService(elasticsearchClient);
+        ingestService.bulkIndex(studyOfLanguages, LANGUAGE_ISO_CODE);
+        elasticsearchClient.indices().refresh(RefreshRequest.of(r -> r.index(INDEX_NAME)));
+
+        // Given - enough IDs to delete that they are split across several clauses, with a stored ID last
+        var repoCode = studyOfLanguages.get(0).getCode();
+        var idsToDelete = new ArrayList<String>();
+        for (int i = 0; i < 25000; i++) {
+            idsToDelete.add(UUID.randomUUID().toString());
+        }
+        idsToDelete.add(studyOfLanguages.get(0).getId());
+
+        // When
+        var deleted = ingestService.deleteFromAllIndices(idsToDelete);
+
+        // Then
+        then(deleted).isEqualTo(1);
+        then(ingestService.getStudyIdsByRepository(repoCode).get(LANGUAGE_ISO_CODE))
+            .containsExactlyInAnyOrder(studyOfLanguages.get(1).getId(), studyOfLanguages.get(2).getId());
+    }
+
+    @Test
+    public void shouldGetTheCodesOfIndexedRepositories() throws IOException, IndexingException {
+        // Setup
+        List<CMMStudyOfLanguage> studyOfLanguages = getCmmStudyOfLanguageCodeEnX3();
+        var studyWithDifferentRepoCode = getCmmStudyOfLanguageCodeEnX1().get(0)
+            .withId(UUID.randomUUID().toString()).withCode("TEST");
+
+        var studiesToIngest = new ArrayList<>(studyOfLanguages);
+        studiesToIngest.add(studyWithDifferentRepoCode);
+
+        ESIngestService ingestService = newIngestService(elasticsearchClient);
+        ingestService.bulkIndex(studiesToIngest, LANGUAGE_ISO_CODE);
+        elasticsearchClient.indices().refresh(RefreshRequest.of(r -> r.index(INDEX_NAME)));
+
+        // When
+        var codes = ingestService.getRepositoryCodes();
+
+        // Then
+        then(codes).containsExactlyInAnyOrder(studyOfLanguages.get(0).getCode(), "TEST");
+    }
+
+    @Test
+    public void shouldForgetTheWatermarkOfADeletedRepository() throws IOException, IndexingException {
+        // Setup
+        List<CMMStudyOfLanguage> studyOfLanguages = getCmmStudyOfLanguageCodeEnX3();
+        var repoCode = studyOfLanguages.get(0).getCode();
+        ESIngestService ingestService = newIngestService(elasticsearchClient);
+        ingestService.bulkIndex(studyOfLanguages, LANGUAGE_ISO_CODE);
+        ingestService.setHarvestWatermark(repoCode, Instant.parse("2023-01-01T00:00:00Z"));
+        elasticsearchClient.indices().refresh(RefreshRequest.of(r -> r.index(INDEX_NAME)));
+
+        // When
+        ingestService.deleteByRepository(repoCode);
+
+        // Then
+        then(ingestService.getHarvestWatermark(repoCode)).isEmpty();
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright © 2017-2023 CESSDA ERIC (support@cessda.eu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.cessda.pasc.oci.elasticsearch;
+
+import co.elastic.clients.elasticsearch.ElasticsearchClient;
+import co.elastic.clients.elasticsearch._types.ElasticsearchException;
+import co.elastic.clients.elasticsearch._types.ErrorResponse;
+import co.elastic.clients.elasticsearch._types.FieldValue;
+import co.elastic.clients.elasticsearch._types.query_dsl.MatchAllQuery;
+import co.elastic.clients.elasticsearch._types.query_dsl.Query;
+import co.elastic.clients.elasticsearch.core.*;
+import co.elastic.clients.elasticsearch.core.search.Hit;
+import co.elastic.clients.elasticsearch.core.search.TotalHitsRelation;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+class ElasticsearchSetTest {
+
+    private static final String PIT_ID = "pit";
+    private static final int DOCUMENTS = 25;
+
+    private final ElasticsearchClient client = mock(ElasticsearchClient.class);
+    private final List<String> documents = IntStream.range(0, DOCUMENTS).mapToObj(i -> "doc" + i).toList();
+
+    @BeforeEach
+    void setUp() throws IOException {
+        when(client.openPointInTime(any(OpenPointInTimeRequest.class))).thenReturn(OpenPointInTimeResponse.of(o -> o.id(PIT_ID)));
+        when(client.closePointInTime(any(ClosePointInTimeRequest.class)))
+            .thenReturn(ClosePointInTimeResponse.of(c -> c.succeeded(true).numFreed(1)));
+
+        when(client.search(any(SearchRequest.class), eq(String.class))).thenAnswer(invocation -> search(invocation.getArgument(0)));
+    }
+
+    /**
+     * Simulates search_after over a point in time, where the sort value of each document is its position.
+     */
+    private SearchResponse<String> search(SearchRequest request) {
+        if (request.pit() == null) {
+            return lookupRequest(request);
+        }
+
+        long searchAfter = request.searchAfter().isEmpty() ? -1 : request.searchAfter().get(0).longValue();
+        var hits = new ArrayList<Hit<String>>();
+        for (int i = (int) searchAfter + 1; i < DOCUMENTS && hits.size() < request.size(); i++) {
+            var slice = request.slice();
+            if (slice != null && i % slice.max() != Integer.parseInt(slice.id())) {
+                continue;
+            }
+            final var position = i;
+            hits.add(Hit.<String>of(h -> h.index("cmmstudy_en").id(Integer.toString(position))
+                .source(documents.get(position)).sort(FieldValue.of(position))));
+        }
+
+        return SearchResponse.<String>of(r -> r.took(1).timedOut(false).pitId(PIT_ID)
+            .shards(s -> s.total(1).successful(1).failed(0))
+            .hits(h -> h.hits(hits))
+        );
+    }
+
+    /**
+     * Simulates requests made outside a point in time, either an {@code ids} query or a {@code size: 0} query.
+     */
+    private SearchResponse<String> lookupRequest(SearchRequest request) {
+        var hits = new ArrayList<Hit<String>>();
+        if (request.size() != null && request.size() > 0) {
+            var ids = request.query().bool().filter().stream()
+                .filter(Query::isIds)
+                .flatMap(q -> q.ids().values().stream())
+                .toList();
+            for (var id : ids) {
+                var position = Integer.parseInt(id);
+                if (position < DOCUMENTS) {
+                    hits.add(Hit.<String>of(h -> h.index("cmmstudy_en").id(id).source(documents.get(position))));
+                }
+            }
+        }
+
+        return SearchResponse.<String>of(r -> r.took(1).timedOut(false)
+            .shards(s -> s.total(1).successful(1).failed(0))
+            .hits(h -> h.hits(hits).total(t -> t.value(DOCUMENTS).relation(TotalHitsRelation.Eq)))
+        );
+    }
+
+    private ElasticsearchSet<String> createSet(int pageSize, int slices) {
+        return new ElasticsearchSet<>(
+            "cmmstudy_en",
+            MatchAllQuery.of(m -> m)._toQuery(),
+            client,
+            String.class,
+            pageSize,
+            Duration.ofMinutes(1),
+            slices,
+            // The ID of each document is its position
+            document -> document.substring("doc".length())
+        );
+    }
+
+    /**
+     * Read all elements using the iterator, {@link ArrayList#ArrayList(java.util.Collection)} would call size().
+     */
+    private static List<String> readAll(ElasticsearchSet<String> set) {
+        var results = new ArrayList<String>();
+        set.forEach(results::add);
+        return results;
+    }
+
+    @Test
+    void shouldReadAllPagesOfAPointInTime() throws IOException {
+        // When
+        var results = readAll(createSet(10, 1));
+
+        // Then
+        assertThat(results).containsExactlyElementsOf(documents);
+
+        // Two full pages and one partial page
+        verify(client, times(3)).search(any(SearchRequest.class), eq(String.class));
+        verify(client).closePointInTime(any(ClosePointInTimeRequest.class));
+    }
+
+    @Test
+    void shouldReadSlicesInParallel() throws IOException {
+        // When
+        var results = readAll(createSet(4, 3));
+
+        // Then
+        assertThat(results).containsExactlyInAnyOrderElementsOf(documents);
+        verify(client, times(1)).openPointInTime(any(OpenPointInTimeRequest.class));
+        verify(client, times(1)).closePointInTime(any(ClosePointInTimeRequest.class));
+    }
+
+    @Test
+    void shouldPropagateErrorsFromSlices() throws IOException {
+        // Given
+        reset(client);
+        when(client.openPointInTime(any(OpenPointInTimeRequest.class))).thenReturn(OpenPointInTimeResponse.of(o -> o.id(PIT_ID)));
+        when(client.search(any(SearchRequest.class), eq(String.class))).thenThrow(new IOException("Connection refused"));
+
+        // When
+        var set = createSet(4, 2);
+
+        // Then
+        assertThatThrownBy(() -> readAll(set)).isInstanceOf(UncheckedIOException.class);
+    }
+
+    @Test
+    void shouldPropagateElasticsearchExceptionsFromSlices() throws IOException {
+        // Given - one of the slices fails
+        var exception = new ElasticsearchException("search", ErrorResponse.of(e -> e.status(500)
+            .error(c -> c.type("search_phase_execution_exception").reason("all shards failed"))
+        ));
+        when(client.search(any(SearchRequest.class), eq(String.class))).thenAnswer(invocation -> {
+            SearchRequest request = invocation.getArgument(0);
+            if (request.slice() != null && request.slice().id().equals("1")) {
+                throw exception;
+            }
+            return search(request);
+        });
+
+        // When
+        var set = createSet(4, 3);
+
+        // Then - the elements of the other slices must not be mistaken for the complete results
+        assertThatThrownBy(() -> readAll(set)).isSameAs(exception);
+    }
+
+    @Test
+    void shouldReadIdsWithoutRetrievingDocuments() throws IOException {
+        // When
+        var ids = new ArrayList<String>();
+        createSet(10, 1).forEachId((index, id) -> ids.add(index + "/" + id));
+
+        // Then
+        assertThat(ids).containsExactlyElementsOf(IntStream.range(0, DOCUMENTS).mapToObj(i -> "cmmstudy_en/" + i).toList());
+        verify(client, times(3)).search(argThat((SearchRequest request) -> request.source() != null && Boolean.FALSE.equals(request.source().fetch())), eq(String.class));
+        verify(client).closePointInTime(any(ClosePointInTimeRequest.class));
+    }
+
+    @Test
+    void shouldLookUpElementsByID() throws IOException {
+        // Given
+        var set = createSet(10, 1);
+
+        // Then
+        assertThat(set.contains("doc3")).isTrue();
+        assertThat(set.contains("doc30")).isFalse();
+        assertThat(set.containsAll(documents)).isTrue();
+        assertThat(set.containsAll(List.of("doc1", "doc99"))).isFalse();
+
+        // No point in time should have been opened
+        verify(client, never()).openPointInTime(any(OpenPointInTimeRequest.class));
+    }
+
+    @Test
+    void shouldCacheSize() throws IOException {
+        // Given
+        when(client.count(any(CountRequest.class))).thenReturn(CountResponse.of(c -> c.count(DOCUMENTS)
+            .shards(s -> s.total(1).successful(1).failed(0))
+        ));
+        var set = createSet(10, 1);
+
+        // When
+        var firstSize = set.size();
+        var secondSize = set.size();
+
+        // Then
+        assertThat(firstSize).isEqualTo(DOCUMENTS);
+        assertThat(secondSize).isEqualTo(DOCUMENTS);
+        assertThat(set.isEmpty()).isFalse();
+        verify(client, times(1)).count(any(CountRequest.class));
+        verify(client, never()).search(any(SearchRequest.class), eq(String.class));
+    }
+
+    @Test
+    void shouldCheckIfEmptyWithoutRetrievingDocuments() throws IOException {
+        // When
+        var isEmpty = createSet(10, 1).isEmpty();
+
+        // Then
+        assertThat(isEmpty).isFalse();
+        verify(client).search(argThat((SearchRequest request) -> request.size() == 0 && request.terminateAfter() == 1), eq(String.class));
+        verify(client, never()).openPointInTime(any(OpenPointInTimeRequest.class));
+    }
+}
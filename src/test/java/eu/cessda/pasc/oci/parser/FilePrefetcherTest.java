@@ -0,0 +1,196 @@
+/*
+ * Copyright © 2017-2023 CESSDA ERIC (support@cessda.eu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.cessda.pasc.oci.parser;
+
+import eu.cessda.pasc.oci.IndexerMetrics;
+import eu.cessda.pasc.oci.configurations.AppConfigurationProperties;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+class FilePrefetcherTest {
+
+    private final AppConfigurationProperties configurationProperties = new AppConfigurationProperties();
+    private FilePrefetcher filePrefetcher;
+
+    private FilePrefetcher createPrefetcher() {
+        filePrefetcher = new FilePrefetcher(configurationProperties, new IndexerMetrics(new SimpleMeterRegistry()));
+        return filePrefetcher;
+    }
+
+    @AfterEach
+    void shutdown() {
+        if (filePrefetcher != null) {
+            filePrefetcher.shutdown();
+        }
+    }
+
+    private static String read(XMLSource source) throws IOException {
+        try (var inputStream = source.openStream()) {
+            return new String(inputStream.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    @Test
+    void shouldReturnFilesInOrder(@TempDir Path directory) throws IOException {
+        // Given
+        configurationProperties.getPrefetch().setFiles(2);
+        var files = new ArrayList<Path>();
+        for (int i = 0; i < 10; i++) {
+            files.add(Files.writeString(directory.resolve(i + ".xml"), "<record>" + i + "</record>"));
+        }
+
+        // When
+        var contents = new ArrayList<String>();
+        try (var prefetchedFiles = createPrefetcher().prefetch(files)) {
+            while (prefetchedFiles.hasNext()) {
+                try (var file = prefetchedFiles.next()) {
+                    contents.add(read(file));
+                }
+            }
+        }
+
+        // Then
+        assertThat(contents).hasSize(10).first().isEqualTo("<record>0</record>");
+        assertThat(contents).last().isEqualTo("<record>9</record>");
+    }
+
+    @Test
+    void shouldMapFilesLargerThanTheThreshold(@TempDir Path directory) throws IOException {
+        // Given
+        configurationProperties.getPrefetch().setMapThreshold(DataSize.ofBytes(16));
+        var smallFile = Files.writeString(directory.resolve("small.xml"), "<a/>");
+        var largeFile = Files.writeString(directory.resolve("large.xml"), "<record>" + "a".repeat(1000) + "</record>");
+
+        // When
+        try (var prefetchedFiles = createPrefetcher().prefetch(List.of(smallFile, largeFile))) {
+            var small = prefetchedFiles.next();
+            var large = prefetchedFiles.next();
+
+            // Then - the sources can be read more than once
+            assertThat(read(small)).isEqualTo("<a/>");
+            assertThat(read(small)).isEqualTo("<a/>");
+            assertThat(small.size()).isEqualTo(4);
+            assertThat(read(large)).isEqualTo(Files.readString(largeFile));
+            assertThat(large.size()).isEqualTo(Files.size(largeFile));
+            assertThat(large.path()).isEqualTo(largeFile);
+            small.close();
+            large.close();
+        }
+    }
+
+    @Test
+    void shouldReadFilesLargerThanTheByteLimit(@TempDir Path directory) throws IOException {
+        // Given
+        configurationProperties.getPrefetch().setBytes(DataSize.ofBytes(8));
+        var files = List.of(
+            Files.writeString(directory.resolve("a.xml"), "<record>a</record>"),
+            Files.writeString(directory.resolve("b.xml"), "<record>b</record>")
+        );
+
+        // When
+        var contents = new ArrayList<String>();
+        try (var prefetchedFiles = createPrefetcher().prefetch(files)) {
+            prefetchedFiles.forEachRemaining(file -> {
+                try (file) {
+                    contents.add(read(file));
+                } catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+            });
+        }
+
+        // Then
+        assertThat(contents).containsExactly("<record>a</record>", "<record>b</record>");
+    }
+
+    @Test
+    void shouldReportErrorsWhenTheFileIsOpened(@TempDir Path directory) {
+        // Given
+        var missingFile = directory.resolve("missing.xml");
+
+        // When
+        try (var prefetchedFiles = createPrefetcher().prefetch(List.of(missingFile))) {
+            var file = prefetchedFiles.next();
+
+            // Then
+            assertThat(file.path()).isEqualTo(missingFile);
+            assertThatThrownBy(file::openStream).isInstanceOf(NoSuchFileException.class);
+            assertThatThrownBy(file::size).isInstanceOf(NoSuchFileException.class);
+        }
+    }
+
+    @Test
+    void shouldReadFilesDirectlyIfTheReaderStops(@TempDir Path directory) throws IOException {
+        // Given
+        configurationProperties.getPrefetch().setFiles(1);
+        var files = new ArrayList<Path>();
+        for (int i = 0; i < 5; i++) {
+            files.add(Files.writeString(directory.resolve(i + ".xml"), "<record>" + i + "</record>"));
+        }
+
+        // When - the reader thread is interrupted while the queue is full
+        var contents = new ArrayList<String>();
+        try (var prefetchedFiles = createPrefetcher().prefetch(files)) {
+            filePrefetcher.shutdown();
+            assertTimeoutPreemptively(Duration.ofSeconds(10), () -> prefetchedFiles.forEachRemaining(file -> {
+                try (file) {
+                    contents.add(read(file));
+                } catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+            }));
+        }
+
+        // Then
+        assertThat(contents).containsExactly(
+            "<record>0</record>", "<record>1</record>", "<record>2</record>", "<record>3</record>", "<record>4</record>"
+        );
+    }
+
+    @Test
+    void shouldStopWhenClosed(@TempDir Path directory) throws IOException {
+        // Given
+        configurationProperties.getPrefetch().setFiles(1);
+        var files = new ArrayList<Path>();
+        for (int i = 0; i < 5; i++) {
+            files.add(Files.writeString(directory.resolve(i + ".xml"), "<record/>"));
+        }
+
+        // When
+        var prefetchedFiles = createPrefetcher().prefetch(files);
+        prefetchedFiles.next().close();
+        prefetchedFiles.close();
+
+        // Then
+        assertThat(prefetchedFiles.hasNext()).isFalse();
+    }
+}
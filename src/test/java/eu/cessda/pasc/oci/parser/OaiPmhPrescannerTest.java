@@ -0,0 +1,81 @@
+/*
+ * Copyright © 2017-2023 CESSDA ERIC (support@cessda.eu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.cessda.pasc.oci.parser;
+
+import eu.cessda.pasc.oci.ResourceHandler;
+import org.junit.Test;
+
+import javax.xml.stream.XMLStreamException;
+import java.io.IOException;
+import java.util.function.Predicate;
+
+import static org.assertj.core.api.BDDAssertions.then;
+
+/**
+ * Tests related to {@link OaiPmhPrescanner}
+ */
+public class OaiPmhPrescannerTest {
+
+    private static OaiPmhPrescanner.Prescan prescan(String name, Predicate<OaiPmhPrescanner.PrescannedRecord> requiresMapping) throws IOException, XMLStreamException {
+        try (var inputStream = ResourceHandler.getResource(name).openStream()) {
+            return OaiPmhPrescanner.prescan(inputStream, requiresMapping);
+        }
+    }
+
+    @Test
+    public void shouldReadTheHeaderOfADeletedRecord() throws IOException, XMLStreamException {
+
+        // When
+        var prescan = prescan("xml/ddi_2_5/ddi_record_1031_deleted.xml", prescannedRecord -> false);
+
+        // Then
+        then(prescan.oaiPmh()).isTrue();
+        then(prescan.requiresParsing()).isFalse();
+        then(prescan.request()).isEqualTo("https://oai.ukdataservice.ac.uk:8443/oai/provider");
+        then(prescan.records()).singleElement().satisfies(prescannedRecord -> {
+            then(prescannedRecord.header().isDeleted()).isTrue();
+            then(prescannedRecord.header().getIdentifier()).isEqualTo("1031");
+            then(prescannedRecord.header().getLastModified()).isEqualTo("2017-05-02T08:31:32Z");
+            then(prescannedRecord.metadataNamespace()).isNull();
+        });
+    }
+
+    @Test
+    public void shouldReadTheNamespaceOfTheMetadata() throws IOException, XMLStreamException {
+
+        // When
+        var prescan = prescan("xml/ddi_2_5/synthetic_list_records_response.xml", prescannedRecord -> false);
+
+        // Then
+        then(prescan.requiresParsing()).isFalse();
+        then(prescan.records()).hasSize(2);
+        then(prescan.records()).extracting(prescannedRecord -> prescannedRecord.header().getIdentifier())
+            .containsExactly("2305", "oai:fsd.uta.fi:FSD3187");
+        then(prescan.records()).extracting(OaiPmhPrescanner.PrescannedRecord::metadataNamespace)
+            .containsOnly("ddi:codebook:2_5");
+    }
+
+    @Test
+    public void shouldStopAtTheFirstRecordThatRequiresMapping() throws IOException, XMLStreamException {
+
+        // When
+        var prescan = prescan("xml/ddi_2_5/synthetic_list_records_response.xml", prescannedRecord -> true);
+
+        // Then
+        then(prescan.requiresParsing()).isTrue();
+        then(prescan.records()).isEmpty();
+    }
+}
@@ -19,12 +19,15 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.github.fge.jackson.JsonLoader;
 import com.github.fge.jsonschema.core.exceptions.ProcessingException;
 import com.github.fge.jsonschema.main.JsonSchemaFactory;
+import eu.cessda.pasc.oci.IndexerMetrics;
 import eu.cessda.pasc.oci.ResourceHandler;
+import eu.cessda.pasc.oci.configurations.AppConfigurationProperties;
 import eu.cessda.pasc.oci.exception.IndexerException;
 import eu.cessda.pasc.oci.mock.data.ReposTestData;
 import eu.cessda.pasc.oci.models.cmmstudy.CMMStudy;
 import eu.cessda.pasc.oci.models.cmmstudy.CMMStudyConverter;
 import eu.cessda.pasc.oci.models.configurations.Repo;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.json.JSONException;
 import org.junit.Assert;
 import org.junit.Test;
@@ -43,6 +46,8 @@ public class RecordXMLParserNesstarTest {
     private final Repo nesstarRepo = ReposTestData.getNSDRepo();
 
     private final CMMStudyMapper cmmStudyMapper = new CMMStudyMapper();
+    private final IndexerMetrics indexerMetrics = new IndexerMetrics(new SimpleMeterRegistry());
+    private final AppConfigurationProperties configurationProperties = new AppConfigurationProperties();
     private final CMMStudyConverter cmmConverter = new CMMStudyConverter();
     private final ObjectMapper mapper = new ObjectMapper();
 
@@ -69,7 +74,7 @@ public class RecordXMLParserNesstarTest {
         var recordXML = ResourceHandler.getResource("xml/nesstar/synthetic_compliant_cmm_nesstar.xml");
 
         // When
-        var result = new RecordXMLParser(cmmStudyMapper).getRecord(nesstarRepo, Path.of(recordXML.toURI()));
+        var result = new RecordXMLParser(cmmStudyMapper, indexerMetrics, configurationProperties).getRecord(nesstarRepo, Path.of(recordXML.toURI()));
 
         // Then
         then(result).hasSize(1);
@@ -89,7 +94,7 @@ public class RecordXMLParserNesstarTest {
         var recordXML = ResourceHandler.getResource("xml/nesstar/synthetic_compliant_cmm_nesstar.xml");
 
         // When
-        var record = new RecordXMLParser(cmmStudyMapper).getRecord(nesstarRepo, Path.of(recordXML.toURI()));
+        var record = new RecordXMLParser(cmmStudyMapper, indexerMetrics, configurationProperties).getRecord(nesstarRepo, Path.of(recordXML.toURI()));
 
         // Then
         then(record).hasSize(1);
@@ -104,7 +109,7 @@ public class RecordXMLParserNesstarTest {
         var recordXML = ResourceHandler.getResource("xml/nesstar/synthetic_compliant_cmm_nesstar_single_date.xml");
 
         // When
-        var record = new RecordXMLParser(cmmStudyMapper).getRecord(nesstarRepo, Path.of(recordXML.toURI()));
+        var record = new RecordXMLParser(cmmStudyMapper, indexerMetrics, configurationProperties).getRecord(nesstarRepo, Path.of(recordXML.toURI()));
         then(record).hasSize(1);
         validateCMMStudyResultAgainstSchema(record.get(0));
         var jsonString = cmmConverter.toJsonString(record.get(0));
@@ -123,7 +128,7 @@ public class RecordXMLParserNesstarTest {
         var expectedCmmStudyJsonString = ResourceHandler.getResource("xml/nesstar/synthetic_compliant_cmm_nesstar.xml");
 
         // When
-        var record = new RecordXMLParser(cmmStudyMapper).getRecord(nesstarRepo, Path.of(expectedCmmStudyJsonString.toURI())).get(0);
+        var record = new RecordXMLParser(cmmStudyMapper, indexerMetrics, configurationProperties).getRecord(nesstarRepo, Path.of(expectedCmmStudyJsonString.toURI())).get(0);
 
         // Then
         then(record.getTitleStudy().containsKey("xy")).isTrue();
@@ -141,7 +146,7 @@ public class RecordXMLParserNesstarTest {
         var recordXML = ResourceHandler.getResource("xml/nesstar/synthetic_compliant_cmm_nesstar_repeated_abstract.xml");
 
         // When
-        var record = new RecordXMLParser(cmmStudyMapper).getRecord(nesstarRepo, Path.of(recordXML.toURI()));
+        var record = new RecordXMLParser(cmmStudyMapper, indexerMetrics, configurationProperties).getRecord(nesstarRepo, Path.of(recordXML.toURI()));
 
         // Then
         then(record).hasSize(1);
@@ -160,7 +165,7 @@ public class RecordXMLParserNesstarTest {
         var recordXML = ResourceHandler.getResource("xml/nesstar/synthetic_compliant_cmm_nesstar_with_perTitl_xml_lang.xml");
 
         // When
-        var record = new RecordXMLParser(cmmStudyMapper).getRecord(nesstarRepo, Path.of(recordXML.toURI()));
+        var record = new RecordXMLParser(cmmStudyMapper, indexerMetrics, configurationProperties).getRecord(nesstarRepo, Path.of(recordXML.toURI()));
 
         // Then
         then(record).hasSize(1);
@@ -177,7 +182,7 @@ public class RecordXMLParserNesstarTest {
         var recordXML = ResourceHandler.getResource("xml/nesstar/synthetic_nesstar_deleted_record.xml");
 
         // When
-        var record = new RecordXMLParser(cmmStudyMapper).getRecord(nesstarRepo, Path.of(recordXML.toURI()));
+        var record = new RecordXMLParser(cmmStudyMapper, indexerMetrics, configurationProperties).getRecord(nesstarRepo, Path.of(recordXML.toURI()));
 
         // Then
         then(record).isEmpty();
@@ -190,7 +195,7 @@ public class RecordXMLParserNesstarTest {
         var recordXML = ResourceHandler.getResource("xml/nesstar/synthetic_nesstar_record_with_error.xml");
 
         // When
-        var result = new RecordXMLParser(cmmStudyMapper).getRecord(nesstarRepo, Path.of(recordXML.toURI()));
+        var result = new RecordXMLParser(cmmStudyMapper, indexerMetrics, configurationProperties).getRecord(nesstarRepo, Path.of(recordXML.toURI()));
 
         // Then
         then(result).isEmpty();
@@ -203,7 +208,7 @@ public class RecordXMLParserNesstarTest {
         var recordXML = ResourceHandler.getResource("xml/nesstar/synthetic_compliant_cmm_nesstar.xml");
 
         // When
-        var result = new RecordXMLParser(cmmStudyMapper).getRecord(nesstarRepo, Path.of(recordXML.toURI()));
+        var result = new RecordXMLParser(cmmStudyMapper, indexerMetrics, configurationProperties).getRecord(nesstarRepo, Path.of(recordXML.toURI()));
 
         // Then
         then(result).hasSize(1);
@@ -248,7 +253,7 @@ public class RecordXMLParserNesstarTest {
         langRepo.setDefaultLanguage("zz");
 
         // When
-        var result = new RecordXMLParser(cmmStudyMapper).getRecord(langRepo, Path.of(recordXML.toURI()));
+        var result = new RecordXMLParser(cmmStudyMapper, indexerMetrics, configurationProperties).getRecord(langRepo, Path.of(recordXML.toURI()));
 
         then(result).hasSize(1);
         validateCMMStudyResultAgainstSchema(result.get(0));
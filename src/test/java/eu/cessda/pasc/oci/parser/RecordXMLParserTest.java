@@ -22,13 +22,18 @@ import com.github.fge.jsonschema.core.exceptions.ProcessingException;
 import com.github.fge.jsonschema.core.report.ProcessingReport;
 import com.github.fge.jsonschema.main.JsonSchema;
 import com.github.fge.jsonschema.main.JsonSchemaFactory;
+import eu.cessda.pasc.oci.IndexerMetrics;
 import eu.cessda.pasc.oci.ResourceHandler;
+import eu.cessda.pasc.oci.StudyIdentifiers;
+import eu.cessda.pasc.oci.configurations.AppConfigurationProperties;
 import eu.cessda.pasc.oci.exception.IndexerException;
 import eu.cessda.pasc.oci.exception.XMLParseException;
 import eu.cessda.pasc.oci.mock.data.ReposTestData;
 import eu.cessda.pasc.oci.models.cmmstudy.CMMStudy;
 import eu.cessda.pasc.oci.models.cmmstudy.CMMStudyConverter;
 import eu.cessda.pasc.oci.models.configurations.Repo;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import lombok.extern.slf4j.Slf4j;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -37,11 +42,18 @@ import org.junit.Test;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
 
 import static org.assertj.core.api.Assertions.fail;
 import static org.assertj.core.api.BDDAssertions.then;
@@ -58,6 +70,8 @@ public class RecordXMLParserTest {
     private final CMMStudyConverter cmmConverter = new CMMStudyConverter();
     private final Repo repo = ReposTestData.getUKDSRepo();
     private final CMMStudyMapper cmmStudyMapper = new CMMStudyMapper();
+    private final IndexerMetrics indexerMetrics = new IndexerMetrics(new SimpleMeterRegistry());
+    private final AppConfigurationProperties configurationProperties = new AppConfigurationProperties();
 
     public RecordXMLParserTest() {
         // Needed because TimeUtility only works properly in UTC timezones
@@ -71,7 +85,7 @@ public class RecordXMLParserTest {
         var recordXML = ResourceHandler.getResource("xml/ddi_2_5/synthetic_compliant_cmm.xml");
 
         // When
-        var result = new RecordXMLParser(cmmStudyMapper).getRecord(repo, Path.of(recordXML.toURI()));
+        var result = new RecordXMLParser(cmmStudyMapper, indexerMetrics, configurationProperties).getRecord(repo, Path.of(recordXML.toURI()));
 
         then(result).hasSize(1);
         validateCMMStudyResultAgainstSchema(result.get(0));
@@ -90,7 +104,7 @@ public class RecordXMLParserTest {
         var recordXML = ResourceHandler.getResource("xml/ddi_2_5/oai-fsd_uta_fi-FSD3187.xml");
 
         // When
-        var optionalResult = new RecordXMLParser(cmmStudyMapper).getRecord(repo, Path.of(recordXML.toURI()));
+        var optionalResult = new RecordXMLParser(cmmStudyMapper, indexerMetrics, configurationProperties).getRecord(repo, Path.of(recordXML.toURI()));
 
         then(optionalResult).hasSize(1);
 
@@ -114,13 +128,121 @@ public class RecordXMLParserTest {
         var recordXML = ResourceHandler.getResource("xml/ddi_2_5/ddi_record_1683.xml");
 
         // When
-        var record = new RecordXMLParser(cmmStudyMapper).getRecord(repo, Path.of(recordXML.toURI()));
+        var record = new RecordXMLParser(cmmStudyMapper, indexerMetrics, configurationProperties).getRecord(repo, Path.of(recordXML.toURI()));
 
         // Then
         then(record).hasSize(1);
         validateCMMStudyResultAgainstSchema(record.get(0));
     }
 
+    @Test
+    public void shouldParseGzipCompressedRecords() throws IOException, IndexerException, URISyntaxException {
+
+        // Given
+        var recordXML = Path.of(ResourceHandler.getResource("xml/ddi_2_5/ddi_record_1683.xml").toURI());
+        var compressedXML = Files.createTempFile("ddi_record_1683", ".xml.gz");
+        compressedXML.toFile().deleteOnExit();
+        try (var outputStream = new GZIPOutputStream(Files.newOutputStream(compressedXML))) {
+            Files.copy(recordXML, outputStream);
+        }
+
+        // When
+        var record = new RecordXMLParser(cmmStudyMapper, indexerMetrics, configurationProperties).getRecord(repo, compressedXML);
+
+        // Then
+        then(record).isEqualTo(new RecordXMLParser(cmmStudyMapper, indexerMetrics, configurationProperties).getRecord(repo, recordXML));
+    }
+
+    @Test
+    public void shouldReuseMappedRecordsOfIdenticalFilesInOtherRepositories() throws IOException, IndexerException, URISyntaxException {
+
+        // Given
+        var recordXML = Path.of(ResourceHandler.getResource("xml/ddi_2_5/ddi_record_1683.xml").toURI());
+        var mirroredXML = Files.createTempFile("ddi_record_1683", ".xml");
+        mirroredXML.toFile().deleteOnExit();
+        Files.copy(recordXML, mirroredXML, StandardCopyOption.REPLACE_EXISTING);
+
+        var mirrorRepo = ReposTestData.getUKDSRepo();
+        mirrorRepo.setCode("UKDS-MIRROR");
+        mirrorRepo.setUrl(URI.create("https://mirror.example.org/oai"));
+
+        var cachingConfiguration = new AppConfigurationProperties();
+        cachingConfiguration.getParseCache().setEnabled(true);
+        cachingConfiguration.getParseCache().setMaxEntries(10);
+        var recordXMLParser = new RecordXMLParser(cmmStudyMapper, indexerMetrics, cachingConfiguration);
+
+        // When
+        var record = recordXMLParser.getRecord(repo, recordXML);
+        var mirroredRecord = recordXMLParser.getRecord(mirrorRepo, mirroredXML);
+
+        // Then
+        then(record).isEqualTo(new RecordXMLParser(cmmStudyMapper, indexerMetrics, configurationProperties).getRecord(repo, recordXML));
+        then(mirroredRecord).isEqualTo(new RecordXMLParser(cmmStudyMapper, indexerMetrics, configurationProperties).getRecord(mirrorRepo, mirroredXML));
+        then(mirroredRecord.get(0).getStudyXmlSourceUrl()).hasHost("mirror.example.org");
+    }
+
+    @Test
+    public void shouldMapDocumentsAgainOnceTheParseCacheIsCleared() throws IndexerException, URISyntaxException, FileNotFoundException {
+
+        // Given
+        var recordXML = Path.of(ResourceHandler.getResource("xml/ddi_2_5/ddi_record_1683.xml").toURI());
+        var registry = new SimpleMeterRegistry();
+        var cachingConfiguration = new AppConfigurationProperties();
+        cachingConfiguration.getParseCache().setEnabled(true);
+        var recordXMLParser = new RecordXMLParser(cmmStudyMapper, new IndexerMetrics(registry), cachingConfiguration);
+
+        // When
+        var record = recordXMLParser.getRecord(repo, recordXML);
+        var cachedRecord = recordXMLParser.getRecord(repo, recordXML);
+        recordXMLParser.clearParseCache();
+        var remappedRecord = recordXMLParser.getRecord(repo, recordXML);
+
+        // Then
+        then(cachedRecord).isEqualTo(record);
+        then(remappedRecord).isEqualTo(record);
+        then(countParseCacheLookups(registry, "hit")).isEqualTo(1);
+        then(countParseCacheLookups(registry, "miss")).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldOnlyReadDocumentsOnceWhenTheyAreNotCached() throws IndexerException, URISyntaxException, FileNotFoundException {
+
+        // Given
+        var recordXML = Path.of(ResourceHandler.getResource("xml/ddi_2_5/ddi_record_1683.xml").toURI());
+        var opened = new AtomicInteger();
+        var source = new XMLSource() {
+            @Override
+            public Path path() {
+                return recordXML;
+            }
+
+            @Override
+            public long size() throws IOException {
+                return Files.size(recordXML);
+            }
+
+            @Override
+            public InputStream openStream() throws IOException {
+                opened.incrementAndGet();
+                return Files.newInputStream(recordXML);
+            }
+        };
+        var cachingConfiguration = new AppConfigurationProperties();
+        cachingConfiguration.getParseCache().setEnabled(true);
+        var recordXMLParser = new RecordXMLParser(cmmStudyMapper, indexerMetrics, cachingConfiguration);
+
+        // When
+        var parsedRecords = recordXMLParser.parseRecords(repo, source, null);
+
+        // Then - the content read to digest the document is also used to build it
+        then(opened).hasValue(1);
+        then(parsedRecords.studies()).isEqualTo(new RecordXMLParser(cmmStudyMapper, indexerMetrics, configurationProperties).getRecord(repo, recordXML));
+    }
+
+    private static double countParseCacheLookups(SimpleMeterRegistry registry, String outcome) {
+        return registry.find("indexer.parse.cache").tag("outcome", outcome).counters().stream().mapToDouble(Counter::count).sum();
+    }
+
     @Test
     @SuppressWarnings("PreferJavaTimeOverload")
     public void shouldOnlyExtractSingleDateAsStartDateForRecordsWithASingleDateAttr() throws IOException, ProcessingException, JSONException, IndexerException, URISyntaxException {
@@ -129,7 +251,7 @@ public class RecordXMLParserTest {
         var recordXML = ResourceHandler.getResource("xml/ddi_2_5/ddi_record_1683.xml");
 
         // When
-        var record = new RecordXMLParser(cmmStudyMapper).getRecord(repo, Path.of(recordXML.toURI()));
+        var record = new RecordXMLParser(cmmStudyMapper, indexerMetrics, configurationProperties).getRecord(repo, Path.of(recordXML.toURI()));
         then(record).hasSize(1);
         validateCMMStudyResultAgainstSchema(record.get(0));
         final ObjectMapper mapper = new ObjectMapper();
@@ -149,7 +271,7 @@ public class RecordXMLParserTest {
         var recordXML = ResourceHandler.getResource("xml/ddi_2_5/ddi_record_1683_with_codebookXmlLag.xml");
 
         // When
-        var record = new RecordXMLParser(cmmStudyMapper).getRecord(repo, Path.of(recordXML.toURI()));
+        var record = new RecordXMLParser(cmmStudyMapper, indexerMetrics, configurationProperties).getRecord(repo, Path.of(recordXML.toURI()));
         String actualCmmStudyJsonString = cmmConverter.toJsonString(record.get(0));
 
         // then
@@ -168,7 +290,7 @@ public class RecordXMLParserTest {
         var recordXML = ResourceHandler.getResource("xml/ddi_2_5/ddi_record_2305_fsd_repeat_abstract.xml");
 
         // When
-        var record = new RecordXMLParser(cmmStudyMapper).getRecord(repo, Path.of(recordXML.toURI()));
+        var record = new RecordXMLParser(cmmStudyMapper, indexerMetrics, configurationProperties).getRecord(repo, Path.of(recordXML.toURI()));
 
         then(record).hasSize(1);
         then(record.get(0).getAbstractField().size()).isEqualTo(3);
@@ -188,7 +310,7 @@ public class RecordXMLParserTest {
         var recordXML = ResourceHandler.getResource("xml/ddi_2_5/ddi_record_1683.xml");
 
         // When
-        var record = new RecordXMLParser(cmmStudyMapper).getRecord(repo, Path.of(recordXML.toURI()));
+        var record = new RecordXMLParser(cmmStudyMapper, indexerMetrics, configurationProperties).getRecord(repo, Path.of(recordXML.toURI()));
 
         then(record).hasSize(1);
         then(record.get(0).getTitleStudy().size()).isEqualTo(3);
@@ -203,12 +325,51 @@ public class RecordXMLParserTest {
         var recordXML = ResourceHandler.getResource("xml/ddi_2_5/ddi_record_1031_deleted.xml");
 
         // When
-        var record = new RecordXMLParser(cmmStudyMapper).getRecord(repo, Path.of(recordXML.toURI()));
+        var record = new RecordXMLParser(cmmStudyMapper, indexerMetrics, configurationProperties).getRecord(repo, Path.of(recordXML.toURI()));
 
         // Then
         then(record).isEmpty();
     }
 
+    @Test
+    public void shouldReturnTombstoneFromOaiPmhDDI2_5MetadataRecord_MarkedAsNotActive() throws IOException, IndexerException, URISyntaxException {
+
+        // Given
+        var recordXML = ResourceHandler.getResource("xml/ddi_2_5/ddi_record_1031_deleted.xml");
+
+        // When
+        var records = new RecordXMLParser(cmmStudyMapper, indexerMetrics, configurationProperties).parseRecords(repo, Path.of(recordXML.toURI()));
+
+        // Then
+        then(records.studies()).isEmpty();
+        then(records.tombstones()).singleElement().satisfies(tombstone -> {
+            then(tombstone.studyNumber()).isEqualTo("1031");
+            then(tombstone.repositoryUrl()).isEqualTo(URI.create("https://oai.ukdataservice.ac.uk:8443/oai/provider"));
+            then(tombstone.lastModified()).isEqualTo("2017-05-02T08:31:32Z");
+        });
+    }
+
+    @Test
+    public void shouldSkipRecordsNotModifiedSinceTheWatermark() throws IOException, IndexerException, URISyntaxException {
+
+        // Given
+        var recordXML = ResourceHandler.getResource("xml/ddi_2_5/synthetic_compliant_cmm.xml");
+        var parser = new RecordXMLParser(cmmStudyMapper, indexerMetrics, configurationProperties);
+
+        // When
+        var unmodified = parser.parseRecords(repo, Path.of(recordXML.toURI()), Instant.parse("2100-01-01T00:00:00Z"));
+        var modified = parser.parseRecords(repo, Path.of(recordXML.toURI()), Instant.parse("1970-01-01T00:00:00Z"));
+
+        // Then
+        then(unmodified.studies()).isEmpty();
+        then(unmodified.skippedStudyIds()).hasSize(1);
+        then(modified.studies()).hasSize(1);
+        then(modified.skippedStudyIds()).isEmpty();
+        then(unmodified.skippedStudyIds()).containsExactly(
+            StudyIdentifiers.generate(URI.create("http://services.fsd.uta.fi/v0/oai"), "2305")
+        );
+    }
+
     @Test
     public void shouldThrowExceptionForRecordWithErrorElement() throws IOException, IndexerException, URISyntaxException {
 
@@ -216,7 +377,7 @@ public class RecordXMLParserTest {
         var recordXML = ResourceHandler.getResource("xml/ddi_2_5/ddi_record_WithError.xml");
 
         // When
-        var record = new RecordXMLParser(cmmStudyMapper).getRecord(repo, Path.of(recordXML.toURI()));
+        var record = new RecordXMLParser(cmmStudyMapper, indexerMetrics, configurationProperties).getRecord(repo, Path.of(recordXML.toURI()));
 
         // Then
         then(record).isEmpty();
@@ -229,7 +390,7 @@ public class RecordXMLParserTest {
         var recordXML = ResourceHandler.getResource("xml/ddi_2_5/ddi_record_ukds_example.xml");
 
         // When
-        var result = new RecordXMLParser(cmmStudyMapper).getRecord(repo, Path.of(recordXML.toURI()));
+        var result = new RecordXMLParser(cmmStudyMapper, indexerMetrics, configurationProperties).getRecord(repo, Path.of(recordXML.toURI()));
 
         then(result).hasSize(1);
         validateCMMStudyResultAgainstSchema(result.get(0));
@@ -275,7 +436,7 @@ public class RecordXMLParserTest {
         var recordXML = ResourceHandler.getResource("xml/ddi_2_5/ddi_record_ukds_example.xml");
 
         // When
-        var result = new RecordXMLParser(cmmStudyMapper).getRecord(repository, Path.of(recordXML.toURI()));
+        var result = new RecordXMLParser(cmmStudyMapper, indexerMetrics, configurationProperties).getRecord(repository, Path.of(recordXML.toURI()));
 
         then(result).hasSize(1);
         validateCMMStudyResultAgainstSchema(result.get(0));
@@ -291,7 +452,7 @@ public class RecordXMLParserTest {
         var expectedJson = ResourceHandler.getResourceAsString("json/synthetic_compliant_record.json");
 
         // When
-        var result = new RecordXMLParser(cmmStudyMapper).getRecord(repo, Path.of(recordXML.toURI()));
+        var result = new RecordXMLParser(cmmStudyMapper, indexerMetrics, configurationProperties).getRecord(repo, Path.of(recordXML.toURI()));
 
         then(result).hasSize(2);
 
@@ -311,6 +472,6 @@ public class RecordXMLParserTest {
         var invalidXML = ResourceHandler.getResource("xml/invalid-xml");
 
         // Expect parsing to fail
-        new RecordXMLParser(cmmStudyMapper).getRecord(repo, Path.of(invalidXML.toURI()));
+        new RecordXMLParser(cmmStudyMapper, indexerMetrics, configurationProperties).getRecord(repo, Path.of(invalidXML.toURI()));
     }
 }
@@ -0,0 +1,211 @@
+/*
+ * Copyright © 2017-2023 CESSDA ERIC (support@cessda.eu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.cessda.pasc.oci.parser;
+
+import eu.cessda.pasc.oci.IndexerMetrics;
+import eu.cessda.pasc.oci.configurations.AppConfigurationProperties;
+import eu.cessda.pasc.oci.exception.XMLParseException;
+import eu.cessda.pasc.oci.mock.data.ReposTestData;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.BDDAssertions.then;
+
+public class XMLArchivesTest {
+
+    private static final String CODEBOOK = "<codeBook xmlns=\"ddi:codebook:2_5\"><stdyDscr><citation><titlStmt>" +
+        "<titl>Title</titl></titlStmt></citation></stdyDscr></codeBook>";
+
+    private static Path createTempArchive(String suffix) throws IOException {
+        var archive = Files.createTempFile("records", suffix);
+        archive.toFile().deleteOnExit();
+        return archive;
+    }
+
+    private static Path createZip(String... names) throws IOException {
+        var archive = createTempArchive(".zip");
+        try (var outputStream = new ZipOutputStream(Files.newOutputStream(archive))) {
+            for (var name : names) {
+                outputStream.putNextEntry(new ZipEntry(name));
+                outputStream.write(CODEBOOK.getBytes(StandardCharsets.UTF_8));
+                outputStream.closeEntry();
+            }
+        }
+        return archive;
+    }
+
+    private static Path createTar(String suffix, String... names) throws IOException {
+        var archive = createTempArchive(suffix);
+        OutputStream fileStream = Files.newOutputStream(archive);
+        if (suffix.endsWith(".gz")) {
+            fileStream = new GZIPOutputStream(fileStream);
+        }
+        try (var outputStream = new TarArchiveOutputStream(fileStream)) {
+            var content = CODEBOOK.getBytes(StandardCharsets.UTF_8);
+            for (var name : names) {
+                var entry = new TarArchiveEntry(name);
+                entry.setSize(content.length);
+                outputStream.putArchiveEntry(entry);
+                outputStream.write(content);
+                outputStream.closeArchiveEntry();
+            }
+        }
+        return archive;
+    }
+
+    @Test
+    public void shouldRecogniseArchives() {
+        then(XMLArchives.isArchive(Path.of("records.zip"))).isTrue();
+        then(XMLArchives.isArchive(Path.of("records.tar"))).isTrue();
+        then(XMLArchives.isArchive(Path.of("records.tar.gz"))).isTrue();
+        then(XMLArchives.isArchive(Path.of("records.tgz"))).isTrue();
+        then(XMLArchives.isArchive(Path.of("records.xml.gz"))).isFalse();
+    }
+
+    @Test
+    public void shouldReadZipEntriesInArchiveOrder() throws IOException {
+        // Given
+        var archive = createZip("records/2.xml", "readme.txt", "records/1.xml", "records/3.xml.gz");
+
+        // When
+        try (var sources = XMLArchives.open(archive, elapsed -> {}, e -> {})) {
+            var paths = sources.map(XMLSource::path).toList();
+
+            // Then
+            then(paths).containsExactly(
+                archive.resolve("records/2.xml"),
+                archive.resolve("records/1.xml"),
+                archive.resolve("records/3.xml.gz")
+            );
+        }
+    }
+
+    @Test
+    public void shouldReadTarEntriesInArchiveOrder() throws IOException {
+        // Given
+        var archive = createTar(".tar.gz", "/2.xml", "1.xml", "readme.txt");
+
+        // When
+        try (var sources = XMLArchives.open(archive, elapsed -> {}, e -> {})) {
+            var contents = sources.map(source -> {
+                try (var inputStream = source.openStream()) {
+                    return source.path().getFileName() + ":" + new String(inputStream.readAllBytes(), StandardCharsets.UTF_8);
+                } catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+            }).toList();
+
+            // Then
+            then(contents).containsExactly("2.xml:" + CODEBOOK, "1.xml:" + CODEBOOK);
+        }
+    }
+
+    @Test
+    public void shouldReportErrorsOfTruncatedTarArchives() throws IOException {
+        // Given
+        var archive = createTar(".tar", "1.xml", "2.xml");
+        var bytes = Files.readAllBytes(archive);
+        Files.write(archive, Arrays.copyOf(bytes, 512 + 10));
+
+        // When
+        var errors = new ArrayList<IOException>();
+        try (var sources = XMLArchives.open(archive, elapsed -> {}, errors::add)) {
+            var sourceList = sources.toList();
+
+            // Then
+            then(sourceList).hasSize(1);
+            assertThatThrownBy(sourceList.get(0)::openStream).isInstanceOf(IOException.class);
+            then(errors).hasSize(1);
+        }
+    }
+
+    @Test
+    public void shouldReportTarArchivesTruncatedBetweenEntries() throws IOException {
+        // Given - the archive ends after the first entry, without an end of archive marker
+        var archive = createTar(".tar", "1.xml", "2.xml");
+        var bytes = Files.readAllBytes(archive);
+        Files.write(archive, Arrays.copyOf(bytes, 512 * 2));
+
+        // When
+        var errors = new ArrayList<IOException>();
+        try (var sources = XMLArchives.open(archive, elapsed -> {}, errors::add)) {
+            var sourceList = sources.toList();
+
+            // Then - the first entry can be read, but the archive is reported as truncated
+            then(sourceList).hasSize(2);
+            then(sourceList.get(0).openStream()).hasBinaryContent(CODEBOOK.getBytes(StandardCharsets.UTF_8));
+            assertThatThrownBy(sourceList.get(1)::openStream).isInstanceOf(IOException.class);
+            then(errors).hasSize(1);
+        }
+    }
+
+    @Test
+    public void shouldNotReportErrorsForCompleteArchives() throws IOException {
+        // Given
+        var archive = createTar(".tar.gz", "1.xml", "readme.txt", "2.xml");
+
+        // When
+        var errors = new ArrayList<IOException>();
+        try (var sources = XMLArchives.open(archive, elapsed -> {}, errors::add)) {
+            var sourceList = sources.toList();
+
+            // Then
+            then(sourceList).hasSize(2);
+            then(errors).isEmpty();
+        }
+    }
+
+    @Test
+    public void shouldRejectCorruptZipArchives() throws IOException {
+        // Given
+        var archive = createTempArchive(".zip");
+        Files.writeString(archive, "not a zip file");
+
+        // Then
+        assertThatThrownBy(() -> XMLArchives.open(archive, elapsed -> {}, e -> {})).isInstanceOf(IOException.class);
+    }
+
+    @Test
+    public void shouldDeriveTheStudyNumberFromTheEntryName() throws IOException, XMLParseException {
+        // Given
+        var archive = createZip("records/1683.xml");
+        var parser = new RecordXMLParser(new CMMStudyMapper(), new IndexerMetrics(new SimpleMeterRegistry()), new AppConfigurationProperties());
+
+        // When
+        try (var sources = XMLArchives.open(archive, elapsed -> {}, e -> {})) {
+            var source = sources.findFirst().orElseThrow();
+            var records = parser.parseRecords(ReposTestData.getUKDSRepo(), source, null);
+
+            // Then
+            then(records.studies()).hasSize(1);
+            then(records.studies().get(0).getStudyNumber()).isEqualTo("1683");
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright © 2017-2023 CESSDA ERIC (support@cessda.eu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.cessda.pasc.oci.parser;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import static org.assertj.core.api.BDDAssertions.then;
+
+public class XMLCompressionTest {
+
+    private static final String XML = "<?xml version=\"1.0\"?><OAI-PMH/>";
+
+    @Test
+    public void shouldDetectCompressionFromMagicBytes() {
+        then(XMLCompression.detect(new byte[]{0x1F, (byte) 0x8B, 0x08, 0x00}, 4)).isEqualTo(XMLCompression.GZIP);
+        then(XMLCompression.detect(new byte[]{0x28, (byte) 0xB5, 0x2F, (byte) 0xFD}, 4)).isEqualTo(XMLCompression.ZSTD);
+        then(XMLCompression.detect("<?xm".getBytes(StandardCharsets.US_ASCII), 4)).isEqualTo(XMLCompression.NONE);
+        then(XMLCompression.detect(new byte[]{0x1F}, 1)).isEqualTo(XMLCompression.NONE);
+    }
+
+    @Test
+    public void shouldDecompressGzipContent() throws IOException {
+        // Given
+        var compressed = new ByteArrayOutputStream();
+        try (var outputStream = new GZIPOutputStream(compressed)) {
+            outputStream.write(XML.getBytes(StandardCharsets.UTF_8));
+        }
+        var decompressionTime = new AtomicLong(-1);
+
+        // When
+        String content;
+        try (var inputStream = XMLCompression.decompress(new ByteArrayInputStream(compressed.toByteArray()), decompressionTime::set)) {
+            content = new String(inputStream.readAllBytes(), StandardCharsets.UTF_8);
+        }
+
+        // Then
+        then(content).isEqualTo(XML);
+        then(decompressionTime.get()).isNotNegative();
+    }
+
+    @Test
+    public void shouldPassUncompressedContentThrough() throws IOException {
+        // Given
+        var decompressionTime = new AtomicLong(-1);
+
+        // When
+        String content;
+        try (var inputStream = XMLCompression.decompress(new ByteArrayInputStream(XML.getBytes(StandardCharsets.UTF_8)), decompressionTime::set)) {
+            content = new String(inputStream.readAllBytes(), StandardCharsets.UTF_8);
+        }
+
+        // Then
+        then(content).isEqualTo(XML);
+        then(decompressionTime.get()).isEqualTo(-1);
+    }
+
+    @Test
+    public void shouldSelectXMLFilesByName() {
+        then(XMLCompression.isXMLFile(Path.of("study.xml"))).isTrue();
+        then(XMLCompression.isXMLFile(Path.of("study.xml.gz"))).isTrue();
+        then(XMLCompression.isXMLFile(Path.of("study.xml.zst"))).isTrue();
+        then(XMLCompression.isXMLFile(Path.of("study.json"))).isFalse();
+        then(XMLCompression.isXMLFile(Path.of("study.gz"))).isFalse();
+    }
+
+    @Test
+    public void shouldRemoveCompressionExtensionsFromTheBaseName() {
+        then(XMLCompression.getBaseName(Path.of("/data/1683.xml"))).isEqualTo("1683");
+        then(XMLCompression.getBaseName(Path.of("/data/1683.xml.gz"))).isEqualTo("1683");
+        then(XMLCompression.getBaseName(Path.of("/data/1683.xml.zst"))).isEqualTo("1683");
+        then(XMLCompression.getBaseName(Path.of("/data/1683.txt"))).isEqualTo("1683");
+    }
+}
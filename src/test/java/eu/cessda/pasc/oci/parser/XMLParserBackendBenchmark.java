@@ -0,0 +1,106 @@
+/*
+ * Copyright © 2017-2023 CESSDA ERIC (support@cessda.eu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.cessda.pasc.oci.parser;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Compares the parse throughput and allocation of each {@link XMLParserBackend} on a corpus of XML files.
+ * <p>
+ * This is not run as part of the test suite. Run it with the test classpath, optionally passing the directory
+ * containing the corpus and the amount of measured iterations. The test fixtures are used by default.
+ * <pre>
+ * java -cp target/classes:target/test-classes:... eu.cessda.pasc.oci.parser.XMLParserBackendBenchmark /data/UKDS 20
+ * </pre>
+ */
+public class XMLParserBackendBenchmark {
+
+    private static final int WARMUP_ITERATIONS = 5;
+
+    public static void main(String[] args) throws IOException {
+        var corpusDirectory = Path.of(args.length > 0 ? args[0] : "src/test/resources/xml");
+        var iterations = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+        // Load the corpus into memory so that the benchmark measures parsing rather than IO
+        var corpus = new ArrayList<byte[]>();
+        try (Stream<Path> files = Files.walk(corpusDirectory)) {
+            for (var file : files.filter(file -> file.toString().endsWith(".xml") && Files.isRegularFile(file)).toList()) {
+                corpus.add(Files.readAllBytes(file));
+            }
+        }
+        var corpusBytes = corpus.stream().mapToLong(bytes -> bytes.length).sum();
+        System.out.printf("Corpus: %d files, %d bytes, %d iterations%n", corpus.size(), corpusBytes, iterations);
+
+        for (var backend : XMLParserBackend.values()) {
+            var documentBuilder = backend.newDocumentBuilder();
+            for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+                parseCorpus(documentBuilder, corpus);
+            }
+
+            var allocatedBefore = getAllocatedBytes();
+            var start = System.nanoTime();
+            var failures = 0;
+            for (int i = 0; i < iterations; i++) {
+                failures += parseCorpus(documentBuilder, corpus);
+            }
+            var elapsedSeconds = (System.nanoTime() - start) / 1e9;
+            var allocated = getAllocatedBytes() - allocatedBefore;
+
+            var files = (long) corpus.size() * iterations;
+            System.out.printf("%-5s %10.0f files/s %8.1f MB/s %10d bytes allocated/file %5d failures%n",
+                backend,
+                files / elapsedSeconds,
+                corpusBytes * iterations / elapsedSeconds / 1_000_000,
+                files > 0 ? allocated / files : 0,
+                failures / iterations
+            );
+        }
+    }
+
+    /**
+     * Parse every document in the corpus.
+     *
+     * @return the amount of documents that failed to parse.
+     */
+    private static int parseCorpus(XMLDocumentBuilder documentBuilder, List<byte[]> corpus) {
+        var failures = 0;
+        for (var bytes : corpus) {
+            try {
+                documentBuilder.build(new ByteArrayInputStream(bytes));
+            } catch (Exception e) {
+                failures++;
+            }
+        }
+        return failures;
+    }
+
+    /**
+     * Get the amount of bytes allocated by the current thread, or 0 if the JVM doesn't support allocation measurement.
+     */
+    private static long getAllocatedBytes() {
+        if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean threadMXBean) {
+            return threadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+}
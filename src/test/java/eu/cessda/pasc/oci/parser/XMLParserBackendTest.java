@@ -0,0 +1,109 @@
+/*
+ * Copyright © 2017-2023 CESSDA ERIC (support@cessda.eu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.cessda.pasc.oci.parser;
+
+import eu.cessda.pasc.oci.IndexerMetrics;
+import eu.cessda.pasc.oci.ResourceHandler;
+import eu.cessda.pasc.oci.configurations.AppConfigurationProperties;
+import eu.cessda.pasc.oci.exception.XMLParseException;
+import eu.cessda.pasc.oci.mock.data.ReposTestData;
+import eu.cessda.pasc.oci.models.configurations.Repo;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.jdom2.JDOMException;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.BDDAssertions.then;
+
+public class XMLParserBackendTest {
+
+    private final Repo repo = ReposTestData.getUKDSRepo();
+
+    private static RecordXMLParser newParser(XMLParserBackend backend) {
+        var configurationProperties = new AppConfigurationProperties();
+        configurationProperties.setXmlParser(backend);
+        return new RecordXMLParser(new CMMStudyMapper(), new IndexerMetrics(new SimpleMeterRegistry()), configurationProperties);
+    }
+
+    private static Object parse(RecordXMLParser parser, Repo repo, Path path) {
+        try {
+            return parser.parseRecords(repo, path);
+        } catch (XMLParseException e) {
+            return e.getClass();
+        }
+    }
+
+    private static void build(XMLParserBackend backend, String document) throws IOException, JDOMException {
+        backend.newDocumentBuilder().build(new ByteArrayInputStream(document.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    public void shouldParseFixturesTheSameAsSAX() throws IOException, URISyntaxException {
+        // Given
+        var saxParser = newParser(XMLParserBackend.SAX);
+        var staxParser = newParser(XMLParserBackend.STAX);
+
+        try (var fixtures = Files.walk(Path.of(ResourceHandler.getResource("xml").toURI()))) {
+            var paths = fixtures.filter(path -> path.toString().endsWith(".xml")).toList();
+            then(paths).isNotEmpty();
+
+            for (var path : paths) {
+                // When
+                var saxRecords = parse(saxParser, repo, path);
+                var staxRecords = parse(staxParser, repo, path);
+
+                // Then
+                then(staxRecords).as(path.toString()).isEqualTo(saxRecords);
+            }
+        }
+    }
+
+    @Test
+    public void shouldNotResolveExternalEntities() {
+        var document = "<!DOCTYPE record [<!ENTITY xxe SYSTEM \"file:///etc/hostname\">]><record>&xxe;</record>";
+
+        for (var backend : XMLParserBackend.values()) {
+            assertThatThrownBy(() -> build(backend, document)).as(backend.name()).isInstanceOf(JDOMException.class);
+        }
+    }
+
+    @Test
+    public void shouldNotLoadExternalDTDs() throws IOException {
+        // Given - a DTD that would declare the entity if it were loaded
+        var dtd = Files.createTempFile("record", ".dtd");
+        dtd.toFile().deleteOnExit();
+        Files.writeString(dtd, "<!ENTITY external \"loaded\">");
+        var document = "<!DOCTYPE record SYSTEM \"" + dtd.toUri() + "\"><record>&external;</record>";
+
+        for (var backend : XMLParserBackend.values()) {
+            assertThatThrownBy(() -> build(backend, document)).as(backend.name()).isInstanceOf(JDOMException.class);
+        }
+    }
+
+    @Test
+    public void staxShouldRejectDocumentsDeclaringEntities() {
+        var document = "<!DOCTYPE record [<!ENTITY a \"aaaaaaaaaa\"><!ENTITY b \"&a;&a;&a;&a;&a;&a;&a;&a;&a;&a;\">]><record>&b;</record>";
+
+        assertThatThrownBy(() -> build(XMLParserBackend.STAX, document)).isInstanceOf(JDOMException.class);
+    }
+}
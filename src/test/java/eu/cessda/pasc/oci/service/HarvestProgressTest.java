@@ -0,0 +1,107 @@
+/*
+ * Copyright © 2017-2023 CESSDA ERIC (support@cessda.eu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.cessda.pasc.oci.service;
+
+import eu.cessda.pasc.oci.LoggingConstants;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.slf4j.MDC;
+
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class HarvestProgressTest {
+
+    private final HarvestProgress harvestProgress = new HarvestProgress();
+
+    @AfterEach
+    void tearDown() {
+        MDC.clear();
+    }
+
+    @Test
+    void shouldTrackRepositoryProgress() {
+        // Given
+        var progress = harvestProgress.register("UKDS");
+
+        // When
+        progress.setStage(RepositoryProgress.Stage.PARSING);
+        progress.addFilesSeen(10);
+        progress.incrementFilesParsed();
+        progress.addStudies("en", 3);
+        progress.addStudies("en", 2);
+        progress.addStudies("de", 1);
+        progress.bulkRequestStarted();
+
+        // Then
+        assertThat(progress.getFilesSeen()).isEqualTo(10);
+        assertThat(progress.getFilesParsed()).isEqualTo(1);
+        assertThat(progress.getStudiesPerLanguage()).isEqualTo(Map.of("de", 1L, "en", 5L));
+        assertThat(progress.getBulkRequestsInFlight()).isEqualTo(1);
+        assertThat(harvestProgress.getActiveRepositories()).isEqualTo(1);
+        assertThat(harvestProgress.getRepositoryProgress()).singleElement().asString().startsWith("UKDS: stage=PARSING");
+
+        // When
+        progress.bulkRequestFinished(6);
+        progress.setStage(RepositoryProgress.Stage.FINISHED);
+
+        // Then
+        assertThat(progress.getBulkRequestsInFlight()).isZero();
+        assertThat(progress.getDocumentsAcknowledged()).isEqualTo(6);
+        assertThat(progress.getEstimatedTimeRemaining()).isEmpty();
+        assertThat(harvestProgress.getActiveRepositories()).isZero();
+    }
+
+    @Test
+    void shouldFindTheCurrentRepositoryFromTheMDC() {
+        // Given
+        var progress = harvestProgress.register("UKDS");
+        MDC.put(LoggingConstants.REPO_NAME, "UKDS");
+
+        // Then
+        assertThat(harvestProgress.getCurrentRepository()).containsSame(progress);
+    }
+
+    @Test
+    void shouldCancelARepository() {
+        // Given
+        var ukds = harvestProgress.register("UKDS");
+        var fsd = harvestProgress.register("FSD");
+
+        // When
+        var cancelled = harvestProgress.cancelRepository("UKDS");
+
+        // Then
+        assertThat(cancelled).isTrue();
+        assertThat(ukds.isCancelled()).isTrue();
+        assertThat(fsd.isCancelled()).isFalse();
+        assertThat(harvestProgress.cancelRepository("UNKNOWN")).isFalse();
+    }
+
+    @Test
+    void shouldClearPreviousHarvests() {
+        // Given
+        harvestProgress.register("UKDS");
+
+        // When
+        harvestProgress.clear();
+
+        // Then
+        assertThat(harvestProgress.getRepository("UKDS")).isEmpty();
+        assertThat(harvestProgress.printRepositoryProgress("UKDS")).isEqualTo("UKDS: not found");
+    }
+}